@@ -3,7 +3,9 @@ package martinlt.cryptomessenger;
 import java.io.IOException;
 import java.security.NoSuchAlgorithmException;
 
+import javafx.animation.AnimationTimer;
 import javafx.application.Application;
+import javafx.application.Platform;
 import javafx.fxml.FXMLLoader;
 import javafx.scene.Scene;
 import javafx.scene.control.Alert;
@@ -13,47 +15,61 @@ import javafx.scene.layout.AnchorPane;
 import javafx.scene.layout.BorderPane;
 import javafx.stage.Modality;
 import javafx.stage.Stage;
-import martinlt.cryptomessenger.exception.NoSuchPublicKeyException;
+import martinlt.cryptomessenger.crypto.ConversationRatchet;
+import martinlt.cryptomessenger.crypto.KeyRing;
+import martinlt.cryptomessenger.crypto.KeyRing.PartyKeys;
 import martinlt.cryptomessenger.exception.SecurityException;
+import martinlt.cryptomessenger.group.Group;
+import martinlt.cryptomessenger.group.Groups;
+import martinlt.cryptomessenger.history.HistoryRecord.Direction;
+import martinlt.cryptomessenger.history.MessageHistoryStore;
+import martinlt.cryptomessenger.mailbox.MailboxDecryptor;
+import martinlt.cryptomessenger.mailbox.MailboxWriter;
+import martinlt.cryptomessenger.metrics.CryptoMetrics;
+import martinlt.cryptomessenger.metrics.FlightEvent;
+import martinlt.cryptomessenger.metrics.Operation;
+import martinlt.cryptomessenger.metrics.StartupTimer;
 import martinlt.cryptomessenger.model.Party;
-import martinlt.cryptomessenger.model.PartyListWrapper;
+import martinlt.cryptomessenger.persistence.PartyFileWriter;
+import martinlt.cryptomessenger.persistence.PartyFiles;
+import martinlt.cryptomessenger.search.MessageIndex;
+import martinlt.cryptomessenger.view.CachedView;
+import martinlt.cryptomessenger.view.EncryptionQueue;
 import martinlt.cryptomessenger.view.PartyEditDialogController;
 import martinlt.cryptomessenger.view.PartyOverviewController;
 import martinlt.cryptomessenger.view.RootLayoutController;
 
+import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.security.KeyFactory;
-import java.security.KeyPair;
-import java.security.KeyPairGenerator;
-import java.security.MessageDigest;
-import java.security.PrivateKey;
 import java.security.PublicKey;
-import java.security.SecureRandom;
-import java.security.spec.X509EncodedKeySpec;
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.Base64;
 import java.util.HashMap;
-import java.util.ListIterator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.prefs.Preferences;
+import java.util.stream.Collectors;
 
-import javax.crypto.Cipher;
-import javax.crypto.KeyAgreement;
-import javax.crypto.KeyGenerator;
-import javax.crypto.SecretKey;
-import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
-import javax.xml.bind.JAXBContext;
-import javax.xml.bind.Marshaller;
-import javax.xml.bind.Unmarshaller;
+import javax.xml.bind.JAXBException;
 
 import javafx.beans.property.SimpleStringProperty;
 import javafx.beans.property.StringProperty;
 import javafx.collections.FXCollections;
+import javafx.collections.ListChangeListener;
 import javafx.collections.ObservableList;
 
 public class MainApp extends Application
@@ -66,16 +82,6 @@ public class MainApp extends Application
       RSA, DH_AES
    }
 
-   /**
-    * The size (in bits) of the keys
-    */
-   private static final int KEY_SIZE = 2048;
-
-   /**
-    * The size (in bits) of the initialisation vector used
-    */
-   private static final int IV_SIZE = 16;
-
    public static void main(String[] args)
    {
       launch(args);
@@ -86,44 +92,57 @@ public class MainApp extends Application
    private BorderPane rootLayout;
 
    /**
-    * A unique name representing the party, i.e. "Bob" or "Alice".
+    * The party dialog, parsed once and shared by the edit and new dialogs.
     */
-   private final String name;
+   private final CachedView<AnchorPane, PartyEditDialogController> partyDialog = new CachedView<AnchorPane, PartyEditDialogController>(
+         MainApp.class.getResource("view/PartyEditDialog.fxml"));
+
+   /**
+    * The stage of the party dialog, created when it is first shown.
+    */
+   private Stage partyDialogStage;
 
    /**
-    * The private key for this party.
+    * A unique name representing the party, i.e. "Bob" or "Alice".
     */
-   private final PrivateKey privateKey;
+   private final String name;
 
    /**
-    * The public key for this party. These should be exchanged by parties
-    * intending to communicate securely.
+    * The key pair for this party and the keys of the parties it knows. The
+    * public key should be exchanged by parties intending to communicate
+    * securely.
     *
     * See the {@link #receivePublicKeyFrom(String, String)} method.
     */
-   private final PublicKey publicKey;
+   private final KeyRing keyRing;
 
    /**
-    * Base 64 representation of this party's public key.
+    * The groups this party belongs to, addressed by name like parties.
     */
-   private final StringProperty publicKeyBase64;
+   private final Groups groups;
 
    /**
-    * A hashmap containing public keys that this party is aware of. Each public
-    * key is keyed using the name of the related party.
+    * The symmetric ratchet used for messages to and from single parties, or
+    * null if they are encrypted with the key ring (see
+    * {@link #useRatchet(boolean)}).
     */
-   private HashMap<String, PublicKey> receivedPublicKeys = new HashMap<String, PublicKey>();
+   private volatile ConversationRatchet ratchet;
 
    /**
-    * The data as an observable list of Parties.
+    * Whether messages to and from single parties are signed (see
+    * {@link #signMessages(boolean)}).
     */
-   private ObservableList<Party> partyData = FXCollections.observableArrayList();
+   private volatile boolean signing;
+
+   /**
+    * Base 64 representation of this party's public key.
+    */
+   private final StringProperty publicKeyBase64;
 
    /**
-    * A hashmap containing the generated secret keys for each known party public
-    * key.
+    * The data as an observable list of Parties.
     */
-   private HashMap<String, SecretKeySpec> secretKeys = new HashMap<String, SecretKeySpec>();
+   private ObservableList<Party> partyData = FXCollections.observableArrayList();
 
    /**
     * A plaintext string decrypted from an encrypted message.
@@ -135,13 +154,49 @@ public class MainApp extends Application
     */
    private byte[] cipherText;
 
+   private static final String SEARCH_INDEX_FILE = "search.idx";
+
    /**
-    * The basis used for key generation and key exchange
+    * The encrypted message history and its search index, or null if history
+    * is not being kept (see {@link #enableHistory(File)}). Both are published
+    * together, so a message is never stored without being indexed.
     */
-   private final String algorithmBasis;
+   private volatile History history;
 
-   private final String PRIVATE_KEY_FILE;
-   private final String PUBLIC_KEY_FILE;
+   /**
+    * Writes the party file in the background (see {@link PartyFileWriter}).
+    */
+   private PartyFileWriter partyFileWriter;
+
+   /**
+    * Set while party data is being loaded, so that loading a file does not
+    * schedule it to be written straight back.
+    */
+   private boolean loadingPartyData;
+
+   /**
+    * Parties whose keys have been stored but which are not yet in the party
+    * list (see {@link #publishParties()}).
+    */
+   private final Queue<ReceivedParty> receivedParties = new ConcurrentLinkedQueue<ReceivedParty>();
+
+   /**
+    * Set while an update of the party list is waiting to run on the FX
+    * thread.
+    */
+   private final AtomicBoolean publishScheduled = new AtomicBoolean();
+
+   /**
+    * Without a UI, set when the party list is out of date with the key ring,
+    * and guarding its update (see {@link #getPartyData()}).
+    */
+   private final AtomicBoolean partyDataStale = new AtomicBoolean();
+
+   /**
+    * Encrypts files dropped on the window, created when first used (see
+    * {@link #getEncryptionQueue()}).
+    */
+   private EncryptionQueue encryptionQueue;
 
    /**
     * Default Constructor
@@ -176,40 +231,22 @@ public class MainApp extends Application
    {
       this.name = name;
 
-      if (AlgorithmMode.RSA == mode) {
-         algorithmBasis = "RSA";
-      } else {
-         algorithmBasis = "DH";
-      }
-
-      this.PRIVATE_KEY_FILE = "private_" + name + "_" + algorithmBasis + ".key";
-      this.PUBLIC_KEY_FILE = "public_" + name + "_" + algorithmBasis + ".key";
-
-      if (!areKeysPresent()) {
-         generateKeyPair();
-      }
-
-      ObjectInputStream inputStream;
-
-      // Load the public key
-      inputStream = new ObjectInputStream(new FileInputStream(PUBLIC_KEY_FILE));
-      publicKey = (PublicKey) inputStream.readObject();
-      inputStream.close();
+      FlightEvent.Timer keyLoad = FlightEvent.KEY_LOAD.begin();
+      boolean generated = keyLoad != null && !KeyRing.keysPresent(name, mode);
+      this.keyRing = new KeyRing(name, mode);
+      if (keyLoad != null)
+         keyLoad.commit(name, mode.name(), generated);
 
-      // Load the private key
-      inputStream = new ObjectInputStream(new FileInputStream(PRIVATE_KEY_FILE));
-      privateKey = (PrivateKey) inputStream.readObject();
-      inputStream.close();
+      this.groups = new Groups(keyRing);
 
-      publicKeyBase64 = new SimpleStringProperty(encodeBytes(publicKey.getEncoded()));
+      publicKeyBase64 = new SimpleStringProperty(encodeBytes(keyRing.getEncodedPublicKey()));
    }
 
    /**
     * Encrypt a message and send to a known party.
     * <p>
-    * This method will retrieve the shared secret key from the hashmap of known
-    * secret keys (see {@link #secretKeys}) based on the name of the recipient
-    * party.
+    * This method will retrieve the shared secret key from the known secret
+    * keys (see {@link KeyRing}) based on the name of the recipient party.
     * </p>
     * <p>
     * Following this, the message will be encrypted using the AES/ECB symmetric
@@ -227,20 +264,156 @@ public class MainApp extends Application
     */
    public void encryptMessage(final String message, final String recipient) throws SecurityException
    {
-      // Diffie-Hellman key exchange + AES encryption
-      if (algorithmBasis.compareTo("DH") == 0) {
-         SecretKeySpec secretKey = secretKeys.get(recipient);
-         if (secretKey == null)
-            throw new NoSuchPublicKeyException(recipient);
+      cipherText = encryptFor(message, recipient);
+   }
 
-         cipherText = encrypt(message, secretKey);
-      } else { // RSA keys + encryption
-         PublicKey receivedPublicKey = receivedPublicKeys.get(recipient);
-         if (receivedPublicKey == null)
-            throw new NoSuchPublicKeyException(recipient);
+   /**
+    * Encrypts a message for a known party and returns the ciphertext.
+    * <p>
+    * Unlike {@link #encryptMessage(String, String)} this does not keep the
+    * ciphertext in this instance, so it can be called from several threads at
+    * once, i.e. by a transport delivering messages to peers.
+    * </p>
+    * <p>
+    * If the recipient names a group (see {@link #getGroups()}) the message is
+    * encrypted once with this party's sender key for the group. Otherwise, if
+    * {@link #useRatchet(boolean)} is on, it is encrypted with the next key of
+    * the conversation's ratchet. If {@link #signMessages(boolean)} is on, a
+    * message for a single party is signed before it is encrypted.
+    * </p>
+    *
+    * @param message
+    *           the cleartext to be encrypted.
+    * @param recipient
+    *           the party or group the message is for.
+    * @return the ciphertext
+    * @throws SecurityException
+    *            failed to encrypt the message
+    */
+   public byte[] encryptFor(final String message, final String recipient)
+         throws SecurityException
+   {
+      byte[] plain = message.getBytes();
+      FlightEvent.Timer event = FlightEvent.ENCRYPT.begin();
+      long start = CryptoMetrics.start();
+      byte[] encrypted;
+      try {
+         Group group = groups.get(recipient);
+         ConversationRatchet ratchet = this.ratchet;
+         byte[] content = group == null && signing ? keyRing.sign(plain, recipient) : plain;
+         encrypted = group != null ? group.encrypt(plain)
+               : ratchet != null ? ratchet.encrypt(content, recipient)
+                     : keyRing.encrypt(content, recipient);
+      } catch (SecurityException | RuntimeException e) {
+         CryptoMetrics.get().recordFailure(Operation.ENCRYPT, keyRing.getMode(), start);
+         throw e;
+      } finally {
+         if (event != null)
+            event.commit(recipient, keyRing.getMode().name(), (long) plain.length);
+      }
+      CryptoMetrics.get().record(Operation.ENCRYPT, keyRing.getMode(), start);
+
+      recordMessage(recipient, Direction.SENT, message);
+
+      return encrypted;
+   }
 
-         cipherText = encrypt(message, receivedPublicKey);
+   /**
+    * Starts keeping an encrypted history of the messages sent and received
+    * with a known sender (see {@link MessageHistoryStore}). The history is
+    * encrypted with a key derived from this party's private key.
+    *
+    * @param directory
+    *           directory in which the history is kept
+    * @throws IOException
+    *            if the history could not be opened
+    * @throws SecurityException
+    *            if the history key could not be derived
+    */
+   public synchronized void enableHistory(File directory) throws IOException, SecurityException
+   {
+      closeHistory();
+
+      SecretKeySpec historyKey = keyRing.deriveKey("history");
+      MessageHistoryStore store = new MessageHistoryStore(directory, historyKey);
+
+      // The history is the record; the index is rebuilt from it if it cannot
+      // be read, and brought up to date if it was saved before a crash
+      MessageIndex index = new MessageIndex();
+      File indexFile = new File(directory, SEARCH_INDEX_FILE);
+      if (indexFile.exists()) {
+         try {
+            index = MessageIndex.load(indexFile, historyKey);
+         } catch (IOException | SecurityException e) {
+            e.printStackTrace();
+         }
       }
+      try {
+         index.catchUp(store);
+      } catch (IOException | SecurityException e) {
+         store.close();
+         throw e;
+      }
+
+      history = new History(store, index, directory, historyKey);
+   }
+
+   /**
+    * Saves the search index and closes the message history.
+    *
+    * @throws IOException
+    * @throws SecurityException
+    *            if the search index could not be encrypted
+    */
+   public synchronized void closeHistory() throws IOException, SecurityException
+   {
+      History history = this.history;
+      if (history == null)
+         return;
+
+      // Stop new messages first, then wait for those pending to reach the
+      // index before saving it
+      this.history = null;
+      history.store.close();
+      history.index.save(new File(history.directory, SEARCH_INDEX_FILE), history.key);
+   }
+
+   /**
+    * Returns the message history, or null if history is not being kept.
+    *
+    * @return
+    */
+   public MessageHistoryStore getHistory()
+   {
+      History history = this.history;
+      return history == null ? null : history.store;
+   }
+
+   /**
+    * Returns the full-text index over the message history, or null if history
+    * is not being kept.
+    *
+    * @return
+    */
+   public MessageIndex getSearchIndex()
+   {
+      History history = this.history;
+      return history == null ? null : history.index;
+   }
+
+   /**
+    * Adds a message to the history and, once it has been stored, to the
+    * search index.
+    */
+   private void recordMessage(String party, Direction direction, String text)
+   {
+      final History history = this.history;
+      // A message from an unknown sender has no conversation to go in
+      if (history == null || party == null)
+         return;
+
+      history.store.append(party, direction, text).thenAccept(record -> history.index.add(
+            party, record.getId(), record.getText()));
    }
 
    /**
@@ -250,7 +423,100 @@ public class MainApp extends Application
     */
    public String getAlgorithmBasis()
    {
-      return algorithmBasis;
+      return keyRing.getAlgorithmBasis();
+   }
+
+   /**
+    * Returns the keys of this party and of the parties it knows.
+    *
+    * @return
+    */
+   public KeyRing getKeyRing()
+   {
+      return keyRing;
+   }
+
+   /**
+    * Returns the queue encrypting files for parties, creating it on first
+    * use. Only to be called on the FX thread.
+    *
+    * @return
+    */
+   public EncryptionQueue getEncryptionQueue()
+   {
+      if (encryptionQueue == null)
+         encryptionQueue = new EncryptionQueue(keyRing);
+      return encryptionQueue;
+   }
+
+   /**
+    * Returns the groups this party belongs to.
+    *
+    * @return
+    */
+   public Groups getGroups()
+   {
+      return groups;
+   }
+
+   /**
+    * Chooses whether messages to and from single parties are encrypted with a
+    * {@link ConversationRatchet}, which needs only a hash per message once a
+    * conversation has started, or each with the key ring. Both parties must
+    * make the same choice. Turning the ratchet off forgets its state.
+    *
+    * @param enabled
+    */
+   public void useRatchet(boolean enabled)
+   {
+      if (enabled && ratchet == null)
+         ratchet = new ConversationRatchet(keyRing);
+      else if (!enabled)
+         ratchet = null;
+   }
+
+   /**
+    * Chooses whether messages to and from single parties are signed by the
+    * sender before they are encrypted, and the signature checked by the
+    * recipient after they are decrypted (see {@link KeyRing#sign(byte[],
+    * String)}). Both parties must make the same choice and must have
+    * exchanged signing keys (see {@link #getSigningKey()}). Group messages
+    * are not signed.
+    *
+    * @param enabled
+    */
+   public void signMessages(boolean enabled)
+   {
+      signing = enabled;
+   }
+
+   /**
+    * Returns this party's signing public key in PEM format, for other parties
+    * to verify its messages with.
+    *
+    * @return
+    * @throws SecurityException
+    *            if the signing keys could not be read or generated
+    */
+   public String getSigningKey() throws SecurityException
+   {
+      return keyRing.getSigningKey();
+   }
+
+   /**
+    * Stores another party's signing public key, used to check the messages
+    * it signs.
+    *
+    * @param senderName
+    * @param signingKey
+    *           PEM format
+    * @throws SecurityException
+    *            if the key is not valid
+    */
+   public void receiveSigningKeyFrom(final String senderName, final String signingKey)
+         throws SecurityException
+   {
+      keyRing.receiveSigningKeyFrom(senderName, signingKey);
    }
 
    /**
@@ -266,6 +532,36 @@ public class MainApp extends Application
          return "";
    }
 
+   /**
+    * Returns the ciphertext made by the last call to
+    * {@link #encryptMessage(String, String)}, before Base64 encoding. Later
+    * calls replace the array rather than change it, so it may be kept and
+    * read on another thread, but must not be changed.
+    *
+    * @return
+    */
+   public byte[] getCipherTextBytes()
+   {
+      return cipherText == null ? new byte[0] : cipherText;
+   }
+
+   /**
+    * Writes ciphertext as the same text {@link #getCipherText()} gives for
+    * it, encoding it as it goes rather than building it as a String first.
+    * The stream is closed.
+    *
+    * @param cipherText
+    *           as returned by {@link #getCipherTextBytes()}
+    * @param out
+    * @throws IOException
+    */
+   public static void writeCipherText(byte[] cipherText, OutputStream out) throws IOException
+   {
+      try (OutputStream encoder = Base64.getEncoder().wrap(out)) {
+         encoder.write(cipherText);
+      }
+   }
+
    /**
     * Returns the unique identifier for the party.
     *
@@ -278,11 +574,22 @@ public class MainApp extends Application
 
    /**
     * Returns the data as an observable list of Partys.
+    * <p>
+    * Without a UI, parties received on any thread since the list was last
+    * asked for are added to it here, all at once. The list itself is not
+    * thread safe, so it should still only be read by one thread at a time.
+    * </p>
     *
     * @return
     */
    public ObservableList<Party> getPartyData()
    {
+      if (primaryStage == null) {
+         synchronized (partyDataStale) {
+            if (partyDataStale.getAndSet(false))
+               updatePartyData();
+         }
+      }
       return partyData;
    }
 
@@ -334,18 +641,7 @@ public class MainApp extends Application
     */
    public String getPublicKey()
    {
-      // return encodeBytes(publicKey.getEncoded());
-      return getKeyFormattedAsPEM(this.publicKey);
-   }
-
-   private String getKeyFormattedAsPEM(PublicKey key)
-   {
-      // Base 64 encode the key
-      String base64Key = Base64.getEncoder().encodeToString(key.getEncoded());
-
-      // Return in PEM format
-      return "-----BEGIN PUBLIC KEY-----\n" + base64Key.replaceAll("(.{64})", "$1\n")
-            + "\n-----END PUBLIC KEY-----\n";
+      return keyRing.getPublicKey();
    }
 
    /**
@@ -357,7 +653,8 @@ public class MainApp extends Application
    }
 
    /**
-    * Initializes the root layout and tries to load the last opened party file.
+    * Initializes the root layout. The stage is not shown, so that the first
+    * frame can include the rest of the window.
     */
    public void initRootLayout()
    {
@@ -374,55 +671,115 @@ public class MainApp extends Application
          // Give the controller access to the main app.
          RootLayoutController controller = loader.getController();
          controller.setMainApp(this);
-
-         primaryStage.show();
       } catch (IOException e) {
          e.printStackTrace();
       }
-
-      // Try to load last opened party file.
-      File file = getPartyFilePath();
-      if (file != null) {
-         loadPartyDataFromFile(file);
-      }
    }
 
    /**
     * Loads party data from the specified file. The current party data will be
     * replaced.
+    * <p>
+    * The file is read and the public keys are parsed in the background, then
+    * the new party data is published to the FX thread in a single change.
+    * </p>
     *
     * @param file
     */
    public void loadPartyDataFromFile(File file)
    {
-      try {
-         JAXBContext context = JAXBContext.newInstance(PartyListWrapper.class);
-         Unmarshaller um = context.createUnmarshaller();
+      readPartyDataFromFile(file, true);
+   }
 
-         // Reading XML from the file and unmarshalling.
-         PartyListWrapper wrapper = (PartyListWrapper) um.unmarshal(file);
+   /**
+    * Merges party data from the specified file into the current party data.
+    * Parties already known are replaced by those in the file.
+    *
+    * @param file
+    */
+   public void importPartyDataFromFile(File file)
+   {
+      readPartyDataFromFile(file, false);
+   }
 
-         // Clear down the current lists
-         partyData.clear();
-         receivedPublicKeys.clear();
-         secretKeys.clear();
+   private void readPartyDataFromFile(final File file, final boolean replace)
+   {
+      CompletableFuture.supplyAsync(() -> parsePartyDataFromFile(file))
+            .whenComplete((parties, e) -> Platform.runLater(() -> {
+               if (e == null) {
+                  publishPartyData(parties, replace);
+
+                  // Save the file path to the registry.
+                  if (replace)
+                     setPartyFilePath(file);
+               } else {
+                  Alert alert = new Alert(AlertType.ERROR);
+                  alert.setTitle("Error");
+                  alert.setHeaderText("Could not load data");
+                  alert.setContentText("Could not load data from file:\n" + file.getPath());
+
+                  alert.showAndWait();
+               }
+            }));
+   }
 
-         // Load the party public keys, generate secret keys (if DH) and
-         // observable list
-         for (Party p : wrapper.getPartys()) {
-            receivePublicKeyFrom(p.getIdentifier(), p.getPublicKey());
+   /**
+    * Reads a party file and parses the public keys (and generates the secret
+    * keys if DH) in parallel. Runs off the FX thread and does not touch any
+    * shared state.
+    */
+   private List<ReceivedParty> parsePartyDataFromFile(File file)
+   {
+      try {
+         return PartyFiles.read(file).parallelStream().map(p -> {
+            try {
+               return parsePublicKeyFrom(p.getIdentifier(), p.getPublicKey());
+            } catch (SecurityException e) {
+               throw new CompletionException(e);
+            }
+         }).collect(Collectors.toList());
+      } catch (JAXBException e) {
+         throw new CompletionException(e);
+      }
+   }
+
+   /**
+    * Stores parsed parties and publishes them to the observable list with a
+    * single change. Must be called on the FX thread.
+    */
+   private void publishPartyData(List<ReceivedParty> parties, boolean replace)
+   {
+      List<Party> newPartyData = new ArrayList<Party>(
+            replace ? parties.size() : partyData.size() + parties.size());
+      HashMap<String, Integer> positions = new HashMap<String, Integer>();
+
+      if (replace) {
+         keyRing.clear();
+      } else {
+         for (Party p : partyData) {
+            positions.put(p.getIdentifier(), newPartyData.size());
+            newPartyData.add(p);
          }
+      }
 
-         // Save the file path to the registry.
-         setPartyFilePath(file);
+      for (ReceivedParty received : parties) {
+         storeKeys(received);
 
-      } catch (Exception e) { // catches ANY exception
-         Alert alert = new Alert(AlertType.ERROR);
-         alert.setTitle("Error");
-         alert.setHeaderText("Could not load data");
-         alert.setContentText("Could not load data from file:\n" + file.getPath());
+         Integer position = positions.get(received.party.getIdentifier());
+         if (position != null) {
+            newPartyData.set(position, received.party);
+         } else {
+            positions.put(received.party.getIdentifier(), newPartyData.size());
+            newPartyData.add(received.party);
+         }
+      }
 
-         alert.showAndWait();
+      // A freshly loaded file does not need saving, an import does
+      loadingPartyData = replace;
+      try {
+         partyData.setAll(newPartyData);
+      } finally {
+         loadingPartyData = false;
       }
    }
 
@@ -430,7 +787,9 @@ public class MainApp extends Application
     * Receives an encrypted message and decrypts it.
     * <p>
     * This method will decrypt the message that has been encrypted with this
-    * party's public key (RSA).
+    * party's public key (RSA), by way of the ratchet if it is on and with the
+    * same metrics as {@link #decryptFrom(byte[], String)}, for a sender that
+    * is not known.
     * </p>
     *
     * @param message
@@ -441,20 +800,14 @@ public class MainApp extends Application
     */
    public void receiveAndDecryptMessage(final byte[] message) throws SecurityException
    {
-      try {
-         this.plainText = decrypt(message);
-
-      } catch (Exception e) {
-         throw new SecurityException("Decryption failed : ", e);
-      }
+      this.plainText = decryptFrom(message, null);
    }
 
    /**
     * Receives an encrypted message and decrypts it.
     * <p>
-    * This method will retrieve the shared secret key from the hashmap of known
-    * secret keys (see {@link #secretKeys}) based on the name of the sender
-    * party.
+    * This method will retrieve the shared secret key from the known secret
+    * keys (see {@link KeyRing}) based on the name of the sender party.
     * </p>
     * <p>
     * Following this, the message will be decrypted using the AES/ECB symmetric
@@ -471,28 +824,117 @@ public class MainApp extends Application
    public void receiveAndDecryptMessage(final byte[] message, String sender)
          throws SecurityException
    {
-      try {
-         SecretKeySpec secretKey = secretKeys.get(sender);
-         if (secretKey == null)
-            throw new NoSuchPublicKeyException(sender);
-
-         this.plainText = decrypt(message, secretKey);
+      this.plainText = decryptFrom(message, sender);
+   }
 
+   /**
+    * Decrypts a message received from a known party and returns the
+    * plaintext.
+    * <p>
+    * In DH mode the message is decrypted with the secret key shared with the
+    * sender; in RSA mode it is decrypted with this party's private key. Unlike
+    * {@link #receiveAndDecryptMessage(byte[], String)} this does not keep the
+    * plaintext in this instance, so it can be called from several threads at
+    * once.
+    * </p>
+    * <p>
+    * A message sent to a group is decrypted with the sending member's key for
+    * the group, and the group is given as the sender.
+    * </p>
+    *
+    * @param message
+    *           the ciphertext
+    * @param sender
+    *           the sending party or group
+    * @return the plaintext
+    * @throws SecurityException
+    *            decryption of message failed
+    */
+   public String decryptFrom(final byte[] message, final String sender) throws SecurityException
+   {
+      FlightEvent.Timer event = FlightEvent.DECRYPT.begin();
+      long start = CryptoMetrics.start();
+      String decrypted;
+      try {
+         Group group = sender == null ? null : groups.get(sender);
+         ConversationRatchet ratchet = this.ratchet;
+         byte[] content = group != null ? group.decrypt(message)
+               : ratchet != null ? ratchet.decrypt(message, sender)
+                     : keyRing.decrypt(message, sender);
+         decrypted = new String(group == null && signing ? keyRing.verify(content, sender)
+               : content);
       } catch (Exception e) {
+         CryptoMetrics.get().recordFailure(Operation.DECRYPT, keyRing.getMode(), start);
          throw new SecurityException("Decryption failed : ", e);
+      } finally {
+         if (event != null)
+            event.commit(sender, keyRing.getMode().name(), (long) message.length);
       }
+      CryptoMetrics.get().record(Operation.DECRYPT, keyRing.getMode(), start);
+
+      recordMessage(sender, Direction.RECEIVED, decrypted);
+
+      return decrypted;
+   }
+
+   /**
+    * Decrypts a mailbox file in the background (see
+    * {@link MailboxDecryptor}) and tells the user how it went. Decrypted
+    * messages are written to the output file and those which could not be
+    * decrypted to a file beside it with ".failed" appended.
+    *
+    * @param mailbox
+    *           file of Base64 messages, one per line
+    * @param output
+    *           file to write the decrypted messages to
+    */
+   public void decryptMailbox(final File mailbox, final File output)
+   {
+      final File failures = new File(output.getPath() + ".failed");
+
+      CompletableFuture.supplyAsync(() -> {
+         try (BufferedReader in = Files.newBufferedReader(mailbox.toPath(), StandardCharsets.UTF_8);
+               Writer out = Files.newBufferedWriter(output.toPath());
+               Writer failed = Files.newBufferedWriter(failures.toPath())) {
+            MailboxWriter writer = new MailboxWriter(out, failed);
+            new MailboxDecryptor(keyRing).decrypt(in, writer);
+            return writer;
+         } catch (IOException e) {
+            throw new CompletionException(e);
+         }
+      }).whenComplete((writer, e) -> Platform.runLater(() -> {
+         Alert alert;
+         if (e == null) {
+            alert = new Alert(writer.getFailed() == 0 ? AlertType.INFORMATION : AlertType.WARNING);
+            alert.setTitle("Mailbox decrypted");
+            alert.setHeaderText(writer.getDecrypted() + " messages decrypted, "
+                  + writer.getFailed() + " failed");
+            alert.setContentText("Messages written to:\n" + output.getPath()
+                  + (writer.getFailed() == 0 ? "" : "\nFailures written to:\n" + failures.getPath()));
+         } else {
+            alert = new Alert(AlertType.ERROR);
+            alert.setTitle("Error");
+            alert.setHeaderText("Could not decrypt mailbox");
+            alert.setContentText("Could not decrypt mailbox:\n" + mailbox.getPath());
+         }
+         alert.initOwner(primaryStage);
+         alert.showAndWait();
+      }));
    }
 
    /**
     * Store the senders public key and generate a shared secret key.
     * <p>
-    * This method will store the public key for the sender in the hashmap
-    * {@link #receivedPublicKeys}, using the senderName as the hashmap key.
+    * This method will store the public key for the sender in the
+    * {@link KeyRing}, using the senderName as the key.
     * </p>
     * <p>
     * Following this, the shared SecretKeySpec will be generated and stored in
-    * the corresponding hashmap {@link #secretKeys}, again using the senderName
-    * as the hashmap key.
+    * the key ring, again using the senderName as the key.
+    * </p>
+    * <p>
+    * May be called from any thread. The party list shown by the UI is brought
+    * up to date on the FX thread (see {@link #publishParties()}).
     * </p>
     *
     * @param senderName
@@ -506,90 +948,193 @@ public class MainApp extends Application
    public void receivePublicKeyFrom(final String senderName, final String publicKey)
          throws SecurityException
    {
-      try {
-         String unwrappedPEM = publicKey.replace("-----BEGIN PUBLIC KEY-----", "")
-               .replace("-----END PUBLIC KEY-----", "").replace("\n", "");
-
-         byte[] byteKey = Base64.getDecoder().decode(unwrappedPEM);
-
-         X509EncodedKeySpec X509publicKey = new X509EncodedKeySpec(byteKey);
-         KeyFactory kf = KeyFactory.getInstance(algorithmBasis);
+      ReceivedParty received = parsePublicKeyFrom(senderName, publicKey);
 
-         PublicKey receivedPublicKey = kf.generatePublic(X509publicKey);
+      storeKeys(received);
 
-         receivedPublicKeys.put(senderName, receivedPublicKey);
+      // add the party to our observable list
+      receivedParties.add(received);
+      publishParties();
+   }
 
-         // add the party to our observable list
-         partyData.add(new Party(senderName, publicKey));
+   /**
+    * Parses a party's public key and, for Diffie-Hellman, generates the
+    * shared secret key, without storing either. Safe to call from any thread.
+    *
+    * @param senderName
+    *           the unique name identifiying the sending party.
+    * @param publicKey
+    *           the Base64 representation of the publickey for the sending
+    *           party.
+    * @return
+    * @throws SecurityException
+    *            failed to generate secret key from public key
+    */
+   private ReceivedParty parsePublicKeyFrom(final String senderName, final String publicKey)
+         throws SecurityException
+   {
+      FlightEvent.Timer event = FlightEvent.KEY_AGREEMENT.begin();
+      long start = CryptoMetrics.start();
+      try {
+         // The party keeps the key in binary form and caches the parsed key
+         Party party = new Party(senderName, publicKey);
+         PublicKey receivedPublicKey = party.getParsedPublicKey(getAlgorithmBasis());
 
          // generate the shared secret for Diffie-Hellman
-         if (algorithmBasis.compareTo("DH") == 0) {
-            // generate and hash the shared secret key using my private key
-            // and the senders public key
-            final KeyAgreement keyAgreement = KeyAgreement.getInstance(algorithmBasis);
-            keyAgreement.init(privateKey);
-
-            keyAgreement.doPhase(receivedPublicKey, true);
-
-            byte[] key;
-            MessageDigest sha = MessageDigest.getInstance("SHA-256");
-            key = sha.digest(keyAgreement.generateSecret());
-            key = Arrays.copyOf(key, 16);
-
-            secretKeys.put(senderName, new SecretKeySpec(key, "AES"));
-         }
+         ReceivedParty received = new ReceivedParty(party, keyRing.keysFor(receivedPublicKey));
+         CryptoMetrics.get().record(Operation.RECEIVE_PUBLIC_KEY, keyRing.getMode(), start);
+         return received;
+      } catch (SecurityException e) {
+         CryptoMetrics.get().recordFailure(Operation.RECEIVE_PUBLIC_KEY, keyRing.getMode(), start);
+         throw e;
       } catch (Exception e) {
+         CryptoMetrics.get().recordFailure(Operation.RECEIVE_PUBLIC_KEY, keyRing.getMode(), start);
          throw new SecurityException("Secret key generation failed : ", e);
+      } finally {
+         if (event != null)
+            event.commit(senderName, keyRing.getMode().name());
       }
    }
 
    /**
-    * Removes a known party by name
+    * Stores the keys of a parsed party in the {@link KeyRing}.
+    */
+   private void storeKeys(ReceivedParty received)
+   {
+      keyRing.store(received.party.getIdentifier(), received.keys);
+
+      // chains started with any earlier key for the party are no use now
+      ConversationRatchet ratchet = this.ratchet;
+      if (ratchet != null)
+         ratchet.forget(received.party.getIdentifier());
+   }
+
+   /**
+    * Removes a known party by name, including from any groups, whose sender
+    * keys are then replaced
     *
     * @param name
     */
    public void remove(String name)
    {
-      receivedPublicKeys.values().remove(name);
-      secretKeys.values().remove(name);
+      keyRing.remove(name);
+      ConversationRatchet ratchet = this.ratchet;
+      if (ratchet != null)
+         ratchet.forget(name);
+      for (Group group : groups.list()) {
+         group.removeMember(name);
+      }
+
+      publishParties();
+   }
+
+   /**
+    * Brings the party list up to date with the key ring. On the FX thread
+    * this is done at once; from other threads it is done on the FX thread,
+    * once for any number of changes made meanwhile. When there is no UI it is
+    * done when the list is next asked for (see {@link #getPartyData()}), so
+    * that importing many parties does not rebuild the list for each one.
+    */
+   private void publishParties()
+   {
+      if (primaryStage == null) {
+         partyDataStale.set(true);
+      } else if (Platform.isFxApplicationThread()) {
+         updatePartyData();
+      } else if (publishScheduled.compareAndSet(false, true)) {
+         Platform.runLater(() -> {
+            publishScheduled.set(false);
+            updatePartyData();
+         });
+      }
+   }
 
-      ListIterator<Party> iter = partyData.listIterator();
-      while (iter.hasNext()) {
-         if (iter.next().getIdentifier().compareTo(name) == 0) {
-            iter.remove();
+   /**
+    * Rebuilds the party list from an immutable snapshot of the key ring:
+    * parties no longer in it are dropped, and parties received since the last
+    * update replace those of the same name, or are added, if they still hold
+    * the stored keys. The list is only changed if something is different.
+    */
+   private void updatePartyData()
+   {
+      // Taken in this order, every party polled is already in the snapshot
+      List<ReceivedParty> received = new ArrayList<ReceivedParty>();
+      ReceivedParty next;
+      while ((next = receivedParties.poll()) != null) {
+         received.add(next);
+      }
+      Map<String, PartyKeys> snapshot = keyRing.snapshot();
+
+      Map<String, Party> latest = new LinkedHashMap<String, Party>();
+      for (ReceivedParty party : received) {
+         String identifier = party.party.getIdentifier();
+         PartyKeys stored = snapshot.get(identifier);
+         if (stored != null && stored.getFingerprint().equals(party.keys.getFingerprint())) {
+            latest.remove(identifier);
+            latest.put(identifier, party.party);
          }
       }
+
+      List<Party> updated = new ArrayList<Party>(partyData.size() + latest.size());
+      Set<String> listed = new HashSet<String>();
+      for (Party party : partyData) {
+         String identifier = party.getIdentifier();
+         if (!snapshot.containsKey(identifier) || !listed.add(identifier))
+            continue;
+         Party replacement = latest.remove(identifier);
+         updated.add(replacement != null ? replacement : party);
+      }
+      updated.addAll(latest.values());
+
+      boolean changed = updated.size() != partyData.size();
+      for (int i = 0; !changed && i < updated.size(); i++) {
+         changed = updated.get(i) != partyData.get(i);
+      }
+      if (changed)
+         partyData.setAll(updated);
    }
 
    /**
-    * Saves the current party data to the specified file.
+    * Saves the current party data to the specified file. The file is written
+    * on a background thread (see {@link PartyFileWriter}).
     *
     * @param file
     */
    public void savePartyDataToFile(File file)
    {
-      try {
-         JAXBContext context = JAXBContext.newInstance(PartyListWrapper.class);
-         Marshaller m = context.createMarshaller();
-         m.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
+      getPartyFileWriter().save(file, getPartyData());
 
-         // Wrapping our party data.
-         PartyListWrapper wrapper = new PartyListWrapper();
-         wrapper.setPartys(partyData);
+      // Save the file path to the registry.
+      setPartyFilePath(file);
+   }
 
-         // Marshalling and saving XML to the file.
-         m.marshal(wrapper, file);
+   /**
+    * Schedules the party file to be saved in the background when the party
+    * data changes.
+    */
+   private void autosavePartyData()
+   {
+      if (loadingPartyData)
+         return;
 
-         // Save the file path to the registry.
-         setPartyFilePath(file);
-      } catch (Exception e) { // catches ANY exception
-         Alert alert = new Alert(AlertType.ERROR);
-         alert.setTitle("Error");
-         alert.setHeaderText("Could not save data");
-         alert.setContentText("Could not save data to file:\n" + file.getPath());
+      File file = getPartyFilePath();
+      if (file != null)
+         getPartyFileWriter().schedule(file, partyData);
+   }
 
-         alert.showAndWait();
+   private PartyFileWriter getPartyFileWriter()
+   {
+      if (partyFileWriter == null) {
+         partyFileWriter = new PartyFileWriter((file, e) -> Platform.runLater(() -> {
+            Alert alert = new Alert(AlertType.ERROR);
+            alert.setTitle("Error");
+            alert.setHeaderText("Could not save data");
+            alert.setContentText("Could not save data to file:\n" + file.getPath());
+
+            alert.showAndWait();
+         }));
       }
+      return partyFileWriter;
    }
 
    /**
@@ -627,27 +1172,11 @@ public class MainApp extends Application
    public boolean showPartyEditDialog(Party party)
    {
       try {
-         // Load the fxml file and create a new stage for the popup dialog.
-         FXMLLoader loader = new FXMLLoader();
-         loader.setLocation(MainApp.class.getResource("view/PartyEditDialog.fxml"));
-         AnchorPane page = (AnchorPane) loader.load();
-
-         // Create the dialog Stage.
-         Stage dialogStage = new Stage();
-         dialogStage.setTitle("Edit Party");
-         dialogStage.initModality(Modality.WINDOW_MODAL);
-         dialogStage.initOwner(primaryStage);
-         Scene scene = new Scene(page);
-         dialogStage.setScene(scene);
-
-         // Set the party into the controller.
-         PartyEditDialogController controller = loader.getController();
-         controller.setDialogStage(dialogStage);
-         controller.setParty(party);
+         PartyEditDialogController controller = showPartyDialog("Edit Party", party);
          controller.disableIdentifier();
 
          // Show the dialog and wait until the user closes it
-         dialogStage.showAndWait();
+         partyDialogStage.showAndWait();
 
          return controller.isOkClicked();
       } catch (IOException e) {
@@ -668,27 +1197,11 @@ public class MainApp extends Application
    public boolean showPartyNewDialog(Party party)
    {
       try {
-         // Load the fxml file and create a new stage for the popup dialog.
-         FXMLLoader loader = new FXMLLoader();
-         loader.setLocation(MainApp.class.getResource("view/PartyEditDialog.fxml"));
-         AnchorPane page = (AnchorPane) loader.load();
-
-         // Create the dialog Stage.
-         Stage dialogStage = new Stage();
-         dialogStage.setTitle("New Party");
-         dialogStage.initModality(Modality.WINDOW_MODAL);
-         dialogStage.initOwner(primaryStage);
-         Scene scene = new Scene(page);
-         dialogStage.setScene(scene);
-
-         // Set the party into the controller.
-         PartyEditDialogController controller = loader.getController();
-         controller.setDialogStage(dialogStage);
-         controller.setParty(party);
+         PartyEditDialogController controller = showPartyDialog("New Party", party);
          controller.enableIdentifier();
 
          // Show the dialog and wait until the user closes it
-         dialogStage.showAndWait();
+         partyDialogStage.showAndWait();
 
          return controller.isOkClicked();
       } catch (IOException e) {
@@ -697,6 +1210,28 @@ public class MainApp extends Application
       }
    }
 
+   /**
+    * Prepares the party dialog for a party. The dialog and its stage are
+    * created the first time and reused after that.
+    */
+   private PartyEditDialogController showPartyDialog(String title, Party party)
+         throws IOException
+   {
+      PartyEditDialogController controller = partyDialog.getController();
+      if (partyDialogStage == null) {
+         Stage dialogStage = new Stage();
+         dialogStage.initModality(Modality.WINDOW_MODAL);
+         dialogStage.initOwner(primaryStage);
+         dialogStage.setScene(new Scene(partyDialog.getRoot()));
+         controller.setDialogStage(dialogStage);
+         partyDialogStage = dialogStage;
+      }
+
+      partyDialogStage.setTitle(title);
+      controller.setParty(party);
+      return controller;
+   }
+
    /**
     * Shows the party overview inside the root layout.
     */
@@ -720,106 +1255,75 @@ public class MainApp extends Application
       }
    }
 
+   /**
+    * Shows the main window as soon as it is built, then does the rest of the
+    * startup work in the background: opening the message history, loading
+    * the last opened party file and parsing the party dialog. The time each
+    * phase took up to the first frame is printed if the
+    * {@value StartupTimer#REPORT_PROPERTY} system property is true.
+    */
    @Override
    public void start(Stage primaryStage)
    {
+      final StartupTimer startup = new StartupTimer();
+
       this.primaryStage = primaryStage;
       this.primaryStage.setTitle("Crypto Messenger");
 
-      // Set the application icon.
-      this.primaryStage.getIcons().add(new Image("file:resources/images/email_message.png"));
+      // Set the application icon, loaded in the background.
+      this.primaryStage.getIcons().add(new Image("file:resources/images/email_message.png", true));
+
+      // Save changes to the party list in the background
+      partyData.addListener((ListChangeListener<Party>) change -> autosavePartyData());
 
       initRootLayout();
+      startup.phase("root layout");
 
       showPartyOverview();
-   }
-
-   /**
-    * The method checks if the pair of public and private key has already been
-    * generated.
-    *
-    * @return flag indicating if the pair of keys were generated.
-    */
-   private boolean areKeysPresent()
-   {
-
-      File privateKey = new File(PRIVATE_KEY_FILE);
-      File publicKey = new File(PUBLIC_KEY_FILE);
+      startup.phase("overview");
+
+      primaryStage.show();
+      startup.phase("show");
+
+      // The first pulse after showing renders the first frame
+      new AnimationTimer() {
+         @Override
+         public void handle(long now)
+         {
+            stop();
+            startup.phase("first frame");
+            if (Boolean.getBoolean(StartupTimer.REPORT_PROPERTY))
+               System.out.println("Startup: " + startup);
+
+            partyDialog.prefetch(ForkJoinPool.commonPool());
+         }
+      }.start();
+
+      final File historyDirectory = new File("history_" + name + "_" + getAlgorithmBasis());
+      CompletableFuture.runAsync(() -> {
+         try {
+            enableHistory(historyDirectory);
+         } catch (Exception e) {
+            e.printStackTrace();
+         }
+      });
 
-      if (privateKey.exists() && publicKey.exists()) {
-         return true;
+      // Try to load last opened party file.
+      File file = getPartyFilePath();
+      if (file != null) {
+         loadPartyDataFromFile(file);
       }
-      return false;
    }
 
-   /**
-    * Decipher a ciphertext which contains and RSA encrypted symmetric AES key
-    * and a message encrypted with that key and the AES encryption algorithm.
-    *
-    * @param cipherText
-    *           the encrypted message
-    * @return the decrypted message
-    * @throws SecurityException
-    *            if the decryption could not be completed
-    */
-   private String decrypt(byte[] cipherText) throws SecurityException
+   @Override
+   public void stop() throws IOException, SecurityException
    {
-      try {
-         // Extract the cipher key from the ciphertext
-         byte[] cipherKey = new byte[KEY_SIZE / 8];
-         System.arraycopy(cipherText, 0, cipherKey, 0, cipherKey.length);
-
-         // Decrypt the cipher key using my private key
-         final Cipher cipherDecrypt = Cipher.getInstance("RSA");
-         cipherDecrypt.init(Cipher.DECRYPT_MODE, privateKey);
-         byte[] aesKey = cipherDecrypt.doFinal(cipherKey);
-         SecretKeySpec aeskeySpec = new SecretKeySpec(aesKey, "AES");
-
-         // Extract encrypted portion.
-         int encryptedSize = cipherText.length - cipherKey.length;
-         byte[] encryptedBytes = new byte[encryptedSize];
-         System.arraycopy(cipherText, cipherKey.length, encryptedBytes, 0, encryptedSize);
-
-         return decrypt(encryptedBytes, aeskeySpec);
-      } catch (Exception e) {
-         e.printStackTrace();
-         throw new SecurityException("Decryption failed : ", e);
-      }
-   }
+      if (partyFileWriter != null)
+         partyFileWriter.shutdown();
+      if (encryptionQueue != null)
+         encryptionQueue.shutdown();
 
-   /**
-    * Decipher text encrypted using AES/CBC/PKCS5Padding
-    *
-    * @param cipherText
-    *           the encrypted message
-    * @param secretKeySpec
-    *           key used to encrypt the message
-    * @return the decrypted message
-    * @throws SecurityException
-    *            if the decryption could not be completed
-    */
-   private String decrypt(byte[] cipherText, SecretKeySpec secretKeySpec) throws SecurityException
-   {
-      try {
-         // Extract the IV from the ciphertext
-         byte[] iv = new byte[IV_SIZE];
-         System.arraycopy(cipherText, 0, iv, 0, iv.length);
-         IvParameterSpec ivParameterSpec = new IvParameterSpec(iv);
-
-         // Extract encrypted portion.
-         int encryptedSize = cipherText.length - IV_SIZE;
-         byte[] encryptedBytes = new byte[encryptedSize];
-         System.arraycopy(cipherText, IV_SIZE, encryptedBytes, 0, encryptedSize);
-
-         // Decrypt
-         final Cipher cipherDecrypt = Cipher.getInstance("AES/CBC/PKCS5Padding");
-         cipherDecrypt.init(Cipher.DECRYPT_MODE, secretKeySpec, ivParameterSpec);
-         byte[] plainText = cipherDecrypt.doFinal(encryptedBytes);
-
-         return new String(plainText);
-      } catch (Exception e) {
-         throw new SecurityException("Decryption failed : ", e);
-      }
+      closeHistory();
    }
 
    /**
@@ -835,131 +1339,47 @@ public class MainApp extends Application
    }
 
    /**
-    * Generate ciphertext using a combination of RSA encryption for a randomly
-    * generated symmetric key and AES encryption for the message.
-    *
-    * @param plainText
-    *           the plain text message
-    * @param publicKey
-    *           the RSA public key to be used to encrypt the message
-    * @return the ciphertext generated
-    * @throws SecurityException
-    *            if the encryption could not be completed
+    * Deletes the key files for this party, i.e. once a test or a throwaway
+    * identity is finished with.
     */
-   private byte[] encrypt(String plainText, PublicKey publicKey) throws SecurityException
+   public void removeKeys()
    {
-      try {
-         // generate a random AES key
-         KeyGenerator kgen = KeyGenerator.getInstance("AES");
-         kgen.init(128);
-         SecretKey key = kgen.generateKey();
-         byte[] aesKey = key.getEncoded();
-         SecretKeySpec aeskeySpec = new SecretKeySpec(aesKey, "AES");
-
-         // Encrypt the AES key with the other parties public RSA key
-         Cipher cipher = Cipher.getInstance("RSA");
-         cipher.init(Cipher.ENCRYPT_MODE, publicKey);
-         byte[] cipherKey = cipher.doFinal(aesKey);
-
-         // Now use AES encryption to generate the cipherText
-         byte[] encryptedText = encrypt(plainText, aeskeySpec);
-
-         // Combine secret key and encrypted part to form the ciphertext
-         byte[] cipherText = new byte[cipherKey.length + encryptedText.length];
-         System.arraycopy(cipherKey, 0, cipherText, 0, cipherKey.length);
-         System.arraycopy(encryptedText, 0, cipherText, cipherKey.length, encryptedText.length);
-
-         return cipherText;
-      } catch (Exception e) {
-         e.printStackTrace();
-         throw new SecurityException("Encryption failed : ", e);
-      }
+      keyRing.removeKeys();
    }
 
    /**
-    * Generate ciphertext using AES/CBC/PKCS5Padding
-    *
-    * @param plainText
-    *           the plain text message
-    * @param secretKeySpec
-    *           key to be used to encrypt the message
-    * @return the ciphertext generated
-    * @throws SecurityException
-    *            if the encryption could not be completed
+    * A party whose public key has been parsed, together with the keys to be
+    * stored for it.
     */
-   private byte[] encrypt(String plainText, SecretKeySpec secretKeySpec) throws SecurityException
+   private static class ReceivedParty
    {
-      try {
-         // Generate the IV.
-         byte[] iv = new byte[IV_SIZE];
-         SecureRandom random = new SecureRandom();
-         random.nextBytes(iv);
-         IvParameterSpec ivParameterSpec = new IvParameterSpec(iv);
-
-         // Encrypt the plaintext
-         Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-         cipher.init(Cipher.ENCRYPT_MODE, secretKeySpec, ivParameterSpec);
-         byte[] encryptedText = cipher.doFinal(plainText.getBytes());
-
-         // Combine IV and encrypted part to form the ciphertext
-         byte[] cipherText = new byte[IV_SIZE + encryptedText.length];
-         System.arraycopy(iv, 0, cipherText, 0, IV_SIZE);
-         System.arraycopy(encryptedText, 0, cipherText, IV_SIZE, encryptedText.length);
-
-         return cipherText;
-      } catch (Exception e) {
-         throw new SecurityException("Encryption failed : ", e);
+      final Party party;
+      final PartyKeys keys;
+
+      ReceivedParty(Party party, PartyKeys keys)
+      {
+         this.party = party;
+         this.keys = keys;
       }
    }
 
    /**
-    * Generate key which contains a pair of private and public key. Store the
-    * set of keys in files.
-    *
-    * @throws NoSuchAlgorithmException
-    * @throws IOException
-    * @throws FileNotFoundException
+    * The message history in use, with its search index and where and how
+    * the index is saved.
     */
-   private void generateKeyPair() throws NoSuchAlgorithmException, IOException
+   private static class History
    {
-      final KeyPairGenerator keyGen = KeyPairGenerator.getInstance(algorithmBasis);
-      keyGen.initialize(KEY_SIZE);
-      final KeyPair keyPair = keyGen.generateKeyPair();
-
-      File privateKeyFile = new File(PRIVATE_KEY_FILE);
-      File publicKeyFile = new File(PUBLIC_KEY_FILE);
-
-      // Create files to store public and private key
-      if (privateKeyFile.getParentFile() != null) {
-         privateKeyFile.getParentFile().mkdirs();
-      }
-      privateKeyFile.createNewFile();
-
-      if (publicKeyFile.getParentFile() != null) {
-         publicKeyFile.getParentFile().mkdirs();
+      final MessageHistoryStore store;
+      final MessageIndex index;
+      final File directory;
+      final SecretKeySpec key;
+
+      History(MessageHistoryStore store, MessageIndex index, File directory, SecretKeySpec key)
+      {
+         this.store = store;
+         this.index = index;
+         this.directory = directory;
+         this.key = key;
       }
-      publicKeyFile.createNewFile();
-
-      // Saving the Public key in a file
-      ObjectOutputStream publicKeyOS = new ObjectOutputStream(new FileOutputStream(publicKeyFile));
-      publicKeyOS.writeObject(keyPair.getPublic());
-      publicKeyOS.close();
-
-      // Saving the Private key in a file
-      ObjectOutputStream privateKeyOS = new ObjectOutputStream(
-            new FileOutputStream(privateKeyFile));
-      privateKeyOS.writeObject(keyPair.getPrivate());
-      privateKeyOS.close();
-
-   }
-
-   protected void removeKeys()
-   {
-      try {
-
-         new File(PRIVATE_KEY_FILE).delete();
-         new File(PUBLIC_KEY_FILE).delete();
-
-      } catch (Exception ignored) { }
    }
 }
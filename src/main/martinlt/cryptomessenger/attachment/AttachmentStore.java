@@ -0,0 +1,323 @@
+package martinlt.cryptomessenger.attachment;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import martinlt.cryptomessenger.crypto.Fingerprint;
+import martinlt.cryptomessenger.crypto.Hkdf;
+import martinlt.cryptomessenger.crypto.KeyRing;
+import martinlt.cryptomessenger.crypto.SymmetricCipher;
+import martinlt.cryptomessenger.exception.SecurityException;
+
+/**
+ * Keeps attachments as encrypted chunks, each stored once however many
+ * attachments, recipients or sends it is part of.
+ * <p>
+ * An attachment is split into content-defined chunks (see {@link Chunker}).
+ * Each chunk is encrypted under a key derived from the hash of its content,
+ * so the same content always gives the same key and the same encrypted
+ * chunk, and a chunk already in the store is neither encrypted nor written
+ * again. The keys are mixed with a secret kept in the store, so dedup only
+ * happens within the store and nobody without the secret can tell whether
+ * the store holds some content they already know.
+ * </p>
+ * <p>
+ * The keys of an attachment's chunks make up its {@link Manifest}. That is
+ * all that needs to be encrypted for each recipient (see
+ * {@link #wrap(Manifest, KeyRing, String)}), however large the attachment.
+ * </p>
+ * <p>
+ * Chunks are encrypted with AES/GCM, so a chunk which has been changed on
+ * disk is detected when it is read. Each key encrypts only one content, so
+ * the nonce can be derived from the key. Chunk files are never removed.
+ * </p>
+ */
+public class AttachmentStore
+{
+   static final int KEY_SIZE = SymmetricCipher.KEY_SIZE;
+
+   private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+   private static final int NONCE_SIZE = 12;
+   private static final int TAG_BITS = 128;
+
+   private static final byte[] KEY_INFO = "chunk key".getBytes(StandardCharsets.US_ASCII);
+   private static final byte[] NONCE_INFO = "chunk nonce".getBytes(StandardCharsets.US_ASCII);
+
+   /**
+    * File in the store holding the secret that keys are derived with.
+    */
+   private static final String SECRET_FILE = "store.secret";
+
+   private final Path directory;
+   private final byte[] secret;
+
+   private final LongAdder chunksWritten = new LongAdder();
+   private final LongAdder chunksReused = new LongAdder();
+   private final LongAdder bytesWritten = new LongAdder();
+   private final LongAdder bytesReused = new LongAdder();
+
+   /**
+    * Opens a store, creating it if there is none in the directory.
+    *
+    * @param directory
+    * @throws IOException
+    *            if the directory or its secret could not be created or read
+    */
+   public AttachmentStore(Path directory) throws IOException
+   {
+      this.directory = directory;
+      Files.createDirectories(directory);
+
+      Path secretFile = directory.resolve(SECRET_FILE);
+      if (!Files.exists(secretFile))
+         createSecret(secretFile);
+
+      // Whoever created it first, this is the secret now
+      this.secret = Files.readAllBytes(secretFile);
+      if (secret.length != Hkdf.HASH_SIZE)
+         throw new IOException("Store secret " + secretFile + " is damaged");
+   }
+
+   /**
+    * Writes a new secret, unless another store opened on the directory at the
+    * same time gets there first. Replacing its secret would make the chunks
+    * it writes unreadable, so the secret is written in full and then linked
+    * into place, which fails rather than replace an existing file.
+    */
+   private static void createSecret(Path secretFile) throws IOException
+   {
+      byte[] newSecret = new byte[Hkdf.HASH_SIZE];
+      new SecureRandom().nextBytes(newSecret);
+      Path temp = Files.createTempFile(secretFile.getParent(), SECRET_FILE, ".tmp");
+      try {
+         Files.write(temp, newSecret);
+         try {
+            Files.createLink(secretFile, temp);
+         } catch (FileAlreadyExistsException e) {
+            throw e;
+         } catch (UnsupportedOperationException | FileSystemException e) {
+            // No links here; a move without REPLACE_EXISTING still fails if
+            // the secret exists, though not atomically
+            Files.move(temp, secretFile);
+         }
+      } catch (FileAlreadyExistsException e) {
+         // Another store created it first
+      } finally {
+         Files.deleteIfExists(temp);
+      }
+   }
+
+   /**
+    * Splits an attachment into chunks and stores those not already in the
+    * store.
+    *
+    * @param in
+    *           the attachment, which is not closed
+    * @return the manifest needed to read it back
+    * @throws IOException
+    *            if the attachment could not be read or a chunk written
+    * @throws SecurityException
+    *            if a chunk could not be encrypted
+    */
+   public Manifest store(InputStream in) throws IOException, SecurityException
+   {
+      MessageDigest digest = sha256();
+      Chunker chunker = new Chunker(in);
+      List<Manifest.Chunk> chunks = new ArrayList<Manifest.Chunk>();
+
+      byte[] content;
+      while ((content = chunker.next()) != null) {
+         byte[] key = Hkdf.derive(secret, digest.digest(content), KEY_INFO, KEY_SIZE);
+         Path file = fileOf(key);
+         if (Files.exists(file)) {
+            chunksReused.increment();
+            bytesReused.add(content.length);
+         } else {
+            byte[] cipherText = crypt(Cipher.ENCRYPT_MODE, key, content);
+            Files.createDirectories(file.getParent());
+            Path temp = Files.createTempFile(file.getParent(), file.getFileName().toString(),
+                  ".tmp");
+            try {
+               Files.write(temp, cipherText);
+               move(temp, file);
+            } finally {
+               Files.deleteIfExists(temp);
+            }
+            chunksWritten.increment();
+            bytesWritten.add(cipherText.length);
+         }
+         chunks.add(new Manifest.Chunk(key, content.length));
+      }
+      return new Manifest(chunks);
+   }
+
+   /**
+    * Writes an attachment out of the store.
+    *
+    * @param manifest
+    * @param out
+    *           receives the attachment, and is not closed
+    * @throws IOException
+    *            if a chunk is missing or could not be read
+    * @throws SecurityException
+    *            if a chunk has been changed or is not the one expected
+    */
+   public void read(Manifest manifest, OutputStream out) throws IOException, SecurityException
+   {
+      for (Manifest.Chunk chunk : manifest.getChunks()) {
+         Path file = fileOf(chunk.getKey());
+         byte[] cipherText;
+         try {
+            cipherText = Files.readAllBytes(file);
+         } catch (NoSuchFileException e) {
+            throw new IOException("Chunk " + file.getFileName() + " is not in the store", e);
+         }
+
+         byte[] content = crypt(Cipher.DECRYPT_MODE, chunk.getKey(), cipherText);
+         if (content.length != chunk.getLength())
+            throw new SecurityException("Chunk " + file.getFileName() + " has the wrong length");
+         out.write(content);
+      }
+   }
+
+   /**
+    * Encrypts a manifest for a party. Only the chunk keys are encrypted; the
+    * chunks themselves are shared by every recipient.
+    *
+    * @param manifest
+    * @param keyRing
+    *           holds the recipient's keys
+    * @param recipient
+    * @return the envelope
+    * @throws SecurityException
+    *            if the recipient is not known or encryption failed
+    */
+   public byte[] wrap(Manifest manifest, KeyRing keyRing, String recipient)
+         throws SecurityException
+   {
+      return keyRing.encrypt(manifest.encode(), recipient);
+   }
+
+   /**
+    * Decrypts a manifest wrapped for this party by
+    * {@link #wrap(Manifest, KeyRing, String)}.
+    *
+    * @param envelope
+    * @param keyRing
+    *           holds this party's keys
+    * @param sender
+    * @return
+    * @throws SecurityException
+    *            if it could not be decrypted or is not a manifest
+    */
+   public Manifest unwrap(byte[] envelope, KeyRing keyRing, String sender)
+         throws SecurityException
+   {
+      return Manifest.decode(keyRing.decrypt(envelope, sender));
+   }
+
+   /**
+    * Returns the number of chunks encrypted and written since the store was
+    * opened.
+    *
+    * @return
+    */
+   public long getChunksWritten()
+   {
+      return chunksWritten.sum();
+   }
+
+   /**
+    * Returns the number of chunks found already stored, and so neither
+    * encrypted nor written, since the store was opened.
+    *
+    * @return
+    */
+   public long getChunksReused()
+   {
+      return chunksReused.sum();
+   }
+
+   /**
+    * Returns the bytes written to disk since the store was opened.
+    *
+    * @return
+    */
+   public long getBytesWritten()
+   {
+      return bytesWritten.sum();
+   }
+
+   /**
+    * Returns the bytes of attachments found already stored since the store
+    * was opened.
+    *
+    * @return
+    */
+   public long getBytesReused()
+   {
+      return bytesReused.sum();
+   }
+
+   /**
+    * Chunks are named after the hash of their key, so the name gives away
+    * neither the key nor the content, and are spread over 256 directories.
+    */
+   private Path fileOf(byte[] key)
+   {
+      String name = Fingerprint.hex(sha256().digest(key));
+      return directory.resolve(name.substring(0, 2)).resolve(name.substring(2));
+   }
+
+   private static byte[] crypt(int mode, byte[] key, byte[] input) throws SecurityException
+   {
+      try {
+         Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+         cipher.init(mode, new SecretKeySpec(key, "AES"),
+               new GCMParameterSpec(TAG_BITS, Hkdf.derive(null, key, NONCE_INFO, NONCE_SIZE)));
+         return cipher.doFinal(input);
+      } catch (GeneralSecurityException e) {
+         throw new SecurityException(mode == Cipher.ENCRYPT_MODE ? "Encryption failed : "
+               : "Chunk could not be decrypted : ", e);
+      }
+   }
+
+   private static MessageDigest sha256()
+   {
+      try {
+         return MessageDigest.getInstance("SHA-256");
+      } catch (NoSuchAlgorithmException e) {
+         throw new IllegalStateException(e);
+      }
+   }
+
+   private static void move(Path source, Path target) throws IOException
+   {
+      try {
+         Files.move(source, target, StandardCopyOption.ATOMIC_MOVE,
+               StandardCopyOption.REPLACE_EXISTING);
+      } catch (AtomicMoveNotSupportedException e) {
+         Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+      }
+   }
+}
@@ -0,0 +1,126 @@
+package martinlt.cryptomessenger.attachment;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Splits a stream into content-defined chunks, so that the same content
+ * gives the same chunks wherever it appears in a stream. Inserting a few
+ * bytes near the start of a file changes the chunk they fall in, and
+ * perhaps the next, but not the chunks after that.
+ * <p>
+ * A chunk ends where a rolling "gear" hash over the bytes so far has its top
+ * bits clear. The hash only needs a shift and an add per byte. Below
+ * {@link #AVERAGE_SIZE} more bits must be clear and above it fewer, which
+ * keeps most chunks close to the average size (as in FastCDC).
+ * </p>
+ */
+public class Chunker
+{
+   public static final int MIN_SIZE = 2 * 1024;
+   public static final int AVERAGE_SIZE = 8 * 1024;
+   public static final int MAX_SIZE = 64 * 1024;
+
+   /**
+    * 15 and 11 top bits, either side of the 13 bits an 8K average needs.
+    */
+   private static final long MASK_BELOW_AVERAGE = -1L << (64 - 15);
+   private static final long MASK_ABOVE_AVERAGE = -1L << (64 - 11);
+
+   /**
+    * A random number for each byte value. The numbers must never change,
+    * or content stored before would no longer be found again.
+    */
+   private static final long[] GEAR = new long[256];
+
+   static {
+      // SplitMix64 from a fixed seed
+      long seed = 0x636872756e6b6572L;
+      for (int i = 0; i < GEAR.length; i++) {
+         long z = (seed += 0x9e3779b97f4a7c15L);
+         z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+         z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+         GEAR[i] = z ^ (z >>> 31);
+      }
+   }
+
+   private final InputStream in;
+   private final byte[] buffer = new byte[MAX_SIZE];
+   private int start;
+   private int end;
+   private boolean endOfStream;
+
+   /**
+    * @param in
+    *           the stream to split, which is not closed
+    */
+   public Chunker(InputStream in)
+   {
+      this.in = in;
+   }
+
+   /**
+    * Returns the next chunk, or null at the end of the stream.
+    *
+    * @return
+    * @throws IOException
+    *            if the stream could not be read
+    */
+   public byte[] next() throws IOException
+   {
+      if (end - start < MAX_SIZE && !endOfStream) {
+         System.arraycopy(buffer, start, buffer, 0, end - start);
+         end -= start;
+         start = 0;
+         while (end < buffer.length) {
+            int n = in.read(buffer, end, buffer.length - end);
+            if (n < 0) {
+               endOfStream = true;
+               break;
+            }
+            end += n;
+         }
+      }
+
+      if (start == end)
+         return null;
+
+      int length = cut(buffer, start, end - start);
+      byte[] chunk = Arrays.copyOfRange(buffer, start, start + length);
+      start += length;
+      return chunk;
+   }
+
+   /**
+    * Returns the length of the chunk at the start of some data.
+    *
+    * @param data
+    * @param offset
+    * @param length
+    *           the bytes available, all of the rest of the stream if fewer
+    *           than {@link #MAX_SIZE}
+    * @return
+    */
+   static int cut(byte[] data, int offset, int length)
+   {
+      if (length <= MIN_SIZE)
+         return length;
+
+      int limit = Math.min(length, MAX_SIZE);
+      int average = Math.min(limit, AVERAGE_SIZE);
+      long hash = 0;
+      int i = MIN_SIZE;
+      for (; i < average; i++) {
+         hash = (hash << 1) + GEAR[data[offset + i] & 0xff];
+         if ((hash & MASK_BELOW_AVERAGE) == 0)
+            return i + 1;
+      }
+      for (; i < limit; i++) {
+         hash = (hash << 1) + GEAR[data[offset + i] & 0xff];
+         if ((hash & MASK_ABOVE_AVERAGE) == 0)
+            return i + 1;
+      }
+      return limit;
+   }
+}
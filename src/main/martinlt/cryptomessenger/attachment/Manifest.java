@@ -0,0 +1,127 @@
+package martinlt.cryptomessenger.attachment;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import martinlt.cryptomessenger.exception.SecurityException;
+
+/**
+ * The chunks an attachment is made of, in order, each with the key it is
+ * encrypted under. Anyone holding a manifest can read the attachment from an
+ * {@link AttachmentStore}, so it is only ever sent encrypted for a recipient
+ * (see {@link AttachmentStore#wrap(Manifest,
+ * martinlt.cryptomessenger.crypto.KeyRing, String)}).
+ */
+public final class Manifest
+{
+   private static final byte VERSION = 1;
+
+   private final List<Chunk> chunks;
+   private final long length;
+
+   Manifest(List<Chunk> chunks)
+   {
+      this.chunks = Collections.unmodifiableList(new ArrayList<Chunk>(chunks));
+      long total = 0;
+      for (Chunk chunk : chunks) {
+         total += chunk.length;
+      }
+      this.length = total;
+   }
+
+   public List<Chunk> getChunks()
+   {
+      return chunks;
+   }
+
+   /**
+    * Returns the length of the attachment in bytes.
+    *
+    * @return
+    */
+   public long getLength()
+   {
+      return length;
+   }
+
+   /**
+    * Encodes the manifest: a version byte, the number of chunks, then the key
+    * and length of each chunk.
+    *
+    * @return
+    */
+   public byte[] encode()
+   {
+      ByteBuffer buffer = ByteBuffer.allocate(5 + chunks.size() * (AttachmentStore.KEY_SIZE + 4));
+      buffer.put(VERSION);
+      buffer.putInt(chunks.size());
+      for (Chunk chunk : chunks) {
+         buffer.put(chunk.key);
+         buffer.putInt(chunk.length);
+      }
+      return buffer.array();
+   }
+
+   /**
+    * Decodes a manifest written by {@link #encode()}.
+    *
+    * @param encoded
+    * @return
+    * @throws SecurityException
+    *            if it is not a manifest
+    */
+   public static Manifest decode(byte[] encoded) throws SecurityException
+   {
+      try {
+         ByteBuffer buffer = ByteBuffer.wrap(encoded);
+         if (buffer.get() != VERSION)
+            throw new SecurityException("Not an attachment manifest");
+
+         int count = buffer.getInt();
+         if (count < 0 || (long) count * (AttachmentStore.KEY_SIZE + 4) != buffer.remaining())
+            throw new SecurityException("Attachment manifest is corrupt");
+
+         List<Chunk> chunks = new ArrayList<Chunk>(count);
+         for (int i = 0; i < count; i++) {
+            byte[] key = new byte[AttachmentStore.KEY_SIZE];
+            buffer.get(key);
+            int length = buffer.getInt();
+            if (length <= 0 || length > Chunker.MAX_SIZE)
+               throw new SecurityException("Attachment manifest is corrupt");
+            chunks.add(new Chunk(key, length));
+         }
+         return new Manifest(chunks);
+      } catch (BufferUnderflowException e) {
+         throw new SecurityException("Attachment manifest is truncated", e);
+      }
+   }
+
+   /**
+    * A chunk of an attachment: the key derived from its content, which also
+    * names it in the store, and its length before encryption.
+    */
+   public static final class Chunk
+   {
+      private final byte[] key;
+      private final int length;
+
+      Chunk(byte[] key, int length)
+      {
+         this.key = key;
+         this.length = length;
+      }
+
+      byte[] getKey()
+      {
+         return key;
+      }
+
+      public int getLength()
+      {
+         return length;
+      }
+   }
+}
@@ -0,0 +1,468 @@
+package martinlt.cryptomessenger.cli;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.prefs.Preferences;
+
+import martinlt.cryptomessenger.MainApp.AlgorithmMode;
+import martinlt.cryptomessenger.concurrent.ThreadPools;
+import martinlt.cryptomessenger.crypto.Fingerprint;
+import martinlt.cryptomessenger.crypto.KeyRing;
+import martinlt.cryptomessenger.crypto.Pem;
+import martinlt.cryptomessenger.exception.SecurityException;
+import martinlt.cryptomessenger.mailbox.MailboxDecryptor;
+import martinlt.cryptomessenger.mailbox.MailboxWriter;
+import martinlt.cryptomessenger.persistence.PartyXml;
+import martinlt.cryptomessenger.relay.Relay;
+import martinlt.cryptomessenger.relay.RelayStore;
+import martinlt.cryptomessenger.transport.MessageServer;
+
+/**
+ * Headless entry point, for servers and scripts.
+ * <p>
+ * Only the {@link KeyRing} and the StAX based {@link PartyXml} are used, so
+ * neither JavaFX nor JAXB is loaded and no display is needed. The key files
+ * and party file are the same as those used by the user interface. Run with
+ * no arguments for usage.
+ * </p>
+ */
+public class CommandLine
+{
+   private static final String USAGE = String.join(System.lineSeparator(),
+         "Usage: CommandLine [options] command [arguments]",
+         "",
+         "Options:",
+         "  -name NAME        the party to act as (default \"my\")",
+         "  -mode RSA|DH_AES  how keys are generated and messages encrypted (default RSA)",
+         "  -parties FILE     the party file (default: the file last opened in the application)",
+         "",
+         "Commands:",
+         "  keygen                         generate the key pair if there is none, print the public key",
+         "  public-key                     print the public key",
+         "  parties                        list the known parties and their key fingerprints",
+         "  import NAME [PEM_FILE]         add or replace a party, reading its public key from the file or stdin",
+         "  import-parties FILE            add or replace the parties in another party file",
+         "  export NAME                    print the public key of a party",
+         "  export-parties FILE            write the known parties to another party file",
+         "  encrypt RECIPIENT [IN [OUT]]   encrypt a file or stdin to a file or stdout",
+         "  decrypt SENDER [IN [OUT]]      decrypt a file or stdin to a file or stdout",
+         "  decrypt-mailbox [IN [OUT]]     decrypt a file of Base64 messages, one per line, optionally",
+         "                                 preceded by the sender's key fingerprint and a space",
+         "  serve PORT [IDENTITY...]       host identities (default the -name party) in a message server",
+         "  relay PORT DIRECTORY [MB [QUOTA_MB [TOTAL_MB]]]",
+         "                                 hold envelopes for offline parties, spilling to DIRECTORY past",
+         "                                 MB megabytes in memory (default 64), and at most QUOTA_MB",
+         "                                 megabytes on disk per recipient (default 1024) and TOTAL_MB",
+         "                                 for all recipients (default 8192)",
+         "",
+         "\"-\" stands for stdin or stdout.");
+
+   private final PrintStream out;
+
+   private String name = "my";
+   private AlgorithmMode mode = AlgorithmMode.RSA;
+   private File partyFile;
+
+   CommandLine(PrintStream out)
+   {
+      this.out = out;
+   }
+
+   public static void main(String[] args)
+   {
+      try {
+         System.exit(new CommandLine(System.out).run(args));
+      } catch (Exception e) {
+         System.err.println("Error: " + e.getMessage());
+         System.exit(1);
+      }
+   }
+
+   /**
+    * Runs one command.
+    *
+    * @param args
+    *           options followed by the command and its arguments
+    * @return the exit status
+    * @throws Exception
+    *            if the command failed
+    */
+   int run(String[] args) throws Exception
+   {
+      int next = 0;
+      while (next + 1 < args.length && args[next].startsWith("-") && args[next].length() > 1) {
+         String option = args[next++];
+         String value = args[next++];
+         if (option.equals("-name")) {
+            name = value;
+         } else if (option.equals("-mode")) {
+            mode = AlgorithmMode.valueOf(value);
+         } else if (option.equals("-parties")) {
+            partyFile = new File(value);
+         } else {
+            return usage("Unknown option " + option);
+         }
+      }
+      if (next == args.length)
+         return usage(null);
+
+      String command = args[next++];
+      String[] arguments = Arrays.copyOfRange(args, next, args.length);
+      switch (command) {
+      case "keygen":
+         if (KeyRing.keysPresent(name, mode))
+            System.err.println("Keys for " + name + " already exist");
+         out.print(new KeyRing(name, mode).getPublicKey());
+         return 0;
+
+      case "public-key":
+         if (!KeyRing.keysPresent(name, mode))
+            throw new IOException("No keys for " + name + ", run keygen first");
+         out.print(new KeyRing(name, mode).getPublicKey());
+         return 0;
+
+      case "parties":
+         return listParties();
+
+      case "import":
+         if (arguments.length < 1 || arguments.length > 2)
+            return usage("import NAME [PEM_FILE]");
+         return importParty(arguments[0], arguments.length > 1 ? arguments[1] : "-");
+
+      case "import-parties":
+         if (arguments.length != 1)
+            return usage("import-parties FILE");
+         return importParties(new File(arguments[0]));
+
+      case "export":
+         if (arguments.length != 1)
+            return usage("export NAME");
+         return exportParty(arguments[0]);
+
+      case "export-parties":
+         if (arguments.length != 1)
+            return usage("export-parties FILE");
+         PartyXml.write(new File(arguments[0]), readParties());
+         return 0;
+
+      case "encrypt":
+      case "decrypt":
+         if (arguments.length < 1 || arguments.length > 3)
+            return usage(command + " PARTY [IN [OUT]]");
+         return transform(command.equals("encrypt"), arguments[0],
+               arguments.length > 1 ? arguments[1] : "-", arguments.length > 2 ? arguments[2] : "-");
+
+      case "decrypt-mailbox":
+         if (arguments.length > 2)
+            return usage("decrypt-mailbox [IN [OUT]]");
+         return decryptMailbox(arguments.length > 0 ? arguments[0] : "-",
+               arguments.length > 1 ? arguments[1] : "-");
+
+      case "serve":
+         if (arguments.length < 1)
+            return usage("serve PORT [IDENTITY...]");
+         return serve(Integer.parseInt(arguments[0]),
+               Arrays.copyOfRange(arguments, 1, arguments.length));
+
+      case "relay":
+         if (arguments.length < 2 || arguments.length > 5)
+            return usage("relay PORT DIRECTORY [MB [QUOTA_MB [TOTAL_MB]]]");
+         return relay(Integer.parseInt(arguments[0]), Paths.get(arguments[1]),
+               arguments.length > 2 ? Long.parseLong(arguments[2]) : 64,
+               arguments.length > 3 ? Long.parseLong(arguments[3])
+                     : RelayStore.DEFAULT_DISK_QUOTA / (1024 * 1024),
+               arguments.length > 4 ? Long.parseLong(arguments[4])
+                     : RelayStore.DEFAULT_DISK_BUDGET / (1024 * 1024));
+
+      default:
+         return usage("Unknown command " + command);
+      }
+   }
+
+   private int usage(String problem)
+   {
+      if (problem != null)
+         System.err.println(problem);
+      System.err.println(USAGE);
+      return 2;
+   }
+
+   private int listParties() throws Exception
+   {
+      for (Map.Entry<String, String> party : readParties().entrySet()) {
+         out.println(party.getKey() + "\t" + fingerprint(party.getValue()));
+      }
+      return 0;
+   }
+
+   private int importParty(String partyName, String pemFile) throws Exception
+   {
+      String pem;
+      try (InputStream in = open(pemFile)) {
+         pem = new String(readAll(in), StandardCharsets.UTF_8);
+      }
+
+      // Refuse keys which the party could not use
+      KeyRing.parsePublicKey(pem, mode);
+
+      Map<String, String> parties = readParties();
+      parties.put(partyName, pem);
+      PartyXml.write(partyFile(), parties);
+      return 0;
+   }
+
+   private int importParties(File file) throws Exception
+   {
+      Map<String, String> parties = readParties();
+      parties.putAll(PartyXml.read(file));
+      PartyXml.write(partyFile(), parties);
+      return 0;
+   }
+
+   private int exportParty(String partyName) throws Exception
+   {
+      String pem = readParties().get(partyName);
+      if (pem == null)
+         throw new IOException("Unknown party " + partyName);
+
+      // Normalise whatever whitespace the party file holds
+      out.print(Pem.encodePublicKey(Pem.decodePublicKey(pem)));
+      return 0;
+   }
+
+   /**
+    * Encrypts or decrypts a file or stream. Only the key of the one party
+    * involved is parsed, however many parties are known.
+    */
+   private int transform(boolean encrypt, String partyName, String inFile, String outFile)
+         throws Exception
+   {
+      KeyRing keyRing = new KeyRing(name, mode);
+
+      // RSA decryption only needs our own private key
+      if (encrypt || mode == AlgorithmMode.DH_AES) {
+         String pem = readParties().get(partyName);
+         if (pem == null)
+            throw new IOException("Unknown party " + partyName);
+         keyRing.receivePublicKeyFrom(partyName, pem);
+      }
+
+      try (InputStream in = new BufferedInputStream(open(inFile));
+            OutputStream out = new BufferedOutputStream(create(outFile))) {
+         if (encrypt)
+            keyRing.encrypt(in, out, partyName);
+         else
+            keyRing.decrypt(in, out, partyName);
+      }
+      return 0;
+   }
+
+   /**
+    * Decrypts a mailbox file with every known party's keys. Failures are
+    * listed on stderr and do not stop the rest of the mailbox.
+    */
+   private int decryptMailbox(String inFile, String outFile) throws Exception
+   {
+      KeyRing keyRing = new KeyRing(name, mode);
+      loadParties(keyRing);
+
+      Writer errors = new OutputStreamWriter(System.err);
+      try (BufferedReader in = new BufferedReader(
+            new InputStreamReader(open(inFile), StandardCharsets.UTF_8));
+            Writer out = new BufferedWriter(new OutputStreamWriter(create(outFile)))) {
+         MailboxWriter writer = new MailboxWriter(out, errors);
+         new MailboxDecryptor(keyRing).decrypt(in, writer);
+
+         errors.write(writer.getDecrypted() + " decrypted, " + writer.getFailed() + " failed"
+               + System.lineSeparator());
+         errors.flush();
+         return writer.getFailed() == 0 ? 0 : 1;
+      }
+   }
+
+   /**
+    * Gives a key ring the keys of every known party. The keys are parsed
+    * (and for DH agreed) in parallel.
+    */
+   private void loadParties(KeyRing keyRing) throws IOException
+   {
+      Map<String, KeyRing.PartyKeys> keys = readParties().entrySet().parallelStream()
+            .collect(HashMap::new, (map, party) -> {
+               try {
+                  map.put(party.getKey(),
+                        keyRing.keysFor(keyRing.parsePublicKey(party.getValue())));
+               } catch (SecurityException e) {
+                  System.err.println("Skipping " + party.getKey() + ": " + e.getMessage());
+               }
+            }, Map::putAll);
+
+      for (Map.Entry<String, KeyRing.PartyKeys> party : keys.entrySet()) {
+         keyRing.store(party.getKey(), party.getValue());
+      }
+   }
+
+   /**
+    * Hosts identities in a {@link MessageServer} until the process is
+    * killed. Every identity is given the keys of every known party.
+    */
+   private int serve(int port, String[] identityNames) throws Exception
+   {
+      if (identityNames.length == 0)
+         identityNames = new String[] { name };
+
+      MessageServer server = new MessageServer((recipient, sender, message) -> {
+         synchronized (out) {
+            out.println("[" + recipient + "] " + sender + ": " + message);
+         }
+      });
+
+      for (String identityName : identityNames) {
+         KeyRing identity = new KeyRing(identityName, mode);
+         loadParties(identity);
+         server.host(identity);
+      }
+
+      InetSocketAddress address = server.start(new InetSocketAddress(port));
+      System.err.println("Hosting " + identityNames.length + " identities on " + address
+            + (ThreadPools.hasVirtualThreads() ? " using virtual threads" : ""));
+
+      Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+         try {
+            server.close();
+         } catch (IOException ignored) {
+         }
+      }));
+      Thread.currentThread().join();
+      return 0;
+   }
+
+   /**
+    * Runs a {@link Relay} until the process is killed. No keys are needed.
+    */
+   private int relay(int port, Path directory, long megabytes, long quotaMegabytes,
+         long totalMegabytes) throws Exception
+   {
+      Relay relay = new Relay(new RelayStore(directory, megabytes * 1024 * 1024,
+            quotaMegabytes * 1024 * 1024, totalMegabytes * 1024 * 1024));
+      InetSocketAddress address = relay.start(new InetSocketAddress(port));
+      System.err.println("Relaying on " + address + ", spilling to " + directory
+            + (ThreadPools.hasVirtualThreads() ? ", using virtual threads" : ""));
+
+      Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+         try {
+            relay.close();
+         } catch (IOException ignored) {
+         }
+      }));
+      Thread.currentThread().join();
+      return 0;
+   }
+
+   /**
+    * Returns the party file given with -parties or, failing that, the one
+    * last opened in the application.
+    */
+   private File partyFile() throws IOException
+   {
+      if (partyFile == null) {
+         // The node the application keeps its preferences in
+         String path = Preferences.userRoot().node("/martinlt/cryptomessenger").get("filePath",
+               null);
+         if (path == null)
+            throw new IOException("No party file, use -parties FILE");
+         partyFile = new File(path);
+      }
+      return partyFile;
+   }
+
+   private Map<String, String> readParties() throws IOException
+   {
+      File file = partyFile();
+      if (!file.exists())
+         return new LinkedHashMap<String, String>();
+      return PartyXml.read(file);
+   }
+
+   private static String fingerprint(String pem)
+   {
+      try {
+         return Fingerprint.of(Pem.decodePublicKey(pem));
+      } catch (Exception e) {
+         return "(invalid key)";
+      }
+   }
+
+   /**
+    * Opens a file, or stdin for "-" in which case closing leaves stdin open.
+    */
+   private static InputStream open(String file) throws IOException
+   {
+      if (file.equals("-")) {
+         return new FilterInputStream(System.in) {
+            @Override
+            public void close()
+            {
+            }
+         };
+      }
+      return new FileInputStream(file);
+   }
+
+   /**
+    * Creates a file, or for "-" returns the output stream, which closing only
+    * flushes.
+    */
+   private OutputStream create(String file) throws IOException
+   {
+      if (file.equals("-")) {
+         return new FilterOutputStream(out) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException
+            {
+               out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException
+            {
+               flush();
+            }
+         };
+      }
+      return new FileOutputStream(file);
+   }
+
+   private static byte[] readAll(InputStream in) throws IOException
+   {
+      ByteArrayOutputStream all = new ByteArrayOutputStream();
+      byte[] chunk = new byte[8192];
+      int read;
+      while ((read = in.read(chunk)) >= 0) {
+         all.write(chunk, 0, read);
+      }
+      return all.toByteArray();
+   }
+}
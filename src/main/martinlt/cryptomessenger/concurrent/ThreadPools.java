@@ -0,0 +1,85 @@
+package martinlt.cryptomessenger.concurrent;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Factories for the thread pools used by the server and transport code.
+ */
+public final class ThreadPools
+{
+   private ThreadPools()
+   {
+   }
+
+   /**
+    * Returns an executor that starts a new thread for each task, intended for
+    * tasks which spend most of their time blocked, such as client sessions.
+    * <p>
+    * On a JDK with virtual threads (21 and later) every task gets its own
+    * virtual thread, so thousands of sessions cost no more than a few
+    * platform threads. On older JDKs this falls back to a cached pool of
+    * daemon platform threads.
+    * </p>
+    *
+    * @param name
+    *           prefix for the names of the platform threads, if used
+    * @return
+    */
+   public static ExecutorService newThreadPerTaskExecutor(String name)
+   {
+      ExecutorService virtual = newVirtualThreadPerTaskExecutor();
+      if (virtual != null)
+         return virtual;
+
+      return Executors.newCachedThreadPool(daemonThreadFactory(name));
+   }
+
+   /**
+    * Returns true if {@link #newThreadPerTaskExecutor(String)} uses virtual
+    * threads on this JDK.
+    *
+    * @return
+    */
+   public static boolean hasVirtualThreads()
+   {
+      ExecutorService virtual = newVirtualThreadPerTaskExecutor();
+      if (virtual == null)
+         return false;
+
+      virtual.shutdown();
+      return true;
+   }
+
+   /**
+    * Returns a factory creating daemon threads named prefix-0, prefix-1...
+    *
+    * @param name
+    * @return
+    */
+   public static ThreadFactory daemonThreadFactory(final String name)
+   {
+      final AtomicInteger count = new AtomicInteger();
+      return runnable -> {
+         Thread thread = new Thread(runnable, name + "-" + count.getAndIncrement());
+         thread.setDaemon(true);
+         return thread;
+      };
+   }
+
+   /**
+    * The build targets Java 8, so the JDK 21 factory is looked up
+    * reflectively.
+    */
+   private static ExecutorService newVirtualThreadPerTaskExecutor()
+   {
+      try {
+         return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor")
+               .invoke(null);
+      } catch (ReflectiveOperationException e) {
+         return null;
+      }
+   }
+}
@@ -0,0 +1,500 @@
+package martinlt.cryptomessenger.crypto;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import martinlt.cryptomessenger.exception.SecurityException;
+import martinlt.cryptomessenger.metrics.CryptoMetrics;
+
+/**
+ * Encrypts the messages of each conversation with a symmetric key ratchet,
+ * so that only one message in a chain of many needs asymmetric (RSA or DH)
+ * work.
+ * <p>
+ * A chain starts from a random root, encrypted for the recipient with the
+ * {@link KeyRing}. Each message key comes from an HKDF-SHA256 step over the
+ * chain key, which also gives the next chain key, and the old chain key is
+ * then forgotten. A new chain is started every {@value #MAX_CHAIN_LENGTH}
+ * messages.
+ * </p>
+ * <p>
+ * This saves work; it does not give forward secrecy. The root of every chain
+ * travels in its messages wrapped under the recipient's long-term key, so
+ * whoever has that key and the messages can decrypt all of them. Forgetting
+ * old chain keys only means the ratchet state held in memory does not
+ * decrypt earlier messages.
+ * </p>
+ * <p>
+ * A message is the chain id, the message number, the encrypted root and
+ * then the IV and AES/CBC ciphertext. The encrypted root is in every message
+ * so that any of them can start the chain at the receiver, who decrypts it
+ * once and keeps the chain by its id, together with the sender it came from.
+ * The first message seen on a chain may be any distance into it, e.g. after
+ * the receiver restarted; the chain is stepped forward to it and the keys
+ * stepped over are only kept if there are no more than {@value #MAX_SKIP}.
+ * </p>
+ * <p>
+ * Messages may arrive out of order. Keys stepped over to reach a later
+ * message are kept until their message arrives, up to
+ * {@value #MAX_SKIPPED_KEYS} per chain and no more than
+ * {@value #MAX_SKIP} at a time. Each key is used once, so a message that was
+ * already decrypted is rejected.
+ * </p>
+ * <p>
+ * The most recently used {@value #MAX_RECEIVING_CHAINS} receiving chains are
+ * kept. A chain dropped from those leaves behind the number of its next
+ * message, so that if it is started again messages before that are still
+ * rejected; up to {@value #MAX_RETIRED_CHAINS} of these are kept. They are
+ * not saved, so a message from before the receiver was restarted can be
+ * decrypted again once.
+ * </p>
+ */
+public class ConversationRatchet
+{
+   /**
+    * Size of a chain id.
+    */
+   public static final int CHAIN_ID_SIZE = 8;
+
+   /**
+    * Messages sent on a chain before a new one is started.
+    */
+   public static final int MAX_CHAIN_LENGTH = 10000;
+
+   /**
+    * The most message keys that will be stepped over to reach a message.
+    */
+   public static final int MAX_SKIP = 1000;
+
+   /**
+    * The most skipped message keys kept per chain; the oldest go first.
+    */
+   public static final int MAX_SKIPPED_KEYS = 1000;
+
+   /**
+    * Receiving chains kept; the least recently used go first.
+    */
+   static final int MAX_RECEIVING_CHAINS = 256;
+
+   /**
+    * Next message numbers kept for receiving chains no longer held.
+    */
+   static final int MAX_RETIRED_CHAINS = 65536;
+
+   private static final byte[] CHAIN_INFO = "CryptoMessenger chain".getBytes(StandardCharsets.UTF_8);
+   private static final byte[] STEP_INFO = "CryptoMessenger ratchet".getBytes(StandardCharsets.UTF_8);
+
+   private static final SecureRandom RANDOM = new SecureRandom();
+
+   private final KeyRing keyRing;
+
+   /**
+    * The chain being sent on, by recipient.
+    */
+   private final Map<String, SendingChain> sending = new HashMap<String, SendingChain>();
+
+   /**
+    * Chains being received, by chain id, least recently used first. Guards
+    * retired too.
+    */
+   private final Map<ChainId, ReceivingChain> receiving = new LinkedHashMap<ChainId, ReceivingChain>(
+         16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<ChainId, ReceivingChain> eldest)
+      {
+         if (size() <= MAX_RECEIVING_CHAINS)
+            return false;
+         retire(eldest.getKey(), eldest.getValue());
+         return true;
+      }
+   };
+
+   /**
+    * The next message number of chains dropped from receiving, by chain id,
+    * oldest first.
+    */
+   private final Map<ChainId, Integer> retired = new LinkedHashMap<ChainId, Integer>() {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<ChainId, Integer> eldest)
+      {
+         return size() > MAX_RETIRED_CHAINS;
+      }
+   };
+
+   /**
+    * Creates a ratchet for the conversations of a party.
+    *
+    * @param keyRing
+    *           the party's keys, used to encrypt and decrypt chain roots
+    */
+   public ConversationRatchet(KeyRing keyRing)
+   {
+      this.keyRing = keyRing;
+   }
+
+   /**
+    * Encrypts a message for a known party.
+    *
+    * @param plainText
+    *           the message
+    * @param recipient
+    *           the party the message is for
+    * @return the ciphertext
+    * @throws SecurityException
+    *            failed to encrypt the message
+    */
+   public byte[] encrypt(byte[] plainText, String recipient) throws SecurityException
+   {
+      SendingChain chain;
+      int number;
+      byte[] messageKey;
+      while (true) {
+         synchronized (sending) {
+            chain = sending.get(recipient);
+            if (chain == null || chain.exhausted()) {
+               CryptoMetrics.get().cacheMiss();
+               chain = new SendingChain(recipient);
+               sending.put(recipient, chain);
+            } else {
+               CryptoMetrics.get().cacheHit();
+            }
+         }
+
+         synchronized (chain) {
+            // Another thread may have taken the last number meanwhile, in
+            // which case the next look up starts a new chain
+            if (chain.exhausted())
+               continue;
+            number = chain.next++;
+            byte[][] keys = step(chain.chainKey);
+            chain.chainKey = keys[0];
+            messageKey = keys[1];
+            break;
+         }
+      }
+
+      byte[] cipherText = SymmetricCipher.encrypt(plainText, new SecretKeySpec(messageKey, "AES"));
+      return ByteBuffer.allocate(CHAIN_ID_SIZE + 6 + chain.wrappedRoot.length + cipherText.length)
+            .put(chain.id.bytes)
+            .putInt(number)
+            .putShort((short) chain.wrappedRoot.length)
+            .put(chain.wrappedRoot)
+            .put(cipherText)
+            .array();
+   }
+
+   /**
+    * Decrypts a message from a known party.
+    *
+    * @param message
+    *           the ciphertext
+    * @param sender
+    *           the sending party, which may be null in RSA mode
+    * @return the plaintext
+    * @throws SecurityException
+    *            decryption of message failed, it was out of reach of the
+    *            chain or it had already been decrypted
+    */
+   public byte[] decrypt(byte[] message, String sender) throws SecurityException
+   {
+      ChainId id;
+      int number;
+      byte[] wrappedRoot;
+      int offset;
+      try {
+         ByteBuffer buffer = ByteBuffer.wrap(message);
+         byte[] idBytes = new byte[CHAIN_ID_SIZE];
+         buffer.get(idBytes);
+         id = new ChainId(idBytes);
+         number = buffer.getInt();
+         wrappedRoot = new byte[buffer.getShort() & 0xffff];
+         buffer.get(wrappedRoot);
+         offset = buffer.position();
+      } catch (BufferUnderflowException e) {
+         throw new SecurityException("Decryption failed : truncated message", e);
+      }
+      if (number < 0 || number >= MAX_CHAIN_LENGTH)
+         throw new SecurityException("Decryption failed : bad message number " + number);
+
+      while (true) {
+         ReceivingChain chain = receivingChain(sender, id, wrappedRoot);
+         synchronized (chain) {
+            // Dropped while this thread was finding it, so look it up again
+            if (chain.retired)
+               continue;
+            return decrypt(chain, number, message, offset);
+         }
+      }
+   }
+
+   private static byte[] decrypt(ReceivingChain chain, int number, byte[] message, int offset)
+         throws SecurityException
+   {
+      if (number < chain.next) {
+         byte[] messageKey = chain.skipped.get(number);
+         if (messageKey == null)
+            throw new SecurityException("Message " + number + " already decrypted or expired");
+         byte[] plainText = decrypt(message, offset, messageKey);
+         chain.skipped.remove(number);
+         return plainText;
+      }
+
+      // A chain seen for the first time may start anywhere in it; only keys
+      // within reach of a later message are worth keeping
+      boolean keepSkipped = number - chain.next <= MAX_SKIP;
+      if (!keepSkipped && !chain.fresh)
+         throw new SecurityException("Message " + number + " is too far ahead of " + chain.next);
+
+      // Step to the message without changing the chain, so that a bad
+      // message leaves it as it was
+      List<byte[]> stepped = new ArrayList<byte[]>(keepSkipped ? number - chain.next : 0);
+      byte[][] keys = step(chain.chainKey);
+      for (int i = chain.keyNumber; i < number; i++) {
+         if (keepSkipped && i >= chain.next)
+            stepped.add(keys[1]);
+         keys = step(keys[0]);
+      }
+      byte[] plainText = decrypt(message, offset, keys[1]);
+
+      for (int i = 0; i < stepped.size(); i++) {
+         chain.skipped.put(chain.next + i, stepped.get(i));
+      }
+      chain.chainKey = keys[0];
+      chain.keyNumber = number + 1;
+      chain.next = number + 1;
+      chain.fresh = false;
+      return plainText;
+   }
+
+   /**
+    * Forgets the chains with a party, for when its keys are removed or
+    * replaced.
+    *
+    * @param party
+    */
+   public void forget(String party)
+   {
+      synchronized (sending) {
+         sending.remove(party);
+      }
+      synchronized (receiving) {
+         Iterator<Map.Entry<ChainId, ReceivingChain>> chains = receiving.entrySet().iterator();
+         while (chains.hasNext()) {
+            Map.Entry<ChainId, ReceivingChain> chain = chains.next();
+            if (party.equals(chain.getValue().sender)) {
+               retire(chain.getKey(), chain.getValue());
+               chains.remove();
+            }
+         }
+      }
+   }
+
+   /**
+    * Forgets every chain.
+    */
+   public void clear()
+   {
+      synchronized (sending) {
+         sending.clear();
+      }
+      synchronized (receiving) {
+         for (Map.Entry<ChainId, ReceivingChain> chain : receiving.entrySet()) {
+            retire(chain.getKey(), chain.getValue());
+         }
+         receiving.clear();
+      }
+   }
+
+   /**
+    * Finds or starts the chain a message was sent on. The root is only
+    * decrypted for a chain not seen before. A chain is only found for the
+    * sender that started it.
+    */
+   private ReceivingChain receivingChain(String sender, ChainId id, byte[] wrappedRoot)
+         throws SecurityException
+   {
+      synchronized (receiving) {
+         ReceivingChain chain = receiving.get(id);
+         if (chain != null) {
+            if (!Objects.equals(chain.sender, sender))
+               throw new SecurityException("Decryption failed : chain belongs to another sender");
+            CryptoMetrics.get().cacheHit();
+            return chain;
+         }
+      }
+
+      CryptoMetrics.get().cacheMiss();
+
+      byte[] root = keyRing.decrypt(wrappedRoot, sender);
+      ReceivingChain created = new ReceivingChain(sender, chainKey(id, root));
+
+      synchronized (receiving) {
+         ReceivingChain chain = receiving.get(id);
+         if (chain == null) {
+            // A chain held before restarts after the messages it had reached
+            Integer next = retired.remove(id);
+            if (next != null)
+               created.next = next;
+            chain = created;
+            receiving.put(id, chain);
+         } else if (!Objects.equals(chain.sender, sender)) {
+            throw new SecurityException("Decryption failed : chain belongs to another sender");
+         }
+         return chain;
+      }
+   }
+
+   /**
+    * Keeps the next message number of a chain no longer held. Called with
+    * the receiving lock held.
+    */
+   private void retire(ChainId id, ReceivingChain chain)
+   {
+      synchronized (chain) {
+         chain.retired = true;
+         retired.put(id, chain.next);
+      }
+   }
+
+   private static byte[] decrypt(byte[] message, int offset, byte[] messageKey)
+         throws SecurityException
+   {
+      return SymmetricCipher.decrypt(message, offset, message.length - offset,
+            new SecretKeySpec(messageKey, "AES"));
+   }
+
+   private static byte[] chainKey(ChainId id, byte[] root)
+   {
+      return Hkdf.derive(id.bytes, root, CHAIN_INFO, Hkdf.HASH_SIZE);
+   }
+
+   /**
+    * One step of the ratchet: returns the next chain key and the message key.
+    */
+   private static byte[][] step(byte[] chainKey)
+   {
+      byte[] output = Hkdf.expand(chainKey, STEP_INFO, Hkdf.HASH_SIZE + SymmetricCipher.KEY_SIZE);
+      byte[] next = new byte[Hkdf.HASH_SIZE];
+      byte[] messageKey = new byte[SymmetricCipher.KEY_SIZE];
+      System.arraycopy(output, 0, next, 0, next.length);
+      System.arraycopy(output, next.length, messageKey, 0, messageKey.length);
+      return new byte[][] { next, messageKey };
+   }
+
+   /**
+    * A chain id, usable as a map key.
+    */
+   private static final class ChainId
+   {
+      final byte[] bytes;
+      private final long value;
+
+      ChainId(byte[] bytes)
+      {
+         this.bytes = bytes;
+         this.value = ByteBuffer.wrap(bytes).getLong();
+      }
+
+      @Override
+      public boolean equals(Object other)
+      {
+         return other instanceof ChainId && ((ChainId) other).value == value;
+      }
+
+      @Override
+      public int hashCode()
+      {
+         return Long.hashCode(value);
+      }
+   }
+
+   private class SendingChain
+   {
+      final ChainId id;
+      final byte[] wrappedRoot;
+      byte[] chainKey;
+      int next;
+
+      SendingChain(String recipient) throws SecurityException
+      {
+         byte[] idBytes = new byte[CHAIN_ID_SIZE];
+         byte[] root = new byte[Hkdf.HASH_SIZE];
+         RANDOM.nextBytes(idBytes);
+         RANDOM.nextBytes(root);
+         id = new ChainId(idBytes);
+         wrappedRoot = keyRing.encrypt(root, recipient);
+         chainKey = chainKey(id, root);
+      }
+
+      boolean exhausted()
+      {
+         synchronized (this) {
+            return next >= MAX_CHAIN_LENGTH;
+         }
+      }
+   }
+
+   private static class ReceivingChain
+   {
+      /**
+       * The sender the chain was started by, null if not known (RSA).
+       */
+      final String sender;
+
+      /**
+       * The chain key and the number of the message it gives the key for.
+       * This is behind next for a chain started again after being retired.
+       */
+      byte[] chainKey;
+      int keyNumber;
+
+      /**
+       * The number after the last message decrypted, or stepped to.
+       */
+      int next;
+
+      /**
+       * No message has been decrypted on the chain since it was started here.
+       */
+      boolean fresh = true;
+
+      /**
+       * The chain has been dropped and must not be used.
+       */
+      boolean retired;
+
+      /**
+       * Message keys stepped over, by message number, oldest first.
+       */
+      final Map<Integer, byte[]> skipped = new LinkedHashMap<Integer, byte[]>() {
+         private static final long serialVersionUID = 1L;
+
+         @Override
+         protected boolean removeEldestEntry(Map.Entry<Integer, byte[]> eldest)
+         {
+            return size() > MAX_SKIPPED_KEYS;
+         }
+      };
+
+      ReceivingChain(String sender, byte[] chainKey)
+      {
+         this.sender = sender;
+         this.chainKey = chainKey;
+      }
+   }
+}
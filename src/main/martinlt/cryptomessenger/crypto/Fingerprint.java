@@ -0,0 +1,81 @@
+package martinlt.cryptomessenger.crypto;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Public key fingerprints: the SHA-256 hash of the X.509 encoded key, as
+ * lower case hex.
+ */
+public final class Fingerprint
+{
+   private Fingerprint()
+   {
+   }
+
+   /**
+    * Returns the fingerprint of an encoded public key.
+    *
+    * @param encodedPublicKey
+    * @return
+    */
+   public static String of(byte[] encodedPublicKey)
+   {
+      return hex(hash(encodedPublicKey));
+   }
+
+   /**
+    * Returns the SHA-256 hash of an encoded public key.
+    *
+    * @param encodedPublicKey
+    * @return
+    */
+   public static byte[] hash(byte[] encodedPublicKey)
+   {
+      try {
+         return MessageDigest.getInstance("SHA-256").digest(encodedPublicKey);
+      } catch (NoSuchAlgorithmException e) {
+         throw new IllegalStateException(e);
+      }
+   }
+
+   /**
+    * Formats a hash as lower case hex.
+    *
+    * @param hash
+    * @return
+    */
+   public static String hex(byte[] hash)
+   {
+      StringBuilder hex = new StringBuilder(hash.length * 2);
+      for (byte b : hash) {
+         hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+         hex.append(Character.forDigit(b & 0xF, 16));
+      }
+      return hex.toString();
+   }
+
+   /**
+    * Parses a hash formatted by {@link #hex(byte[])}.
+    *
+    * @param hex
+    * @return
+    * @throws IllegalArgumentException
+    *            if the text is not hex
+    */
+   public static byte[] parseHex(String hex)
+   {
+      if (hex.length() % 2 != 0)
+         throw new IllegalArgumentException("Odd number of hex digits");
+
+      byte[] hash = new byte[hex.length() / 2];
+      for (int i = 0; i < hash.length; i++) {
+         int high = Character.digit(hex.charAt(2 * i), 16);
+         int low = Character.digit(hex.charAt(2 * i + 1), 16);
+         if (high < 0 || low < 0)
+            throw new IllegalArgumentException("Not hex: " + hex);
+         hash[i] = (byte) (high << 4 | low);
+      }
+      return hash;
+   }
+}
@@ -0,0 +1,97 @@
+package martinlt.cryptomessenger.crypto;
+
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * HKDF with HMAC-SHA256 (RFC 5869).
+ */
+public final class Hkdf
+{
+   private static final String HMAC = "HmacSHA256";
+
+   /**
+    * Size of an HMAC-SHA256 output, and so of a pseudorandom key.
+    */
+   public static final int HASH_SIZE = 32;
+
+   private static final byte[] NO_SALT = new byte[HASH_SIZE];
+
+   private Hkdf()
+   {
+   }
+
+   /**
+    * Derives keying material from a secret.
+    *
+    * @param salt
+    *           optional salt, or null
+    * @param secret
+    *           the input keying material
+    * @param info
+    *           binds the output to its use
+    * @param length
+    *           bytes of output, at most 255 * 32
+    * @return
+    */
+   public static byte[] derive(byte[] salt, byte[] secret, byte[] info, int length)
+   {
+      return expand(extract(salt, secret), info, length);
+   }
+
+   /**
+    * The extract step: a pseudorandom key made from the secret.
+    *
+    * @param salt
+    *           optional salt, or null
+    * @param secret
+    * @return
+    */
+   public static byte[] extract(byte[] salt, byte[] secret)
+   {
+      return hmac(salt == null || salt.length == 0 ? NO_SALT : salt).doFinal(secret);
+   }
+
+   /**
+    * The expand step.
+    *
+    * @param prk
+    *           a pseudorandom key, at least 32 bytes
+    * @param info
+    * @param length
+    *           bytes of output, at most 255 * 32
+    * @return
+    */
+   public static byte[] expand(byte[] prk, byte[] info, int length)
+   {
+      if (length < 0 || length > 255 * HASH_SIZE)
+         throw new IllegalArgumentException("Bad output length " + length);
+
+      Mac mac = hmac(prk);
+      byte[] output = new byte[length];
+      byte[] block = new byte[0];
+      for (int i = 0, offset = 0; offset < length; i++) {
+         mac.update(block);
+         mac.update(info);
+         mac.update((byte) (i + 1));
+         block = mac.doFinal();
+         int count = Math.min(block.length, length - offset);
+         System.arraycopy(block, 0, output, offset, count);
+         offset += count;
+      }
+      return output;
+   }
+
+   private static Mac hmac(byte[] key)
+   {
+      try {
+         Mac mac = Mac.getInstance(HMAC);
+         mac.init(new SecretKeySpec(key, HMAC));
+         return mac;
+      } catch (GeneralSecurityException e) {
+         throw new IllegalStateException(e);
+      }
+   }
+}
@@ -0,0 +1,186 @@
+package martinlt.cryptomessenger.crypto;
+
+import java.nio.charset.StandardCharsets;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+
+import javax.crypto.KeyAgreement;
+import javax.crypto.interfaces.DHPublicKey;
+
+import martinlt.cryptomessenger.exception.SecurityException;
+
+/**
+ * A challenge that only the holder of the private key for a public key can
+ * answer, so that a service holding no keys of its own (i.e. a
+ * {@link martinlt.cryptomessenger.relay.Relay}) can check who it is talking
+ * to.
+ * <p>
+ * For an RSA key the challenge is a random nonce, and the answer is a
+ * signature over it. DH keys cannot sign, so for them the challenge also
+ * carries a fresh DH public key in the same group, and the answer is derived
+ * with HKDF from the secret agreed with it. Either way the answer is bound to
+ * what the challenge is for, so it cannot be used elsewhere.
+ * </p>
+ */
+public final class KeyChallenge
+{
+   public static final int NONCE_SIZE = 32;
+
+   private static final String SIGNATURE_ALGORITHM = "SHA256withRSA";
+   private static final SecureRandom RANDOM = new SecureRandom();
+
+   private final PublicKey key;
+   private final byte[] context;
+   private final byte[] challenge;
+
+   /**
+    * For a DH key, the answer expected.
+    */
+   private final byte[] expected;
+
+   private KeyChallenge(PublicKey key, byte[] context, byte[] challenge, byte[] expected)
+   {
+      this.key = key;
+      this.context = context;
+      this.challenge = challenge;
+      this.expected = expected;
+   }
+
+   /**
+    * Makes a challenge for the holder of a public key.
+    *
+    * @param encodedPublicKey
+    *           the X.509 encoded RSA or DH public key
+    * @param purpose
+    *           what the answer will be accepted for, i.e. "relay collect"
+    * @return
+    * @throws SecurityException
+    *            if the key is neither an RSA nor a DH key
+    */
+   public static KeyChallenge issue(byte[] encodedPublicKey, String purpose)
+         throws SecurityException
+   {
+      PublicKey key = parse(encodedPublicKey);
+      byte[] context = purpose.getBytes(StandardCharsets.UTF_8);
+      byte[] nonce = new byte[NONCE_SIZE];
+      RANDOM.nextBytes(nonce);
+
+      if (key instanceof RSAPublicKey)
+         return new KeyChallenge(key, context, nonce, null);
+
+      try {
+         KeyPairGenerator generator = KeyPairGenerator.getInstance("DH");
+         generator.initialize(((DHPublicKey) key).getParams(), RANDOM);
+         KeyPair ephemeral = generator.generateKeyPair();
+         KeyAgreement agreement = KeyAgreement.getInstance("DH");
+         agreement.init(ephemeral.getPrivate());
+         agreement.doPhase(key, true);
+
+         byte[] ephemeralKey = ephemeral.getPublic().getEncoded();
+         byte[] challenge = Arrays.copyOf(nonce, NONCE_SIZE + ephemeralKey.length);
+         System.arraycopy(ephemeralKey, 0, challenge, NONCE_SIZE, ephemeralKey.length);
+         return new KeyChallenge(key, context, challenge,
+               Hkdf.derive(nonce, agreement.generateSecret(), context, Hkdf.HASH_SIZE));
+      } catch (Exception e) {
+         throw new SecurityException("Could not make challenge : ", e);
+      }
+   }
+
+   /**
+    * Returns the challenge to send to the holder of the key.
+    *
+    * @return
+    */
+   public byte[] getBytes()
+   {
+      return challenge.clone();
+   }
+
+   /**
+    * Checks an answer made by {@link #answer(PrivateKey, byte[], String)}.
+    *
+    * @param answer
+    * @return true if it was made with the private key
+    */
+   public boolean verify(byte[] answer)
+   {
+      if (expected != null)
+         return MessageDigest.isEqual(expected, answer);
+
+      try {
+         Signature verifier = Signature.getInstance(SIGNATURE_ALGORITHM);
+         verifier.initVerify(key);
+         verifier.update(context);
+         verifier.update(challenge);
+         return verifier.verify(answer);
+      } catch (Exception e) {
+         return false;
+      }
+   }
+
+   /**
+    * Answers a challenge. Used by {@link KeyRing#answerChallenge(byte[], String)}.
+    *
+    * @param key
+    *           the private key the challenge was made for
+    * @param challenge
+    * @param purpose
+    *           as given to {@link #issue(byte[], String)}
+    * @return
+    * @throws SecurityException
+    *            if the challenge is not one for the key
+    */
+   static byte[] answer(PrivateKey key, byte[] challenge, String purpose) throws SecurityException
+   {
+      byte[] context = purpose.getBytes(StandardCharsets.UTF_8);
+      try {
+         if ("RSA".equals(key.getAlgorithm())) {
+            Signature signature = Signature.getInstance(SIGNATURE_ALGORITHM);
+            signature.initSign(key);
+            signature.update(context);
+            signature.update(challenge);
+            return signature.sign();
+         }
+
+         if (challenge.length <= NONCE_SIZE)
+            throw new SecurityException("Challenge is too short");
+         PublicKey ephemeral = KeyFactory.getInstance("DH").generatePublic(
+               new X509EncodedKeySpec(Arrays.copyOfRange(challenge, NONCE_SIZE,
+                     challenge.length)));
+         KeyAgreement agreement = KeyAgreement.getInstance("DH");
+         agreement.init(key);
+         agreement.doPhase(ephemeral, true);
+         return Hkdf.derive(Arrays.copyOf(challenge, NONCE_SIZE), agreement.generateSecret(),
+               context, Hkdf.HASH_SIZE);
+      } catch (SecurityException e) {
+         throw e;
+      } catch (Exception e) {
+         throw new SecurityException("Could not answer challenge : ", e);
+      }
+   }
+
+   private static PublicKey parse(byte[] encodedPublicKey) throws SecurityException
+   {
+      X509EncodedKeySpec spec = new X509EncodedKeySpec(encodedPublicKey);
+      for (String algorithm : new String[] { "RSA", "DH" }) {
+         try {
+            return KeyFactory.getInstance(algorithm).generatePublic(spec);
+         } catch (InvalidKeySpecException e) {
+            // try the next
+         } catch (Exception e) {
+            throw new SecurityException("Invalid public key : ", e);
+         }
+      }
+      throw new SecurityException("Not an RSA or DH public key");
+   }
+}
@@ -0,0 +1,151 @@
+package martinlt.cryptomessenger.crypto;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import martinlt.cryptomessenger.crypto.KeyRing.PartyKeys;
+
+/**
+ * The keys of the parties a {@link KeyRing} knows, safe to use from any
+ * number of threads.
+ * <p>
+ * Reads, which are on the path of every encryption and decryption, take no
+ * lock. A party's public key and secret key are kept together in one
+ * {@link PartyKeys}, so they are always replaced together and a reader never
+ * sees the public key of one exchange with the secret of another. Writes to
+ * the same party are serialized, which keeps the fingerprint index in step
+ * with the keys.
+ * </p>
+ * <p>
+ * {@link #snapshot()} gives an immutable copy for code that wants to look at
+ * all of the parties at once, i.e. to display them. The copy is only taken
+ * again once the registry has changed.
+ * </p>
+ */
+public class KeyRegistry
+{
+   private final ConcurrentHashMap<String, PartyKeys> parties = new ConcurrentHashMap<String, PartyKeys>();
+
+   /**
+    * The names of the parties, by the fingerprint of their public key.
+    */
+   private final ConcurrentHashMap<String, String> names = new ConcurrentHashMap<String, String>();
+
+   /**
+    * Counts the changes, so that a snapshot knows when it is out of date.
+    */
+   private final AtomicLong version = new AtomicLong();
+
+   private volatile Snapshot snapshot = new Snapshot(0,
+         Collections.<String, PartyKeys> emptyMap());
+
+   /**
+    * Returns the keys of a party, or null if it is not known.
+    *
+    * @param name
+    * @return
+    */
+   public PartyKeys get(String name)
+   {
+      return parties.get(name);
+   }
+
+   /**
+    * Returns the name of the party with the given public key fingerprint, or
+    * null if there is none.
+    *
+    * @param fingerprint
+    * @return
+    */
+   public String nameOf(String fingerprint)
+   {
+      String name = names.get(fingerprint);
+      if (name == null)
+         return null;
+
+      // The party may have been given another key since the lookup
+      PartyKeys keys = parties.get(name);
+      return keys != null && keys.getFingerprint().equals(fingerprint) ? name : null;
+   }
+
+   /**
+    * Stores the keys of a party, replacing any it had in one step.
+    *
+    * @param name
+    * @param keys
+    */
+   public void put(final String name, final PartyKeys keys)
+   {
+      parties.compute(name, (key, old) -> {
+         if (old != null)
+            names.remove(old.getFingerprint(), name);
+         names.put(keys.getFingerprint(), name);
+         return keys;
+      });
+      version.incrementAndGet();
+   }
+
+   /**
+    * Forgets the keys of a party.
+    *
+    * @param name
+    * @return true if the party was known
+    */
+   public boolean remove(final String name)
+   {
+      boolean[] removed = new boolean[1];
+      parties.computeIfPresent(name, (key, old) -> {
+         names.remove(old.getFingerprint(), name);
+         removed[0] = true;
+         return null;
+      });
+      if (removed[0])
+         version.incrementAndGet();
+      return removed[0];
+   }
+
+   /**
+    * Forgets the keys of every party. Parties stored while this runs may or
+    * may not be kept.
+    */
+   public void clear()
+   {
+      for (String name : parties.keySet()) {
+         remove(name);
+      }
+   }
+
+   /**
+    * Returns an immutable copy of the keys of every party, sorted by name.
+    * Changes made while the copy is being taken may or may not be in it.
+    *
+    * @return
+    */
+   public Map<String, PartyKeys> snapshot()
+   {
+      Snapshot current = snapshot;
+      long latest = version.get();
+      if (current.version == latest)
+         return current.parties;
+
+      Snapshot taken = new Snapshot(latest,
+            Collections.unmodifiableMap(new TreeMap<String, PartyKeys>(parties)));
+      snapshot = taken;
+      return taken.parties;
+   }
+
+   private static class Snapshot
+   {
+      final long version;
+      final Map<String, PartyKeys> parties;
+
+      Snapshot(long version, Map<String, PartyKeys> parties)
+      {
+         this.version = version;
+         this.parties = parties;
+      }
+   }
+}
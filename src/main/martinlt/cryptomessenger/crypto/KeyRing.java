@@ -0,0 +1,861 @@
+package martinlt.cryptomessenger.crypto;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyAgreement;
+import javax.crypto.KeyGenerator;
+import javax.crypto.spec.SecretKeySpec;
+
+import martinlt.cryptomessenger.MainApp.AlgorithmMode;
+import martinlt.cryptomessenger.exception.NoSuchPublicKeyException;
+import martinlt.cryptomessenger.exception.SecurityException;
+import martinlt.cryptomessenger.metrics.CryptoMetrics;
+import martinlt.cryptomessenger.metrics.Operation;
+
+/**
+ * The keys of one party: its own key pair and the public keys (and, for
+ * Diffie-Hellman, the shared secret keys) of the parties it knows.
+ * <p>
+ * This is the cryptographic core of {@link martinlt.cryptomessenger.MainApp}
+ * with no dependency on JavaFX or JAXB, so it can also be used headless, i.e.
+ * from the command line or a server.
+ * </p>
+ * <p>
+ * The key pair is kept in the files "private_<i>name</i>_<i>basis</i>.key"
+ * and "public_<i>name</i>_<i>basis</i>.key" in the working directory, and is
+ * generated the first time a party is used. The key pair used to sign
+ * messages is kept beside them, in files named after
+ * {@link Signatures#ALGORITHM}, and is generated the first time it is
+ * needed.
+ * </p>
+ * <p>
+ * Every method may be called from several threads at once. Looking keys up
+ * takes no lock, and storing a party replaces its public and secret keys in
+ * one step (see {@link KeyRegistry}).
+ * </p>
+ */
+public class KeyRing
+{
+   /**
+    * The size (in bits) of the keys
+    */
+   private static final int KEY_SIZE = 2048;
+
+   private final String name;
+   private final AlgorithmMode mode;
+
+   /**
+    * The basis used for key generation and key exchange, "RSA" or "DH".
+    */
+   private final String algorithmBasis;
+
+   private final PrivateKey privateKey;
+   private final PublicKey publicKey;
+
+   private final File privateKeyFile;
+   private final File publicKeyFile;
+
+   /**
+    * The public keys this party is aware of and, for DH, the secret keys
+    * agreed with them, keyed using the name of the related party.
+    */
+   private final KeyRegistry parties = new KeyRegistry();
+
+   /**
+    * Version byte in front of signed messages (see
+    * {@link #sign(byte[], String)}).
+    */
+   private static final byte SIGNED_MESSAGE_VERSION = 1;
+
+   /**
+    * What the signing key files are named after: "signing", or before that
+    * the signing algorithm. The first pair of files found is used, so keys
+    * made on a JDK with another algorithm still load.
+    */
+   private static final String[] SIGNING_KEY_NAMES = { "signing", "Ed25519", "EC" };
+
+   /**
+    * The key pair this party signs messages with, loaded or generated when
+    * first used (see {@link #signingKeyPair()}).
+    */
+   private volatile KeyPair signingKeyPair;
+
+   /**
+    * The signing public keys of the parties this party has received them
+    * from, keyed using the name of the party.
+    */
+   private final Map<String, PublicKey> signingKeys = new ConcurrentHashMap<String, PublicKey>();
+
+   /**
+    * Loads the key pair of a party, generating it if there is none yet.
+    *
+    * @param name
+    *           unique identifier for the party.
+    * @param mode
+    *           use RSA for key generation + encryption, or DH for key
+    *           generation and AES for encryption
+    * @throws IOException
+    *            if the key files could not be read or written
+    * @throws NoSuchAlgorithmException
+    * @throws ClassNotFoundException
+    */
+   public KeyRing(String name, AlgorithmMode mode)
+         throws IOException, NoSuchAlgorithmException, ClassNotFoundException
+   {
+      this.name = name;
+      this.mode = mode;
+      this.algorithmBasis = AlgorithmMode.RSA == mode ? "RSA" : "DH";
+
+      privateKeyFile = new File("private_" + name + "_" + algorithmBasis + ".key");
+      publicKeyFile = new File("public_" + name + "_" + algorithmBasis + ".key");
+
+      if (!keysPresent(name, mode))
+         generateKeyPair();
+
+      try (ObjectInputStream in = new ObjectInputStream(new FileInputStream(publicKeyFile))) {
+         publicKey = (PublicKey) in.readObject();
+      }
+      try (ObjectInputStream in = new ObjectInputStream(new FileInputStream(privateKeyFile))) {
+         privateKey = (PrivateKey) in.readObject();
+      }
+   }
+
+   /**
+    * Returns true if a key pair has already been generated for a party.
+    *
+    * @param name
+    * @param mode
+    * @return
+    */
+   public static boolean keysPresent(String name, AlgorithmMode mode)
+   {
+      String basis = AlgorithmMode.RSA == mode ? "RSA" : "DH";
+      return new File("private_" + name + "_" + basis + ".key").exists()
+            && new File("public_" + name + "_" + basis + ".key").exists();
+   }
+
+   public String getName()
+   {
+      return name;
+   }
+
+   /**
+    * Returns the key exchange pattern in use, "RSA" or "DH".
+    *
+    * @return
+    */
+   public String getAlgorithmBasis()
+   {
+      return algorithmBasis;
+   }
+
+   /**
+    * Returns the algorithm mode of this party's keys.
+    *
+    * @return
+    */
+   public AlgorithmMode getMode()
+   {
+      return mode;
+   }
+
+   /**
+    * Returns this party's public key as PEM text.
+    *
+    * @return
+    */
+   public String getPublicKey()
+   {
+      return Pem.encodePublicKey(publicKey.getEncoded());
+   }
+
+   /**
+    * Returns this party's X.509 encoded public key.
+    *
+    * @return
+    */
+   public byte[] getEncodedPublicKey()
+   {
+      return publicKey.getEncoded();
+   }
+
+   /**
+    * Returns the fingerprint of this party's public key, which other parties
+    * can use to tell who sent them a message (see {@link Fingerprint}).
+    *
+    * @return
+    */
+   public String getFingerprint()
+   {
+      return Fingerprint.of(publicKey.getEncoded());
+   }
+
+   /**
+    * Derives an AES key from this party's private key (see
+    * {@link SymmetricCipher#deriveKey(byte[], String)}), i.e. to encrypt data
+    * kept at rest.
+    *
+    * @param purpose
+    * @return
+    * @throws SecurityException
+    */
+   public SecretKeySpec deriveKey(String purpose) throws SecurityException
+   {
+      return SymmetricCipher.deriveKey(privateKey.getEncoded(), purpose);
+   }
+
+   /**
+    * Parses a PEM public key for this party's algorithm.
+    *
+    * @param pem
+    * @return
+    * @throws SecurityException
+    *            if the text is not a valid key
+    */
+   public PublicKey parsePublicKey(String pem) throws SecurityException
+   {
+      return parsePublicKey(pem, mode);
+   }
+
+   /**
+    * Parses a PEM public key for an algorithm mode, without needing a key
+    * pair.
+    *
+    * @param pem
+    * @param mode
+    * @return
+    * @throws SecurityException
+    *            if the text is not a valid key
+    */
+   public static PublicKey parsePublicKey(String pem, AlgorithmMode mode)
+         throws SecurityException
+   {
+      try {
+         KeyFactory kf = KeyFactory.getInstance(AlgorithmMode.RSA == mode ? "RSA" : "DH");
+         return kf.generatePublic(new X509EncodedKeySpec(Pem.decodePublicKey(pem)));
+      } catch (Exception e) {
+         throw new SecurityException("Invalid public key : ", e);
+      }
+   }
+
+   /**
+    * Generates the keys to be stored for another party's public key: for
+    * Diffie-Hellman the shared secret key is agreed, for RSA there is nothing
+    * to generate. Nothing is stored, so this is safe to call from any thread.
+    *
+    * @param receivedPublicKey
+    * @return
+    * @throws SecurityException
+    *            failed to generate secret key from public key
+    */
+   public PartyKeys keysFor(PublicKey receivedPublicKey) throws SecurityException
+   {
+      try {
+         SecretKeySpec secretKey = null;
+         if (algorithmBasis.compareTo("DH") == 0) {
+            // generate and hash the shared secret key using my private key
+            // and the senders public key
+            final KeyAgreement keyAgreement = KeyAgreement.getInstance(algorithmBasis);
+            keyAgreement.init(privateKey);
+
+            keyAgreement.doPhase(receivedPublicKey, true);
+
+            byte[] key;
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            key = sha.digest(keyAgreement.generateSecret());
+            key = Arrays.copyOf(key, 16);
+
+            secretKey = new SecretKeySpec(key, "AES");
+         }
+
+         return new PartyKeys(receivedPublicKey, secretKey);
+      } catch (Exception e) {
+         throw new SecurityException("Secret key generation failed : ", e);
+      }
+   }
+
+   /**
+    * Stores the keys generated for a party, replacing any it had.
+    *
+    * @param partyName
+    * @param keys
+    */
+   public void store(String partyName, PartyKeys keys)
+   {
+      parties.put(partyName, keys);
+   }
+
+   /**
+    * Parses and stores another party's public key.
+    *
+    * @param partyName
+    * @param pem
+    * @throws SecurityException
+    *            if the key is not valid or no secret could be agreed
+    */
+   public void receivePublicKeyFrom(String partyName, String pem) throws SecurityException
+   {
+      store(partyName, keysFor(parsePublicKey(pem)));
+   }
+
+   /**
+    * Returns true if the keys of the named party are known.
+    *
+    * @param partyName
+    * @return
+    */
+   public boolean knows(String partyName)
+   {
+      return parties.get(partyName) != null;
+   }
+
+   /**
+    * Forgets the keys of a party.
+    *
+    * @param partyName
+    */
+   public void remove(String partyName)
+   {
+      parties.remove(partyName);
+      signingKeys.remove(partyName);
+   }
+
+   /**
+    * Returns the name of the known party with the given public key
+    * fingerprint, or null if there is none.
+    *
+    * @param fingerprint
+    *           see {@link Fingerprint}
+    * @return
+    */
+   public String partyWithFingerprint(String fingerprint)
+   {
+      return parties.nameOf(fingerprint);
+   }
+
+   /**
+    * Returns the fingerprint of a known party's public key, or null if the
+    * party is not known.
+    *
+    * @param partyName
+    * @return
+    */
+   public String fingerprintOf(String partyName)
+   {
+      PartyKeys keys = parties.get(partyName);
+      return keys == null ? null : keys.getFingerprint();
+   }
+
+   /**
+    * Forgets the public keys of every party, i.e. before loading a party
+    * file. Signing keys are not kept in party files, so they are kept; use
+    * {@link #remove(String)} to forget a party's signing key as well.
+    */
+   public void clear()
+   {
+      parties.clear();
+   }
+
+   /**
+    * Returns an immutable copy of the keys of every known party, sorted by
+    * name (see {@link KeyRegistry#snapshot()}).
+    *
+    * @return
+    */
+   public Map<String, PartyKeys> snapshot()
+   {
+      return parties.snapshot();
+   }
+
+   /**
+    * Returns this party's signing public key in PEM format, generating the
+    * signing key pair if there is none yet. Other parties need it to verify
+    * messages signed by this party.
+    *
+    * @return
+    * @throws SecurityException
+    *            if the signing keys could not be read or generated
+    */
+   public String getSigningKey() throws SecurityException
+   {
+      return Pem.encodePublicKey(signingKeyPair().getPublic().getEncoded());
+   }
+
+   /**
+    * Parses and stores another party's signing public key.
+    *
+    * @param partyName
+    * @param pem
+    * @throws SecurityException
+    *            if the key is not valid
+    */
+   public void receiveSigningKeyFrom(String partyName, String pem) throws SecurityException
+   {
+      byte[] encoded;
+      try {
+         encoded = Pem.decodePublicKey(pem);
+      } catch (IllegalArgumentException e) {
+         throw new SecurityException("Signing key is not valid PEM : ", e);
+      }
+      signingKeys.put(partyName, Signatures.parsePublicKey(encoded));
+   }
+
+   /**
+    * Answers a challenge made for this party's public key (see
+    * {@link KeyChallenge}), proving that it holds the private key.
+    *
+    * @param challenge
+    * @param purpose
+    *           what the challenge was made for
+    * @return
+    * @throws SecurityException
+    *            if the challenge is not one for this party's key
+    */
+   public byte[] answerChallenge(byte[] challenge, String purpose) throws SecurityException
+   {
+      return KeyChallenge.answer(privateKey, challenge, purpose);
+   }
+
+   /**
+    * Signs a message for a known party, to be encrypted after. The signature
+    * covers the fingerprint of the recipient's public key as well as the
+    * message, so a recipient cannot pass a signed message on to someone else
+    * as if it had been sent to them.
+    *
+    * @param message
+    * @param recipient
+    *           the party the message is for
+    * @return the signature and the message, for {@link #verify(byte[],
+    *         String)}
+    * @throws SecurityException
+    *            if the recipient is not known or signing failed
+    */
+   public byte[] sign(byte[] message, String recipient) throws SecurityException
+   {
+      String fingerprint = fingerprintOf(recipient);
+      if (fingerprint == null)
+         throw new NoSuchPublicKeyException(recipient);
+
+      long start = CryptoMetrics.start();
+      byte[] signature;
+      try {
+         signature = Signatures.sign(signingKeyPair().getPrivate(),
+               fingerprint.getBytes(StandardCharsets.US_ASCII), message);
+      } catch (SecurityException | RuntimeException e) {
+         CryptoMetrics.get().recordFailure(Operation.SIGN, mode, start);
+         throw e;
+      }
+      CryptoMetrics.get().record(Operation.SIGN, mode, start);
+
+      ByteBuffer signed = ByteBuffer.allocate(3 + signature.length + message.length);
+      signed.put(SIGNED_MESSAGE_VERSION);
+      signed.putShort((short) signature.length);
+      signed.put(signature);
+      signed.put(message);
+      return signed.array();
+   }
+
+   /**
+    * Checks the signature on a message signed for this party by
+    * {@link #sign(byte[], String)}.
+    *
+    * @param signed
+    *           the signature and the message
+    * @param sender
+    *           the party which signed it
+    * @return the message
+    * @throws NoSuchPublicKeyException
+    *            if the sender's signing key is not known
+    * @throws SecurityException
+    *            if the signature is not good
+    */
+   public byte[] verify(byte[] signed, String sender) throws SecurityException
+   {
+      PublicKey key = sender == null ? null : signingKeys.get(sender);
+      if (key == null)
+         throw new NoSuchPublicKeyException("No signing key for " + sender);
+
+      long start = CryptoMetrics.start();
+      ByteBuffer buffer = ByteBuffer.wrap(signed);
+      int length = signed.length < 3 || buffer.get() != SIGNED_MESSAGE_VERSION ? -1
+            : buffer.getShort() & 0xffff;
+      if (length < 0 || length > buffer.remaining()) {
+         CryptoMetrics.get().recordFailure(Operation.VERIFY, mode, start);
+         throw new SecurityException("Message is not signed");
+      }
+
+      byte[] signature = new byte[length];
+      buffer.get(signature);
+      byte[] message = new byte[buffer.remaining()];
+      buffer.get(message);
+
+      if (!Signatures.verify(key, signature, getFingerprint().getBytes(StandardCharsets.US_ASCII),
+            message)) {
+         CryptoMetrics.get().recordFailure(Operation.VERIFY, mode, start);
+         throw new SecurityException("Bad signature from " + sender);
+      }
+      CryptoMetrics.get().record(Operation.VERIFY, mode, start);
+      return message;
+   }
+
+   /**
+    * Checks the signatures on many messages at once, spreading the work over
+    * the common fork/join pool.
+    *
+    * @param signed
+    *           the signed messages
+    * @param senders
+    *           the party which signed each message
+    * @return the message for each signature which is good, or null for each
+    *         one which is not (or whose sender's key is not known)
+    */
+   public List<byte[]> verifyAll(final List<byte[]> signed, final List<String> senders)
+   {
+      if (signed.size() != senders.size())
+         throw new IllegalArgumentException("Need one sender per message");
+
+      final byte[][] messages = new byte[signed.size()][];
+      IntStream.range(0, messages.length).parallel().forEach(i -> {
+         try {
+            messages[i] = verify(signed.get(i), senders.get(i));
+         } catch (SecurityException e) {
+            // Left null
+         }
+      });
+      return Arrays.asList(messages);
+   }
+
+   /**
+    * Encrypts a message for a known party. In DH mode the message is
+    * encrypted with the secret key shared with the recipient; in RSA mode a
+    * random AES key is encrypted with the recipient's public key and put in
+    * front of the AES encrypted message.
+    *
+    * @param plainText
+    *           the message
+    * @param recipient
+    *           the party the message is for
+    * @return the ciphertext
+    * @throws SecurityException
+    *            failed to encrypt the message
+    */
+   public byte[] encrypt(byte[] plainText, String recipient) throws SecurityException
+   {
+      ByteArrayOutputStream out = new ByteArrayOutputStream(plainText.length + 512);
+      try {
+         encrypt(new ByteArrayInputStream(plainText), out, recipient);
+      } catch (IOException e) {
+         throw new SecurityException("Encryption failed : ", e);
+      }
+      return out.toByteArray();
+   }
+
+   /**
+    * Encrypts a stream for a known party, writing the same ciphertext as
+    * {@link #encrypt(byte[], String)} without holding it all in memory.
+    * Neither stream is closed.
+    *
+    * @param in
+    *           the message
+    * @param out
+    *           receives the ciphertext
+    * @param recipient
+    *           the party the message is for
+    * @throws IOException
+    *            if a stream could not be read or written
+    * @throws SecurityException
+    *            failed to encrypt the message
+    */
+   public void encrypt(InputStream in, OutputStream out, String recipient)
+         throws IOException, SecurityException
+   {
+      // Diffie-Hellman key exchange + AES encryption
+      if (algorithmBasis.compareTo("DH") == 0) {
+         PartyKeys keys = parties.get(recipient);
+         if (keys == null || keys.secretKey == null)
+            throw new NoSuchPublicKeyException(recipient);
+         SecretKeySpec secretKey = keys.secretKey;
+
+         SymmetricCipher.encrypt(in, out, secretKey);
+         return;
+      }
+
+      // RSA keys + encryption
+      PartyKeys keys = parties.get(recipient);
+      if (keys == null)
+         throw new NoSuchPublicKeyException(recipient);
+      PublicKey receivedPublicKey = keys.publicKey;
+
+      byte[] cipherKey;
+      SecretKeySpec aeskeySpec;
+      try {
+         // generate a random AES key
+         KeyGenerator kgen = KeyGenerator.getInstance("AES");
+         kgen.init(128);
+         byte[] aesKey = kgen.generateKey().getEncoded();
+         aeskeySpec = new SecretKeySpec(aesKey, "AES");
+
+         // Encrypt the AES key with the other parties public RSA key
+         Cipher cipher = Cipher.getInstance("RSA");
+         cipher.init(Cipher.ENCRYPT_MODE, receivedPublicKey);
+         cipherKey = cipher.doFinal(aesKey);
+      } catch (Exception e) {
+         throw new SecurityException("Encryption failed : ", e);
+      }
+
+      // The encrypted key goes in front of the AES encrypted message
+      out.write(cipherKey);
+      SymmetricCipher.encrypt(in, out, aeskeySpec);
+   }
+
+   /**
+    * Decrypts a message received from a party. In DH mode the message is
+    * decrypted with the secret key shared with the sender; in RSA mode it is
+    * decrypted with this party's private key and the sender is not needed.
+    *
+    * @param cipherText
+    *           the ciphertext
+    * @param sender
+    *           the sending party
+    * @return the message
+    * @throws SecurityException
+    *            decryption of message failed
+    */
+   public byte[] decrypt(byte[] cipherText, String sender) throws SecurityException
+   {
+      if (algorithmBasis.compareTo("DH") == 0)
+         return SymmetricCipher.decrypt(cipherText, secretKeyFor(sender));
+
+      if (cipherText.length < KEY_SIZE / 8)
+         throw new SecurityException("Ciphertext is shorter than the encrypted key");
+      return SymmetricCipher.decrypt(cipherText, KEY_SIZE / 8, cipherText.length - KEY_SIZE / 8,
+            unwrapKey(Arrays.copyOf(cipherText, KEY_SIZE / 8)));
+   }
+
+   /**
+    * Decrypts a stream written by {@link #encrypt(InputStream, OutputStream,
+    * String)}. Neither stream is closed.
+    *
+    * @param in
+    *           the ciphertext
+    * @param out
+    *           receives the message
+    * @param sender
+    *           the sending party
+    * @throws IOException
+    *            if a stream could not be read or written
+    * @throws SecurityException
+    *            decryption of message failed
+    */
+   public void decrypt(InputStream in, OutputStream out, String sender)
+         throws IOException, SecurityException
+   {
+      if (algorithmBasis.compareTo("DH") == 0) {
+         SymmetricCipher.decrypt(in, out, secretKeyFor(sender));
+         return;
+      }
+
+      byte[] cipherKey = new byte[KEY_SIZE / 8];
+      int read = 0;
+      while (read < cipherKey.length) {
+         int n = in.read(cipherKey, read, cipherKey.length - read);
+         if (n < 0)
+            throw new SecurityException("Ciphertext is shorter than the encrypted key");
+         read += n;
+      }
+      SymmetricCipher.decrypt(in, out, unwrapKey(cipherKey));
+   }
+
+   /**
+    * Deletes the key files for this party, i.e. once a test or a throwaway
+    * identity is finished with.
+    */
+   public void removeKeys()
+   {
+      privateKeyFile.delete();
+      publicKeyFile.delete();
+      for (String keyName : SIGNING_KEY_NAMES) {
+         signingKeyFile("private", keyName).delete();
+         signingKeyFile("public", keyName).delete();
+      }
+   }
+
+   private SecretKeySpec secretKeyFor(String sender) throws NoSuchPublicKeyException
+   {
+      if (sender == null)
+         throw new NoSuchPublicKeyException("No sender given");
+
+      PartyKeys keys = parties.get(sender);
+      if (keys == null || keys.secretKey == null)
+         throw new NoSuchPublicKeyException(sender);
+      return keys.secretKey;
+   }
+
+   /**
+    * Decrypts an RSA encrypted AES key using my private key.
+    */
+   private SecretKeySpec unwrapKey(byte[] cipherKey) throws SecurityException
+   {
+      try {
+         final Cipher cipherDecrypt = Cipher.getInstance("RSA");
+         cipherDecrypt.init(Cipher.DECRYPT_MODE, privateKey);
+         return new SecretKeySpec(cipherDecrypt.doFinal(cipherKey), "AES");
+      } catch (Exception e) {
+         throw new SecurityException("Decryption failed : ", e);
+      }
+   }
+
+   /**
+    * Generate key which contains a pair of private and public key. Store the
+    * set of keys in files.
+    */
+   private void generateKeyPair() throws NoSuchAlgorithmException, IOException
+   {
+      long start = CryptoMetrics.start();
+      final KeyPair keyPair;
+      try {
+         final KeyPairGenerator keyGen = KeyPairGenerator.getInstance(algorithmBasis);
+         keyGen.initialize(KEY_SIZE);
+         keyPair = keyGen.generateKeyPair();
+      } catch (NoSuchAlgorithmException | RuntimeException e) {
+         CryptoMetrics.get().recordFailure(Operation.GENERATE_KEY_PAIR, mode, start);
+         throw e;
+      }
+      CryptoMetrics.get().record(Operation.GENERATE_KEY_PAIR, mode, start);
+
+      // Create files to store public and private key
+      if (privateKeyFile.getParentFile() != null)
+         privateKeyFile.getParentFile().mkdirs();
+      if (publicKeyFile.getParentFile() != null)
+         publicKeyFile.getParentFile().mkdirs();
+
+      try (ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(publicKeyFile))) {
+         out.writeObject(keyPair.getPublic());
+      }
+      try (ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(privateKeyFile))) {
+         out.writeObject(keyPair.getPrivate());
+      }
+   }
+
+   /**
+    * Returns the signing key pair, reading it from its files or generating
+    * and storing it the first time it is needed. Parties which never sign
+    * do not pay for it.
+    */
+   private KeyPair signingKeyPair() throws SecurityException
+   {
+      KeyPair keyPair = signingKeyPair;
+      if (keyPair != null)
+         return keyPair;
+
+      synchronized (signingKeys) {
+         if (signingKeyPair != null)
+            return signingKeyPair;
+
+         try {
+            for (String keyName : SIGNING_KEY_NAMES) {
+               File privateFile = signingKeyFile("private", keyName);
+               File publicFile = signingKeyFile("public", keyName);
+               if (privateFile.exists() && publicFile.exists()) {
+                  try (ObjectInputStream publicIn = new ObjectInputStream(
+                        new FileInputStream(publicFile));
+                        ObjectInputStream privateIn = new ObjectInputStream(
+                              new FileInputStream(privateFile))) {
+                     keyPair = new KeyPair((PublicKey) publicIn.readObject(),
+                           (PrivateKey) privateIn.readObject());
+                  }
+                  break;
+               }
+            }
+
+            if (keyPair == null) {
+               keyPair = Signatures.generateKeyPair();
+               try (ObjectOutputStream out = new ObjectOutputStream(
+                     new FileOutputStream(signingKeyFile("public", SIGNING_KEY_NAMES[0])))) {
+                  out.writeObject(keyPair.getPublic());
+               }
+               try (ObjectOutputStream out = new ObjectOutputStream(
+                     new FileOutputStream(signingKeyFile("private", SIGNING_KEY_NAMES[0])))) {
+                  out.writeObject(keyPair.getPrivate());
+               }
+            }
+         } catch (IOException | ClassNotFoundException | NoSuchAlgorithmException e) {
+            throw new SecurityException("Signing keys could not be loaded : ", e);
+         }
+         signingKeyPair = keyPair;
+         return keyPair;
+      }
+   }
+
+   private File signingKeyFile(String kind, String keyName)
+   {
+      return new File(kind + "_" + name + "_" + keyName + ".key");
+   }
+
+   /**
+    * The keys stored for another party.
+    */
+   public static class PartyKeys
+   {
+      private final PublicKey publicKey;
+      private final SecretKeySpec secretKey;
+      private final String fingerprint;
+
+      PartyKeys(PublicKey publicKey, SecretKeySpec secretKey)
+      {
+         this.publicKey = publicKey;
+         this.secretKey = secretKey;
+         this.fingerprint = Fingerprint.of(publicKey.getEncoded());
+      }
+
+      public PublicKey getPublicKey()
+      {
+         return publicKey;
+      }
+
+      /**
+       * Returns the shared secret key, or null in RSA mode.
+       *
+       * @return
+       */
+      public SecretKeySpec getSecretKey()
+      {
+         return secretKey;
+      }
+
+      /**
+       * Returns the fingerprint of the public key (see {@link Fingerprint}).
+       *
+       * @return
+       */
+      public String getFingerprint()
+      {
+         return fingerprint;
+      }
+   }
+}
@@ -0,0 +1,49 @@
+package martinlt.cryptomessenger.crypto;
+
+import java.util.Base64;
+
+/**
+ * Conversion between encoded public keys and the PEM text parties exchange.
+ */
+public final class Pem
+{
+   private static final String BEGIN_PUBLIC_KEY = "-----BEGIN PUBLIC KEY-----";
+   private static final String END_PUBLIC_KEY = "-----END PUBLIC KEY-----";
+
+   private Pem()
+   {
+   }
+
+   /**
+    * Formats an X.509 encoded public key as PEM.
+    *
+    * @param encodedKey
+    * @return
+    */
+   public static String encodePublicKey(byte[] encodedKey)
+   {
+      // Base 64 encode the key
+      String base64Key = Base64.getEncoder().encodeToString(encodedKey);
+
+      // Return in PEM format
+      return BEGIN_PUBLIC_KEY + "\n" + base64Key.replaceAll("(.{64})", "$1\n") + "\n"
+            + END_PUBLIC_KEY + "\n";
+   }
+
+   /**
+    * Extracts the X.509 encoded public key from PEM text. Line breaks and
+    * other whitespace are ignored.
+    *
+    * @param pem
+    * @return
+    * @throws IllegalArgumentException
+    *            if the text is not Base64 once the PEM armour is removed
+    */
+   public static byte[] decodePublicKey(String pem)
+   {
+      String unwrappedPEM = pem.replace(BEGIN_PUBLIC_KEY, "").replace(END_PUBLIC_KEY, "")
+            .replaceAll("\\s", "");
+
+      return Base64.getDecoder().decode(unwrappedPEM);
+   }
+}
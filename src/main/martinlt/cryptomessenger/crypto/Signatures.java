@@ -0,0 +1,144 @@
+package martinlt.cryptomessenger.crypto;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.X509EncodedKeySpec;
+
+import martinlt.cryptomessenger.exception.SecurityException;
+
+/**
+ * Signature keys and signatures for signing messages.
+ * <p>
+ * Ed25519 is used where the JDK has it (15 and later): it signs and verifies
+ * faster than ECDSA and its signatures do not depend on a random number. On
+ * older JDKs ECDSA on the P-256 curve is used instead. The algorithms are
+ * looked up by name because the build targets Java 8. Keys of either kind
+ * can be verified, so parties on different JDKs can still talk.
+ * </p>
+ */
+public final class Signatures
+{
+   private static final String ED25519 = "Ed25519";
+
+   /**
+    * The kind of key generated for signing, "Ed25519" or "EC".
+    */
+   public static final String ALGORITHM = isAvailable(ED25519) ? ED25519 : "EC";
+
+   private Signatures()
+   {
+   }
+
+   /**
+    * Generates a signing key pair of the kind given by {@link #ALGORITHM}.
+    *
+    * @return
+    * @throws NoSuchAlgorithmException
+    */
+   public static KeyPair generateKeyPair() throws NoSuchAlgorithmException
+   {
+      KeyPairGenerator keyGen = KeyPairGenerator.getInstance(ALGORITHM);
+      if (!ALGORITHM.equals(ED25519)) {
+         try {
+            keyGen.initialize(new ECGenParameterSpec("secp256r1"));
+         } catch (GeneralSecurityException e) {
+            throw new NoSuchAlgorithmException("P-256 is not supported", e);
+         }
+      }
+      return keyGen.generateKeyPair();
+   }
+
+   /**
+    * Signs the parts of a message as if they were one array.
+    *
+    * @param key
+    * @param parts
+    * @return the signature
+    * @throws SecurityException
+    *            if the message could not be signed
+    */
+   public static byte[] sign(PrivateKey key, byte[]... parts) throws SecurityException
+   {
+      try {
+         Signature signature = Signature.getInstance(signatureAlgorithm(key.getAlgorithm()));
+         signature.initSign(key);
+         for (byte[] part : parts) {
+            signature.update(part);
+         }
+         return signature.sign();
+      } catch (GeneralSecurityException e) {
+         throw new SecurityException("Signing failed : ", e);
+      }
+   }
+
+   /**
+    * Verifies a signature made by {@link #sign(PrivateKey, byte[]...)}.
+    *
+    * @param key
+    * @param signature
+    * @param parts
+    * @return true if the signature is good
+    */
+   public static boolean verify(PublicKey key, byte[] signature, byte[]... parts)
+   {
+      try {
+         Signature verifier = Signature.getInstance(signatureAlgorithm(key.getAlgorithm()));
+         verifier.initVerify(key);
+         for (byte[] part : parts) {
+            verifier.update(part);
+         }
+         return verifier.verify(signature);
+      } catch (GeneralSecurityException e) {
+         // A malformed signature is as bad as a wrong one
+         return false;
+      }
+   }
+
+   /**
+    * Parses an X.509 encoded signing public key of either kind.
+    *
+    * @param encoded
+    * @return
+    * @throws SecurityException
+    *            if the key is not an Ed25519 or EC key
+    */
+   public static PublicKey parsePublicKey(byte[] encoded) throws SecurityException
+   {
+      X509EncodedKeySpec spec = new X509EncodedKeySpec(encoded);
+      GeneralSecurityException failure = null;
+      for (String algorithm : new String[] { ED25519, "EC" }) {
+         try {
+            return KeyFactory.getInstance(algorithm).generatePublic(spec);
+         } catch (GeneralSecurityException e) {
+            failure = e;
+         }
+      }
+      throw new SecurityException("Signing key could not be parsed : ", failure);
+   }
+
+   /**
+    * JDK keys from the Ed25519 generator call their algorithm "EdDSA", and
+    * the curve is taken from the key.
+    */
+   private static String signatureAlgorithm(String keyAlgorithm)
+   {
+      return keyAlgorithm.equals("EC") ? "SHA256withECDSA" : keyAlgorithm;
+   }
+
+   private static boolean isAvailable(String algorithm)
+   {
+      try {
+         KeyPairGenerator.getInstance(algorithm);
+         return true;
+      } catch (NoSuchAlgorithmException e) {
+         return false;
+      }
+   }
+}
@@ -0,0 +1,256 @@
+package martinlt.cryptomessenger.crypto;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import martinlt.cryptomessenger.exception.SecurityException;
+
+/**
+ * Helper for AES/CBC/PKCS5Padding encryption.
+ * <p>
+ * The ciphertext produced is the random initialisation vector followed by the
+ * encrypted bytes, which is the layout used for messages in DH mode and for
+ * the symmetric part of RSA mode messages.
+ * </p>
+ */
+public final class SymmetricCipher
+{
+   /**
+    * The size (in bytes) of the initialisation vector used
+    */
+   public static final int IV_SIZE = 16;
+
+   /**
+    * The size (in bytes) of the AES keys derived by {@link #deriveKey}
+    */
+   public static final int KEY_SIZE = 16;
+
+   private static final String TRANSFORMATION = "AES/CBC/PKCS5Padding";
+
+   /**
+    * Size of the chunks in which streams are encrypted and decrypted.
+    */
+   private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+   private static final SecureRandom RANDOM = new SecureRandom();
+
+   private SymmetricCipher()
+   {
+   }
+
+   /**
+    * Generate ciphertext using AES/CBC/PKCS5Padding
+    *
+    * @param plainText
+    *           the plain bytes
+    * @param secretKeySpec
+    *           key to be used to encrypt the bytes
+    * @return the IV followed by the encrypted bytes
+    * @throws SecurityException
+    *            if the encryption could not be completed
+    */
+   public static byte[] encrypt(byte[] plainText, SecretKeySpec secretKeySpec)
+         throws SecurityException
+   {
+      try {
+         // Generate the IV.
+         byte[] iv = new byte[IV_SIZE];
+         RANDOM.nextBytes(iv);
+
+         // Encrypt straight into the buffer behind the IV
+         Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+         cipher.init(Cipher.ENCRYPT_MODE, secretKeySpec, new IvParameterSpec(iv));
+         byte[] cipherText = new byte[IV_SIZE + cipher.getOutputSize(plainText.length)];
+         System.arraycopy(iv, 0, cipherText, 0, IV_SIZE);
+         int written = cipher.doFinal(plainText, 0, plainText.length, cipherText, IV_SIZE);
+
+         if (IV_SIZE + written == cipherText.length)
+            return cipherText;
+         return Arrays.copyOf(cipherText, IV_SIZE + written);
+      } catch (Exception e) {
+         throw new SecurityException("Encryption failed : ", e);
+      }
+   }
+
+   /**
+    * Decipher bytes encrypted using AES/CBC/PKCS5Padding
+    *
+    * @param cipherText
+    *           the IV followed by the encrypted bytes
+    * @param secretKeySpec
+    *           key used to encrypt the bytes
+    * @return the decrypted bytes
+    * @throws SecurityException
+    *            if the decryption could not be completed
+    */
+   public static byte[] decrypt(byte[] cipherText, SecretKeySpec secretKeySpec)
+         throws SecurityException
+   {
+      return decrypt(cipherText, 0, cipherText.length, secretKeySpec);
+   }
+
+   /**
+    * Decipher a region of a buffer encrypted using AES/CBC/PKCS5Padding,
+    * without copying the region out first.
+    *
+    * @param buffer
+    *           buffer holding the IV followed by the encrypted bytes
+    * @param offset
+    *           start of the IV within the buffer
+    * @param length
+    *           length of the IV plus encrypted bytes
+    * @param secretKeySpec
+    *           key used to encrypt the bytes
+    * @return the decrypted bytes
+    * @throws SecurityException
+    *            if the decryption could not be completed
+    */
+   public static byte[] decrypt(byte[] buffer, int offset, int length,
+         SecretKeySpec secretKeySpec) throws SecurityException
+   {
+      try {
+         if (length < IV_SIZE)
+            throw new SecurityException("Ciphertext is shorter than the IV");
+
+         IvParameterSpec ivParameterSpec = new IvParameterSpec(buffer, offset, IV_SIZE);
+
+         final Cipher cipherDecrypt = Cipher.getInstance(TRANSFORMATION);
+         cipherDecrypt.init(Cipher.DECRYPT_MODE, secretKeySpec, ivParameterSpec);
+         return cipherDecrypt.doFinal(buffer, offset + IV_SIZE, length - IV_SIZE);
+      } catch (SecurityException e) {
+         throw e;
+      } catch (Exception e) {
+         throw new SecurityException("Decryption failed : ", e);
+      }
+   }
+
+   /**
+    * Encrypts a stream using AES/CBC/PKCS5Padding, writing the same layout as
+    * {@link #encrypt(byte[], SecretKeySpec)} without holding the whole
+    * plaintext in memory. Neither stream is closed.
+    *
+    * @param in
+    *           the plain bytes
+    * @param out
+    *           receives the IV followed by the encrypted bytes
+    * @param secretKeySpec
+    *           key to be used to encrypt the bytes
+    * @throws IOException
+    *            if a stream could not be read or written
+    * @throws SecurityException
+    *            if the encryption could not be completed
+    */
+   public static void encrypt(InputStream in, OutputStream out, SecretKeySpec secretKeySpec)
+         throws IOException, SecurityException
+   {
+      Cipher cipher;
+      byte[] iv = new byte[IV_SIZE];
+      try {
+         RANDOM.nextBytes(iv);
+         cipher = Cipher.getInstance(TRANSFORMATION);
+         cipher.init(Cipher.ENCRYPT_MODE, secretKeySpec, new IvParameterSpec(iv));
+      } catch (Exception e) {
+         throw new SecurityException("Encryption failed : ", e);
+      }
+
+      out.write(iv);
+      transform(cipher, in, out);
+   }
+
+   /**
+    * Decrypts a stream written by
+    * {@link #encrypt(InputStream, OutputStream, SecretKeySpec)} or
+    * {@link #encrypt(byte[], SecretKeySpec)}. Neither stream is closed.
+    *
+    * @param in
+    *           the IV followed by the encrypted bytes
+    * @param out
+    *           receives the decrypted bytes
+    * @param secretKeySpec
+    *           key used to encrypt the bytes
+    * @throws IOException
+    *            if a stream could not be read or written
+    * @throws SecurityException
+    *            if the decryption could not be completed
+    */
+   public static void decrypt(InputStream in, OutputStream out, SecretKeySpec secretKeySpec)
+         throws IOException, SecurityException
+   {
+      byte[] iv = new byte[IV_SIZE];
+      int read = 0;
+      while (read < IV_SIZE) {
+         int n = in.read(iv, read, IV_SIZE - read);
+         if (n < 0)
+            throw new SecurityException("Ciphertext is shorter than the IV");
+         read += n;
+      }
+
+      Cipher cipher;
+      try {
+         cipher = Cipher.getInstance(TRANSFORMATION);
+         cipher.init(Cipher.DECRYPT_MODE, secretKeySpec, new IvParameterSpec(iv));
+      } catch (Exception e) {
+         throw new SecurityException("Decryption failed : ", e);
+      }
+      transform(cipher, in, out);
+   }
+
+   /**
+    * Runs a stream through an initialised cipher.
+    */
+   private static void transform(Cipher cipher, InputStream in, OutputStream out)
+         throws IOException, SecurityException
+   {
+      byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+      // Room for a chunk plus the block held back by the cipher and padding
+      byte[] output = new byte[buffer.length + 2 * IV_SIZE];
+      try {
+         int read;
+         while ((read = in.read(buffer)) >= 0) {
+            int written = cipher.update(buffer, 0, read, output);
+            out.write(output, 0, written);
+         }
+         int written = cipher.doFinal(output, 0);
+         out.write(output, 0, written);
+      } catch (IOException e) {
+         throw e;
+      } catch (Exception e) {
+         throw new SecurityException("Cipher failed : ", e);
+      }
+   }
+
+   /**
+    * Derives an AES key from some secret material. The purpose is mixed into
+    * the hash so that keys derived for different uses of the same secret are
+    * unrelated.
+    *
+    * @param secret
+    *           the secret material, i.e. an encoded private key
+    * @param purpose
+    *           a label for what the key is used for, i.e. "history"
+    * @return the derived AES key
+    * @throws SecurityException
+    *            if SHA-256 is not available
+    */
+   public static SecretKeySpec deriveKey(byte[] secret, String purpose) throws SecurityException
+   {
+      try {
+         MessageDigest sha = MessageDigest.getInstance("SHA-256");
+         sha.update(purpose.getBytes(StandardCharsets.UTF_8));
+         byte[] key = Arrays.copyOf(sha.digest(secret), KEY_SIZE);
+
+         return new SecretKeySpec(key, "AES");
+      } catch (Exception e) {
+         throw new SecurityException("Key derivation failed : ", e);
+      }
+   }
+}
@@ -0,0 +1,368 @@
+package martinlt.cryptomessenger.group;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import martinlt.cryptomessenger.crypto.KeyRing;
+import martinlt.cryptomessenger.crypto.SymmetricCipher;
+import martinlt.cryptomessenger.exception.NoSuchPublicKeyException;
+import martinlt.cryptomessenger.exception.SecurityException;
+
+/**
+ * A group of parties exchanging messages, as seen by one member.
+ * <p>
+ * Each member has its own {@link SenderKey}, which it sends to every other
+ * member once, encrypted for each of them through the {@link KeyRing} as any
+ * other message would be (see {@link #distribute()}). From then on
+ * a message to the group is encrypted once, with the sender's key, however
+ * many members there are; it is the key id followed by the IV and
+ * AES/CBC ciphertext.
+ * </p>
+ * <p>
+ * When a member leaves, the others forget its key and generate new keys of
+ * their own, which are sent to the remaining members, so that the member
+ * who left cannot read later messages. Sender keys only show that a message
+ * came from someone in the group: any member holding a sender's key could
+ * forge messages in its name.
+ * </p>
+ * <p>
+ * Members are known locally by party name, as in the {@link KeyRing}; in
+ * sender key messages they are given by key fingerprint, as each party may
+ * know the others under different names.
+ * </p>
+ */
+public class Group
+{
+   /**
+    * Marks a sender key distribution message.
+    */
+   private static final int DISTRIBUTION_MAGIC = 0x47534b31; // "GSK1"
+
+   private final String name;
+   private final KeyRing keyRing;
+   private final LinkedHashSet<String> members = new LinkedHashSet<String>();
+
+   private volatile SenderKey ownKey;
+
+   /**
+    * Members who have been sent the current own key.
+    */
+   private final Set<String> distributedTo = new HashSet<String>();
+
+   /**
+    * The keys received from other members, keyed using key id.
+    */
+   private final HashMap<Long, Received> receivedKeys = new HashMap<Long, Received>();
+
+   /**
+    * The id of each member's current key.
+    */
+   private final HashMap<String, Long> currentKeys = new HashMap<String, Long>();
+
+   /**
+    * Creates a group and a sender key for this party.
+    *
+    * @param name
+    *           the name of the group
+    * @param keyRing
+    *           the keys of this party, which must know every member
+    * @param members
+    *           the other members
+    */
+   public Group(String name, KeyRing keyRing, Collection<String> members)
+   {
+      this.name = name;
+      this.keyRing = keyRing;
+      this.members.addAll(members);
+      this.members.remove(keyRing.getName());
+      this.ownKey = SenderKey.generate();
+   }
+
+   public String getName()
+   {
+      return name;
+   }
+
+   /**
+    * Returns the other members.
+    *
+    * @return
+    */
+   public synchronized List<String> getMembers()
+   {
+      return new ArrayList<String>(members);
+   }
+
+   public synchronized boolean isMember(String party)
+   {
+      return members.contains(party);
+   }
+
+   /**
+    * Adds a member, who will need this party's key.
+    *
+    * @param party
+    */
+   public synchronized void addMember(String party)
+   {
+      if (!party.equals(keyRing.getName()))
+         members.add(party);
+   }
+
+   /**
+    * Removes a member, forgets its key and generates a new own key, which
+    * the remaining members will need.
+    *
+    * @param party
+    */
+   public synchronized void removeMember(String party)
+   {
+      if (!members.remove(party))
+         return;
+
+      Long keyId = currentKeys.remove(party);
+      if (keyId != null)
+         receivedKeys.remove(keyId);
+      ownKey = SenderKey.generate();
+      distributedTo.clear();
+   }
+
+   /**
+    * Returns the members who have not yet been sent this party's current
+    * key.
+    *
+    * @return
+    */
+   public synchronized List<String> pendingDistribution()
+   {
+      List<String> pending = new ArrayList<String>();
+      for (String member : members) {
+         if (!distributedTo.contains(member))
+            pending.add(member);
+      }
+      return pending;
+   }
+
+   /**
+    * Encrypts this party's current key for each member who has not been sent
+    * it yet, through the pairwise channel. This is the only step whose cost
+    * grows with the group.
+    *
+    * @return the envelope for each member, to be sent as any other message
+    *         and passed to {@link Groups#receiveSenderKey(String, byte[])}
+    * @throws SecurityException
+    *            if the key could not be encrypted for a member
+    */
+   public synchronized Map<String, byte[]> distribute() throws SecurityException
+   {
+      byte[] message = senderKeyMessage();
+      Map<String, byte[]> envelopes = new LinkedHashMap<String, byte[]>();
+      for (String member : pendingDistribution()) {
+         envelopes.put(member, keyRing.encrypt(message, member));
+      }
+      distributedTo.addAll(envelopes.keySet());
+      return envelopes;
+   }
+
+   /**
+    * Builds the message carrying this party's current key. It names the
+    * group and gives the fingerprints of its members, so that a party can
+    * join a group it first hears of this way. Called holding the lock.
+    */
+   private byte[] senderKeyMessage()
+   {
+      try {
+         List<String> fingerprints = new ArrayList<String>();
+         fingerprints.add(keyRing.getFingerprint());
+         for (String member : members) {
+            String fingerprint = keyRing.fingerprintOf(member);
+            if (fingerprint != null)
+               fingerprints.add(fingerprint);
+         }
+
+         ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+         DataOutputStream out = new DataOutputStream(bytes);
+         out.writeInt(DISTRIBUTION_MAGIC);
+         out.writeUTF(name);
+         out.writeInt(fingerprints.size());
+         for (String fingerprint : fingerprints) {
+            out.writeUTF(fingerprint);
+         }
+         out.write(ownKey.id());
+         out.write(ownKey.key().getEncoded());
+         out.flush();
+         return bytes.toByteArray();
+      } catch (IOException e) {
+         throw new IllegalStateException(e);
+      }
+   }
+
+   /**
+    * Stores the key a member sent, replacing any earlier key of theirs.
+    * Messages are matched to keys by the key id they start with, so an id
+    * already used by another member, or by this party, is refused; otherwise
+    * a member could take over the id of another.
+    *
+    * @param sender
+    *           the member who sent the key, as authenticated by the pairwise
+    *           channel
+    * @param distribution
+    *           as read by {@link #readDistribution(byte[])}
+    * @throws SecurityException
+    *            if the sender is not a member or the key id is taken
+    */
+   synchronized void receiveSenderKey(String sender, Distribution distribution)
+         throws SecurityException
+   {
+      if (!members.contains(sender))
+         throw new SecurityException(sender + " is not a member of " + name);
+
+      long id = distribution.key.idValue();
+      Received holder = receivedKeys.get(id);
+      if ((holder != null && !holder.member.equals(sender)) || id == ownKey.idValue())
+         throw new SecurityException("Key id sent by " + sender + " is already in use in "
+               + name);
+
+      Long previous = currentKeys.put(sender, id);
+      if (previous != null)
+         receivedKeys.remove(previous);
+      receivedKeys.put(id, new Received(sender, distribution.key));
+   }
+
+   /**
+    * Encrypts a message to the group. The cost does not depend on the size of
+    * the group.
+    *
+    * @param plainText
+    * @return the key id followed by the ciphertext
+    * @throws SecurityException
+    */
+   public byte[] encrypt(byte[] plainText) throws SecurityException
+   {
+      SenderKey key = ownKey;
+      byte[] cipherText = SymmetricCipher.encrypt(plainText, key.key());
+      byte[] message = new byte[SenderKey.ID_SIZE + cipherText.length];
+      System.arraycopy(key.id(), 0, message, 0, SenderKey.ID_SIZE);
+      System.arraycopy(cipherText, 0, message, SenderKey.ID_SIZE, cipherText.length);
+      return message;
+   }
+
+   /**
+    * Returns the member who sent a group message, going by its key id, or
+    * null if the key is not known.
+    *
+    * @param message
+    * @return
+    */
+   public String senderOf(byte[] message)
+   {
+      Received received = received(message);
+      return received == null ? null : received.member;
+   }
+
+   /**
+    * Decrypts a message sent to the group by another member.
+    *
+    * @param message
+    *           as returned by {@link #encrypt(byte[])}
+    * @return
+    * @throws SecurityException
+    *            if the sender's key is not known or the message could not be
+    *            decrypted
+    */
+   public byte[] decrypt(byte[] message) throws SecurityException
+   {
+      Received received = received(message);
+      if (received == null)
+         throw new NoSuchPublicKeyException("No sender key for this message in " + name);
+
+      return SymmetricCipher.decrypt(message, SenderKey.ID_SIZE,
+            message.length - SenderKey.ID_SIZE, received.key.key());
+   }
+
+   private synchronized Received received(byte[] message)
+   {
+      if (message.length < SenderKey.ID_SIZE)
+         return null;
+      return receivedKeys.get(SenderKey.idValue(message, 0));
+   }
+
+   /**
+    * Reads a message built by {@link #senderKeyMessage()}.
+    *
+    * @param message
+    * @return
+    * @throws SecurityException
+    *            if it is not a sender key message
+    */
+   static Distribution readDistribution(byte[] message) throws SecurityException
+   {
+      try {
+         DataInputStream in = new DataInputStream(new ByteArrayInputStream(message));
+         if (in.readInt() != DISTRIBUTION_MAGIC)
+            throw new SecurityException("Not a sender key message");
+
+         String group = in.readUTF();
+         int count = in.readInt();
+         if (count < 1 || count > message.length)
+            throw new SecurityException("Bad sender key message");
+         List<String> fingerprints = new ArrayList<String>(count);
+         for (int i = 0; i < count; i++) {
+            fingerprints.add(in.readUTF());
+         }
+
+         byte[] id = new byte[SenderKey.ID_SIZE];
+         byte[] key = new byte[SymmetricCipher.KEY_SIZE];
+         in.readFully(id);
+         in.readFully(key);
+         return new Distribution(group, fingerprints, new SenderKey(id, key));
+      } catch (IOException e) {
+         throw new SecurityException("Bad sender key message", e);
+      }
+   }
+
+   /**
+    * A sender key message as read.
+    */
+   static class Distribution
+   {
+      final String group;
+
+      /**
+       * The fingerprints of the members, the sender's first.
+       */
+      final List<String> fingerprints;
+      final SenderKey key;
+
+      Distribution(String group, List<String> fingerprints, SenderKey key)
+      {
+         this.group = group;
+         this.fingerprints = fingerprints;
+         this.key = key;
+      }
+   }
+
+   private static class Received
+   {
+      final String member;
+      final SenderKey key;
+
+      Received(String member, SenderKey key)
+      {
+         this.member = member;
+         this.key = key;
+      }
+   }
+}
@@ -0,0 +1,131 @@
+package martinlt.cryptomessenger.group;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import martinlt.cryptomessenger.crypto.KeyRing;
+import martinlt.cryptomessenger.exception.NoSuchPublicKeyException;
+import martinlt.cryptomessenger.exception.SecurityException;
+
+/**
+ * The groups a party belongs to, keyed using their names. Group names share
+ * the space of party names, so that a message can be addressed to either.
+ */
+public class Groups
+{
+   private final KeyRing keyRing;
+   private final ConcurrentHashMap<String, Group> groups = new ConcurrentHashMap<String, Group>();
+
+   /**
+    * @param keyRing
+    *           the keys of this party, used to send and receive sender keys
+    */
+   public Groups(KeyRing keyRing)
+   {
+      this.keyRing = keyRing;
+   }
+
+   /**
+    * Creates a group. Its sender key still has to be sent to the members
+    * with {@link Group#distribute()}.
+    *
+    * @param name
+    *           the name of the group, which must not be that of a party
+    * @param members
+    *           the names of the other members, who must be known parties
+    * @return
+    * @throws NoSuchPublicKeyException
+    *            if a member is not known
+    * @throws IllegalArgumentException
+    *            if the name is taken
+    */
+   public Group create(String name, Collection<String> members) throws NoSuchPublicKeyException
+   {
+      if (keyRing.knows(name))
+         throw new IllegalArgumentException(name + " is a party");
+      for (String member : members) {
+         if (!member.equals(keyRing.getName()) && !keyRing.knows(member))
+            throw new NoSuchPublicKeyException(member);
+      }
+
+      Group group = new Group(name, keyRing, members);
+      if (groups.putIfAbsent(name, group) != null)
+         throw new IllegalArgumentException("There is already a group " + name);
+      return group;
+   }
+
+   /**
+    * Returns the named group, or null if there is none.
+    *
+    * @param name
+    * @return
+    */
+   public Group get(String name)
+   {
+      return groups.get(name);
+   }
+
+   public List<Group> list()
+   {
+      return new ArrayList<Group>(groups.values());
+   }
+
+   /**
+    * Leaves a group.
+    *
+    * @param name
+    */
+   public void remove(String name)
+   {
+      groups.remove(name);
+   }
+
+   /**
+    * Handles a sender key sent by another member through
+    * {@link Group#distribute()}. If the group is new to this party it is
+    * joined, with the members this party knows by fingerprint; this party's
+    * own key then still has to be distributed. In RSA mode anyone can encrypt
+    * for this party, so the sender is only as certain as whatever named it.
+    *
+    * @param sender
+    *           the party who sent it
+    * @param envelope
+    *           the encrypted sender key message
+    * @return the group
+    * @throws SecurityException
+    *            if the message could not be decrypted, is not a sender key
+    *            message or does not list this party and the sender
+    */
+   public Group receiveSenderKey(String sender, byte[] envelope) throws SecurityException
+   {
+      Group.Distribution distribution = Group.readDistribution(keyRing.decrypt(envelope, sender));
+
+      if (!distribution.fingerprints.contains(keyRing.getFingerprint()))
+         throw new SecurityException("Not a member of " + distribution.group);
+      String senderFingerprint = keyRing.fingerprintOf(sender);
+      if (senderFingerprint == null || !senderFingerprint.equals(distribution.fingerprints.get(0)))
+         throw new SecurityException("Sender key for " + distribution.group + " not sent by its owner");
+
+      Group group = groups.get(distribution.group);
+      if (group == null) {
+         if (keyRing.knows(distribution.group))
+            throw new SecurityException(distribution.group + " is a party");
+
+         List<String> members = new ArrayList<String>();
+         for (String fingerprint : distribution.fingerprints) {
+            String member = keyRing.partyWithFingerprint(fingerprint);
+            if (member != null)
+               members.add(member);
+         }
+         Group created = new Group(distribution.group, keyRing, members);
+         group = groups.putIfAbsent(distribution.group, created);
+         if (group == null)
+            group = created;
+      }
+
+      group.receiveSenderKey(sender, distribution);
+      return group;
+   }
+}
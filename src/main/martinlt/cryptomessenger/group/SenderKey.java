@@ -0,0 +1,76 @@
+package martinlt.cryptomessenger.group;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import martinlt.cryptomessenger.crypto.SymmetricCipher;
+
+/**
+ * The AES key one member of a {@link Group} encrypts its group messages
+ * with, and the random id that goes in front of each of those messages so
+ * that the other members know which key to decrypt with.
+ */
+public final class SenderKey
+{
+   /**
+    * Size of a key id.
+    */
+   public static final int ID_SIZE = 8;
+
+   private static final SecureRandom RANDOM = new SecureRandom();
+
+   private final byte[] id;
+   private final SecretKeySpec key;
+
+   SenderKey(byte[] id, byte[] key)
+   {
+      this.id = Arrays.copyOf(id, ID_SIZE);
+      this.key = new SecretKeySpec(key, "AES");
+   }
+
+   /**
+    * Generates a new random sender key.
+    *
+    * @return
+    */
+   public static SenderKey generate()
+   {
+      byte[] id = new byte[ID_SIZE];
+      byte[] key = new byte[SymmetricCipher.KEY_SIZE];
+      RANDOM.nextBytes(id);
+      RANDOM.nextBytes(key);
+      return new SenderKey(id, key);
+   }
+
+   byte[] id()
+   {
+      return id;
+   }
+
+   SecretKeySpec key()
+   {
+      return key;
+   }
+
+   /**
+    * Returns the id as a map key.
+    */
+   long idValue()
+   {
+      return idValue(id, 0);
+   }
+
+   /**
+    * Reads a key id from the front of a message.
+    */
+   static long idValue(byte[] buffer, int offset)
+   {
+      long value = 0;
+      for (int i = 0; i < ID_SIZE; i++) {
+         value = value << 8 | (buffer[offset + i] & 0xFF);
+      }
+      return value;
+   }
+}
@@ -0,0 +1,377 @@
+package martinlt.cryptomessenger.history;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import martinlt.cryptomessenger.crypto.SymmetricCipher;
+import martinlt.cryptomessenger.exception.SecurityException;
+import martinlt.cryptomessenger.history.HistoryRecord.Direction;
+
+/**
+ * Append-only log of the messages exchanged with one party.
+ * <p>
+ * Each record in the log file is laid out as:
+ * </p>
+ *
+ * <pre>
+ * int    length of the rest of the record
+ * long   message ID
+ * long   timestamp
+ * byte   direction
+ * byte[] IV + AES/CBC encrypted message text
+ * </pre>
+ * <p>
+ * The header is left in the clear so that a record can be located by its ID
+ * without decrypting anything. Every {@link #INDEX_INTERVAL}th record has its
+ * file offset written to a sparse index file, so a lookup reads at most
+ * {@link #INDEX_INTERVAL} record headers.
+ * </p>
+ * <p>
+ * Writes only come from the commit thread of the {@link MessageHistoryStore};
+ * reads may come from any thread and only see committed records.
+ * </p>
+ */
+class ConversationLog implements Closeable
+{
+   /**
+    * Number of records between two entries of the sparse index.
+    */
+   static final int INDEX_INTERVAL = 32;
+
+   /**
+    * Size of the clear text record header, excluding the length prefix.
+    */
+   private static final int HEADER_SIZE = 8 + 8 + 1;
+
+   private static final int INDEX_ENTRY_SIZE = 8;
+
+   private final FileChannel log;
+   private final FileChannel index;
+   private final SecretKeySpec key;
+
+   /**
+    * Offsets of records 0, INDEX_INTERVAL, 2 * INDEX_INTERVAL...
+    */
+   private long[] indexOffsets;
+   private int indexSize;
+
+   /**
+    * Next ID to hand out. Only changed while holding the lock on this log.
+    */
+   private long nextId;
+
+   /**
+    * End of the records written by the commit thread, which may not be
+    * forced to disk yet, and the number of them.
+    */
+   private long writePosition;
+   private long writtenCount;
+
+   /**
+    * Set once a write or commit has failed. Records are found by counting
+    * them, so a record missing from the middle of the log would make every
+    * later ID read the wrong record; after a failure the log takes no more
+    * writes and hands out no more IDs until it is reopened, when recovery
+    * cuts it back to the last good record.
+    */
+   private volatile IOException failure;
+
+   /**
+    * Number of records and size of the log that are known to be on disk.
+    */
+   private volatile long committedCount;
+   private volatile long committedSize;
+
+   ConversationLog(File logFile, File indexFile, SecretKeySpec key) throws IOException
+   {
+      this.key = key;
+      this.log = FileChannel.open(logFile.toPath(), StandardOpenOption.CREATE,
+            StandardOpenOption.READ, StandardOpenOption.WRITE);
+      this.index = FileChannel.open(indexFile.toPath(), StandardOpenOption.CREATE,
+            StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+      try {
+         recover();
+      } catch (IOException e) {
+         close();
+         throw e;
+      }
+   }
+
+   /**
+    * Reads the index and scans the records after the last indexed one, so
+    * that a torn write at the end of the log (or of the index) left by a
+    * crash is cut off.
+    */
+   private void recover() throws IOException
+   {
+      long logSize = log.size();
+
+      int entries = (int) (index.size() / INDEX_ENTRY_SIZE);
+      indexOffsets = new long[Math.max(16, entries)];
+      ByteBuffer buffer = ByteBuffer.allocate(entries * INDEX_ENTRY_SIZE);
+      readFully(index, buffer, 0);
+      buffer.flip();
+      for (int i = 0; i < entries; i++) {
+         long offset = buffer.getLong();
+         if (offset >= logSize || (i > 0 && offset <= indexOffsets[i - 1]))
+            break;
+         indexOffsets[indexSize++] = offset;
+      }
+
+      long count = (long) Math.max(0, indexSize - 1) * INDEX_INTERVAL;
+      long position = indexSize > 0 ? indexOffsets[indexSize - 1] : 0;
+      ByteBuffer header = ByteBuffer.allocate(4 + 8);
+      while (position + header.capacity() <= logSize) {
+         header.clear();
+         readFully(log, header, position);
+         int length = header.getInt(0);
+         long id = header.getLong(4);
+         if (length < HEADER_SIZE || id != count || position + 4 + length > logSize)
+            break;
+
+         if (count % INDEX_INTERVAL == 0 && count / INDEX_INTERVAL >= indexSize)
+            addIndexEntry(position);
+
+         position += 4 + length;
+         count++;
+      }
+
+      // Drop an index entry pointing at a torn record, then rewrite the
+      // index so that it matches the records that survived
+      if (indexSize > 0 && indexOffsets[indexSize - 1] >= position)
+         indexSize--;
+
+      buffer = ByteBuffer.allocate(indexSize * INDEX_ENTRY_SIZE);
+      for (int i = 0; i < indexSize; i++) {
+         buffer.putLong(indexOffsets[i]);
+      }
+      buffer.flip();
+      index.truncate(0);
+      writeFully(index, buffer, 0);
+      log.truncate(position);
+
+      nextId = count;
+      writePosition = position;
+      writtenCount = count;
+      committedCount = count;
+      committedSize = position;
+   }
+
+   /**
+    * Reserves the ID for the next message appended to this log.
+    *
+    * @return
+    */
+   synchronized long reserveId() throws IOException
+   {
+      checkNotFailed();
+      return nextId++;
+   }
+
+   /**
+    * Encrypts message text for writing to this log. This is done by the
+    * thread appending the message rather than by the commit thread.
+    */
+   byte[] seal(String text) throws SecurityException
+   {
+      return SymmetricCipher.encrypt(text.getBytes(StandardCharsets.UTF_8), key);
+   }
+
+   /**
+    * Writes an encrypted message to the end of the log. Called from the
+    * commit thread only, in ID order; the record is not visible to readers
+    * until {@link #commit(long)} has been called.
+    */
+   void write(long id, long timestamp, Direction direction, byte[] body) throws IOException
+   {
+      checkNotFailed();
+      if (id != writtenCount)
+         throw fail(new IOException("History record " + id + " written out of order, expected "
+               + writtenCount));
+
+      ByteBuffer record = ByteBuffer.allocate(4 + HEADER_SIZE + body.length);
+      record.putInt(HEADER_SIZE + body.length);
+      record.putLong(id);
+      record.putLong(timestamp);
+      record.put((byte) direction.ordinal());
+      record.put(body);
+      record.flip();
+
+      try {
+         writeFully(log, record, writePosition);
+
+         // Only index a record once it has been written
+         if (id % INDEX_INTERVAL == 0) {
+            ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+            entry.putLong(writePosition);
+            entry.flip();
+            writeFully(index, entry, (long) indexSize * INDEX_ENTRY_SIZE);
+            addIndexEntry(writePosition);
+         }
+      } catch (IOException e) {
+         throw fail(e);
+      }
+      writePosition += record.limit();
+      writtenCount++;
+   }
+
+   /**
+    * Forces the records written since the last commit to disk and makes them
+    * visible to readers.
+    */
+   void commit() throws IOException
+   {
+      checkNotFailed();
+      try {
+         log.force(false);
+         index.force(false);
+      } catch (IOException e) {
+         throw fail(e);
+      }
+      committedSize = writePosition;
+      committedCount = writtenCount;
+   }
+
+   private void checkNotFailed() throws IOException
+   {
+      IOException e = failure;
+      if (e != null)
+         throw new IOException("History log failed earlier and must be reopened", e);
+   }
+
+   private IOException fail(IOException e)
+   {
+      if (failure == null)
+         failure = e;
+      return e;
+   }
+
+   /**
+    * Returns the number of committed messages.
+    *
+    * @return
+    */
+   long size()
+   {
+      return committedCount;
+   }
+
+   /**
+    * Reads and decrypts a range of committed messages.
+    *
+    * @param fromId
+    *           ID of the first message
+    * @param count
+    *           maximum number of messages to return
+    * @return the messages in ID order
+    */
+   List<HistoryRecord> read(long fromId, int count) throws IOException, SecurityException
+   {
+      long limitId = Math.min(committedCount, fromId + count);
+      long limitSize = committedSize;
+      List<HistoryRecord> records = new ArrayList<HistoryRecord>();
+      if (fromId < 0 || fromId >= limitId)
+         return records;
+
+      long position = seek(fromId, limitSize);
+      ByteBuffer prefix = ByteBuffer.allocate(4);
+      for (long id = fromId; id < limitId && position < limitSize; id++) {
+         prefix.clear();
+         readFully(log, prefix, position);
+         int length = prefix.getInt(0);
+
+         ByteBuffer record = ByteBuffer.allocate(length);
+         readFully(log, record, position + 4);
+         records.add(decode(record.array()));
+
+         position += 4 + length;
+      }
+      return records;
+   }
+
+   /**
+    * Finds the file offset of a committed message using the sparse index and
+    * the clear text record headers.
+    */
+   private long seek(long id, long limitSize) throws IOException
+   {
+      int slot = (int) (id / INDEX_INTERVAL);
+      long position;
+      long current;
+      synchronized (this) {
+         slot = Math.min(slot, indexSize - 1);
+         position = indexOffsets[slot];
+      }
+      current = (long) slot * INDEX_INTERVAL;
+
+      ByteBuffer prefix = ByteBuffer.allocate(4);
+      while (current < id && position < limitSize) {
+         prefix.clear();
+         readFully(log, prefix, position);
+         position += 4 + prefix.getInt(0);
+         current++;
+      }
+      return position;
+   }
+
+   private HistoryRecord decode(byte[] record) throws SecurityException
+   {
+      ByteBuffer buffer = ByteBuffer.wrap(record);
+      long id = buffer.getLong();
+      long timestamp = buffer.getLong();
+      Direction direction = Direction.values()[buffer.get()];
+      byte[] text = SymmetricCipher.decrypt(record, HEADER_SIZE, record.length - HEADER_SIZE,
+            key);
+
+      return new HistoryRecord(id, timestamp, direction, new String(text, StandardCharsets.UTF_8));
+   }
+
+   private synchronized void addIndexEntry(long offset)
+   {
+      if (indexSize == indexOffsets.length)
+         indexOffsets = Arrays.copyOf(indexOffsets, indexSize * 2);
+      indexOffsets[indexSize++] = offset;
+   }
+
+   private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+         throws IOException
+   {
+      long offset = position;
+      while (buffer.hasRemaining()) {
+         int read = channel.read(buffer, offset);
+         if (read < 0)
+            throw new IOException("Unexpected end of history file");
+         offset += read;
+      }
+   }
+
+   private static void writeFully(FileChannel channel, ByteBuffer buffer, long position)
+         throws IOException
+   {
+      long offset = position;
+      while (buffer.hasRemaining()) {
+         offset += channel.write(buffer, offset);
+      }
+   }
+
+   @Override
+   public void close() throws IOException
+   {
+      try {
+         log.close();
+      } finally {
+         index.close();
+      }
+   }
+}
@@ -0,0 +1,65 @@
+package martinlt.cryptomessenger.history;
+
+/**
+ * A single message held in the history of a conversation.
+ */
+public class HistoryRecord
+{
+   /**
+    * Whether a message was sent to or received from the other party.
+    */
+   public static enum Direction {
+      SENT, RECEIVED
+   }
+
+   private final long id;
+   private final long timestamp;
+   private final Direction direction;
+   private final String text;
+
+   public HistoryRecord(long id, long timestamp, Direction direction, String text)
+   {
+      this.id = id;
+      this.timestamp = timestamp;
+      this.direction = direction;
+      this.text = text;
+   }
+
+   /**
+    * Returns the message ID. IDs start at zero for each conversation and
+    * increase by one for each message.
+    *
+    * @return
+    */
+   public long getId()
+   {
+      return id;
+   }
+
+   /**
+    * Returns the time the message was recorded, in milliseconds since the
+    * epoch.
+    *
+    * @return
+    */
+   public long getTimestamp()
+   {
+      return timestamp;
+   }
+
+   public Direction getDirection()
+   {
+      return direction;
+   }
+
+   public String getText()
+   {
+      return text;
+   }
+
+   @Override
+   public String toString()
+   {
+      return id + " " + direction + " " + text;
+   }
+}
@@ -0,0 +1,407 @@
+package martinlt.cryptomessenger.history;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import martinlt.cryptomessenger.crypto.SymmetricCipher;
+import martinlt.cryptomessenger.exception.SecurityException;
+import martinlt.cryptomessenger.history.HistoryRecord.Direction;
+
+/**
+ * Encrypted message history, kept as one append-only log per party.
+ * <p>
+ * Appends are queued and written by a single commit thread, which writes
+ * everything that has queued up since its last pass and then forces each
+ * touched log to disk once. Under a high message rate many messages therefore
+ * share one fsync, while a lone message is still committed straight away.
+ * </p>
+ * <p>
+ * Message text is encrypted at rest with the key given to the constructor;
+ * reading a message or a page of messages only decrypts the records returned
+ * (see {@link ConversationLog}).
+ * </p>
+ * <p>
+ * Files are named after a hash of the party name. The name itself is kept,
+ * encrypted, in a third file beside the log, so the parties with a history
+ * can be listed (see {@link #parties()}).
+ * </p>
+ */
+public class MessageHistoryStore implements Closeable
+{
+   /**
+    * Upper bound on the number of appends written before forcing to disk.
+    */
+   private static final int MAX_BATCH = 1024;
+
+   /**
+    * Extension of the file holding the encrypted name of a log's party.
+    */
+   private static final String NAME_SUFFIX = ".name";
+
+   private final File directory;
+   private final SecretKeySpec key;
+
+   /**
+    * The open logs, keyed using the name of the related party.
+    */
+   private final HashMap<String, ConversationLog> logs = new HashMap<String, ConversationLog>();
+
+   private final BlockingQueue<PendingAppend> queue = new LinkedBlockingQueue<PendingAppend>();
+   private final Thread committer;
+   private volatile boolean closed;
+
+   /**
+    * Opens (or creates) the history kept in a directory.
+    *
+    * @param directory
+    *           directory holding the log and index files
+    * @param key
+    *           the AES key used to encrypt the history at rest
+    * @throws IOException
+    *            if the directory could not be created
+    */
+   public MessageHistoryStore(File directory, SecretKeySpec key) throws IOException
+   {
+      if (!directory.isDirectory() && !directory.mkdirs())
+         throw new IOException("Could not create history directory " + directory);
+
+      this.directory = directory;
+      this.key = key;
+
+      committer = new Thread(new Runnable() {
+         @Override
+         public void run()
+         {
+            commitLoop();
+         }
+      }, "history-committer");
+      committer.setDaemon(true);
+      committer.start();
+   }
+
+   /**
+    * Appends a message to the history of a conversation. The message is
+    * written and committed asynchronously.
+    *
+    * @param party
+    *           the other party in the conversation
+    * @param direction
+    *           whether the message was sent or received
+    * @param text
+    *           the plaintext message
+    * @return completes with the stored record once it is on disk
+    */
+   public CompletableFuture<HistoryRecord> append(String party, Direction direction, String text)
+   {
+      CompletableFuture<HistoryRecord> result = new CompletableFuture<HistoryRecord>();
+      try {
+         if (closed)
+            throw new IOException("History store is closed");
+
+         ConversationLog log = open(party);
+         byte[] body = log.seal(text);
+
+         // IDs must reach the queue in the order they were handed out
+         synchronized (log) {
+            queue.add(new PendingAppend(log, new HistoryRecord(log.reserveId(),
+                  System.currentTimeMillis(), direction, text), body, result));
+         }
+      } catch (Exception e) {
+         result.completeExceptionally(e);
+      }
+      return result;
+   }
+
+   /**
+    * Returns a single message by ID, or null if there is no such message.
+    *
+    * @param party
+    *           the other party in the conversation
+    * @param id
+    *           the message ID
+    * @return
+    * @throws IOException
+    * @throws SecurityException
+    *            if the message could not be decrypted
+    */
+   public HistoryRecord get(String party, long id) throws IOException, SecurityException
+   {
+      List<HistoryRecord> records = open(party).read(id, 1);
+      return records.isEmpty() ? null : records.get(0);
+   }
+
+   /**
+    * Returns a page of messages in ID order.
+    *
+    * @param party
+    *           the other party in the conversation
+    * @param fromId
+    *           ID of the first message of the page
+    * @param count
+    *           maximum number of messages on the page
+    * @return
+    * @throws IOException
+    * @throws SecurityException
+    *            if a message could not be decrypted
+    */
+   public List<HistoryRecord> page(String party, long fromId, int count)
+         throws IOException, SecurityException
+   {
+      return open(party).read(fromId, count);
+   }
+
+   /**
+    * Returns the most recent messages in ID order.
+    *
+    * @param party
+    *           the other party in the conversation
+    * @param count
+    *           maximum number of messages to return
+    * @return
+    * @throws IOException
+    * @throws SecurityException
+    *            if a message could not be decrypted
+    */
+   public List<HistoryRecord> recent(String party, int count) throws IOException, SecurityException
+   {
+      ConversationLog log = open(party);
+      return log.read(Math.max(0, log.size() - count), count);
+   }
+
+   /**
+    * Returns the parties with a history in the store, in no particular order.
+    *
+    * @return
+    * @throws IOException
+    *            if the directory or a name file could not be read
+    * @throws SecurityException
+    *            if a name could not be decrypted
+    */
+   public List<String> parties() throws IOException, SecurityException
+   {
+      List<String> parties = new ArrayList<String>();
+      File[] files = directory.listFiles((dir, name) -> name.endsWith(NAME_SUFFIX));
+      if (files == null)
+         throw new IOException("Could not list history directory " + directory);
+
+      for (File file : files) {
+         byte[] name = SymmetricCipher.decrypt(Files.readAllBytes(file.toPath()), key);
+         parties.add(new String(name, StandardCharsets.UTF_8));
+      }
+      return parties;
+   }
+
+   /**
+    * Returns the number of committed messages in a conversation.
+    *
+    * @param party
+    * @return
+    * @throws IOException
+    */
+   public long size(String party) throws IOException
+   {
+      return open(party).size();
+   }
+
+   /**
+    * Commits any queued messages and closes the log files.
+    */
+   @Override
+   public void close() throws IOException
+   {
+      if (closed)
+         return;
+      closed = true;
+
+      queue.add(PendingAppend.SHUTDOWN);
+      try {
+         committer.join();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+
+      // Anything that raced with closing will never be written
+      PendingAppend late;
+      while ((late = queue.poll()) != null) {
+         if (late != PendingAppend.SHUTDOWN)
+            late.result.completeExceptionally(new IOException("History store is closed"));
+      }
+
+      IOException failure = null;
+      synchronized (logs) {
+         for (ConversationLog log : logs.values()) {
+            try {
+               log.close();
+            } catch (IOException e) {
+               failure = e;
+            }
+         }
+         logs.clear();
+      }
+      if (failure != null)
+         throw failure;
+   }
+
+   private ConversationLog open(String party) throws IOException
+   {
+      synchronized (logs) {
+         ConversationLog log = logs.get(party);
+         if (log == null) {
+            String base = fileNameFor(party);
+            log = new ConversationLog(new File(directory, base + ".log"),
+                  new File(directory, base + ".idx"), key);
+            writeName(party, new File(directory, base + NAME_SUFFIX));
+            logs.put(party, log);
+         }
+         return log;
+      }
+   }
+
+   /**
+    * Records the party a log belongs to, unless that is already done.
+    */
+   private void writeName(String party, File file) throws IOException
+   {
+      if (file.exists())
+         return;
+
+      byte[] name;
+      try {
+         name = SymmetricCipher.encrypt(party.getBytes(StandardCharsets.UTF_8), key);
+      } catch (SecurityException e) {
+         throw new IOException("Could not encrypt party name", e);
+      }
+      Path temp = Files.createTempFile(directory.toPath(), file.getName(), ".tmp");
+      try {
+         Files.write(temp, name);
+         try {
+            Files.move(temp, file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                  StandardCopyOption.REPLACE_EXISTING);
+         } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+         }
+      } finally {
+         Files.deleteIfExists(temp);
+      }
+   }
+
+   /**
+    * Party names are free text, so the files are named after a hash of the
+    * name instead.
+    */
+   private static String fileNameFor(String party) throws IOException
+   {
+      try {
+         MessageDigest sha = MessageDigest.getInstance("SHA-256");
+         byte[] hash = sha.digest(party.getBytes(StandardCharsets.UTF_8));
+
+         StringBuilder name = new StringBuilder();
+         for (int i = 0; i < 16; i++) {
+            name.append(String.format("%02x", hash[i]));
+         }
+         return name.toString();
+      } catch (Exception e) {
+         throw new IOException("Could not name history file", e);
+      }
+   }
+
+   /**
+    * Body of the commit thread: takes whatever has queued up, writes it and
+    * forces each touched log once.
+    */
+   private void commitLoop()
+   {
+      List<PendingAppend> batch = new ArrayList<PendingAppend>();
+      boolean running = true;
+
+      while (running) {
+         batch.clear();
+         try {
+            batch.add(queue.take());
+         } catch (InterruptedException e) {
+            continue;
+         }
+         queue.drainTo(batch, MAX_BATCH - 1);
+
+         // Logs written to in this batch
+         Set<ConversationLog> touched = Collections
+               .newSetFromMap(new IdentityHashMap<ConversationLog, Boolean>());
+         List<PendingAppend> written = new ArrayList<PendingAppend>(batch.size());
+
+         for (PendingAppend pending : batch) {
+            if (pending == PendingAppend.SHUTDOWN) {
+               running = false;
+               continue;
+            }
+
+            HistoryRecord record = pending.record;
+            try {
+               pending.log.write(record.getId(), record.getTimestamp(), record.getDirection(),
+                     pending.body);
+               touched.add(pending.log);
+               written.add(pending);
+            } catch (IOException e) {
+               pending.result.completeExceptionally(e);
+            }
+         }
+
+         Map<ConversationLog, IOException> failed = new IdentityHashMap<ConversationLog, IOException>();
+         for (ConversationLog log : touched) {
+            try {
+               log.commit();
+            } catch (IOException e) {
+               failed.put(log, e);
+            }
+         }
+
+         for (PendingAppend pending : written) {
+            IOException e = failed.get(pending.log);
+            if (e == null)
+               pending.result.complete(pending.record);
+            else
+               pending.result.completeExceptionally(e);
+         }
+      }
+   }
+
+   /**
+    * A message waiting for the commit thread.
+    */
+   private static class PendingAppend
+   {
+      static final PendingAppend SHUTDOWN = new PendingAppend(null, null, null, null);
+
+      final ConversationLog log;
+      final HistoryRecord record;
+      final byte[] body;
+      final CompletableFuture<HistoryRecord> result;
+
+      PendingAppend(ConversationLog log, HistoryRecord record, byte[] body,
+            CompletableFuture<HistoryRecord> result)
+      {
+         this.log = log;
+         this.record = record;
+         this.body = body;
+         this.result = result;
+      }
+   }
+}
@@ -0,0 +1,175 @@
+package martinlt.cryptomessenger.mailbox;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.Base64;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+
+import martinlt.cryptomessenger.crypto.KeyRing;
+import martinlt.cryptomessenger.exception.NoSuchPublicKeyException;
+
+/**
+ * Decrypts mailbox files: files holding one message per line, each line being
+ * the Base64 ciphertext, optionally preceded by the fingerprint of the
+ * sender's public key and a space. Blank lines are skipped.
+ * <p>
+ * The file is streamed. Each message is decrypted on a work-stealing
+ * {@link ForkJoinPool} while later lines are still being read, and results
+ * are handed to the {@link MailboxListener} on the calling thread in file
+ * order. At most a fixed number of messages are in flight, so memory use
+ * does not grow with the size of the file.
+ * </p>
+ * <p>
+ * Senders are resolved with {@link KeyRing#partyWithFingerprint(String)}. In
+ * RSA mode the sender is not needed to decrypt, so lines without a
+ * fingerprint can still be read. A message that cannot be decrypted is
+ * reported to the listener and the rest of the file carries on.
+ * </p>
+ */
+public class MailboxDecryptor
+{
+   /**
+    * Default number of messages in flight per thread of the pool.
+    */
+   private static final int IN_FLIGHT_PER_THREAD = 64;
+
+   private final KeyRing keyRing;
+   private final ForkJoinPool pool;
+   private final int maxInFlight;
+
+   /**
+    * Creates a decryptor using the common pool.
+    *
+    * @param keyRing
+    *           the keys of the recipient, which must not change while a
+    *           mailbox is being decrypted
+    */
+   public MailboxDecryptor(KeyRing keyRing)
+   {
+      this(keyRing, ForkJoinPool.commonPool(),
+            IN_FLIGHT_PER_THREAD * ForkJoinPool.getCommonPoolParallelism());
+   }
+
+   /**
+    * Creates a decryptor.
+    *
+    * @param keyRing
+    *           the keys of the recipient, which must not change while a
+    *           mailbox is being decrypted
+    * @param pool
+    *           the pool to decrypt on
+    * @param maxInFlight
+    *           the most messages read but not yet passed to the listener
+    */
+   public MailboxDecryptor(KeyRing keyRing, ForkJoinPool pool, int maxInFlight)
+   {
+      if (maxInFlight < 1)
+         throw new IllegalArgumentException("maxInFlight must be at least 1");
+
+      this.keyRing = keyRing;
+      this.pool = pool;
+      this.maxInFlight = maxInFlight;
+   }
+
+   /**
+    * Decrypts every message in a mailbox.
+    *
+    * @param in
+    *           the mailbox, which is read to the end but not closed
+    * @param listener
+    *           receives the messages, in file order, on this thread
+    * @return the number of messages which could not be decrypted
+    * @throws IOException
+    *            if the mailbox could not be read
+    */
+   public int decrypt(BufferedReader in, MailboxListener listener) throws IOException
+   {
+      ArrayDeque<CompletableFuture<Result>> inFlight = new ArrayDeque<CompletableFuture<Result>>(
+            maxInFlight);
+      int failed = 0;
+      int lineNumber = 0;
+
+      try {
+         String line;
+         while ((line = in.readLine()) != null) {
+            lineNumber++;
+            if (line.trim().isEmpty())
+               continue;
+
+            if (inFlight.size() == maxInFlight)
+               failed += deliver(inFlight.poll().join(), listener);
+
+            final int number = lineNumber;
+            final String text = line;
+            inFlight.add(CompletableFuture.supplyAsync(() -> decryptLine(number, text), pool));
+         }
+
+         while (!inFlight.isEmpty()) {
+            failed += deliver(inFlight.poll().join(), listener);
+         }
+      } catch (UncheckedIOException e) {
+         // i.e. from a MailboxWriter
+         throw e.getCause();
+      }
+      return failed;
+   }
+
+   /**
+    * Decrypts one line. Never throws; failures are returned in the result.
+    */
+   private Result decryptLine(int line, String text)
+   {
+      String trimmed = text.trim();
+      String fingerprint = null;
+      String sender = null;
+      try {
+         int space = trimmed.indexOf(' ');
+         if (space >= 0) {
+            fingerprint = trimmed.substring(0, space);
+            trimmed = trimmed.substring(space + 1).trim();
+
+            sender = keyRing.partyWithFingerprint(fingerprint.toLowerCase(Locale.ROOT));
+            if (sender == null)
+               throw new NoSuchPublicKeyException("Unknown sender " + fingerprint);
+         }
+
+         byte[] cipherText = Base64.getDecoder().decode(trimmed);
+         return new Result(line, sender, new String(keyRing.decrypt(cipherText, sender)), null);
+      } catch (Exception e) {
+         return new Result(line, sender, null, e);
+      }
+   }
+
+   private static int deliver(Result result, MailboxListener listener)
+   {
+      if (result.error != null) {
+         listener.messageFailed(result.line, result.sender, result.error);
+         return 1;
+      }
+      listener.messageDecrypted(result.line, result.sender, result.message);
+      return 0;
+   }
+
+   /**
+    * The outcome of decrypting one line.
+    */
+   private static class Result
+   {
+      final int line;
+      final String sender;
+      final String message;
+      final Exception error;
+
+      Result(int line, String sender, String message, Exception error)
+      {
+         this.line = line;
+         this.sender = sender;
+         this.message = message;
+         this.error = error;
+      }
+   }
+}
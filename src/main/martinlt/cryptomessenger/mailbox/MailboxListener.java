@@ -0,0 +1,33 @@
+package martinlt.cryptomessenger.mailbox;
+
+/**
+ * Receives the results of decrypting a mailbox file, one call per message in
+ * the order the messages appear in the file.
+ */
+public interface MailboxListener
+{
+   /**
+    * Called with a message that was decrypted.
+    *
+    * @param line
+    *           the line number of the message in the file, starting at 1
+    * @param sender
+    *           the name of the sender, or null if the message did not say
+    * @param message
+    *           the plaintext
+    */
+   void messageDecrypted(int line, String sender, String message);
+
+   /**
+    * Called with a message that could not be decrypted.
+    *
+    * @param line
+    *           the line number of the message in the file, starting at 1
+    * @param sender
+    *           the name of the sender, or null if the message did not say or
+    *           the sender is not known
+    * @param cause
+    *           why the message could not be decrypted
+    */
+   void messageFailed(int line, String sender, Exception cause);
+}
@@ -0,0 +1,94 @@
+package martinlt.cryptomessenger.mailbox;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+
+/**
+ * Writes the results of decrypting a mailbox as text, one line per message:
+ *
+ * <pre>
+ * line number TAB sender TAB message
+ * </pre>
+ *
+ * Decrypted messages go to one writer and failures, with the reason in place
+ * of the message, to another. Backslashes, tabs and line breaks in messages
+ * are escaped as \\, \t, \r and \n so that every message stays on one line.
+ * A sender which is not known is written as "-".
+ */
+public class MailboxWriter implements MailboxListener
+{
+   private final Writer messages;
+   private final Writer failures;
+
+   private int decrypted;
+   private int failed;
+
+   /**
+    * @param messages
+    *           receives the decrypted messages
+    * @param failures
+    *           receives the messages which could not be decrypted
+    */
+   public MailboxWriter(Writer messages, Writer failures)
+   {
+      this.messages = messages;
+      this.failures = failures;
+   }
+
+   @Override
+   public void messageDecrypted(int line, String sender, String message)
+   {
+      decrypted++;
+      write(messages, line, sender, message);
+   }
+
+   @Override
+   public void messageFailed(int line, String sender, Exception cause)
+   {
+      failed++;
+      write(failures, line, sender, String.valueOf(cause.getMessage()));
+   }
+
+   public int getDecrypted()
+   {
+      return decrypted;
+   }
+
+   public int getFailed()
+   {
+      return failed;
+   }
+
+   private static void write(Writer out, int line, String sender, String text)
+   {
+      StringBuilder entry = new StringBuilder(text.length() + 32);
+      entry.append(line).append('\t').append(sender == null ? "-" : sender).append('\t');
+      for (int i = 0; i < text.length(); i++) {
+         char c = text.charAt(i);
+         switch (c) {
+         case '\\':
+            entry.append("\\\\");
+            break;
+         case '\t':
+            entry.append("\\t");
+            break;
+         case '\r':
+            entry.append("\\r");
+            break;
+         case '\n':
+            entry.append("\\n");
+            break;
+         default:
+            entry.append(c);
+         }
+      }
+      entry.append(System.lineSeparator());
+
+      try {
+         out.write(entry.toString());
+      } catch (IOException e) {
+         throw new UncheckedIOException(e);
+      }
+   }
+}
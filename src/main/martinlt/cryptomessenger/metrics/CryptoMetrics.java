@@ -0,0 +1,188 @@
+package martinlt.cryptomessenger.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import martinlt.cryptomessenger.MainApp.AlgorithmMode;
+
+/**
+ * Counts and times the crypto and key-management operations, per operation
+ * and {@link AlgorithmMode}, and shows the figures through JMX as
+ * {@value #OBJECT_NAME} so they can be watched with jconsole or any other
+ * JMX client.
+ * <p>
+ * Recording costs a {@link System#nanoTime()} call and a few atomic
+ * increments (see {@link LatencyHistogram}); nothing is locked and nothing
+ * is allocated.
+ * </p>
+ */
+public final class CryptoMetrics implements CryptoMetricsMXBean
+{
+   /**
+    * The name the metrics are registered under with the platform MBean
+    * server.
+    */
+   public static final String OBJECT_NAME = "martinlt.cryptomessenger:type=CryptoMetrics";
+
+   private static final CryptoMetrics INSTANCE = new CryptoMetrics();
+
+   static {
+      try {
+         ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE,
+               new ObjectName(OBJECT_NAME));
+      } catch (JMException e) {
+         // The figures are still kept, just not shown through JMX
+      }
+   }
+
+   private final LatencyHistogram[][] latencies;
+   private final LongAdder[][] errors;
+   private final LongAdder cacheHits = new LongAdder();
+   private final LongAdder cacheMisses = new LongAdder();
+
+   private CryptoMetrics()
+   {
+      int operations = Operation.values().length, modes = AlgorithmMode.values().length;
+      latencies = new LatencyHistogram[operations][modes];
+      errors = new LongAdder[operations][modes];
+      for (int i = 0; i < operations; i++) {
+         for (int j = 0; j < modes; j++) {
+            latencies[i][j] = new LatencyHistogram();
+            errors[i][j] = new LongAdder();
+         }
+      }
+   }
+
+   /**
+    * Returns the metrics for this JVM, registering them with the platform
+    * MBean server on first use.
+    *
+    * @return
+    */
+   public static CryptoMetrics get()
+   {
+      return INSTANCE;
+   }
+
+   /**
+    * Returns the time to pass to {@link #record} when an operation is done.
+    *
+    * @return
+    */
+   public static long start()
+   {
+      return System.nanoTime();
+   }
+
+   /**
+    * Records an operation which completed.
+    *
+    * @param operation
+    * @param mode
+    * @param start
+    *           from {@link #start()}
+    */
+   public void record(Operation operation, AlgorithmMode mode, long start)
+   {
+      latencies[operation.ordinal()][mode.ordinal()].record(System.nanoTime() - start);
+   }
+
+   /**
+    * Records an operation which failed.
+    *
+    * @param operation
+    * @param mode
+    * @param start
+    *           from {@link #start()}
+    */
+   public void recordFailure(Operation operation, AlgorithmMode mode, long start)
+   {
+      record(operation, mode, start);
+      errors[operation.ordinal()][mode.ordinal()].increment();
+   }
+
+   /**
+    * Records that conversation keys were found already set up.
+    */
+   public void cacheHit()
+   {
+      cacheHits.increment();
+   }
+
+   /**
+    * Records that conversation keys had to be set up.
+    */
+   public void cacheMiss()
+   {
+      cacheMisses.increment();
+   }
+
+   /**
+    * Returns the figures for one operation in one mode.
+    *
+    * @param operation
+    * @param mode
+    * @return
+    */
+   public OperationStatistics getStatistics(Operation operation, AlgorithmMode mode)
+   {
+      return new OperationStatistics(latencies[operation.ordinal()][mode.ordinal()],
+            errors[operation.ordinal()][mode.ordinal()].sum());
+   }
+
+   @Override
+   public Map<String, OperationStatistics> getOperations()
+   {
+      Map<String, OperationStatistics> operations = new LinkedHashMap<String, OperationStatistics>();
+      for (Operation operation : Operation.values()) {
+         for (AlgorithmMode mode : AlgorithmMode.values()) {
+            OperationStatistics statistics = getStatistics(operation, mode);
+            if (statistics.getCount() > 0)
+               operations.put(operation.getLabel() + "." + mode, statistics);
+         }
+      }
+      return operations;
+   }
+
+   @Override
+   public long getErrors()
+   {
+      long total = 0;
+      for (LongAdder[] byMode : errors) {
+         for (LongAdder adder : byMode) {
+            total += adder.sum();
+         }
+      }
+      return total;
+   }
+
+   @Override
+   public long getCacheHits()
+   {
+      return cacheHits.sum();
+   }
+
+   @Override
+   public long getCacheMisses()
+   {
+      return cacheMisses.sum();
+   }
+
+   @Override
+   public void reset()
+   {
+      for (int i = 0; i < latencies.length; i++) {
+         for (int j = 0; j < latencies[i].length; j++) {
+            latencies[i][j].reset();
+            errors[i][j].reset();
+         }
+      }
+      cacheHits.reset();
+      cacheMisses.reset();
+   }
+}
@@ -0,0 +1,47 @@
+package martinlt.cryptomessenger.metrics;
+
+import java.util.Map;
+
+/**
+ * The management interface of {@link CryptoMetrics}, registered as
+ * {@value CryptoMetrics#OBJECT_NAME}.
+ */
+public interface CryptoMetricsMXBean
+{
+   /**
+    * Returns the figures for each operation that has been done, keyed by
+    * operation and algorithm mode, i.e. "encrypt.RSA".
+    *
+    * @return
+    */
+   Map<String, OperationStatistics> getOperations();
+
+   /**
+    * Returns the total number of failed operations.
+    *
+    * @return
+    */
+   long getErrors();
+
+   /**
+    * Returns the number of lookups which found conversation keys already
+    * set up, i.e. a {@link martinlt.cryptomessenger.crypto.ConversationRatchet}
+    * chain.
+    *
+    * @return
+    */
+   long getCacheHits();
+
+   /**
+    * Returns the number of lookups which had to set up conversation keys
+    * with asymmetric cryptography.
+    *
+    * @return
+    */
+   long getCacheMisses();
+
+   /**
+    * Clears all the figures.
+    */
+   void reset();
+}
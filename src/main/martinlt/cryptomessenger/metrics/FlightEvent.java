@@ -0,0 +1,334 @@
+package martinlt.cryptomessenger.metrics;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * JDK Flight Recorder events for the hot paths, so that crypto and file
+ * latency can be lined up with GC pauses and safepoints in one recording.
+ * <p>
+ * The events are disabled by default. Enable them by name in a recording's
+ * settings, i.e. with
+ * {@code -XX:StartFlightRecording:+martinlt.cryptomessenger.Encrypt#enabled=true}
+ * on a JDK that supports it, or by editing a .jfc file.
+ * </p>
+ * <p>
+ * The JFR API is only present on JDK 11 and later (and late JDK 8 updates),
+ * so the event types are defined at run time through
+ * {@code jdk.jfr.EventFactory}, found by reflection. Whether each type is
+ * enabled is looked up whenever a recording starts or stops, so when it is
+ * not {@link #begin()} costs a single volatile read and returns null:
+ * </p>
+ *
+ * <pre>
+ * FlightEvent.Timer event = FlightEvent.ENCRYPT.begin();
+ * ...
+ * if (event != null)
+ *    event.commit(recipient, mode.name(), size);
+ * </pre>
+ */
+public final class FlightEvent
+{
+   private static final String PREFIX = "martinlt.cryptomessenger.";
+
+   private static final List<FlightEvent> TYPES = new ArrayList<FlightEvent>();
+
+   /**
+    * The JFR API, or null if this JDK does not have it.
+    */
+   private static final Api API = Api.load();
+
+   /**
+    * Encrypting a message. Fields: party, mode, size in bytes of the
+    * plaintext.
+    */
+   public static final FlightEvent ENCRYPT = new FlightEvent("Encrypt", "Message Encrypt",
+         field(String.class, "party", "Party", null), field(String.class, "mode", "Mode", null),
+         field(long.class, "size", "Size", "BYTES"));
+
+   /**
+    * Decrypting a message. Fields: party (may be null), mode, size in bytes
+    * of the ciphertext.
+    */
+   public static final FlightEvent DECRYPT = new FlightEvent("Decrypt", "Message Decrypt",
+         field(String.class, "party", "Party", null), field(String.class, "mode", "Mode", null),
+         field(long.class, "size", "Size", "BYTES"));
+
+   /**
+    * Parsing a party's public key and agreeing the secret key with it. Fields:
+    * party, mode.
+    */
+   public static final FlightEvent KEY_AGREEMENT = new FlightEvent("KeyAgreement",
+         "Key Agreement", field(String.class, "party", "Party", null),
+         field(String.class, "mode", "Mode", null));
+
+   /**
+    * Loading (or first generating) this party's key files. Fields: party,
+    * mode, whether the keys were generated.
+    */
+   public static final FlightEvent KEY_LOAD = new FlightEvent("KeyLoad", "Key File Load",
+         field(String.class, "party", "Party", null), field(String.class, "mode", "Mode", null),
+         field(boolean.class, "generated", "Generated", null));
+
+   /**
+    * Reading a party file with JAXB. Fields: path, number of parties.
+    */
+   public static final FlightEvent PARTY_FILE_LOAD = new FlightEvent("PartyFileLoad",
+         "Party File Load", field(String.class, "path", "Path", null),
+         field(int.class, "parties", "Parties", null));
+
+   /**
+    * Writing a party file with JAXB. Fields: path, number of parties.
+    */
+   public static final FlightEvent PARTY_FILE_SAVE = new FlightEvent("PartyFileSave",
+         "Party File Save", field(String.class, "path", "Path", null),
+         field(int.class, "parties", "Parties", null));
+
+   static {
+      if (API != null)
+         API.listen();
+   }
+
+   private final String name;
+
+   /**
+    * The jdk.jfr.EventFactory, or null.
+    */
+   private final Object factory;
+   private final Object eventType;
+   private volatile boolean enabled;
+
+   private FlightEvent(String name, String label, Field... fields)
+   {
+      this.name = PREFIX + name;
+
+      Object created = null;
+      Object type = null;
+      if (API != null) {
+         try {
+            created = API.create(this.name, label, fields);
+            type = API.getEventType.invoke(created);
+         } catch (ReflectiveOperationException | RuntimeException e) {
+            created = null;
+         }
+      }
+      this.factory = created;
+      this.eventType = type;
+
+      synchronized (TYPES) {
+         TYPES.add(this);
+      }
+   }
+
+   /**
+    * Returns the name of the event in recordings.
+    *
+    * @return
+    */
+   public String getName()
+   {
+      return name;
+   }
+
+   /**
+    * Returns true if a running recording has this event enabled.
+    *
+    * @return
+    */
+   public boolean isEnabled()
+   {
+      return enabled;
+   }
+
+   /**
+    * Starts timing an event.
+    *
+    * @return the event to commit when the work is done, or null if no
+    *         recording wants it
+    */
+   public Timer begin()
+   {
+      if (!enabled)
+         return null;
+
+      try {
+         Object event = API.newEvent.invoke(factory);
+         API.begin.invoke(event);
+         return new Timer(event);
+      } catch (ReflectiveOperationException | RuntimeException e) {
+         return null;
+      }
+   }
+
+   private void refresh()
+   {
+      try {
+         enabled = factory != null && (Boolean) API.isEnabled.invoke(eventType);
+      } catch (ReflectiveOperationException | RuntimeException e) {
+         enabled = false;
+      }
+   }
+
+   private static void refreshAll()
+   {
+      synchronized (TYPES) {
+         for (FlightEvent type : TYPES) {
+            type.refresh();
+         }
+      }
+   }
+
+   private static Field field(Class<?> type, String name, String label, String dataAmount)
+   {
+      return new Field(type, name, label, dataAmount);
+   }
+
+   /**
+    * An event being timed.
+    */
+   public static final class Timer
+   {
+      private final Object event;
+
+      private Timer(Object event)
+      {
+         this.event = event;
+      }
+
+      /**
+       * Ends the event and writes it to the recording.
+       *
+       * @param values
+       *           the field values, in the order the event type lists them
+       */
+      public void commit(Object... values)
+      {
+         try {
+            for (int i = 0; i < values.length; i++) {
+               API.set.invoke(event, i, values[i]);
+            }
+            API.commit.invoke(event);
+         } catch (ReflectiveOperationException | RuntimeException e) {
+            // A lost event is not worth failing the operation for
+         }
+      }
+   }
+
+   private static final class Field
+   {
+      final Class<?> type;
+      final String name;
+      final String label;
+      final String dataAmount;
+
+      Field(Class<?> type, String name, String label, String dataAmount)
+      {
+         this.type = type;
+         this.name = name;
+         this.label = label;
+         this.dataAmount = dataAmount;
+      }
+   }
+
+   /**
+    * The parts of jdk.jfr used, found by reflection.
+    */
+   private static final class Api
+   {
+      Constructor<?> annotationElement;
+      Constructor<?> valueDescriptor;
+      Method create;
+      Method getEventType;
+      Method isEnabled;
+      Method newEvent;
+      Method begin;
+      Method set;
+      Method commit;
+
+      static Api load()
+      {
+         try {
+            Api api = new Api();
+            Class<?> factoryClass = Class.forName("jdk.jfr.EventFactory");
+            Class<?> eventClass = Class.forName("jdk.jfr.Event");
+            api.annotationElement = Class.forName("jdk.jfr.AnnotationElement")
+                  .getConstructor(Class.class, Object.class);
+            api.valueDescriptor = Class.forName("jdk.jfr.ValueDescriptor")
+                  .getConstructor(Class.class, String.class, List.class);
+            api.create = factoryClass.getMethod("create", List.class, List.class);
+            api.getEventType = factoryClass.getMethod("getEventType");
+            api.isEnabled = Class.forName("jdk.jfr.EventType").getMethod("isEnabled");
+            api.newEvent = factoryClass.getMethod("newEvent");
+            api.begin = eventClass.getMethod("begin");
+            api.set = eventClass.getMethod("set", int.class, Object.class);
+            api.commit = eventClass.getMethod("commit");
+            return api;
+         } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+         }
+      }
+
+      Object create(String name, String label, Field... fields)
+            throws ReflectiveOperationException
+      {
+         List<Object> annotations = Arrays.asList(annotation("jdk.jfr.Name", name),
+               annotation("jdk.jfr.Label", label),
+               annotation("jdk.jfr.Category", new String[] { "CryptoMessenger" }),
+               annotation("jdk.jfr.Enabled", false), annotation("jdk.jfr.StackTrace", false));
+
+         List<Object> descriptors = new ArrayList<Object>();
+         for (Field field : fields) {
+            List<Object> fieldAnnotations = new ArrayList<Object>();
+            fieldAnnotations.add(annotation("jdk.jfr.Label", field.label));
+            if (field.dataAmount != null)
+               fieldAnnotations.add(annotation("jdk.jfr.DataAmount", field.dataAmount));
+            descriptors.add(valueDescriptor.newInstance(field.type, field.name, fieldAnnotations));
+         }
+         return create.invoke(null, annotations, descriptors);
+      }
+
+      private Object annotation(String type, Object value) throws ReflectiveOperationException
+      {
+         return annotationElement.newInstance(Class.forName(type), value);
+      }
+
+      /**
+       * Refreshes the enabled flags now and whenever a recording starts or
+       * stops.
+       */
+      void listen()
+      {
+         try {
+            Class<?> listenerClass = Class.forName("jdk.jfr.FlightRecorderListener");
+            InvocationHandler handler = (proxy, method, args) -> {
+               switch (method.getName()) {
+               case "recordingStateChanged":
+               case "recorderInitialized":
+                  refreshAll();
+                  return null;
+               case "equals":
+                  return proxy == args[0];
+               case "hashCode":
+                  return System.identityHashCode(proxy);
+               case "toString":
+                  return "FlightEvent listener";
+               default:
+                  return null;
+               }
+            };
+            Object listener = Proxy.newProxyInstance(FlightEvent.class.getClassLoader(),
+                  new Class<?>[] { listenerClass }, handler);
+            Class.forName("jdk.jfr.FlightRecorder").getMethod("addListener", listenerClass)
+                  .invoke(null, listener);
+         } catch (ReflectiveOperationException | RuntimeException e) {
+            // No recorder, so nothing will be enabled
+         }
+         refreshAll();
+      }
+   }
+}
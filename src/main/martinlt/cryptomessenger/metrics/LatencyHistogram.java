@@ -0,0 +1,151 @@
+package martinlt.cryptomessenger.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies in nanoseconds, in log-linear buckets like those
+ * of HdrHistogram: each power of two is split into {@value #SUB_BUCKETS}
+ * linear buckets, so any recorded value is known to within about 6% while
+ * the whole range of a long fits in under a thousand counters.
+ * <p>
+ * Recording is lock-free (an atomic increment of one counter plus the
+ * running total and maximum), so it can be done on every operation from any
+ * number of threads. Reads are not atomic with respect to recording and may
+ * see a value being counted in one figure but not yet in another.
+ * </p>
+ */
+public class LatencyHistogram
+{
+   /**
+    * Linear buckets per power of two.
+    */
+   public static final int SUB_BUCKETS = 16;
+
+   private static final int SUB_BITS = Integer.numberOfTrailingZeros(SUB_BUCKETS);
+
+   /**
+    * Enough buckets for any non-negative long.
+    */
+   private static final int BUCKETS = indexOf(Long.MAX_VALUE) + 1;
+
+   private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+   private final AtomicLong count = new AtomicLong();
+   private final AtomicLong total = new AtomicLong();
+   private final AtomicLong max = new AtomicLong();
+
+   /**
+    * Records a latency. Negative values are counted as zero.
+    *
+    * @param nanos
+    */
+   public void record(long nanos)
+   {
+      if (nanos < 0)
+         nanos = 0;
+
+      counts.incrementAndGet(indexOf(nanos));
+      count.incrementAndGet();
+      total.addAndGet(nanos);
+
+      long current;
+      while (nanos > (current = max.get())) {
+         if (max.compareAndSet(current, nanos))
+            break;
+      }
+   }
+
+   /**
+    * Returns the number of values recorded.
+    *
+    * @return
+    */
+   public long getCount()
+   {
+      return count.get();
+   }
+
+   /**
+    * Returns the mean of the values recorded, or 0 if there are none.
+    *
+    * @return
+    */
+   public double getMean()
+   {
+      long n = count.get();
+      return n == 0 ? 0 : (double) total.get() / n;
+   }
+
+   /**
+    * Returns the largest value recorded.
+    *
+    * @return
+    */
+   public long getMax()
+   {
+      return max.get();
+   }
+
+   /**
+    * Returns the value below which the given percentage of recorded values
+    * fall, as the top of the bucket holding it (and no more than the maximum
+    * recorded), or 0 if nothing has been recorded.
+    *
+    * @param percentile
+    *           0 to 100
+    * @return
+    */
+   public long getValueAtPercentile(double percentile)
+   {
+      long[] snapshot = new long[BUCKETS];
+      long n = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+         snapshot[i] = counts.get(i);
+         n += snapshot[i];
+      }
+      if (n == 0)
+         return 0;
+
+      long rank = Math.max(1, (long) Math.ceil(Math.min(percentile, 100) / 100 * n));
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+         seen += snapshot[i];
+         if (seen >= rank)
+            return Math.min(highestInBucket(i), max.get());
+      }
+      return max.get();
+   }
+
+   /**
+    * Clears the histogram. Values recorded at the same time may be lost or
+    * only partly cleared.
+    */
+   public void reset()
+   {
+      for (int i = 0; i < BUCKETS; i++) {
+         counts.set(i, 0);
+      }
+      count.set(0);
+      total.set(0);
+      max.set(0);
+   }
+
+   /**
+    * Values below 2 * {@value #SUB_BUCKETS} get a bucket each. Above that,
+    * the shift is how far the value's top bit is beyond the sub-bucket bits,
+    * and the value shifted down by it lies in the upper half of the
+    * sub-buckets.
+    */
+   static int indexOf(long value)
+   {
+      int shift = Math.max(0, 63 - Long.numberOfLeadingZeros(value) - SUB_BITS);
+      return shift * SUB_BUCKETS + (int) (value >>> shift);
+   }
+
+   static long highestInBucket(int index)
+   {
+      int shift = Math.max(0, index / SUB_BUCKETS - 1);
+      long sub = index - (long) shift * SUB_BUCKETS;
+      return ((sub + 1) << shift) - 1;
+   }
+}
@@ -0,0 +1,53 @@
+package martinlt.cryptomessenger.metrics;
+
+/**
+ * The operations timed by {@link CryptoMetrics}.
+ */
+public enum Operation {
+   /**
+    * Encrypting a message for a party or group.
+    */
+   ENCRYPT("encrypt"),
+
+   /**
+    * Decrypting a message from a party or group.
+    */
+   DECRYPT("decrypt"),
+
+   /**
+    * Parsing a party's public key and, in DH mode, agreeing the secret key.
+    */
+   RECEIVE_PUBLIC_KEY("receivePublicKey"),
+
+   /**
+    * Generating this party's key pair.
+    */
+   GENERATE_KEY_PAIR("generateKeyPair"),
+
+   /**
+    * Signing a message for a party.
+    */
+   SIGN("sign"),
+
+   /**
+    * Checking the signature on a message from a party.
+    */
+   VERIFY("verify");
+
+   private final String label;
+
+   private Operation(String label)
+   {
+      this.label = label;
+   }
+
+   /**
+    * Returns the name the operation is shown under.
+    *
+    * @return
+    */
+   public String getLabel()
+   {
+      return label;
+   }
+}
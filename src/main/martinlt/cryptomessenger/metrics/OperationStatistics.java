@@ -0,0 +1,68 @@
+package martinlt.cryptomessenger.metrics;
+
+/**
+ * A snapshot of the figures for one operation in one algorithm mode, as
+ * shown through {@link CryptoMetricsMXBean}. Latencies are in microseconds.
+ */
+public class OperationStatistics
+{
+   private final long count;
+   private final long errors;
+   private final double meanMicros;
+   private final double p50Micros;
+   private final double p99Micros;
+   private final double p999Micros;
+   private final double maxMicros;
+
+   OperationStatistics(LatencyHistogram latency, long errors)
+   {
+      this.count = latency.getCount();
+      this.errors = errors;
+      this.meanMicros = latency.getMean() / 1000;
+      this.p50Micros = latency.getValueAtPercentile(50) / 1000.0;
+      this.p99Micros = latency.getValueAtPercentile(99) / 1000.0;
+      this.p999Micros = latency.getValueAtPercentile(99.9) / 1000.0;
+      this.maxMicros = latency.getMax() / 1000.0;
+   }
+
+   /**
+    * Returns the number of operations completed, including those which
+    * failed.
+    *
+    * @return
+    */
+   public long getCount()
+   {
+      return count;
+   }
+
+   public long getErrors()
+   {
+      return errors;
+   }
+
+   public double getMeanMicros()
+   {
+      return meanMicros;
+   }
+
+   public double getP50Micros()
+   {
+      return p50Micros;
+   }
+
+   public double getP99Micros()
+   {
+      return p99Micros;
+   }
+
+   public double getP999Micros()
+   {
+      return p999Micros;
+   }
+
+   public double getMaxMicros()
+   {
+      return maxMicros;
+   }
+}
@@ -0,0 +1,75 @@
+package martinlt.cryptomessenger.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times the phases of starting the application, from the start of the JVM
+ * to the first frame on screen, so that changes to startup can be measured.
+ */
+public class StartupTimer
+{
+   /**
+    * System property which, if "true", has the application print its startup
+    * times to standard output.
+    */
+   public static final String REPORT_PROPERTY = "cryptomessenger.startupTimes";
+
+   private final long launchMillis;
+   private long last;
+   private final Map<String, Long> phases = new LinkedHashMap<String, Long>();
+
+   /**
+    * Starts timing. Everything before this, i.e. JVM and toolkit startup, is
+    * counted as the "launch" phase.
+    */
+   public StartupTimer()
+   {
+      launchMillis = ManagementFactory.getRuntimeMXBean().getUptime();
+      last = System.nanoTime();
+   }
+
+   /**
+    * Ends a phase, which is timed from the end of the one before.
+    *
+    * @param name
+    */
+   public synchronized void phase(String name)
+   {
+      long now = System.nanoTime();
+      phases.put(name, TimeUnit.NANOSECONDS.toMillis(now - last));
+      last = now;
+   }
+
+   /**
+    * Returns the duration of a phase in milliseconds, or -1 if it has not
+    * ended.
+    *
+    * @param name
+    * @return
+    */
+   public synchronized long getMillis(String name)
+   {
+      Long millis = phases.get(name);
+      return millis == null ? -1 : millis;
+   }
+
+   /**
+    * Returns the phases and their total, i.e. "launch 800 ms, root layout 90
+    * ms, total 890 ms".
+    */
+   @Override
+   public synchronized String toString()
+   {
+      StringBuilder text = new StringBuilder("launch ").append(launchMillis).append(" ms");
+      long total = launchMillis;
+      for (Map.Entry<String, Long> phase : phases.entrySet()) {
+         text.append(", ").append(phase.getKey()).append(' ').append(phase.getValue())
+               .append(" ms");
+         total += phase.getValue();
+      }
+      return text.append(", total ").append(total).append(" ms").toString();
+   }
+}
@@ -1,16 +1,42 @@
 package martinlt.cryptomessenger.model;
 
+import java.nio.charset.StandardCharsets;
+import java.security.KeyFactory;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.X509EncodedKeySpec;
+
 import javafx.beans.property.SimpleStringProperty;
 import javafx.beans.property.StringProperty;
+import martinlt.cryptomessenger.crypto.Fingerprint;
+import martinlt.cryptomessenger.crypto.Pem;
 
 /**
  * Model class for a Party.
+ * <p>
+ * A directory may hold a very large number of parties, so the identifier is
+ * kept as UTF-8 bytes and the public key in its binary X.509 encoding rather
+ * than as PEM text. The JavaFX properties, the parsed key and the fingerprint
+ * are only created when they are first asked for.
+ * </p>
  */
 public class Party
 {
+   private byte[] identifier;
+
+   /**
+    * The X.509 encoded public key or, if {@link #rawPublicKey} is set, the
+    * UTF-8 text entered for a key that is not valid PEM.
+    */
+   private byte[] publicKey;
+   private boolean rawPublicKey;
+
+   private StringProperty identifierProperty;
+   private StringProperty publicKeyProperty;
 
-   private final StringProperty identifier;
-   private final StringProperty publicKey;
+   private volatile PublicKey parsedPublicKey;
+   private volatile byte[] fingerprint;
 
    /**
     * Default constructor.
@@ -28,44 +54,157 @@ public class Party
     */
    public Party(String identifier, String publicKey)
    {
-      this.identifier = new SimpleStringProperty(identifier);
-      this.publicKey = new SimpleStringProperty(publicKey);
+      storeIdentifier(identifier);
+      storePublicKey(publicKey);
    }
 
    public StringProperty identifierProperty()
    {
-      return identifier;
+      if (identifierProperty == null) {
+         identifierProperty = new SimpleStringProperty(getIdentifier());
+         identifierProperty.addListener((observable, oldValue, newValue) -> {
+            storeIdentifier(newValue);
+         });
+      }
+      return identifierProperty;
    }
 
    public StringProperty publicKeyProperty()
    {
-      return publicKey;
+      if (publicKeyProperty == null) {
+         publicKeyProperty = new SimpleStringProperty(getPublicKey());
+         publicKeyProperty.addListener((observable, oldValue, newValue) -> {
+            storePublicKey(newValue);
+         });
+      }
+      return publicKeyProperty;
    }
 
    public String getIdentifier()
    {
-      return identifier.get();
+      if (identifier == null)
+         return null;
+      return new String(identifier, StandardCharsets.UTF_8);
    }
 
+   /**
+    * Returns the public key as PEM text.
+    *
+    * @return
+    */
    public String getPublicKey()
    {
-      return publicKey.get();
+      if (publicKey == null)
+         return null;
+      if (rawPublicKey)
+         return new String(publicKey, StandardCharsets.UTF_8);
+      return Pem.encodePublicKey(publicKey);
+   }
+
+   /**
+    * Returns the X.509 encoded public key, or null if the key is not valid
+    * PEM.
+    *
+    * @return
+    */
+   public byte[] getEncodedPublicKey()
+   {
+      return rawPublicKey ? null : publicKey;
+   }
+
+   /**
+    * Returns the public key parsed for the given algorithm. The key is parsed
+    * on the first call and cached.
+    *
+    * @param algorithm
+    *           the key algorithm, i.e. "RSA" or "DH"
+    * @return
+    * @throws InvalidKeySpecException
+    *            if the public key is not a valid key for the algorithm
+    * @throws NoSuchAlgorithmException
+    */
+   public PublicKey getParsedPublicKey(String algorithm)
+         throws InvalidKeySpecException, NoSuchAlgorithmException
+   {
+      PublicKey parsed = parsedPublicKey;
+      if (parsed == null || !parsed.getAlgorithm().equals(algorithm)) {
+         if (publicKey == null || rawPublicKey)
+            throw new InvalidKeySpecException("Public key is not valid PEM");
+
+         KeyFactory kf = KeyFactory.getInstance(algorithm);
+         parsed = kf.generatePublic(new X509EncodedKeySpec(publicKey));
+         parsedPublicKey = parsed;
+      }
+      return parsed;
+   }
+
+   /**
+    * Returns the SHA-256 fingerprint of the encoded public key as hex, or
+    * null if the key is not valid PEM.
+    *
+    * @return
+    */
+   public String getFingerprint()
+   {
+      byte[] hash = fingerprint;
+      if (hash == null) {
+         if (publicKey == null || rawPublicKey)
+            return null;
+
+         hash = Fingerprint.hash(publicKey);
+         fingerprint = hash;
+      }
+      return Fingerprint.hex(hash);
    }
 
    public void setIdentifier(String identifier)
    {
-      this.identifier.set(identifier);
+      if (identifierProperty != null)
+         identifierProperty.set(identifier);
+      else
+         storeIdentifier(identifier);
    }
 
    public void setPublicKey(String publicKey)
    {
-      this.publicKey.set(publicKey);
+      if (publicKeyProperty != null)
+         publicKeyProperty.set(publicKey);
+      else
+         storePublicKey(publicKey);
+   }
+
+   private void storeIdentifier(String identifier)
+   {
+      this.identifier = identifier == null ? null : identifier.getBytes(StandardCharsets.UTF_8);
+   }
+
+   private void storePublicKey(String publicKey)
+   {
+      parsedPublicKey = null;
+      fingerprint = null;
+
+      if (publicKey == null) {
+         this.publicKey = null;
+         this.rawPublicKey = false;
+         return;
+      }
+
+      try {
+         this.publicKey = Pem.decodePublicKey(publicKey);
+         this.rawPublicKey = this.publicKey.length == 0;
+         if (rawPublicKey)
+            this.publicKey = publicKey.getBytes(StandardCharsets.UTF_8);
+      } catch (IllegalArgumentException e) {
+         // Keep what was typed so that it can be shown and corrected
+         this.publicKey = publicKey.getBytes(StandardCharsets.UTF_8);
+         this.rawPublicKey = true;
+      }
    }
 
    @Override
    public String toString()
    {
-      return identifier.get();
+      return getIdentifier();
    }
 
 }
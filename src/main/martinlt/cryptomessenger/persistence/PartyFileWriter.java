@@ -0,0 +1,242 @@
+package martinlt.cryptomessenger.persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+
+import martinlt.cryptomessenger.metrics.FlightEvent;
+import martinlt.cryptomessenger.model.Party;
+import martinlt.cryptomessenger.model.PartyListWrapper;
+
+/**
+ * Writes party files on a background thread.
+ * <p>
+ * Changes are debounced: a burst of calls to {@link #schedule(File, List)}
+ * results in a single write of the latest parties once no change has been
+ * seen for {@link #DEBOUNCE_MILLIS}. Changes which never settle down are
+ * still written {@link #MAX_DEBOUNCE_MILLIS} after the first of them, so a
+ * steady stream of changes cannot hold off the write for ever.
+ * </p>
+ * <p>
+ * Every write goes to a temporary file in the same directory which then
+ * atomically replaces the party file, so a crash part way through
+ * marshalling never leaves a truncated file behind.
+ * </p>
+ */
+public class PartyFileWriter
+{
+   /**
+    * How long to wait for further changes before writing.
+    */
+   public static final long DEBOUNCE_MILLIS = 500;
+
+   /**
+    * Longest a change waits to be written, however many follow it.
+    */
+   public static final long MAX_DEBOUNCE_MILLIS = 5000;
+
+   private final long debounceNanos;
+   private final long maxDebounceNanos;
+
+   private final ScheduledExecutorService executor;
+   private final BiConsumer<File, Exception> errorHandler;
+
+   /**
+    * The write waiting for its debounce delay to pass, if any.
+    */
+   private ScheduledFuture<?> pendingWrite;
+   private File pendingFile;
+   private List<Party> pendingParties;
+
+   /**
+    * When the first change not yet written was scheduled.
+    */
+   private long pendingSince;
+
+   /**
+    * Creates a writer.
+    *
+    * @param errorHandler
+    *           called on the writer thread with the file and the cause when a
+    *           write fails
+    */
+   public PartyFileWriter(BiConsumer<File, Exception> errorHandler)
+   {
+      this(errorHandler, DEBOUNCE_MILLIS, MAX_DEBOUNCE_MILLIS);
+   }
+
+   PartyFileWriter(BiConsumer<File, Exception> errorHandler, long debounceMillis,
+         long maxDebounceMillis)
+   {
+      this.errorHandler = errorHandler;
+      this.debounceNanos = TimeUnit.MILLISECONDS.toNanos(debounceMillis);
+      this.maxDebounceNanos = TimeUnit.MILLISECONDS.toNanos(maxDebounceMillis);
+      this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+         Thread thread = new Thread(runnable, "party-file-writer");
+         thread.setDaemon(true);
+         return thread;
+      });
+   }
+
+   /**
+    * Schedules the parties to be written once changes have settled down, or
+    * at the latest {@link #MAX_DEBOUNCE_MILLIS} after the first change not yet
+    * written. Only the list is copied, so the parties should not be changed
+    * in place without scheduling again.
+    *
+    * @param file
+    *           the party file
+    * @param parties
+    *           the parties to write
+    */
+   public synchronized void schedule(File file, List<Party> parties)
+   {
+      long now = System.nanoTime();
+      if (pendingWrite != null)
+         pendingWrite.cancel(false);
+      if (pendingFile == null)
+         pendingSince = now;
+
+      pendingFile = file;
+      pendingParties = new ArrayList<Party>(parties);
+      long delay = Math.max(0, Math.min(debounceNanos, pendingSince + maxDebounceNanos - now));
+      pendingWrite = executor.schedule(this::writePending, delay, TimeUnit.NANOSECONDS);
+   }
+
+   /**
+    * Writes the parties straight away, replacing any scheduled write.
+    *
+    * @param file
+    *           the party file
+    * @param parties
+    *           the parties to write
+    * @return completes when the file has been replaced
+    */
+   public synchronized Future<?> save(File file, List<Party> parties)
+   {
+      schedule(file, parties);
+      pendingWrite.cancel(false);
+      return executor.submit(this::writePending);
+   }
+
+   /**
+    * Writes any scheduled parties and waits for the write to finish.
+    */
+   public void flush()
+   {
+      Future<?> write;
+      synchronized (this) {
+         if (pendingFile == null)
+            return;
+         pendingWrite.cancel(false);
+         write = executor.submit(this::writePending);
+      }
+
+      try {
+         write.get();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      } catch (ExecutionException e) {
+         // already passed to the error handler
+      }
+   }
+
+   /**
+    * Flushes any scheduled write and stops the writer thread.
+    */
+   public void shutdown()
+   {
+      flush();
+      executor.shutdown();
+      try {
+         executor.awaitTermination(10, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+   }
+
+   private void writePending()
+   {
+      File file;
+      List<Party> parties;
+      synchronized (this) {
+         if (pendingFile == null)
+            return;
+
+         file = pendingFile;
+         parties = pendingParties;
+         pendingFile = null;
+         pendingParties = null;
+         pendingWrite = null;
+      }
+
+      try {
+         write(file, parties);
+      } catch (Exception e) {
+         errorHandler.accept(file, e);
+      }
+   }
+
+   /**
+    * Marshals the parties to a temporary file and moves it over the party
+    * file.
+    */
+   private void write(File file, List<Party> parties) throws JAXBException, IOException
+   {
+      FlightEvent.Timer event = FlightEvent.PARTY_FILE_SAVE.begin();
+      try {
+         marshal(file, parties);
+      } finally {
+         if (event != null)
+            event.commit(file.getPath(), parties.size());
+      }
+   }
+
+   private void marshal(File file, List<Party> parties) throws JAXBException, IOException
+   {
+      Marshaller m = PartyFiles.context().createMarshaller();
+      m.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
+
+      PartyListWrapper wrapper = new PartyListWrapper();
+      wrapper.setPartys(parties);
+
+      Path target = file.getAbsoluteFile().toPath();
+      Path temp = Files.createTempFile(target.getParent(), file.getName(), ".tmp");
+      try {
+         try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE);
+               OutputStream out = Channels.newOutputStream(channel)) {
+            m.marshal(wrapper, out);
+            out.flush();
+            channel.force(true);
+         }
+
+         try {
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE,
+                  StandardCopyOption.REPLACE_EXISTING);
+         } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+         }
+      } finally {
+         Files.deleteIfExists(temp);
+      }
+   }
+}
@@ -0,0 +1,63 @@
+package martinlt.cryptomessenger.persistence;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Unmarshaller;
+
+import martinlt.cryptomessenger.metrics.FlightEvent;
+import martinlt.cryptomessenger.model.Party;
+import martinlt.cryptomessenger.model.PartyListWrapper;
+
+/**
+ * Reads party files and holds the JAXB context shared by readers and
+ * writers. Creating a JAXB context is expensive, so it is only done once.
+ */
+public final class PartyFiles
+{
+   private static JAXBContext context;
+
+   private PartyFiles()
+   {
+   }
+
+   /**
+    * Returns the JAXB context for party files.
+    *
+    * @return
+    * @throws JAXBException
+    */
+   public static synchronized JAXBContext context() throws JAXBException
+   {
+      if (context == null)
+         context = JAXBContext.newInstance(PartyListWrapper.class);
+      return context;
+   }
+
+   /**
+    * Reads the parties from a party file.
+    *
+    * @param file
+    * @return the parties, in file order
+    * @throws JAXBException
+    *            if the file could not be read
+    */
+   public static List<Party> read(File file) throws JAXBException
+   {
+      FlightEvent.Timer event = FlightEvent.PARTY_FILE_LOAD.begin();
+      List<Party> parties = null;
+      try {
+         Unmarshaller um = context().createUnmarshaller();
+         PartyListWrapper wrapper = (PartyListWrapper) um.unmarshal(file);
+
+         parties = wrapper.getPartys() == null ? new ArrayList<Party>() : wrapper.getPartys();
+         return parties;
+      } finally {
+         if (event != null)
+            event.commit(file.getPath(), parties == null ? 0 : parties.size());
+      }
+   }
+}
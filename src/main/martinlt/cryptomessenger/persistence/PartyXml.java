@@ -0,0 +1,131 @@
+package martinlt.cryptomessenger.persistence;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * Reads and writes party files with StAX, for headless use.
+ * <p>
+ * The files are the same as those read by {@link PartyFiles} and written by
+ * {@link PartyFileWriter}, but parties are handled as plain name to PEM
+ * public key maps, so neither JAXB nor the JavaFX backed
+ * {@link martinlt.cryptomessenger.model.Party} is loaded.
+ * </p>
+ */
+public final class PartyXml
+{
+   private PartyXml()
+   {
+   }
+
+   /**
+    * Reads the parties from a party file.
+    *
+    * @param file
+    * @return PEM public keys keyed using party names, in file order
+    * @throws IOException
+    *            if the file could not be read or is not a party file
+    */
+   public static Map<String, String> read(File file) throws IOException
+   {
+      Map<String, String> parties = new LinkedHashMap<String, String>();
+      try (InputStream in = new FileInputStream(file)) {
+         XMLStreamReader reader = XMLInputFactory.newInstance().createXMLStreamReader(in);
+         String identifier = null;
+         String publicKey = null;
+
+         while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+               String element = reader.getLocalName();
+               if (element.equals("party")) {
+                  identifier = null;
+                  publicKey = null;
+               } else if (element.equals("identifier")) {
+                  identifier = reader.getElementText();
+               } else if (element.equals("publicKey")) {
+                  publicKey = reader.getElementText();
+               }
+            } else if (event == XMLStreamConstants.END_ELEMENT
+                  && reader.getLocalName().equals("party") && identifier != null) {
+               parties.put(identifier, publicKey);
+            }
+         }
+         reader.close();
+      } catch (XMLStreamException e) {
+         throw new IOException("Not a party file: " + file, e);
+      }
+      return parties;
+   }
+
+   /**
+    * Writes a party file, replacing the file atomically where the file system
+    * allows it.
+    *
+    * @param file
+    * @param parties
+    *           PEM public keys keyed using party names
+    * @throws IOException
+    */
+   public static void write(File file, Map<String, String> parties) throws IOException
+   {
+      Path target = file.toPath().toAbsolutePath();
+      Path temp = Files.createTempFile(target.getParent(), file.getName(), ".tmp");
+      try {
+         try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE);
+               OutputStream out = Channels.newOutputStream(channel)) {
+            XMLStreamWriter writer = XMLOutputFactory.newInstance().createXMLStreamWriter(out,
+                  "UTF-8");
+            writer.writeStartDocument("UTF-8", "1.0");
+            writer.writeStartElement("parties");
+            for (Map.Entry<String, String> party : parties.entrySet()) {
+               writer.writeStartElement("party");
+               writer.writeStartElement("identifier");
+               writer.writeCharacters(party.getKey());
+               writer.writeEndElement();
+               if (party.getValue() != null) {
+                  writer.writeStartElement("publicKey");
+                  writer.writeCharacters(party.getValue());
+                  writer.writeEndElement();
+               }
+               writer.writeEndElement();
+            }
+            writer.writeEndElement();
+            writer.writeEndDocument();
+            writer.close();
+            out.flush();
+            channel.force(true);
+         } catch (XMLStreamException e) {
+            throw new IOException("Could not write " + file, e);
+         }
+
+         try {
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE,
+                  StandardCopyOption.REPLACE_EXISTING);
+         } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+         }
+      } finally {
+         Files.deleteIfExists(temp);
+      }
+   }
+}
@@ -0,0 +1,203 @@
+package martinlt.cryptomessenger.pipeline;
+
+import java.util.ArrayDeque;
+
+/**
+ * The start of a pipeline: a publisher to which a producer thread submits
+ * items. The buffer holds a fixed number of items; once it is full
+ * {@link #submit(Object)} blocks until the subscriber has asked for more, so
+ * a producer cannot run ahead of the pipeline.
+ * <p>
+ * Items are delivered on the thread submitting them or asking for them.
+ * There is one subscriber.
+ * </p>
+ */
+public class BufferedPublisher<T> implements Flow.Publisher<T>, AutoCloseable
+{
+   private final int capacity;
+   private final ArrayDeque<T> buffer = new ArrayDeque<T>();
+
+   private Flow.Subscriber<? super T> subscriber;
+   private long demand;
+   private boolean closed;
+   private Throwable error;
+   private boolean cancelled;
+   private boolean terminated;
+   private boolean draining;
+
+   /**
+    * Creates a publisher.
+    *
+    * @param capacity
+    *           the most items held before submit blocks
+    */
+   public BufferedPublisher(int capacity)
+   {
+      if (capacity < 1)
+         throw new IllegalArgumentException("capacity must be at least 1");
+      this.capacity = capacity;
+   }
+
+   @Override
+   public void subscribe(Flow.Subscriber<? super T> subscriber)
+   {
+      synchronized (this) {
+         if (this.subscriber == null) {
+            this.subscriber = subscriber;
+            subscriber = null;
+         }
+      }
+      if (subscriber != null) {
+         subscriber.onSubscribe(new Flow.Subscription() {
+            @Override
+            public void request(long n)
+            {
+            }
+
+            @Override
+            public void cancel()
+            {
+            }
+         });
+         subscriber.onError(new IllegalStateException("Already subscribed"));
+         return;
+      }
+
+      this.subscriber.onSubscribe(new Flow.Subscription() {
+         @Override
+         public void request(long n)
+         {
+            synchronized (BufferedPublisher.this) {
+               if (n <= 0) {
+                  closed = true;
+                  error = new IllegalArgumentException("Non-positive request " + n);
+                  buffer.clear();
+               } else {
+                  demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+               }
+            }
+            drain();
+         }
+
+         @Override
+         public void cancel()
+         {
+            synchronized (BufferedPublisher.this) {
+               cancelled = true;
+               buffer.clear();
+               BufferedPublisher.this.notifyAll();
+            }
+         }
+      });
+      drain();
+   }
+
+   /**
+    * Adds an item, waiting while the buffer is full.
+    *
+    * @param item
+    * @throws InterruptedException
+    *            if interrupted while waiting
+    * @throws IllegalStateException
+    *            if the publisher is closed or the subscriber has cancelled
+    */
+   public void submit(T item) throws InterruptedException
+   {
+      synchronized (this) {
+         while (buffer.size() >= capacity && !cancelled && !closed) {
+            wait();
+         }
+         if (closed)
+            throw new IllegalStateException("Publisher is closed");
+         if (cancelled)
+            throw new IllegalStateException("Subscriber has cancelled");
+         buffer.add(item);
+      }
+      drain();
+   }
+
+   /**
+    * Returns true if the subscriber has cancelled, so there is no point
+    * producing any more.
+    *
+    * @return
+    */
+   public synchronized boolean isCancelled()
+   {
+      return cancelled;
+   }
+
+   /**
+    * Completes the stream once the items already submitted are delivered.
+    */
+   @Override
+   public void close()
+   {
+      synchronized (this) {
+         closed = true;
+         notifyAll();
+      }
+      drain();
+   }
+
+   /**
+    * Ends the stream with an error once the items already submitted are
+    * delivered.
+    *
+    * @param throwable
+    */
+   public void closeExceptionally(Throwable throwable)
+   {
+      synchronized (this) {
+         if (!closed)
+            error = throwable;
+         closed = true;
+         notifyAll();
+      }
+      drain();
+   }
+
+   /**
+    * Delivers what the subscriber has asked for, one thread at a time.
+    */
+   private void drain()
+   {
+      synchronized (this) {
+         if (draining)
+            return;
+         draining = true;
+      }
+
+      while (true) {
+         T item = null;
+         boolean end = false;
+         synchronized (this) {
+            if (subscriber == null || cancelled || terminated) {
+               draining = false;
+               return;
+            } else if (!buffer.isEmpty() && demand > 0) {
+               item = buffer.poll();
+               if (demand != Long.MAX_VALUE)
+                  demand--;
+               notifyAll();
+            } else if (buffer.isEmpty() && closed) {
+               end = true;
+               terminated = true;
+               draining = false;
+            } else {
+               draining = false;
+               return;
+            }
+         }
+
+         if (end) {
+            if (error != null)
+               subscriber.onError(error);
+            else
+               subscriber.onComplete();
+            return;
+         }
+         subscriber.onNext(item);
+      }
+   }
+}
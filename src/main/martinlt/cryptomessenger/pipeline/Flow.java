@@ -0,0 +1,70 @@
+package martinlt.cryptomessenger.pipeline;
+
+/**
+ * The interfaces of a reactive stream, with the same shape and rules as
+ * {@code java.util.concurrent.Flow} (Java 9), which this code cannot use as
+ * it still builds for Java 8. An adapter to the JDK's interfaces is one line
+ * per method.
+ * <p>
+ * A {@link Subscriber} receives items only as fast as it asks for them with
+ * {@link Subscription#request(long)}, so a fast producer is held back by the
+ * slowest stage after it instead of filling the heap.
+ * </p>
+ */
+public final class Flow
+{
+   private Flow()
+   {
+   }
+
+   /**
+    * Produces items for one or more subscribers, as they request them.
+    */
+   @FunctionalInterface
+   public interface Publisher<T>
+   {
+      void subscribe(Subscriber<? super T> subscriber);
+   }
+
+   /**
+    * Receives the items of a publisher. The methods are called one at a time,
+    * never concurrently, and after {@link #onError(Throwable)} or
+    * {@link #onComplete()} no more are called.
+    */
+   public interface Subscriber<T>
+   {
+      void onSubscribe(Subscription subscription);
+
+      void onNext(T item);
+
+      void onError(Throwable throwable);
+
+      void onComplete();
+   }
+
+   /**
+    * Links a publisher and one subscriber.
+    */
+   public interface Subscription
+   {
+      /**
+       * Asks for up to n more items. Calls add up.
+       *
+       * @param n
+       *           a positive number; Long.MAX_VALUE means no limit
+       */
+      void request(long n);
+
+      /**
+       * Asks the publisher to stop sending items, eventually.
+       */
+      void cancel();
+   }
+
+   /**
+    * A stage which is both a subscriber and a publisher.
+    */
+   public interface Processor<T, R> extends Subscriber<T>, Publisher<R>
+   {
+   }
+}
@@ -0,0 +1,168 @@
+package martinlt.cryptomessenger.pipeline;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Base64;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import martinlt.cryptomessenger.MainApp;
+import martinlt.cryptomessenger.crypto.KeyRing;
+
+/**
+ * The transforms pipelines are built from. Each one is safe to apply on
+ * several threads at once, so it can go in a {@link TransformProcessor} of
+ * any parallelism.
+ * <p>
+ * For example, to send a stream of messages compressed, encrypted and Base64
+ * encoded, with encryption on four threads:
+ * </p>
+ *
+ * <pre>
+ * BufferedPublisher&lt;byte[]&gt; messages = new BufferedPublisher&lt;byte[]&gt;(64);
+ * TransformProcessor&lt;byte[], byte[]&gt; encrypt = new TransformProcessor&lt;byte[], byte[]&gt;(
+ *       Stages.compress().andThen(Stages.encrypt(keyRing, "bob")), 4);
+ * TransformProcessor&lt;byte[], String&gt; encode = new TransformProcessor&lt;byte[], String&gt;(
+ *       Stages.base64Encode(), 1);
+ * messages.subscribe(encrypt);
+ * encrypt.subscribe(encode);
+ * encode.subscribe(...);
+ * </pre>
+ */
+public final class Stages
+{
+   /**
+    * Largest message {@link #decompress()} produces, so that a small
+    * compressed message cannot fill the heap.
+    */
+   public static final int MAX_DECOMPRESSED_SIZE = 16 * 1024 * 1024;
+
+   private Stages()
+   {
+   }
+
+   /**
+    * Encrypts messages for a recipient as {@link MainApp#encryptFor(String,
+    * String)} does, including keeping them in the history if enabled.
+    *
+    * @param app
+    * @param recipient
+    * @return
+    */
+   public static Transform<String, byte[]> encryptFor(MainApp app, String recipient)
+   {
+      return message -> app.encryptFor(message, recipient);
+   }
+
+   /**
+    * Decrypts messages from a sender as {@link MainApp#decryptFrom(byte[],
+    * String)} does, including keeping them in the history if enabled.
+    *
+    * @param app
+    * @param sender
+    *           the sender, which is not needed in RSA mode
+    * @return
+    */
+   public static Transform<byte[], String> decryptFrom(MainApp app, String sender)
+   {
+      return message -> app.decryptFrom(message, sender);
+   }
+
+   /**
+    * Encrypts messages or chunks for a recipient.
+    *
+    * @param keyRing
+    * @param recipient
+    * @return
+    */
+   public static Transform<byte[], byte[]> encrypt(KeyRing keyRing, String recipient)
+   {
+      return plainText -> keyRing.encrypt(plainText, recipient);
+   }
+
+   /**
+    * Decrypts messages or chunks from a sender.
+    *
+    * @param keyRing
+    * @param sender
+    *           the sender, which is not needed in RSA mode
+    * @return
+    */
+   public static Transform<byte[], byte[]> decrypt(KeyRing keyRing, String sender)
+   {
+      return cipherText -> keyRing.decrypt(cipherText, sender);
+   }
+
+   /**
+    * Compresses with Deflate. Compression has to come before encryption, as
+    * ciphertext does not compress.
+    *
+    * @return
+    */
+   public static Transform<byte[], byte[]> compress()
+   {
+      return data -> {
+         Deflater deflater = new Deflater();
+         try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 64);
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+               out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+         } finally {
+            deflater.end();
+         }
+      };
+   }
+
+   /**
+    * Undoes {@link #compress()}.
+    *
+    * @return
+    */
+   public static Transform<byte[], byte[]> decompress()
+   {
+      return data -> {
+         Inflater inflater = new Inflater();
+         try {
+            inflater.setInput(data);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 2 + 64);
+            byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+               int count = inflater.inflate(buffer);
+               if (count == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                  throw new DataFormatException("Truncated compressed data");
+               if (out.size() + count > MAX_DECOMPRESSED_SIZE)
+                  throw new DataFormatException("Decompressed data is too large");
+               out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+         } finally {
+            inflater.end();
+         }
+      };
+   }
+
+   /**
+    * Encodes as Base64, as messages are shown and pasted.
+    *
+    * @return
+    */
+   public static Transform<byte[], String> base64Encode()
+   {
+      return data -> Base64.getEncoder().encodeToString(data);
+   }
+
+   /**
+    * Decodes Base64.
+    *
+    * @return
+    */
+   public static Transform<String, byte[]> base64Decode()
+   {
+      return text -> Base64.getDecoder().decode(text);
+   }
+}
@@ -0,0 +1,27 @@
+package martinlt.cryptomessenger.pipeline;
+
+/**
+ * One step of a pipeline, such as compressing, encrypting or encoding a
+ * message. See {@link Stages} for the ones provided.
+ * <p>
+ * A transform may be called on several threads at once, so it must not keep
+ * state between items.
+ * </p>
+ */
+@FunctionalInterface
+public interface Transform<T, R>
+{
+   R apply(T item) throws Exception;
+
+   /**
+    * Returns a transform applying this one and then another, so that cheap
+    * steps can share a {@link TransformProcessor}.
+    *
+    * @param next
+    * @return
+    */
+   default <V> Transform<T, V> andThen(Transform<? super R, ? extends V> next)
+   {
+      return item -> next.apply(apply(item));
+   }
+}
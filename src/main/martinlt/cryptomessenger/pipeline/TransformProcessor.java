@@ -0,0 +1,352 @@
+package martinlt.cryptomessenger.pipeline;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * A processor applying a {@link Transform} to each item, on up to a given
+ * number of threads at once, and publishing the results in the order the
+ * items arrived.
+ * <p>
+ * Items are only requested from upstream when the subscriber has asked for
+ * results, and no more than the buffer size are held at a time, whether
+ * waiting to be transformed or waiting to be delivered. They are requested
+ * in batches: once half of what was asked for has arrived, the rest of the
+ * buffer is asked for in one go.
+ * </p>
+ * <p>
+ * If the transform fails, upstream is cancelled and the subscriber gets the
+ * exception through {@link Flow.Subscriber#onError(Throwable)}. An error from
+ * upstream is passed on after the results of the items received before it.
+ * </p>
+ * <p>
+ * Results are delivered on whichever thread finished the item or asked for
+ * more, one at a time.
+ * </p>
+ */
+public class TransformProcessor<T, R> implements Flow.Processor<T, R>
+{
+   /**
+    * Default number of items held by a processor.
+    */
+   public static final int DEFAULT_BUFFER_SIZE = 256;
+
+   private final Transform<? super T, ? extends R> transform;
+   private final Executor executor;
+   private final int parallelism;
+   private final int bufferSize;
+
+   /**
+    * Items received and not yet delivered, in order.
+    */
+   private final ArrayDeque<Slot<T, R>> slots = new ArrayDeque<Slot<T, R>>();
+
+   /**
+    * Items received and not yet started.
+    */
+   private final ArrayDeque<Slot<T, R>> waiting = new ArrayDeque<Slot<T, R>>();
+
+   private Flow.Subscription upstream;
+   private Flow.Subscriber<? super R> downstream;
+
+   private int running;
+   private long demand;
+   private long upstreamPending;
+   private boolean upstreamDone;
+   private Throwable upstreamError;
+   private Throwable failure;
+   private boolean terminated;
+   private boolean draining;
+
+   /**
+    * Creates a processor running on the common pool, with the default buffer
+    * size.
+    *
+    * @param transform
+    *           applied to each item
+    * @param parallelism
+    *           the most items transformed at once
+    */
+   public TransformProcessor(Transform<? super T, ? extends R> transform, int parallelism)
+   {
+      this(transform, ForkJoinPool.commonPool(), parallelism, DEFAULT_BUFFER_SIZE);
+   }
+
+   /**
+    * Creates a processor.
+    *
+    * @param transform
+    *           applied to each item
+    * @param executor
+    *           runs the transform
+    * @param parallelism
+    *           the most items transformed at once
+    * @param bufferSize
+    *           the most items held at once
+    */
+   public TransformProcessor(Transform<? super T, ? extends R> transform, Executor executor,
+         int parallelism, int bufferSize)
+   {
+      if (parallelism < 1)
+         throw new IllegalArgumentException("parallelism must be at least 1");
+      if (bufferSize < 1)
+         throw new IllegalArgumentException("bufferSize must be at least 1");
+
+      this.transform = transform;
+      this.executor = executor;
+      this.parallelism = parallelism;
+      this.bufferSize = bufferSize;
+   }
+
+   /**
+    * Accepts one subscriber only.
+    */
+   @Override
+   public void subscribe(Flow.Subscriber<? super R> subscriber)
+   {
+      synchronized (this) {
+         if (downstream == null) {
+            downstream = subscriber;
+            subscriber = null;
+         }
+      }
+      if (subscriber != null) {
+         subscriber.onSubscribe(new Flow.Subscription() {
+            @Override
+            public void request(long n)
+            {
+            }
+
+            @Override
+            public void cancel()
+            {
+            }
+         });
+         subscriber.onError(new IllegalStateException("Already subscribed"));
+         return;
+      }
+
+      downstream.onSubscribe(new Flow.Subscription() {
+         @Override
+         public void request(long n)
+         {
+            synchronized (TransformProcessor.this) {
+               if (n <= 0)
+                  fail(new IllegalArgumentException("Non-positive request " + n));
+               else
+                  demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+            }
+            drain();
+         }
+
+         @Override
+         public void cancel()
+         {
+            Flow.Subscription subscription;
+            synchronized (TransformProcessor.this) {
+               terminated = true;
+               slots.clear();
+               waiting.clear();
+               subscription = upstream;
+            }
+            if (subscription != null)
+               subscription.cancel();
+         }
+      });
+      drain();
+   }
+
+   @Override
+   public void onSubscribe(Flow.Subscription subscription)
+   {
+      synchronized (this) {
+         if (upstream == null && !terminated) {
+            upstream = subscription;
+            subscription = null;
+         }
+      }
+      if (subscription != null) {
+         subscription.cancel();
+         return;
+      }
+      drain();
+   }
+
+   @Override
+   public void onNext(T item)
+   {
+      synchronized (this) {
+         if (terminated)
+            return;
+         Slot<T, R> slot = new Slot<T, R>(item);
+         slots.add(slot);
+         waiting.add(slot);
+         upstreamPending--;
+         start();
+      }
+   }
+
+   @Override
+   public void onError(Throwable throwable)
+   {
+      synchronized (this) {
+         upstreamDone = true;
+         upstreamError = throwable;
+      }
+      drain();
+   }
+
+   @Override
+   public void onComplete()
+   {
+      synchronized (this) {
+         upstreamDone = true;
+      }
+      drain();
+   }
+
+   /**
+    * Starts transforming waiting items, up to the parallelism. Called holding
+    * the lock.
+    */
+   private void start()
+   {
+      while (running < parallelism && !waiting.isEmpty()) {
+         final Slot<T, R> slot = waiting.poll();
+         running++;
+         executor.execute(() -> run(slot));
+      }
+   }
+
+   private void run(Slot<T, R> slot)
+   {
+      try {
+         slot.result = transform.apply(slot.item);
+      } catch (Throwable e) {
+         slot.error = e;
+      }
+      synchronized (this) {
+         slot.item = null;
+         slot.done = true;
+         running--;
+         if (!terminated)
+            start();
+      }
+      drain();
+   }
+
+   /**
+    * Records a failure to be passed on in place of the remaining results.
+    * Called holding the lock.
+    */
+   private void fail(Throwable throwable)
+   {
+      if (failure == null)
+         failure = throwable;
+   }
+
+   /**
+    * Delivers what results it can, passes on the end of the stream and asks
+    * upstream for more. Only one thread drains at a time; the others leave
+    * their changes for it to find, as every decision to stop is made holding
+    * the lock.
+    */
+   private void drain()
+   {
+      synchronized (this) {
+         if (draining)
+            return;
+         draining = true;
+      }
+
+      while (true) {
+         Slot<T, R> slot = null;
+         Throwable error = null;
+         boolean complete = false;
+         long request = 0;
+         Flow.Subscription subscription;
+         boolean cancelUpstream;
+
+         synchronized (this) {
+            subscription = upstream;
+            cancelUpstream = !upstreamDone && upstream != null;
+            Slot<T, R> head = slots.peek();
+
+            if (terminated || downstream == null) {
+               draining = false;
+               return;
+            } else if (failure != null) {
+               error = failure;
+            } else if (head != null && head.done && demand > 0) {
+               slot = slots.poll();
+               if (demand != Long.MAX_VALUE)
+                  demand--;
+               if (slot.error != null)
+                  error = slot.error;
+            } else if (head == null && upstreamDone) {
+               error = upstreamError;
+               complete = error == null;
+            } else if ((request = upstreamRequest()) == 0) {
+               draining = false;
+               return;
+            }
+
+            if (error != null || complete) {
+               terminated = true;
+               draining = false;
+               slots.clear();
+               waiting.clear();
+            }
+         }
+
+         if (error != null) {
+            if (cancelUpstream)
+               subscription.cancel();
+            downstream.onError(error);
+            return;
+         } else if (complete) {
+            downstream.onComplete();
+            return;
+         } else if (slot != null) {
+            downstream.onNext(slot.result);
+         } else {
+            subscription.request(request);
+         }
+      }
+   }
+
+   /**
+    * Returns how many more items to ask upstream for, and counts them as
+    * asked for. Called holding the lock.
+    */
+   private long upstreamRequest()
+   {
+      if (upstream == null || upstreamDone)
+         return 0;
+
+      long limit = Math.min(bufferSize, demand);
+      long outstanding = slots.size() + upstreamPending;
+      if (outstanding > limit / 2 || outstanding >= limit)
+         return 0;
+
+      upstreamPending += limit - outstanding;
+      return limit - outstanding;
+   }
+
+   /**
+    * An item and, once transformed, its result.
+    */
+   private static class Slot<T, R>
+   {
+      T item;
+      R result;
+      Throwable error;
+      boolean done;
+
+      Slot(T item)
+      {
+         this.item = item;
+      }
+   }
+}
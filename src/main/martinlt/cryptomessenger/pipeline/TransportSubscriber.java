@@ -0,0 +1,136 @@
+package martinlt.cryptomessenger.pipeline;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+import martinlt.cryptomessenger.transport.PeerTransport;
+
+/**
+ * The end of a pipeline: sends each envelope to a peer over a
+ * {@link PeerTransport}. At most a fixed number of envelopes are sent and
+ * not yet acknowledged; another is asked for as each acknowledgement comes
+ * back, so the pipeline runs no faster than the peer takes messages.
+ */
+public class TransportSubscriber implements Flow.Subscriber<byte[]>
+{
+   private final PeerTransport transport;
+   private final String peer;
+   private final int window;
+
+   private final AtomicLong processed = new AtomicLong();
+   private final AtomicLong failed = new AtomicLong();
+   private final CompletableFuture<Void> done = new CompletableFuture<Void>();
+
+   private Flow.Subscription subscription;
+
+   /**
+    * Number of envelopes sent and not yet acknowledged, plus one until the
+    * stream completes. Guarded by this.
+    */
+   private long outstanding = 1;
+
+   /**
+    * Creates a subscriber.
+    *
+    * @param transport
+    *           the transport to send on, already connected to the peer
+    * @param peer
+    *           the peer to send to
+    * @param window
+    *           the most envelopes sent and not yet acknowledged
+    */
+   public TransportSubscriber(PeerTransport transport, String peer, int window)
+   {
+      if (window < 1)
+         throw new IllegalArgumentException("window must be at least 1");
+
+      this.transport = transport;
+      this.peer = peer;
+      this.window = window;
+   }
+
+   /**
+    * Returns a future completed once the stream has ended and every envelope
+    * sent has been acknowledged, or completed exceptionally if the stream
+    * failed or an envelope could not be sent.
+    *
+    * @return
+    */
+   public CompletableFuture<Void> getCompletion()
+   {
+      return done;
+   }
+
+   /**
+    * Returns the number of envelopes the peer has acknowledged as processed.
+    *
+    * @return
+    */
+   public long getProcessed()
+   {
+      return processed.get();
+   }
+
+   /**
+    * Returns the number of envelopes the peer could not process.
+    *
+    * @return
+    */
+   public long getFailed()
+   {
+      return failed.get();
+   }
+
+   @Override
+   public void onSubscribe(Flow.Subscription subscription)
+   {
+      this.subscription = subscription;
+      subscription.request(window);
+   }
+
+   @Override
+   public void onNext(byte[] envelope)
+   {
+      synchronized (this) {
+         outstanding++;
+      }
+      try {
+         transport.send(peer, envelope).whenComplete((ok, e) -> {
+            if (e != null) {
+               subscription.cancel();
+               done.completeExceptionally(e);
+               return;
+            }
+            (ok ? processed : failed).incrementAndGet();
+            acknowledged();
+            if (!done.isDone())
+               subscription.request(1);
+         });
+      } catch (Exception e) {
+         subscription.cancel();
+         done.completeExceptionally(e);
+      }
+   }
+
+   @Override
+   public void onError(Throwable throwable)
+   {
+      done.completeExceptionally(throwable);
+   }
+
+   @Override
+   public void onComplete()
+   {
+      acknowledged();
+   }
+
+   private void acknowledged()
+   {
+      boolean finished;
+      synchronized (this) {
+         finished = --outstanding == 0;
+      }
+      if (finished)
+         done.complete(null);
+   }
+}
@@ -0,0 +1,47 @@
+package martinlt.cryptomessenger.relay;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bytes a {@link RelayStore} may use, shared by all of its queues: one budget
+ * for envelopes held in memory and one for segment files on disk.
+ */
+class ByteBudget
+{
+   private final AtomicLong available;
+
+   ByteBudget(long bytes)
+   {
+      available = new AtomicLong(bytes);
+   }
+
+   boolean tryReserve(long bytes)
+   {
+      long current;
+      do {
+         current = available.get();
+         if (current < bytes)
+            return false;
+      } while (!available.compareAndSet(current, current - bytes));
+      return true;
+   }
+
+   /**
+    * Takes bytes already in use, i.e. by files left from an earlier run,
+    * even if that leaves the budget overdrawn.
+    */
+   void take(long bytes)
+   {
+      available.addAndGet(-bytes);
+   }
+
+   void release(long bytes)
+   {
+      available.addAndGet(bytes);
+   }
+
+   long available()
+   {
+      return available.get();
+   }
+}
@@ -0,0 +1,300 @@
+package martinlt.cryptomessenger.relay;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+
+import martinlt.cryptomessenger.concurrent.ThreadPools;
+import martinlt.cryptomessenger.crypto.Fingerprint;
+import martinlt.cryptomessenger.crypto.KeyChallenge;
+import martinlt.cryptomessenger.exception.SecurityException;
+import martinlt.cryptomessenger.transport.Frames;
+
+/**
+ * Store-and-forward relay for parties who are not always online.
+ * <p>
+ * Senders deposit envelopes addressed by the fingerprint of the recipient's
+ * public key; the relay queues them in a {@link RelayStore} and delivers
+ * them, in order, when the recipient connects and collects. The relay only
+ * ever handles ciphertext and holds no keys. A collector gives its public
+ * key and must answer a {@link KeyChallenge} for it, so only the holder of
+ * the private key can take the envelopes queued under its fingerprint.
+ * </p>
+ * <p>
+ * As in {@link martinlt.cryptomessenger.transport.MessageServer}, each
+ * connection is served by blocking I/O on its own thread, virtual where the
+ * JDK has them, so many senders can deposit at once. Deposits are
+ * acknowledged as soon as they are queued, and acknowledgements are flushed
+ * once the sender has nothing more in flight. See {@link Frames} for the
+ * wire format.
+ * </p>
+ */
+public class Relay implements Closeable
+{
+   /**
+    * Most envelopes sent to a collector before waiting for their
+    * acknowledgements.
+    */
+   private static final int DELIVERY_WINDOW = 64;
+
+   /**
+    * How long a collector waits for envelopes before checking it is still
+    * wanted, in milliseconds.
+    */
+   private static final long POLL_INTERVAL = 1000;
+
+   /**
+    * What a collector's answer to its challenge is bound to.
+    */
+   public static final String COLLECT_PURPOSE = "CryptoMessenger relay collect";
+
+   /**
+    * Largest public key, challenge or answer accepted while collecting.
+    */
+   public static final int MAX_CHALLENGE_SIZE = 8192;
+
+   private final RelayStore store;
+   private final ExecutorService sessions;
+   private final Set<Socket> openSockets = ConcurrentHashMap.newKeySet();
+
+   private ServerSocket serverSocket;
+   private volatile boolean running;
+
+   public Relay(RelayStore store)
+   {
+      this.store = store;
+      this.sessions = ThreadPools.newThreadPerTaskExecutor("relay-session");
+   }
+
+   /**
+    * Starts accepting connections.
+    *
+    * @param address
+    *           the address to listen on; use port 0 to pick a free port
+    * @return the address actually bound
+    * @throws IOException
+    */
+   public InetSocketAddress start(InetSocketAddress address) throws IOException
+   {
+      serverSocket = new ServerSocket();
+      serverSocket.bind(address, 1024);
+      running = true;
+
+      Thread acceptor = new Thread(this::acceptLoop, "relay-acceptor");
+      acceptor.setDaemon(true);
+      acceptor.start();
+
+      return (InetSocketAddress) serverSocket.getLocalSocketAddress();
+   }
+
+   /**
+    * Stops accepting connections and closes every session. Envelopes not yet
+    * delivered stay in the store.
+    */
+   @Override
+   public void close() throws IOException
+   {
+      running = false;
+      if (serverSocket != null)
+         serverSocket.close();
+
+      for (Socket socket : openSockets) {
+         socket.close();
+      }
+      sessions.shutdown();
+   }
+
+   private void acceptLoop()
+   {
+      while (running) {
+         try {
+            final Socket socket = serverSocket.accept();
+            socket.setTcpNoDelay(true);
+            openSockets.add(socket);
+            sessions.execute(() -> serve(socket));
+         } catch (IOException e) {
+            if (running)
+               e.printStackTrace();
+         }
+      }
+   }
+
+   /**
+    * Runs one session until the peer disconnects.
+    */
+   private void serve(Socket socket)
+   {
+      try {
+         DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+         DataOutputStream out = new DataOutputStream(
+               new BufferedOutputStream(socket.getOutputStream()));
+
+         while (true) {
+            int length = in.readInt();
+            if (length < 1 || length - 1 > Frames.MAX_PAYLOAD_SIZE)
+               throw new IOException("Bad frame length " + length);
+            byte type = in.readByte();
+
+            switch (type) {
+            case Frames.HELLO:
+               in.readFully(new byte[length - 1]);
+               break;
+
+            case Frames.DEPOSIT:
+               if (length - 1 <= 2 * Frames.DIGEST_SIZE)
+                  throw new IOException("Bad deposit frame");
+
+               // The recipient is read apart so the rest can be queued as is
+               byte[] recipient = new byte[Frames.DIGEST_SIZE];
+               in.readFully(recipient);
+               byte[] record = new byte[length - 1 - Frames.DIGEST_SIZE];
+               in.readFully(record);
+
+               boolean queued = false;
+               try {
+                  store.deposit(Fingerprint.hex(recipient), record);
+                  queued = true;
+               } catch (IOException e) {
+                  // acknowledged as failed, i.e. the disk is full
+               }
+
+               out.writeInt(2);
+               out.writeByte(Frames.ACK);
+               out.writeByte(queued ? Frames.ACK_OK : Frames.ACK_FAILED);
+
+               // Only flush when the sender is waiting on us
+               if (in.available() == 0)
+                  out.flush();
+               break;
+
+            case Frames.COLLECT:
+               if (length - 1 > MAX_CHALLENGE_SIZE)
+                  throw new IOException("Bad collect frame");
+               byte[] publicKey = new byte[length - 1];
+               in.readFully(publicKey);
+               if (!challenge(publicKey, in, out))
+                  throw new IOException("Collector did not prove it holds its key");
+               deliver(store.queue(Fingerprint.of(publicKey)), socket, in, out);
+               return;
+
+            default:
+               throw new IOException("Unknown frame type " + type);
+            }
+         }
+      } catch (EOFException e) {
+         // peer disconnected
+      } catch (IOException e) {
+         if (running)
+            e.printStackTrace();
+      } catch (InterruptedException e) {
+         // relay closed
+      } finally {
+         openSockets.remove(socket);
+         try {
+            socket.close();
+         } catch (IOException ignored) {
+         }
+      }
+   }
+
+   /**
+    * Challenges a collector to show it holds the private key for the public
+    * key it collects for.
+    *
+    * @return true if it answered correctly
+    */
+   private static boolean challenge(byte[] publicKey, DataInputStream in, DataOutputStream out)
+         throws IOException
+   {
+      KeyChallenge challenge;
+      try {
+         challenge = KeyChallenge.issue(publicKey, COLLECT_PURPOSE);
+      } catch (SecurityException e) {
+         throw new IOException("Bad collector key", e);
+      }
+      byte[] bytes = challenge.getBytes();
+      out.writeInt(1 + bytes.length);
+      out.writeByte(Frames.CHALLENGE);
+      out.write(bytes);
+      out.flush();
+
+      int length = in.readInt();
+      byte type = in.readByte();
+      if (type != Frames.CHALLENGE || length < 2 || length - 1 > MAX_CHALLENGE_SIZE)
+         throw new IOException("Expected an answer to the challenge");
+      byte[] answer = new byte[length - 1];
+      in.readFully(answer);
+      return challenge.verify(answer);
+   }
+
+   /**
+    * Sends a collector its envelopes, in windows, removing each window once
+    * it is acknowledged. Runs until the collector disconnects or another
+    * takes over.
+    */
+   private void deliver(SpillingQueue queue, Socket socket, DataInputStream in,
+         DataOutputStream out) throws IOException, InterruptedException
+   {
+      long collector = queue.takeOver();
+      try {
+         while (running) {
+            List<byte[]> window = queue.peek(DELIVERY_WINDOW, POLL_INTERVAL, collector);
+            if (window.isEmpty()) {
+               if (disconnected(socket, in))
+                  return;
+               continue;
+            }
+
+            for (byte[] record : window) {
+               out.writeInt(1 + record.length);
+               out.writeByte(Frames.MESSAGE);
+               out.write(record);
+            }
+            out.flush();
+
+            for (int i = 0; i < window.size(); i++) {
+               int length = in.readInt();
+               byte type = in.readByte();
+               if (type != Frames.ACK || length != 2)
+                  throw new IOException("Expected an acknowledgement");
+               in.readByte();
+            }
+
+            if (!queue.remove(window.size(), collector))
+               return;
+         }
+      } catch (IllegalStateException e) {
+         // another collector has taken over
+      }
+   }
+
+   /**
+    * Checks whether an idle collector has gone away. Collectors send nothing
+    * but acknowledgements, so anything else is an error.
+    */
+   private static boolean disconnected(Socket socket, DataInputStream in) throws IOException
+   {
+      socket.setSoTimeout(1);
+      try {
+         if (in.read() < 0)
+            return true;
+         throw new IOException("Unexpected data from collector");
+      } catch (SocketTimeoutException e) {
+         return false;
+      } finally {
+         socket.setSoTimeout(0);
+      }
+   }
+}
@@ -0,0 +1,224 @@
+package martinlt.cryptomessenger.relay;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import martinlt.cryptomessenger.crypto.Fingerprint;
+import martinlt.cryptomessenger.crypto.KeyRing;
+import martinlt.cryptomessenger.exception.NoSuchPublicKeyException;
+import martinlt.cryptomessenger.exception.SecurityException;
+import martinlt.cryptomessenger.transport.Frames;
+import martinlt.cryptomessenger.transport.MessageListener;
+
+/**
+ * A party's connection to a {@link Relay}, used either to send messages
+ * through it or to collect the messages waiting there.
+ * <p>
+ * Messages are encrypted with the party's {@link KeyRing} before they leave,
+ * and addressed using the fingerprint of the recipient's public key. Sending
+ * does not wait for the relay: deposits are pipelined and their
+ * acknowledgements read back once a window of them is in flight, or on
+ * {@link #flush()}.
+ * </p>
+ */
+public class RelayClient implements Closeable
+{
+   /**
+    * Most deposits in flight before waiting for acknowledgements.
+    */
+   private static final int WINDOW = 64;
+
+   private final KeyRing keyRing;
+   private final Socket socket;
+   private final DataInputStream in;
+   private final DataOutputStream out;
+   private final byte[] ownDigest;
+
+   private int unacknowledged;
+   private int refused;
+
+   /**
+    * Connects to a relay.
+    *
+    * @param keyRing
+    *           the keys of the party, which must know the parties it sends to
+    *           or collects from
+    * @param relay
+    *           the address of the relay
+    * @throws IOException
+    */
+   public RelayClient(KeyRing keyRing, InetSocketAddress relay) throws IOException
+   {
+      this.keyRing = keyRing;
+      this.ownDigest = Fingerprint.hash(keyRing.getEncodedPublicKey());
+      this.socket = new Socket(relay.getAddress(), relay.getPort());
+      socket.setTcpNoDelay(true);
+      in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+      out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+      byte[] name = keyRing.getName().getBytes(StandardCharsets.UTF_8);
+      out.writeInt(1 + name.length);
+      out.writeByte(Frames.HELLO);
+      out.write(name);
+   }
+
+   /**
+    * Encrypts a message and leaves it at the relay for a party.
+    *
+    * @param recipient
+    *           the name of a known party
+    * @param message
+    *           the cleartext message
+    * @throws SecurityException
+    *            if the message could not be encrypted
+    * @throws IOException
+    *            if the relay could not be reached
+    */
+   public void send(String recipient, String message) throws SecurityException, IOException
+   {
+      String fingerprint = keyRing.fingerprintOf(recipient);
+      if (fingerprint == null)
+         throw new NoSuchPublicKeyException(recipient);
+
+      byte[] envelope = keyRing.encrypt(message.getBytes(), recipient);
+      out.writeInt(1 + 2 * Frames.DIGEST_SIZE + envelope.length);
+      out.writeByte(Frames.DEPOSIT);
+      out.write(Fingerprint.parseHex(fingerprint));
+      out.write(ownDigest);
+      out.write(envelope);
+
+      if (++unacknowledged == WINDOW)
+         readAcknowledgements();
+   }
+
+   /**
+    * Sends any buffered deposits and waits until the relay has acknowledged
+    * them all.
+    *
+    * @return the number of messages the relay could not queue since the last
+    *         flush
+    * @throws IOException
+    */
+   public int flush() throws IOException
+   {
+      readAcknowledgements();
+      int count = refused;
+      refused = 0;
+      return count;
+   }
+
+   /**
+    * Collects the messages waiting at the relay for this party, and those
+    * that arrive later, until the connection is closed. The relay first has
+    * this party prove it holds its private key. Senders are found
+    * using the fingerprints the relay passes on; messages from unknown
+    * parties are reported as failed. Each message is acknowledged once the
+    * listener has returned, so the relay delivers it again if this party
+    * goes away first.
+    *
+    * @param listener
+    *           receives the messages on this thread
+    * @throws IOException
+    *            if the connection failed other than by being closed
+    */
+   public void collect(MessageListener listener) throws IOException
+   {
+      flush();
+      byte[] publicKey = keyRing.getEncodedPublicKey();
+      out.writeInt(1 + publicKey.length);
+      out.writeByte(Frames.COLLECT);
+      out.write(publicKey);
+      out.flush();
+
+      try {
+         // Prove this party holds the key it collects for
+         int challengeLength = in.readInt();
+         if (in.readByte() != Frames.CHALLENGE || challengeLength < 2
+               || challengeLength - 1 > Relay.MAX_CHALLENGE_SIZE)
+            throw new IOException("Expected a challenge from relay");
+         byte[] challenge = new byte[challengeLength - 1];
+         in.readFully(challenge);
+         byte[] answer;
+         try {
+            answer = keyRing.answerChallenge(challenge, Relay.COLLECT_PURPOSE);
+         } catch (SecurityException e) {
+            throw new IOException("Could not answer relay challenge", e);
+         }
+         out.writeInt(1 + answer.length);
+         out.writeByte(Frames.CHALLENGE);
+         out.write(answer);
+         out.flush();
+
+         while (true) {
+            int length = in.readInt();
+            byte type = in.readByte();
+            if (type != Frames.MESSAGE || length - 1 <= Frames.DIGEST_SIZE
+                  || length - 1 > Frames.MAX_PAYLOAD_SIZE)
+               throw new IOException("Unexpected frame from relay");
+
+            byte[] senderDigest = new byte[Frames.DIGEST_SIZE];
+            in.readFully(senderDigest);
+            byte[] envelope = new byte[length - 1 - Frames.DIGEST_SIZE];
+            in.readFully(envelope);
+
+            String fingerprint = Fingerprint.hex(senderDigest);
+            String sender = keyRing.partyWithFingerprint(fingerprint);
+            try {
+               if (sender == null)
+                  throw new NoSuchPublicKeyException("Unknown sender " + fingerprint);
+               listener.messageReceived(sender, new String(keyRing.decrypt(envelope, sender)));
+            } catch (SecurityException e) {
+               listener.messageFailed(sender == null ? fingerprint : sender, e);
+            }
+
+            out.writeInt(2);
+            out.writeByte(Frames.ACK);
+            out.writeByte(Frames.ACK_OK);
+            if (in.available() == 0)
+               out.flush();
+         }
+      } catch (EOFException e) {
+         // relay closed the connection
+      } catch (IOException e) {
+         if (!socket.isClosed())
+            throw e;
+      }
+   }
+
+   /**
+    * Flushes any deposits and disconnects. Safe to call from another thread
+    * to stop {@link #collect(MessageListener)}, in which case nothing is
+    * flushed.
+    */
+   @Override
+   public void close() throws IOException
+   {
+      try {
+         if (unacknowledged > 0)
+            readAcknowledgements();
+      } finally {
+         socket.close();
+      }
+   }
+
+   private void readAcknowledgements() throws IOException
+   {
+      out.flush();
+      for (; unacknowledged > 0; unacknowledged--) {
+         int length = in.readInt();
+         byte type = in.readByte();
+         if (type != Frames.ACK || length != 2)
+            throw new IOException("Expected an acknowledgement");
+         if (in.readByte() != Frames.ACK_OK)
+            refused++;
+      }
+   }
+}
@@ -0,0 +1,177 @@
+package martinlt.cryptomessenger.relay;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The queues of a {@link Relay}, one per recipient, keyed using the
+ * fingerprint of the recipient's public key (see
+ * {@link martinlt.cryptomessenger.crypto.Fingerprint}).
+ * <p>
+ * All queues share one memory budget. A queue that would go over it spills
+ * to segment files in a directory named after the fingerprint; see
+ * {@link SpillingQueue}. Each queue may spill up to a disk quota, so one
+ * recipient who never collects cannot fill the disk for the others, and all
+ * queues together up to a disk budget, so neither can a sender depositing
+ * for many made up recipients. Queues left on disk by an earlier run are
+ * reopened when the store is created.
+ * </p>
+ */
+public class RelayStore
+{
+   /**
+    * Disk quota per recipient unless another is given.
+    */
+   public static final long DEFAULT_DISK_QUOTA = 1024L * 1024 * 1024;
+
+   /**
+    * Disk budget for all recipients together unless another is given.
+    */
+   public static final long DEFAULT_DISK_BUDGET = 8 * DEFAULT_DISK_QUOTA;
+
+   private final Path directory;
+   private final ByteBudget budget;
+   private final ByteBudget diskBudget;
+   private final long diskQuota;
+   private final ConcurrentHashMap<String, SpillingQueue> queues = new ConcurrentHashMap<String, SpillingQueue>();
+
+   /**
+    * Opens a store.
+    *
+    * @param directory
+    *           where queues are spilled to
+    * @param memoryBudget
+    *           the most bytes of envelopes held in memory
+    * @throws IOException
+    *            if the queues left by an earlier run could not be read
+    */
+   public RelayStore(Path directory, long memoryBudget) throws IOException
+   {
+      this(directory, memoryBudget, DEFAULT_DISK_QUOTA);
+   }
+
+   /**
+    * Opens a store.
+    *
+    * @param directory
+    *           where queues are spilled to
+    * @param memoryBudget
+    *           the most bytes of envelopes held in memory
+    * @param diskQuota
+    *           the most bytes of segment files kept for each recipient
+    * @throws IOException
+    *            if the queues left by an earlier run could not be read
+    */
+   public RelayStore(Path directory, long memoryBudget, long diskQuota) throws IOException
+   {
+      this(directory, memoryBudget, diskQuota, DEFAULT_DISK_BUDGET);
+   }
+
+   /**
+    * Opens a store.
+    *
+    * @param directory
+    *           where queues are spilled to
+    * @param memoryBudget
+    *           the most bytes of envelopes held in memory
+    * @param diskQuota
+    *           the most bytes of segment files kept for each recipient
+    * @param diskBudget
+    *           the most bytes of segment files kept for all recipients
+    * @throws IOException
+    *            if the queues left by an earlier run could not be read
+    */
+   public RelayStore(Path directory, long memoryBudget, long diskQuota, long diskBudget)
+         throws IOException
+   {
+      this.directory = directory;
+      this.budget = new ByteBudget(memoryBudget);
+      this.diskBudget = new ByteBudget(diskBudget);
+      this.diskQuota = diskQuota;
+
+      Files.createDirectories(directory);
+      try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+         for (Path queueDirectory : stream) {
+            if (Files.isDirectory(queueDirectory)) {
+               SpillingQueue queue = queue(queueDirectory.getFileName().toString());
+               queue.recover();
+            }
+         }
+      }
+   }
+
+   /**
+    * Queues an envelope for a recipient.
+    *
+    * @param recipient
+    *           the fingerprint of the recipient's public key
+    * @param record
+    *           the envelope as delivered, i.e. the sender's digest followed by
+    *           the ciphertext
+    * @throws IOException
+    *            if it had to be spilled and could not be written, or the
+    *            recipient is over its disk quota or the store over its disk
+    *            budget
+    */
+   public void deposit(String recipient, byte[] record) throws IOException
+   {
+      queue(recipient).add(record);
+   }
+
+   /**
+    * Returns the number of envelopes waiting for a recipient.
+    *
+    * @param recipient
+    *           the fingerprint of the recipient's public key
+    * @return
+    */
+   public int waiting(String recipient)
+   {
+      SpillingQueue queue = queues.get(recipient);
+      return queue == null ? 0 : queue.size();
+   }
+
+   /**
+    * Returns the number of envelopes waiting for a recipient which have been
+    * spilled to disk.
+    *
+    * @param recipient
+    *           the fingerprint of the recipient's public key
+    * @return
+    */
+   public int spilled(String recipient)
+   {
+      SpillingQueue queue = queues.get(recipient);
+      return queue == null ? 0 : queue.spilled();
+   }
+
+   /**
+    * Returns the bytes left in the memory budget.
+    *
+    * @return
+    */
+   public long memoryAvailable()
+   {
+      return budget.available();
+   }
+
+   /**
+    * Returns the bytes left in the disk budget.
+    *
+    * @return
+    */
+   public long diskAvailable()
+   {
+      return diskBudget.available();
+   }
+
+   SpillingQueue queue(String recipient)
+   {
+      return queues.computeIfAbsent(recipient,
+            fingerprint -> new SpillingQueue(directory.resolve(fingerprint), budget, diskBudget,
+                  diskQuota));
+   }
+}
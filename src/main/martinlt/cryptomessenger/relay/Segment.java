@@ -0,0 +1,173 @@
+package martinlt.cryptomessenger.relay;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A memory-mapped file holding part of a {@link SpillingQueue}. Records are
+ * written one after the other:
+ *
+ * <pre>
+ * int    length, negated once the record has been delivered
+ * byte[] record
+ * </pre>
+ * <p>
+ * A new file is full of zeros, so a length of zero marks the end. Marking
+ * delivered records in place means a segment can be reopened after a
+ * restart without redelivering them.
+ * </p>
+ * <p>
+ * Not thread safe; the queue guards it. The mapping is released by the
+ * garbage collector, as Java 8 has no way to unmap a file.
+ * </p>
+ */
+class Segment
+{
+   final Path file;
+   private final MappedByteBuffer buffer;
+
+   /**
+    * Where the next record is written.
+    */
+   private int writePosition;
+
+   /**
+    * Where the first record not yet delivered is.
+    */
+   private int readPosition;
+
+   private Segment(Path file, MappedByteBuffer buffer)
+   {
+      this.file = file;
+      this.buffer = buffer;
+   }
+
+   /**
+    * Creates a segment file.
+    *
+    * @param file
+    * @param size
+    *           the size of the file, which is fixed
+    */
+   static Segment create(Path file, int size) throws IOException
+   {
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW,
+            StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+         return new Segment(file, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+      }
+   }
+
+   /**
+    * Reopens a segment file written before, skipping the records already
+    * delivered.
+    *
+    * @param file
+    */
+   static Segment open(Path file) throws IOException
+   {
+      Segment segment;
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ,
+            StandardOpenOption.WRITE)) {
+         segment = new Segment(file, channel.map(FileChannel.MapMode.READ_WRITE, 0,
+               channel.size()));
+      }
+
+      int position = 0;
+      boolean delivering = true;
+      while (position + 4 <= segment.buffer.capacity()) {
+         int length = segment.buffer.getInt(position);
+         if (length == 0 || position + 4 + Math.abs((long) length) > segment.buffer.capacity())
+            break;
+         if (length > 0)
+            delivering = false;
+         position += 4 + Math.abs(length);
+         if (delivering)
+            segment.readPosition = position;
+      }
+      segment.writePosition = position;
+      return segment;
+   }
+
+   /**
+    * Returns the size of segment needed to hold a record.
+    */
+   static int sizeFor(int recordLength)
+   {
+      return 4 + recordLength;
+   }
+
+   /**
+    * Returns the size of the file.
+    */
+   int size()
+   {
+      return buffer.capacity();
+   }
+
+   boolean fits(int recordLength)
+   {
+      return writePosition + sizeFor(recordLength) <= buffer.capacity();
+   }
+
+   void append(byte[] record)
+   {
+      ByteBuffer target = buffer.duplicate();
+      target.position(writePosition + 4);
+      target.put(record);
+      // The length goes last, so a record is never seen half written
+      buffer.putInt(writePosition, record.length);
+      writePosition += sizeFor(record.length);
+   }
+
+   /**
+    * Returns the position of the record after the one at the given position.
+    */
+   int next(int position)
+   {
+      return position + 4 + Math.abs(buffer.getInt(position));
+   }
+
+   byte[] read(int position)
+   {
+      byte[] record = new byte[buffer.getInt(position)];
+      ByteBuffer source = buffer.duplicate();
+      source.position(position + 4);
+      source.get(record);
+      return record;
+   }
+
+   int readPosition()
+   {
+      return readPosition;
+   }
+
+   int writePosition()
+   {
+      return writePosition;
+   }
+
+   /**
+    * Marks the first undelivered record as delivered.
+    */
+   void consume()
+   {
+      int length = buffer.getInt(readPosition);
+      buffer.putInt(readPosition, -length);
+      readPosition += sizeFor(length);
+   }
+
+   boolean isEmpty()
+   {
+      return readPosition == writePosition;
+   }
+
+   void delete() throws IOException
+   {
+      Files.deleteIfExists(file);
+   }
+}
@@ -0,0 +1,266 @@
+package martinlt.cryptomessenger.relay;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The envelopes queued for one recipient, oldest first.
+ * <p>
+ * Envelopes are kept in memory while the store's memory budget allows.
+ * Past that they are appended to memory-mapped {@link Segment} files in the
+ * recipient's directory, and every later envelope goes to disk too until the
+ * files have been delivered, so that order is kept. Spilled envelopes
+ * survive a restart of the relay; those in memory do not. The segment files
+ * of a queue may take up no more than its disk quota, past which envelopes
+ * are refused.
+ * </p>
+ * <p>
+ * Envelopes stay queued until {@link #remove(int, long)} is called, once the
+ * recipient has acknowledged them, so delivery is at least once. Only one
+ * collector is served at a time: a new one takes over from the last, which
+ * notices at its next call.
+ * </p>
+ */
+class SpillingQueue
+{
+   /**
+    * Size of a segment file, unless an envelope needs a bigger one.
+    */
+   static final int SEGMENT_SIZE = 4 * 1024 * 1024;
+
+   private static final String SEGMENT_SUFFIX = ".seg";
+
+   private final Path directory;
+   private final ByteBudget budget;
+   private final ByteBudget diskBudget;
+   private final long diskQuota;
+
+   private final ArrayDeque<byte[]> memory = new ArrayDeque<byte[]>();
+   private final ArrayDeque<Segment> segments = new ArrayDeque<Segment>();
+   private long nextSegment;
+   private int spilled;
+
+   /**
+    * The total size of the segment files.
+    */
+   private long diskUsed;
+
+   /**
+    * Increased each time a collector takes over.
+    */
+   private long collector;
+
+   SpillingQueue(Path directory, ByteBudget budget, ByteBudget diskBudget, long diskQuota)
+   {
+      this.directory = directory;
+      this.budget = budget;
+      this.diskBudget = diskBudget;
+      this.diskQuota = diskQuota;
+   }
+
+   /**
+    * Reopens the segment files left in the queue's directory by an earlier
+    * run.
+    */
+   synchronized void recover() throws IOException
+   {
+      TreeMap<Long, Path> files = new TreeMap<Long, Path>();
+      try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+         for (Path file : stream) {
+            String name = file.getFileName().toString();
+            try {
+               files.put(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())),
+                     file);
+            } catch (NumberFormatException e) {
+               // not ours
+            }
+         }
+      }
+
+      for (Map.Entry<Long, Path> file : files.entrySet()) {
+         Segment segment = Segment.open(file.getValue());
+         nextSegment = file.getKey() + 1;
+         if (segment.isEmpty()) {
+            segment.delete();
+            continue;
+         }
+         segments.add(segment);
+         diskUsed += segment.size();
+         diskBudget.take(segment.size());
+         int position = segment.readPosition();
+         while (position < segment.writePosition()) {
+            spilled++;
+            position = segment.next(position);
+         }
+      }
+   }
+
+   /**
+    * Adds an envelope to the end of the queue.
+    *
+    * @param record
+    *           the envelope, which must not be changed afterwards
+    * @throws IOException
+    *            if it had to be spilled and could not be written, or would
+    *            take the queue over its disk quota or the store over its disk
+    *            budget
+    */
+   synchronized void add(byte[] record) throws IOException
+   {
+      if (spilled == 0 && budget.tryReserve(record.length)) {
+         memory.add(record);
+      } else {
+         spill(record);
+         spilled++;
+      }
+      notifyAll();
+   }
+
+   private void spill(byte[] record) throws IOException
+   {
+      Segment last = segments.peekLast();
+      if (last == null || !last.fits(record.length)) {
+         int size = Math.max(SEGMENT_SIZE, Segment.sizeFor(record.length));
+         if (diskUsed + size > diskQuota)
+            throw new IOException("Queue " + directory.getFileName() + " is over its disk quota");
+         if (!diskBudget.tryReserve(size))
+            throw new IOException("Relay store is out of disk space");
+         try {
+            Files.createDirectories(directory);
+            last = Segment.create(directory.resolve(nextSegment++ + SEGMENT_SUFFIX), size);
+         } catch (IOException | RuntimeException e) {
+            diskBudget.release(size);
+            throw e;
+         }
+         segments.add(last);
+         diskUsed += size;
+      }
+      last.append(record);
+   }
+
+   /**
+    * Makes the caller the collector of this queue.
+    *
+    * @return identifies the collector in later calls
+    */
+   synchronized long takeOver()
+   {
+      notifyAll();
+      return ++collector;
+   }
+
+   /**
+    * Returns the envelopes at the front of the queue without removing them,
+    * waiting for one if the queue is empty.
+    *
+    * @param max
+    *           the most to return
+    * @param timeout
+    *           the longest to wait, in milliseconds
+    * @param collector
+    *           as returned by {@link #takeOver()}
+    * @return the envelopes, none if the wait timed out
+    * @throws InterruptedException
+    * @throws IllegalStateException
+    *            if another collector has taken over
+    */
+   synchronized List<byte[]> peek(int max, long timeout, long collector)
+         throws InterruptedException
+   {
+      long deadline = System.currentTimeMillis() + timeout;
+      while (size() == 0 && this.collector == collector) {
+         long remaining = deadline - System.currentTimeMillis();
+         if (remaining <= 0)
+            break;
+         wait(remaining);
+      }
+      if (this.collector != collector)
+         throw new IllegalStateException("Another collector has taken over");
+
+      List<byte[]> records = new ArrayList<byte[]>(Math.min(max, size()));
+      for (byte[] record : memory) {
+         if (records.size() == max)
+            return records;
+         records.add(record);
+      }
+      for (Segment segment : segments) {
+         int position = segment.readPosition();
+         while (position < segment.writePosition()) {
+            if (records.size() == max)
+               return records;
+            records.add(segment.read(position));
+            position = segment.next(position);
+         }
+      }
+      return records;
+   }
+
+   /**
+    * Removes envelopes from the front of the queue once they are delivered,
+    * unless another collector has taken over since they were peeked at.
+    *
+    * @param count
+    * @param collector
+    *           as returned by {@link #takeOver()}
+    * @return false if another collector has taken over
+    */
+   synchronized boolean remove(int count, long collector) throws IOException
+   {
+      if (this.collector != collector)
+         return false;
+
+      for (int i = 0; i < count; i++) {
+         byte[] record = memory.poll();
+         if (record != null) {
+            budget.release(record.length);
+            continue;
+         }
+
+         Segment segment = segments.peek();
+         segment.consume();
+         spilled--;
+         if (segment.isEmpty() && segments.size() > 1) {
+            segments.poll();
+            segment.delete();
+            diskUsed -= segment.size();
+            diskBudget.release(segment.size());
+         }
+      }
+
+      // Start again in memory once everything spilled is delivered
+      if (spilled == 0) {
+         for (Segment segment : segments) {
+            segment.delete();
+         }
+         segments.clear();
+         diskBudget.release(diskUsed);
+         diskUsed = 0;
+      }
+      return true;
+   }
+
+   synchronized int size()
+   {
+      return memory.size() + spilled;
+   }
+
+   synchronized int spilled()
+   {
+      return spilled;
+   }
+
+   /**
+    * Returns the total size of the queue's segment files.
+    */
+   synchronized long diskUsed()
+   {
+      return diskUsed;
+   }
+}
@@ -0,0 +1,25 @@
+package martinlt.cryptomessenger.search;
+
+/**
+ * Walks the documents matching part of a query downwards, from the most
+ * recently indexed, so that a search can stop as soon as it has enough hits.
+ */
+interface DocumentCursor
+{
+   /**
+    * Moves to the highest matching document at or below the target. Targets
+    * must not increase from one call to the next.
+    *
+    * @param target
+    * @return the document, or -1 if there are no more
+    */
+   int advance(int target);
+
+   /**
+    * Returns an upper bound on the number of documents, used to choose which
+    * cursor leads an intersection.
+    *
+    * @return
+    */
+   int cost();
+}
@@ -0,0 +1,436 @@
+package martinlt.cryptomessenger.search;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import martinlt.cryptomessenger.crypto.SymmetricCipher;
+import martinlt.cryptomessenger.exception.SecurityException;
+import martinlt.cryptomessenger.history.HistoryRecord;
+import martinlt.cryptomessenger.history.MessageHistoryStore;
+
+/**
+ * In-memory inverted index over decrypted messages.
+ * <p>
+ * Every message added is given a document number, and for each distinct term
+ * in the message the document number is appended to that term's
+ * {@link PostingsList}. The terms are kept sorted so that a prefix query is a
+ * range scan over the term dictionary.
+ * </p>
+ * <p>
+ * A query is a list of whitespace separated terms, all of which must match. A
+ * term ending in '*' matches any term starting with the text before the '*'.
+ * Matching is case insensitive. Terms are cut to {@link #MAX_TERM_LENGTH}
+ * characters.
+ * </p>
+ * <p>
+ * Hits are found by walking the postings of the terms downwards together
+ * (see {@link DocumentCursor}), skipping whole blocks of postings that cannot
+ * match, and stopping once there are enough hits. A query for the most
+ * recent few hits therefore decodes only a few blocks of each list, however
+ * many messages are indexed.
+ * </p>
+ * <p>
+ * For each party the index remembers the next message ID it expects, so it
+ * can be brought up to date with the message history after a crash (see
+ * {@link #catchUp(MessageHistoryStore)}), and a message offered twice is
+ * only indexed once.
+ * </p>
+ */
+public class MessageIndex
+{
+   private static final int FORMAT_VERSION = 1;
+
+   /**
+    * Longest term indexed, in characters. Longer words (such as encoded
+    * keys pasted into a message) are cut to this length.
+    */
+   static final int MAX_TERM_LENGTH = 64;
+
+   /**
+    * Messages read from the history at a time when catching up.
+    */
+   private static final int CATCH_UP_PAGE = 256;
+
+   private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+   /**
+    * The term dictionary.
+    */
+   private final TreeMap<String, PostingsList> terms = new TreeMap<String, PostingsList>();
+
+   /**
+    * Party names, referenced by position from {@link #documentParty}.
+    */
+   private final List<String> parties = new ArrayList<String>();
+   private final Map<String, Integer> partyNumbers = new HashMap<String, Integer>();
+
+   /**
+    * For each party, by position, the ID after the last message indexed.
+    */
+   private long[] nextMessageId = new long[16];
+
+   /**
+    * The party and message ID for each document number.
+    */
+   private int[] documentParty = new int[1024];
+   private long[] documentMessageId = new long[1024];
+   private int documentCount;
+
+   /**
+    * Adds a message to the index.
+    *
+    * @param party
+    *           the party the message was exchanged with
+    * @param messageId
+    *           the ID of the message in the message history
+    * @param text
+    *           the plaintext message
+    */
+   public void add(String party, long messageId, String text)
+   {
+      List<String> tokens = tokenize(text);
+
+      lock.writeLock().lock();
+      try {
+         int partyNumber = partyNumber(party);
+         if (messageId < nextMessageId[partyNumber])
+            return;
+         nextMessageId[partyNumber] = messageId + 1;
+
+         int document = documentCount++;
+         if (document == documentParty.length) {
+            documentParty = Arrays.copyOf(documentParty, document * 2);
+            documentMessageId = Arrays.copyOf(documentMessageId, document * 2);
+         }
+         documentParty[document] = partyNumber;
+         documentMessageId[document] = messageId;
+
+         for (String token : tokens) {
+            PostingsList postings = terms.get(token);
+            if (postings == null) {
+               postings = new PostingsList();
+               terms.put(token, postings);
+            }
+            postings.add(document);
+         }
+      } finally {
+         lock.writeLock().unlock();
+      }
+   }
+
+   /**
+    * Returns the messages matching a query, most recently indexed first.
+    *
+    * @param query
+    *           terms which must all match, optionally ending in '*'
+    * @param limit
+    *           the maximum number of hits to return
+    * @return
+    */
+   public List<SearchHit> search(String query, int limit)
+   {
+      List<SearchHit> hits = new ArrayList<SearchHit>();
+      String[] clauses = query.trim().toLowerCase(Locale.ROOT).split("\\s+");
+
+      lock.readLock().lock();
+      try {
+         List<DocumentCursor> cursors = new ArrayList<DocumentCursor>();
+         for (String clause : clauses) {
+            if (clause.isEmpty())
+               continue;
+
+            cursors.add(clause.endsWith("*")
+                  ? prefixCursor(clause.substring(0, clause.length() - 1))
+                  : termCursor(clause));
+         }
+         if (cursors.isEmpty() || limit <= 0)
+            return hits;
+
+         // The rarest clause leads, the others are asked to catch up with it
+         cursors.sort((a, b) -> Integer.compare(a.cost(), b.cost()));
+         DocumentCursor lead = cursors.get(0);
+         int document = lead.advance(Integer.MAX_VALUE);
+         while (document >= 0) {
+            int agreed = document;
+            for (int i = 1; i < cursors.size() && agreed == document; i++) {
+               agreed = cursors.get(i).advance(document);
+            }
+
+            if (agreed == document) {
+               hits.add(new SearchHit(parties.get(documentParty[document]),
+                     documentMessageId[document]));
+               if (hits.size() == limit)
+                  break;
+               document = lead.advance(document - 1);
+            } else {
+               document = lead.advance(agreed);
+            }
+         }
+      } finally {
+         lock.readLock().unlock();
+      }
+      return hits;
+   }
+
+   /**
+    * Indexes the messages in the history which are not indexed yet, i.e.
+    * because the index was saved before a crash, or could not be read at all.
+    * Messages are read from the ID after the last one indexed for each party.
+    *
+    * @param history
+    * @return the number of messages added
+    * @throws IOException
+    *            if the history could not be read
+    * @throws SecurityException
+    *            if a message could not be decrypted
+    */
+   public int catchUp(MessageHistoryStore history) throws IOException, SecurityException
+   {
+      int added = 0;
+      for (String party : history.parties()) {
+         long from = indexedUpTo(party);
+         List<HistoryRecord> page;
+         while (!(page = history.page(party, from, CATCH_UP_PAGE)).isEmpty()) {
+            for (HistoryRecord record : page) {
+               add(party, record.getId(), record.getText());
+               added++;
+            }
+            from = page.get(page.size() - 1).getId() + 1;
+         }
+      }
+      return added;
+   }
+
+   /**
+    * Returns the ID after the last message indexed for a party, i.e. the
+    * first message a catch up with the history would read.
+    *
+    * @param party
+    * @return
+    */
+   public long indexedUpTo(String party)
+   {
+      lock.readLock().lock();
+      try {
+         Integer number = partyNumbers.get(party);
+         return number == null ? 0 : nextMessageId[number];
+      } finally {
+         lock.readLock().unlock();
+      }
+   }
+
+   /**
+    * Returns the number of messages indexed.
+    *
+    * @return
+    */
+   public int size()
+   {
+      lock.readLock().lock();
+      try {
+         return documentCount;
+      } finally {
+         lock.readLock().unlock();
+      }
+   }
+
+   /**
+    * Saves the index to a file, encrypted with the given key.
+    *
+    * @param file
+    * @param key
+    * @throws IOException
+    * @throws SecurityException
+    *            if the index could not be encrypted
+    */
+   public void save(File file, SecretKeySpec key) throws IOException, SecurityException
+   {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+
+      lock.readLock().lock();
+      try {
+         out.writeInt(FORMAT_VERSION);
+
+         out.writeInt(parties.size());
+         for (String party : parties) {
+            out.writeUTF(party);
+         }
+
+         out.writeInt(documentCount);
+         for (int i = 0; i < documentCount; i++) {
+            out.writeInt(documentParty[i]);
+            out.writeLong(documentMessageId[i]);
+         }
+
+         out.writeInt(terms.size());
+         for (Map.Entry<String, PostingsList> entry : terms.entrySet()) {
+            PostingsList postings = entry.getValue();
+            byte[] encoded = postings.encoded();
+            out.writeUTF(entry.getKey());
+            out.writeInt(postings.count());
+            out.writeInt(postings.lastDocument());
+            out.writeInt(encoded.length);
+            out.write(encoded);
+         }
+      } finally {
+         lock.readLock().unlock();
+      }
+      out.flush();
+
+      // A crash while writing leaves the old index, not half of the new one
+      Path target = file.toPath().toAbsolutePath();
+      Path temp = Files.createTempFile(target.getParent(), target.getFileName().toString(),
+            ".tmp");
+      try {
+         Files.write(temp, SymmetricCipher.encrypt(bytes.toByteArray(), key));
+         try {
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE,
+                  StandardCopyOption.REPLACE_EXISTING);
+         } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+         }
+      } finally {
+         Files.deleteIfExists(temp);
+      }
+   }
+
+   /**
+    * Loads an index saved by {@link #save(File, SecretKeySpec)}.
+    *
+    * @param file
+    * @param key
+    * @return
+    * @throws IOException
+    * @throws SecurityException
+    *            if the index could not be decrypted
+    */
+   public static MessageIndex load(File file, SecretKeySpec key)
+         throws IOException, SecurityException
+   {
+      byte[] plain = SymmetricCipher.decrypt(Files.readAllBytes(file.toPath()), key);
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(plain));
+
+      if (in.readInt() != FORMAT_VERSION)
+         throw new IOException("Unsupported search index format");
+
+      MessageIndex index = new MessageIndex();
+
+      int partyCount = in.readInt();
+      for (int i = 0; i < partyCount; i++) {
+         index.partyNumber(in.readUTF());
+      }
+
+      int documentCount = in.readInt();
+      index.documentParty = new int[Math.max(1024, documentCount)];
+      index.documentMessageId = new long[index.documentParty.length];
+      for (int i = 0; i < documentCount; i++) {
+         int party = in.readInt();
+         long messageId = in.readLong();
+         if (party < 0 || party >= partyCount)
+            throw new IOException("Search index is corrupt");
+         index.documentParty[i] = party;
+         index.documentMessageId[i] = messageId;
+         index.nextMessageId[party] = Math.max(index.nextMessageId[party], messageId + 1);
+      }
+      index.documentCount = documentCount;
+
+      int termCount = in.readInt();
+      for (int i = 0; i < termCount; i++) {
+         String term = in.readUTF();
+         int count = in.readInt();
+         int lastDocument = in.readInt();
+         byte[] encoded = new byte[in.readInt()];
+         in.readFully(encoded);
+         try {
+            index.terms.put(term, new PostingsList(encoded, count, lastDocument));
+         } catch (RuntimeException e) {
+            throw new IOException("Search index is corrupt", e);
+         }
+      }
+      return index;
+   }
+
+   /**
+    * Splits text into lower case terms made of letters and digits.
+    */
+   static List<String> tokenize(String text)
+   {
+      List<String> tokens = new ArrayList<String>();
+      String lower = text.toLowerCase(Locale.ROOT);
+      int start = -1;
+      for (int i = 0; i <= lower.length(); i++) {
+         boolean inWord = i < lower.length() && Character.isLetterOrDigit(lower.charAt(i));
+         if (inWord && start < 0) {
+            start = i;
+         } else if (!inWord && start >= 0) {
+            tokens.add(lower.substring(start, Math.min(i, start + MAX_TERM_LENGTH)));
+            start = -1;
+         }
+      }
+      return tokens;
+   }
+
+   private int partyNumber(String party)
+   {
+      Integer number = partyNumbers.get(party);
+      if (number == null) {
+         number = parties.size();
+         parties.add(party);
+         partyNumbers.put(party, number);
+         if (number == nextMessageId.length)
+            nextMessageId = Arrays.copyOf(nextMessageId, number * 2);
+      }
+      return number;
+   }
+
+   private DocumentCursor termCursor(String term)
+   {
+      PostingsList postings = terms.get(cut(term));
+      return postings == null ? new PostingsList().cursor() : postings.cursor();
+   }
+
+   /**
+    * Returns a cursor over the documents of all terms with the given prefix.
+    */
+   private DocumentCursor prefixCursor(String prefix)
+   {
+      prefix = cut(prefix);
+      NavigableMap<String, PostingsList> matching = prefix.isEmpty() ? terms
+            : terms.subMap(prefix, true, prefix + Character.MAX_VALUE, false);
+
+      if (matching.size() == 1)
+         return matching.firstEntry().getValue().cursor();
+
+      List<DocumentCursor> cursors = new ArrayList<DocumentCursor>(matching.size());
+      for (PostingsList postings : matching.values()) {
+         cursors.add(postings.cursor());
+      }
+      return new UnionCursor(cursors);
+   }
+
+   private static String cut(String term)
+   {
+      return term.length() > MAX_TERM_LENGTH ? term.substring(0, MAX_TERM_LENGTH) : term;
+   }
+}
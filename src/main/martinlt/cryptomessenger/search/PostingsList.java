@@ -0,0 +1,236 @@
+package martinlt.cryptomessenger.search;
+
+import java.util.Arrays;
+
+/**
+ * The documents containing one term, held as a compact list of ascending
+ * document numbers. Each document number is stored as the gap from the
+ * previous one in a variable length encoding, so most postings take a single
+ * byte.
+ * <p>
+ * The postings are split into blocks of {@link #BLOCK_SIZE}. For each block
+ * the first document, the document before it and its byte offset are kept as
+ * skip data, so a {@link Cursor} can jump to the block holding a document
+ * and decode only that block, rather than the whole list.
+ * </p>
+ */
+class PostingsList
+{
+   static final int BLOCK_SIZE = 128;
+
+   private byte[] data;
+   private int length;
+   private int count;
+   private int lastDocument = -1;
+
+   /**
+    * Skip data: for each block, its first document, the document before it
+    * (-1 for the first block) and the offset of its first gap in data.
+    */
+   private int[] blockFirst = new int[1];
+   private int[] blockBase = new int[1];
+   private int[] blockOffset = new int[1];
+   private int blocks;
+
+   PostingsList()
+   {
+      this.data = new byte[4];
+   }
+
+   /**
+    * Reads postings encoded by {@link #encoded()}, building the skip data as
+    * it goes.
+    */
+   PostingsList(byte[] data, int count, int lastDocument)
+   {
+      this.data = new byte[4];
+      int document = -1;
+      int position = 0;
+      for (int i = 0; i < count; i++) {
+         int gap = 0;
+         int shift = 0;
+         byte b;
+         do {
+            b = data[position++];
+            gap |= (b & 0x7F) << shift;
+            shift += 7;
+         } while (b < 0);
+
+         document += gap;
+         add(document);
+      }
+      if (this.lastDocument != lastDocument)
+         throw new IllegalArgumentException("Postings do not end at document " + lastDocument);
+   }
+
+   /**
+    * Adds a document. Documents must be added in ascending order; adding the
+    * last document again has no effect.
+    *
+    * @param document
+    */
+   void add(int document)
+   {
+      if (document == lastDocument)
+         return;
+      if (document < lastDocument)
+         throw new IllegalArgumentException("Documents must be added in ascending order");
+
+      if (count % BLOCK_SIZE == 0) {
+         if (blocks == blockFirst.length) {
+            blockFirst = Arrays.copyOf(blockFirst, blocks * 2);
+            blockBase = Arrays.copyOf(blockBase, blocks * 2);
+            blockOffset = Arrays.copyOf(blockOffset, blocks * 2);
+         }
+         blockFirst[blocks] = document;
+         blockBase[blocks] = lastDocument;
+         blockOffset[blocks] = length;
+         blocks++;
+      }
+
+      int gap = document - lastDocument;
+      if (length + 5 > data.length)
+         data = Arrays.copyOf(data, Math.max(data.length * 2, length + 5));
+
+      while ((gap & ~0x7F) != 0) {
+         data[length++] = (byte) ((gap & 0x7F) | 0x80);
+         gap >>>= 7;
+      }
+      data[length++] = (byte) gap;
+
+      lastDocument = document;
+      count++;
+   }
+
+   int count()
+   {
+      return count;
+   }
+
+   int lastDocument()
+   {
+      return lastDocument;
+   }
+
+   /**
+    * Returns the encoded postings, trimmed to length.
+    *
+    * @return
+    */
+   byte[] encoded()
+   {
+      return length == data.length ? data : Arrays.copyOf(data, length);
+   }
+
+   /**
+    * Returns a cursor over the documents, starting after the last one. The
+    * cursor sees the postings there were when it was made.
+    *
+    * @return
+    */
+   Cursor cursor()
+   {
+      return new Cursor(data, count, blockFirst, blockBase, blockOffset, blocks);
+   }
+
+   /**
+    * Walks the documents of a list downwards, from the most recent.
+    */
+   static class Cursor implements DocumentCursor
+   {
+      private final byte[] data;
+      private final int count;
+      private final int[] blockFirst;
+      private final int[] blockBase;
+      private final int[] blockOffset;
+
+      /**
+       * The decoded block and the position in it of the current document.
+       */
+      private final int[] block = new int[BLOCK_SIZE];
+      private int blockIndex;
+      private int blockLength;
+      private int position;
+
+      Cursor(byte[] data, int count, int[] blockFirst, int[] blockBase, int[] blockOffset,
+            int blocks)
+      {
+         this.data = data;
+         this.count = count;
+         this.blockFirst = blockFirst;
+         this.blockBase = blockBase;
+         this.blockOffset = blockOffset;
+         this.blockIndex = blocks;
+      }
+
+      @Override
+      public int cost()
+      {
+         return count;
+      }
+
+      @Override
+      public int advance(int target)
+      {
+         if (target < 0 || blockIndex < 0)
+            return exhausted();
+
+         // Still in the current block?
+         if (blockLength > 0 && target >= block[0]) {
+            while (block[position] > target)
+               position--;
+            return block[position];
+         }
+
+         // The last block starting at or below the target
+         int low = 0;
+         int high = blockIndex - 1;
+         int found = -1;
+         while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (blockFirst[middle] <= target) {
+               found = middle;
+               low = middle + 1;
+            } else {
+               high = middle - 1;
+            }
+         }
+         if (found < 0)
+            return exhausted();
+
+         decode(found);
+         position = blockLength - 1;
+         while (block[position] > target)
+            position--;
+         return block[position];
+      }
+
+      private int exhausted()
+      {
+         blockIndex = -1;
+         blockLength = 0;
+         return -1;
+      }
+
+      private void decode(int index)
+      {
+         blockIndex = index;
+         blockLength = Math.min(BLOCK_SIZE, count - index * BLOCK_SIZE);
+         int document = blockBase[index];
+         int offset = blockOffset[index];
+         for (int i = 0; i < blockLength; i++) {
+            int gap = 0;
+            int shift = 0;
+            byte b;
+            do {
+               b = data[offset++];
+               gap |= (b & 0x7F) << shift;
+               shift += 7;
+            } while (b < 0);
+
+            document += gap;
+            block[i] = document;
+         }
+      }
+   }
+}
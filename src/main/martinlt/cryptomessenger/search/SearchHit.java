@@ -0,0 +1,49 @@
+package martinlt.cryptomessenger.search;
+
+/**
+ * A message matching a search, identified by the party it was exchanged with
+ * and its ID in the message history.
+ */
+public class SearchHit
+{
+   private final String party;
+   private final long messageId;
+
+   public SearchHit(String party, long messageId)
+   {
+      this.party = party;
+      this.messageId = messageId;
+   }
+
+   public String getParty()
+   {
+      return party;
+   }
+
+   public long getMessageId()
+   {
+      return messageId;
+   }
+
+   @Override
+   public boolean equals(Object other)
+   {
+      if (!(other instanceof SearchHit))
+         return false;
+
+      SearchHit hit = (SearchHit) other;
+      return messageId == hit.messageId && party.equals(hit.party);
+   }
+
+   @Override
+   public int hashCode()
+   {
+      return party.hashCode() * 31 + Long.hashCode(messageId);
+   }
+
+   @Override
+   public String toString()
+   {
+      return party + "#" + messageId;
+   }
+}
@@ -0,0 +1,63 @@
+package martinlt.cryptomessenger.search;
+
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * The documents matching any of several cursors, i.e. those of every term
+ * with a prefix. Only the cursors above the target are moved, found through
+ * a heap on their current documents.
+ */
+class UnionCursor implements DocumentCursor
+{
+   private final PriorityQueue<Entry> heap;
+   private final int cost;
+
+   UnionCursor(List<? extends DocumentCursor> cursors)
+   {
+      heap = new PriorityQueue<Entry>(Math.max(1, cursors.size()),
+            (a, b) -> Integer.compare(b.document, a.document));
+      int total = 0;
+      for (DocumentCursor cursor : cursors) {
+         Entry entry = new Entry(cursor);
+         if (entry.document >= 0)
+            heap.add(entry);
+         total += cursor.cost();
+      }
+      cost = total;
+   }
+
+   @Override
+   public int advance(int target)
+   {
+      while (!heap.isEmpty() && heap.peek().document > target) {
+         Entry entry = heap.poll();
+         entry.document = entry.cursor.advance(target);
+         if (entry.document >= 0)
+            heap.add(entry);
+      }
+      return heap.isEmpty() ? -1 : heap.peek().document;
+   }
+
+   @Override
+   public int cost()
+   {
+      return cost;
+   }
+
+   private static class Entry
+   {
+      final DocumentCursor cursor;
+
+      /**
+       * The cursor's current document, starting at its highest.
+       */
+      int document;
+
+      Entry(DocumentCursor cursor)
+      {
+         this.cursor = cursor;
+         this.document = cursor.advance(Integer.MAX_VALUE);
+      }
+   }
+}
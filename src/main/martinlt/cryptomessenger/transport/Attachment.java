@@ -0,0 +1,116 @@
+package martinlt.cryptomessenger.transport;
+
+import java.util.Arrays;
+
+import martinlt.cryptomessenger.crypto.Fingerprint;
+
+/**
+ * A reference to a file sent as an attachment. The file itself goes over the
+ * transport on its own, encrypted; the attachment message sent after it
+ * carries only this reference, giving the file's name and size and the SHA-256 digest of
+ * its encrypted contents, by which the receiver finds and checks it.
+ */
+public class Attachment
+{
+   /**
+    * Start of the text of a reference. Messages are told apart from
+    * references by the frame they arrive in, not by this.
+    */
+   private static final String PREFIX = "attachment:";
+
+   private final String name;
+   private final long size;
+   private final byte[] digest;
+
+   /**
+    * Creates a reference to an attachment.
+    *
+    * @param name
+    *           the file name
+    * @param size
+    *           the size of the file before encryption
+    * @param digest
+    *           the SHA-256 digest of the encrypted file
+    */
+   public Attachment(String name, long size, byte[] digest)
+   {
+      if (digest.length != Frames.DIGEST_SIZE)
+         throw new IllegalArgumentException("Not a SHA-256 digest");
+
+      this.name = name;
+      this.size = size;
+      this.digest = digest.clone();
+   }
+
+   public String getName()
+   {
+      return name;
+   }
+
+   public long getSize()
+   {
+      return size;
+   }
+
+   public byte[] getDigest()
+   {
+      return digest.clone();
+   }
+
+   /**
+    * Returns the message text referring to this attachment.
+    *
+    * @return
+    */
+   public String toMessage()
+   {
+      return PREFIX + Fingerprint.hex(digest) + " " + size + " " + name;
+   }
+
+   /**
+    * Reads the reference to an attachment from a message.
+    *
+    * @param message
+    *           a decrypted message
+    * @return the reference, or null if the message is not one
+    */
+   public static Attachment parse(String message)
+   {
+      if (!message.startsWith(PREFIX))
+         return null;
+
+      String[] fields = message.substring(PREFIX.length()).split(" ", 3);
+      if (fields.length != 3 || fields[0].length() != 2 * Frames.DIGEST_SIZE)
+         return null;
+
+      try {
+         return new Attachment(fields[2], Long.parseLong(fields[1]),
+               Fingerprint.parseHex(fields[0]));
+      } catch (IllegalArgumentException e) {
+         // including NumberFormatException
+         return null;
+      }
+   }
+
+   @Override
+   public boolean equals(Object other)
+   {
+      if (!(other instanceof Attachment))
+         return false;
+      Attachment attachment = (Attachment) other;
+      return name.equals(attachment.name) && size == attachment.size
+            && Arrays.equals(digest, attachment.digest);
+   }
+
+   @Override
+   public int hashCode()
+   {
+      return Arrays.hashCode(digest);
+   }
+
+   @Override
+   public String toString()
+   {
+      return toMessage();
+   }
+}
@@ -0,0 +1,39 @@
+package martinlt.cryptomessenger.transport;
+
+/**
+ * Receives the envelopes (encrypted messages) delivered by a
+ * {@link PeerTransport}.
+ */
+public interface EnvelopeListener
+{
+   /**
+    * Called on a transport worker thread for each envelope received.
+    * Envelopes from the same connection are delivered in order, one at a
+    * time.
+    *
+    * @param sender
+    *           the name the sending peer gave when it connected
+    * @param envelope
+    *           the encrypted message, as produced by
+    *           {@link martinlt.cryptomessenger.MainApp#encryptFor(String, String)}
+    * @return true if the envelope was processed, false to acknowledge it as
+    *         failed
+    */
+   boolean envelopeReceived(String sender, byte[] envelope);
+
+   /**
+    * Called like {@link #envelopeReceived(String, byte[])}, in order with the
+    * other envelopes, for an envelope sent to refer to an attachment (see
+    * {@link PeerTransport#sendAttachmentMessage(String, byte[])}). By default
+    * attachments are not accepted.
+    *
+    * @param sender
+    * @param envelope
+    * @return true if the envelope was processed, false to acknowledge it as
+    *         failed
+    */
+   default boolean attachmentMessageReceived(String sender, byte[] envelope)
+   {
+      return false;
+   }
+}
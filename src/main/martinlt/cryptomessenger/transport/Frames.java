@@ -0,0 +1,130 @@
+package martinlt.cryptomessenger.transport;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The framing used on transport connections. Every frame is:
+ *
+ * <pre>
+ * int    length of the type and payload
+ * byte   frame type
+ * byte[] payload
+ * </pre>
+ * <p>
+ * The first frame on a connection in each direction is a {@link #HELLO}
+ * carrying the UTF-8 name of the sending peer. After that, each
+ * {@link #MESSAGE} frame carries one envelope exactly as produced by the
+ * encryption code, so nothing is re-encoded on the way. The receiver answers
+ * each message, in order, with an {@link #ACK} whose one byte payload is
+ * {@link #ACK_OK} or {@link #ACK_FAILED}.
+ * </p>
+ * <p>
+ * A client of a {@link MessageServer} sends a {@link #ROUTE} frame naming the
+ * hosted identity its messages are for before sending them.
+ * </p>
+ * <p>
+ * An {@link #ATTACHMENT} frame carries the SHA-256 digest and size of an
+ * encrypted file, and is followed straight away by that many bytes of the
+ * file, outside any frame, so that they can be sent and received with
+ * {@link java.nio.channels.FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)
+ * transferTo} and
+ * {@link java.nio.channels.FileChannel#transferFrom(java.nio.channels.ReadableByteChannel, long, long)
+ * transferFrom}. The message referring to the file is sent afterwards in an
+ * {@link #ATTACHMENT_MESSAGE} frame, which is acknowledged like a
+ * {@link #MESSAGE}; the frame type, not the text, marks it as a reference.
+ * Attachments are not acknowledged themselves.
+ * </p>
+ * <p>
+ * A {@link martinlt.cryptomessenger.relay.Relay} takes {@link #DEPOSIT}
+ * frames, each the SHA-256 digest of the recipient's public key, the digest
+ * of the sender's and the envelope, and acknowledges them once queued. A
+ * recipient sends a {@link #COLLECT} frame with its own X.509 encoded public
+ * key. The relay answers with a {@link #CHALLENGE} for that key (see
+ * {@link martinlt.cryptomessenger.crypto.KeyChallenge}), which the recipient
+ * must answer in a {@link #CHALLENGE} frame of its own. Only then is it sent
+ * the envelopes queued under the key's digest, as {@link #MESSAGE} frames
+ * holding the sender's digest and the envelope, which it acknowledges.
+ * </p>
+ */
+public final class Frames
+{
+   public static final byte HELLO = 1;
+   public static final byte MESSAGE = 2;
+   public static final byte ACK = 3;
+   public static final byte ROUTE = 4;
+   public static final byte ATTACHMENT = 5;
+   public static final byte DEPOSIT = 6;
+   public static final byte COLLECT = 7;
+   public static final byte CHALLENGE = 8;
+   public static final byte ATTACHMENT_MESSAGE = 9;
+
+   public static final byte ACK_OK = 0;
+   public static final byte ACK_FAILED = 1;
+
+   /**
+    * Size of the length prefix and frame type.
+    */
+   public static final int HEADER_SIZE = 4 + 1;
+
+   /**
+    * Size of the SHA-256 digest in an attachment frame.
+    */
+   public static final int DIGEST_SIZE = 32;
+
+   /**
+    * Largest payload accepted, to stop a bad length prefix from making the
+    * receiver allocate an enormous buffer.
+    */
+   public static final int MAX_PAYLOAD_SIZE = 16 * 1024 * 1024;
+
+   private Frames()
+   {
+   }
+
+   /**
+    * Builds a frame ready to be written.
+    */
+   public static ByteBuffer frame(byte type, byte[] payload)
+   {
+      ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+      frame.putInt(1 + payload.length);
+      frame.put(type);
+      frame.put(payload);
+      frame.flip();
+      return frame;
+   }
+
+   /**
+    * Builds a frame as a header followed by the payload itself, for a
+    * gathering write; the payload is wrapped rather than copied.
+    */
+   public static ByteBuffer[] frameBuffers(byte type, byte[] payload)
+   {
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+      header.putInt(1 + payload.length);
+      header.put(type);
+      header.flip();
+      return new ByteBuffer[] { header, ByteBuffer.wrap(payload) };
+   }
+
+   /**
+    * Builds the frame announcing an attachment. The attachment itself is not
+    * included.
+    */
+   public static ByteBuffer[] attachmentFrameBuffers(byte[] digest, long size)
+   {
+      ByteBuffer payload = ByteBuffer.allocate(DIGEST_SIZE + 8);
+      payload.put(digest);
+      payload.putLong(size);
+      return frameBuffers(ATTACHMENT, payload.array());
+   }
+
+   /**
+    * Returns the number of bytes in a frame built by
+    * {@link #frameBuffers(byte, byte[])}, whether or not it has been written.
+    */
+   static int frameSize(ByteBuffer[] frame)
+   {
+      return 4 + frame[0].getInt(0);
+   }
+}
@@ -0,0 +1,45 @@
+package martinlt.cryptomessenger.transport;
+
+import java.nio.file.Path;
+
+/**
+ * Receives the messages delivered to a {@link PeerMessenger}.
+ */
+public interface MessageListener
+{
+   /**
+    * Called when a message has been received and decrypted.
+    *
+    * @param sender
+    *           the party who sent the message
+    * @param message
+    *           the plaintext message
+    */
+   void messageReceived(String sender, String message);
+
+   /**
+    * Called when a message was received but could not be decrypted.
+    *
+    * @param sender
+    *           the party who sent the message
+    * @param cause
+    */
+   void messageFailed(String sender, Exception cause);
+
+   /**
+    * Called when an attachment has been received, checked against its digest
+    * and decrypted. The listener may move the file wherever it likes. By
+    * default the attachment is passed on as an ordinary message.
+    *
+    * @param sender
+    *           the party who sent the attachment
+    * @param attachment
+    *           the reference the sender gave
+    * @param file
+    *           the decrypted file, in the attachment directory
+    */
+   default void attachmentReceived(String sender, Attachment attachment, Path file)
+   {
+      messageReceived(sender, attachment.toMessage());
+   }
+}
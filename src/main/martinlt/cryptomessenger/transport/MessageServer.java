@@ -0,0 +1,197 @@
+package martinlt.cryptomessenger.transport;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+
+import martinlt.cryptomessenger.concurrent.ThreadPools;
+import martinlt.cryptomessenger.crypto.KeyRing;
+import martinlt.cryptomessenger.exception.SecurityException;
+
+/**
+ * Headless server hosting many identities in one JVM.
+ * <p>
+ * Each client connection is a session served by plain blocking I/O on its
+ * own thread. The threads come from
+ * {@link ThreadPools#newThreadPerTaskExecutor(String)}, so on a JDK with
+ * virtual threads thousands of sessions do not need a platform thread each.
+ * This is the alternative to the selector based {@link PeerTransport}; both
+ * use the same {@link Frames}.
+ * </p>
+ * <p>
+ * A session starts with a HELLO naming the sender and a ROUTE naming the
+ * hosted identity. Each MESSAGE is then decrypted through
+ * {@link KeyRing#decrypt(byte[], String)}, passed to the listener and
+ * acknowledged. Acknowledgements are flushed once the client has nothing
+ * more in flight, so a client that pipelines its messages gets its
+ * acknowledgements in batches.
+ * </p>
+ * <p>
+ * The identities are {@link KeyRing}s rather than full applications, so a
+ * server runs headless; see the "serve" command of
+ * {@link martinlt.cryptomessenger.cli.CommandLine}.
+ * </p>
+ */
+public class MessageServer implements Closeable
+{
+   /**
+    * The hosted identities, keyed using their names.
+    */
+   private final ConcurrentHashMap<String, KeyRing> identities = new ConcurrentHashMap<String, KeyRing>();
+
+   private final ServerListener listener;
+   private final ExecutorService sessions;
+   private final Set<Socket> openSockets = ConcurrentHashMap.newKeySet();
+
+   private ServerSocket serverSocket;
+   private volatile boolean running;
+
+   public MessageServer(ServerListener listener)
+   {
+      this.listener = listener;
+      this.sessions = ThreadPools.newThreadPerTaskExecutor("server-session");
+   }
+
+   /**
+    * Adds an identity to be served. Safe to call while the server is running.
+    *
+    * @param identity
+    */
+   public void host(KeyRing identity)
+   {
+      identities.put(identity.getName(), identity);
+   }
+
+   /**
+    * Starts accepting clients.
+    *
+    * @param address
+    *           the address to listen on; use port 0 to pick a free port
+    * @return the address actually bound
+    * @throws IOException
+    */
+   public InetSocketAddress start(InetSocketAddress address) throws IOException
+   {
+      serverSocket = new ServerSocket();
+      serverSocket.bind(address, 1024);
+      running = true;
+
+      Thread acceptor = new Thread(this::acceptLoop, "server-acceptor");
+      acceptor.setDaemon(true);
+      acceptor.start();
+
+      return (InetSocketAddress) serverSocket.getLocalSocketAddress();
+   }
+
+   /**
+    * Stops accepting clients and closes every session.
+    */
+   @Override
+   public void close() throws IOException
+   {
+      running = false;
+      if (serverSocket != null)
+         serverSocket.close();
+
+      for (Socket socket : openSockets) {
+         socket.close();
+      }
+      sessions.shutdown();
+   }
+
+   private void acceptLoop()
+   {
+      while (running) {
+         try {
+            final Socket socket = serverSocket.accept();
+            socket.setTcpNoDelay(true);
+            openSockets.add(socket);
+            sessions.execute(() -> serve(socket));
+         } catch (IOException e) {
+            if (running)
+               e.printStackTrace();
+         }
+      }
+   }
+
+   /**
+    * Runs one client session until the client disconnects.
+    */
+   private void serve(Socket socket)
+   {
+      try {
+         DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+         DataOutputStream out = new DataOutputStream(
+               new BufferedOutputStream(socket.getOutputStream()));
+
+         String sender = null;
+         KeyRing identity = null;
+
+         while (true) {
+            int length = in.readInt();
+            if (length < 1 || length - 1 > Frames.MAX_PAYLOAD_SIZE)
+               throw new IOException("Bad frame length " + length);
+
+            byte type = in.readByte();
+            byte[] payload = new byte[length - 1];
+            in.readFully(payload);
+
+            switch (type) {
+            case Frames.HELLO:
+               sender = new String(payload, StandardCharsets.UTF_8);
+               break;
+
+            case Frames.ROUTE:
+               identity = identities.get(new String(payload, StandardCharsets.UTF_8));
+               break;
+
+            case Frames.MESSAGE:
+               boolean processed = false;
+               if (sender != null && identity != null) {
+                  try {
+                     String message = new String(identity.decrypt(payload, sender));
+                     listener.messageReceived(identity.getName(), sender, message);
+                     processed = true;
+                  } catch (SecurityException e) {
+                     // acknowledged as failed
+                  }
+               }
+
+               out.writeInt(2);
+               out.writeByte(Frames.ACK);
+               out.writeByte(processed ? Frames.ACK_OK : Frames.ACK_FAILED);
+
+               // Only flush when the client is waiting on us
+               if (in.available() == 0)
+                  out.flush();
+               break;
+
+            default:
+               throw new IOException("Unknown frame type " + type);
+            }
+         }
+      } catch (EOFException e) {
+         // client disconnected
+      } catch (IOException e) {
+         if (running)
+            e.printStackTrace();
+      } finally {
+         openSockets.remove(socket);
+         try {
+            socket.close();
+         } catch (IOException ignored) {
+         }
+      }
+   }
+}
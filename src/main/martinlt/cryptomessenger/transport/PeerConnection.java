@@ -0,0 +1,389 @@
+package martinlt.cryptomessenger.transport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * State of one connection of a {@link PeerTransport}. Reading and writing the
+ * channel is only done on the selector thread; frames to send may be queued
+ * from any thread.
+ */
+class PeerConnection
+{
+   private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+   /**
+    * Most buffers handed to the channel in one gathering write.
+    */
+   private static final int MAX_GATHER = 64;
+
+   final SocketChannel channel;
+   final SelectionKey key;
+
+   /**
+    * Worker on which envelopes from this connection are delivered, so that
+    * they arrive in order.
+    */
+   final Executor worker;
+
+   /**
+    * The name the peer gave in its hello frame, or null until then.
+    */
+   volatile String peerName;
+
+   private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+
+   /**
+    * Frames waiting to be written.
+    */
+   final Queue<OutgoingFrame> writeQueue = new ConcurrentLinkedQueue<OutgoingFrame>();
+
+   /**
+    * Number of bytes in the write queue, not counting attached files.
+    */
+   final AtomicInteger queuedBytes = new AtomicInteger();
+
+   /**
+    * Set while the selector thread has been asked to flush the write queue.
+    */
+   final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+   /**
+    * Set while the selector thread has been asked to flush the write queue
+    * without waiting for the rest of the latency budget.
+    */
+   final AtomicBoolean flushNow = new AtomicBoolean();
+
+   /**
+    * When a delayed flush is due, in {@link System#nanoTime()} terms.
+    * Selector thread only.
+    */
+   long flushDeadline;
+
+   /**
+    * Acknowledgements expected for the messages sent, in the order they were
+    * sent. Guarded by itself, which is also held while queuing a message so
+    * that the two queues stay in the same order.
+    */
+   final Queue<CompletableFuture<Boolean>> pendingAcks = new ArrayDeque<CompletableFuture<Boolean>>();
+
+   private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+
+   /**
+    * The attachment being received, if any, and where it goes once
+    * complete. Selector thread only.
+    */
+   private FileChannel incomingFile;
+   private Path incomingPart, incomingPath;
+   private long incomingPosition, incomingSize;
+
+   /**
+    * Attachments received whose message may not have been handled yet, and
+    * which are deleted once the connection closes.
+    */
+   final Set<Path> spooled = ConcurrentHashMap.newKeySet();
+
+   PeerConnection(SocketChannel channel, SelectionKey key, Executor worker)
+   {
+      this.channel = channel;
+      this.key = key;
+      this.worker = worker;
+   }
+
+   /**
+    * Reads what is available and passes each complete frame to the handler.
+    *
+    * @return false if the peer closed the connection
+    */
+   boolean read(FrameHandler handler) throws IOException
+   {
+      // Spool the body of an attachment straight from the socket to disk.
+      // Nothing read means no data or end of stream, which the read below
+      // tells apart.
+      if (incomingFile != null && readBuffer.position() == 0) {
+         long read = incomingFile.transferFrom(channel, incomingPosition,
+               incomingSize - incomingPosition);
+         if (read > 0) {
+            incomingPosition += read;
+            if (incomingPosition == incomingSize)
+               finishIncomingFile();
+            return true;
+         }
+      }
+
+      int read = channel.read(readBuffer);
+      if (read < 0)
+         return false;
+
+      readBuffer.flip();
+      while (true) {
+         if (incomingFile != null && !spoolBuffered())
+            break;
+         if (readBuffer.remaining() < Frames.HEADER_SIZE)
+            break;
+
+         int length = readBuffer.getInt(readBuffer.position());
+         if (length < 1 || length - 1 > Frames.MAX_PAYLOAD_SIZE)
+            throw new IOException("Bad frame length " + length);
+
+         if (readBuffer.remaining() < 4 + length) {
+            // Make room for the rest of a frame larger than the buffer
+            if (4 + length > readBuffer.capacity()) {
+               ByteBuffer larger = ByteBuffer.allocate(4 + length);
+               larger.put(readBuffer);
+               readBuffer = larger;
+               return true;
+            }
+            break;
+         }
+
+         readBuffer.getInt();
+         byte type = readBuffer.get();
+         byte[] payload = new byte[length - 1];
+         readBuffer.get(payload);
+
+         handler.frameReceived(this, type, payload);
+      }
+      readBuffer.compact();
+
+      // Go back to a normal sized buffer after a large frame
+      if (readBuffer.position() == 0 && readBuffer.capacity() > INITIAL_BUFFER_SIZE)
+         readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+
+      return true;
+   }
+
+   /**
+    * Starts receiving an attachment, whose bytes follow the frame just read.
+    * They are written to a partial file, which is renamed once complete.
+    *
+    * @param part
+    *           the file to write to
+    * @param path
+    *           the name to give the file once it is complete
+    * @param size
+    *           the size of the attachment
+    */
+   void receiveFile(Path part, Path path, long size) throws IOException
+   {
+      incomingFile = FileChannel.open(part, StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+      incomingPart = part;
+      incomingPath = path;
+      incomingPosition = 0;
+      incomingSize = size;
+      if (size == 0)
+         finishIncomingFile();
+   }
+
+   /**
+    * Writes whatever of the incoming attachment is in the read buffer to its
+    * file.
+    *
+    * @return true if the attachment is complete
+    */
+   private boolean spoolBuffered() throws IOException
+   {
+      int count = (int) Math.min(readBuffer.remaining(), incomingSize - incomingPosition);
+      ByteBuffer slice = readBuffer.duplicate();
+      slice.limit(slice.position() + count);
+      while (slice.hasRemaining()) {
+         incomingPosition += incomingFile.write(slice, incomingPosition);
+      }
+      readBuffer.position(slice.position());
+
+      if (incomingPosition < incomingSize)
+         return false;
+      finishIncomingFile();
+      return true;
+   }
+
+   private void finishIncomingFile() throws IOException
+   {
+      incomingFile.close();
+      incomingFile = null;
+      Files.move(incomingPart, incomingPath, StandardCopyOption.REPLACE_EXISTING);
+
+      // Those whose message has been handled are gone already
+      spooled.removeIf(path -> !Files.exists(path));
+      spooled.add(incomingPath);
+   }
+
+   /**
+    * Writes queued frames until the queue is empty or the socket buffer is
+    * full. As many frames as fit are handed to the channel in a single
+    * gathering write, up to and including the next frame with a file
+    * attached. The file is then sent with
+    * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}.
+    *
+    * @return true if everything queued has been written
+    */
+   boolean write() throws IOException
+   {
+      while (!writeQueue.isEmpty()) {
+         int count = 0;
+         for (OutgoingFrame frame : writeQueue) {
+            if (count + frame.buffers.length > gather.length)
+               break;
+            for (ByteBuffer buffer : frame.buffers) {
+               gather[count++] = buffer;
+            }
+            if (frame.file != null)
+               break;
+         }
+
+         channel.write(gather, 0, count);
+         boolean full = gather[count - 1].hasRemaining();
+         Arrays.fill(gather, 0, count, null);
+
+         OutgoingFrame frame;
+         while ((frame = writeQueue.peek()) != null && frame.buffersWritten()) {
+            if (!frame.transferFile(channel))
+               return false;
+            writeQueue.poll();
+            queuedBytes.addAndGet(-frame.size);
+         }
+
+         if (full)
+            return false;
+      }
+      return true;
+   }
+
+   /**
+    * Closes any files still being sent or received, once the connection is
+    * closed.
+    */
+   void closeFiles()
+   {
+      for (OutgoingFrame frame : writeQueue) {
+         frame.closeFile();
+      }
+      if (incomingFile != null) {
+         try {
+            incomingFile.close();
+            Files.deleteIfExists(incomingPart);
+         } catch (IOException ignored) {
+         }
+         incomingFile = null;
+      }
+   }
+
+   /**
+    * Fails every acknowledgement still expected, once the connection is
+    * closed.
+    */
+   void failPendingAcks()
+   {
+      IOException closed = new IOException("Connection to " + peerName + " closed");
+      synchronized (pendingAcks) {
+         CompletableFuture<Boolean> ack;
+         while ((ack = pendingAcks.poll()) != null) {
+            ack.completeExceptionally(closed);
+         }
+      }
+   }
+
+   /**
+    * A frame waiting to be written, possibly followed by the contents of a
+    * file.
+    */
+   static class OutgoingFrame
+   {
+      final ByteBuffer[] buffers;
+      final FileChannel file;
+      final int size;
+      private long filePosition;
+      private final long fileSize;
+
+      /**
+       * @param buffers
+       *           the frame, as built by {@link Frames}
+       */
+      OutgoingFrame(ByteBuffer[] buffers)
+      {
+         this(buffers, null, 0);
+      }
+
+      /**
+       * @param buffers
+       *           the frame, as built by {@link Frames}
+       * @param file
+       *           a file to send after the frame, which is closed once sent
+       * @param fileSize
+       *           the number of bytes of the file to send
+       */
+      OutgoingFrame(ByteBuffer[] buffers, FileChannel file, long fileSize)
+      {
+         this.buffers = buffers;
+         this.file = file;
+         this.fileSize = fileSize;
+         this.size = Frames.frameSize(buffers);
+      }
+
+      boolean buffersWritten()
+      {
+         for (ByteBuffer buffer : buffers) {
+            if (buffer.hasRemaining())
+               return false;
+         }
+         return true;
+      }
+
+      /**
+       * Sends as much of the file as the channel takes.
+       *
+       * @return true if the whole file has been sent
+       */
+      boolean transferFile(SocketChannel channel) throws IOException
+      {
+         if (file == null)
+            return true;
+
+         while (filePosition < fileSize) {
+            long sent = file.transferTo(filePosition, fileSize - filePosition, channel);
+            if (sent == 0)
+               return false;
+            filePosition += sent;
+         }
+         closeFile();
+         return true;
+      }
+
+      void closeFile()
+      {
+         if (file != null) {
+            try {
+               file.close();
+            } catch (IOException ignored) {
+            }
+         }
+      }
+   }
+
+   /**
+    * Called with each complete frame read from a connection.
+    */
+   interface FrameHandler
+   {
+      void frameReceived(PeerConnection connection, byte type, byte[] payload)
+            throws IOException;
+   }
+}
@@ -0,0 +1,248 @@
+package martinlt.cryptomessenger.transport;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.CompletableFuture;
+
+import martinlt.cryptomessenger.MainApp;
+import martinlt.cryptomessenger.exception.SecurityException;
+
+/**
+ * Sends messages encrypted by a {@link MainApp} to its peers over a
+ * {@link PeerTransport}, and decrypts the messages they send back.
+ * <p>
+ * Encryption and decryption go through
+ * {@link MainApp#encryptFor(String, String)} and
+ * {@link MainApp#decryptFrom(byte[], String)}, so sending and receiving can
+ * happen on several threads at once.
+ * </p>
+ * <p>
+ * Files are sent as attachments: encrypted into a spool file, which is
+ * handed to the transport to send from disk, followed by an attachment
+ * message holding only an {@link Attachment} reference (see
+ * {@link PeerTransport#sendAttachmentMessage(String, byte[])}).
+ * Ordinary messages are always delivered as text, whatever they hold. The receiver spools the encrypted
+ * file to its attachment directory, and decrypts it to a file beside it when
+ * the reference arrives.
+ * </p>
+ */
+public class PeerMessenger implements EnvelopeListener, Closeable
+{
+   private final MainApp app;
+   private final MessageListener listener;
+   private final PeerTransport transport;
+
+   /**
+    * Creates a messenger for a party.
+    *
+    * @param app
+    *           the party sending and receiving messages
+    * @param listener
+    *           receives the decrypted messages
+    * @throws IOException
+    */
+   public PeerMessenger(MainApp app, MessageListener listener) throws IOException
+   {
+      this.app = app;
+      this.listener = listener;
+      this.transport = new PeerTransport(app.getName(), this);
+   }
+
+   /**
+    * Starts accepting connections from peers.
+    *
+    * @param address
+    *           the address to listen on; use port 0 to pick a free port
+    * @return the address actually bound
+    * @throws IOException
+    */
+   public InetSocketAddress listen(InetSocketAddress address) throws IOException
+   {
+      return transport.listen(address);
+   }
+
+   /**
+    * Connects to a peer whose public key has already been received.
+    *
+    * @param peer
+    *           the name of the peer
+    * @param address
+    *           the address the peer is listening on
+    * @throws IOException
+    */
+   public void connect(String peer, InetSocketAddress address) throws IOException
+   {
+      transport.connect(peer, address);
+   }
+
+   /**
+    * Encrypts a message for a peer and sends it.
+    *
+    * @param recipient
+    *           the name of the peer
+    * @param message
+    *           the cleartext message
+    * @return completed with whether the peer could decrypt the message, see
+    *         {@link PeerTransport#send(String, byte[])}
+    * @throws SecurityException
+    *            if the message could not be encrypted
+    * @throws IOException
+    *            if there is no connection to the peer
+    */
+   public CompletableFuture<Boolean> send(String recipient, String message)
+         throws SecurityException, IOException
+   {
+      return transport.send(recipient, app.encryptFor(message, recipient));
+   }
+
+   /**
+    * Encrypts a file for a peer and sends it as an attachment. The file is
+    * encrypted to a temporary file, which is streamed to the peer and then
+    * deleted; it is never held in memory.
+    *
+    * @param recipient
+    *           the name of the peer
+    * @param file
+    *           the file to send
+    * @return completed with whether the peer received and decrypted the
+    *         attachment, see {@link PeerTransport#send(String, byte[])}; once
+    *         the file has been queued, a connection closing is reported
+    *         through this rather than thrown
+    * @throws SecurityException
+    *            if the file could not be encrypted
+    * @throws IOException
+    *            if the file could not be read or there is no connection to the
+    *            peer
+    */
+   public CompletableFuture<Boolean> sendAttachment(String recipient, Path file)
+         throws SecurityException, IOException
+   {
+      Path encrypted = Files.createTempFile("attachment", ".enc");
+      try {
+         MessageDigest sha = sha256();
+         try (InputStream in = Files.newInputStream(file);
+               OutputStream out = new DigestOutputStream(Files.newOutputStream(encrypted), sha)) {
+            app.getKeyRing().encrypt(in, out, recipient);
+         }
+
+         byte[] digest = sha.digest();
+         Attachment attachment = new Attachment(file.getFileName().toString(), Files.size(file),
+               digest);
+         byte[] reference = app.encryptFor(attachment.toMessage(), recipient);
+
+         transport.sendFile(recipient, encrypted, digest);
+         CompletableFuture<Boolean> ack;
+         try {
+            ack = transport.sendAttachmentMessage(recipient, reference);
+         } catch (IOException e) {
+            // The connection closed while the file was going
+            ack = new CompletableFuture<Boolean>();
+            ack.completeExceptionally(e);
+         }
+         ack.whenComplete((processed, e) -> deleteQuietly(encrypted));
+         return ack;
+      } catch (SecurityException | IOException | RuntimeException e) {
+         deleteQuietly(encrypted);
+         throw e;
+      }
+   }
+
+   public PeerTransport getTransport()
+   {
+      return transport;
+   }
+
+   @Override
+   public boolean envelopeReceived(String sender, byte[] envelope)
+   {
+      try {
+         listener.messageReceived(sender, app.decryptFrom(envelope, sender));
+         return true;
+      } catch (SecurityException e) {
+         listener.messageFailed(sender, e);
+         return false;
+      }
+   }
+
+   @Override
+   public boolean attachmentMessageReceived(String sender, byte[] envelope)
+   {
+      try {
+         Attachment attachment = Attachment.parse(app.decryptFrom(envelope, sender));
+         if (attachment == null)
+            throw new SecurityException("Not an attachment reference");
+         listener.attachmentReceived(sender, attachment, receiveAttachment(sender, attachment));
+         return true;
+      } catch (SecurityException | IOException e) {
+         listener.messageFailed(sender, e);
+         return false;
+      }
+   }
+
+   /**
+    * Decrypts an attachment the transport has spooled, checking it against
+    * the digest in its reference on the way, and deletes the spooled file.
+    *
+    * @return the decrypted file
+    */
+   private Path receiveAttachment(String sender, Attachment attachment)
+         throws SecurityException, IOException
+   {
+      Path encrypted = transport.attachmentPath(attachment.getDigest());
+      if (!Files.exists(encrypted))
+         throw new SecurityException("Attachment " + attachment.getName() + " was not received");
+
+      // The name comes from the sender, so keep it within the directory
+      Path file = encrypted.resolveSibling(encrypted.getFileName() + "-"
+            + attachment.getName().replace('/', '_').replace('\\', '_')
+            .replace('\0', '_'));
+      try {
+         MessageDigest sha = sha256();
+         try (InputStream in = new DigestInputStream(Files.newInputStream(encrypted), sha);
+               OutputStream out = Files.newOutputStream(file)) {
+            app.getKeyRing().decrypt(in, out, sender);
+         }
+         if (!MessageDigest.isEqual(sha.digest(), attachment.getDigest()))
+            throw new SecurityException("Attachment " + attachment.getName()
+                  + " does not match its digest");
+      } catch (SecurityException | IOException e) {
+         deleteQuietly(file);
+         throw e;
+      } finally {
+         deleteQuietly(encrypted);
+      }
+      return file;
+   }
+
+   private static MessageDigest sha256()
+   {
+      try {
+         return MessageDigest.getInstance("SHA-256");
+      } catch (NoSuchAlgorithmException e) {
+         throw new IllegalStateException(e);
+      }
+   }
+
+   private static void deleteQuietly(Path file)
+   {
+      try {
+         Files.deleteIfExists(file);
+      } catch (IOException ignored) {
+      }
+   }
+
+   @Override
+   public void close() throws IOException
+   {
+      transport.close();
+   }
+}
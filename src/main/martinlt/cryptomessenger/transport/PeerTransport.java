@@ -0,0 +1,771 @@
+package martinlt.cryptomessenger.transport;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import martinlt.cryptomessenger.crypto.Fingerprint;
+import martinlt.cryptomessenger.transport.PeerConnection.OutgoingFrame;
+
+/**
+ * Non-blocking transport carrying envelopes between Crypto Messenger
+ * instances.
+ * <p>
+ * All sockets are served by one selector thread. Envelopes received are
+ * handed to a small pool of worker threads for decryption, each connection
+ * being pinned to one worker so that its envelopes are delivered in order.
+ * A transport can therefore hold thousands of connections on a handful of
+ * threads. See {@link Frames} for the wire format.
+ * </p>
+ * <p>
+ * Sending does not wait for the peer: any number of messages may be in
+ * flight on a connection, and their acknowledgements are matched up in
+ * order as they come back. Frames queued for a connection are written
+ * together in one gathering write. With a batch delay set, the transport
+ * also waits up to that long for more frames before writing, trading a
+ * little latency for fewer system calls and packets when sending many
+ * messages.
+ * </p>
+ * <p>
+ * Files can be sent as attachments. They go from disk to the socket with
+ * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}
+ * and from the socket to the attachment directory with
+ * {@link FileChannel#transferFrom(java.nio.channels.ReadableByteChannel, long, long)},
+ * without passing through the heap where the platform allows it. A received
+ * attachment is named after its digest, which the message referring to it
+ * then gives. Attachments larger than {@link #setMaxAttachmentSize(long)}
+ * are refused, and those whose message has not been handled when their
+ * connection closes are deleted.
+ * </p>
+ * <p>
+ * Peers are known by the name they give when connecting. The name is not
+ * authenticated; it only selects the key used to decrypt what they send.
+ * </p>
+ */
+public class PeerTransport implements Closeable
+{
+   /**
+    * Queued bytes at which a connection is flushed without waiting for the
+    * rest of the batch delay.
+    */
+   private static final int MAX_BATCH_BYTES = 64 * 1024;
+
+   /**
+    * Largest attachment accepted unless set otherwise, 1 GB.
+    */
+   public static final long DEFAULT_MAX_ATTACHMENT_SIZE = 1L << 30;
+
+   /**
+    * Suffix of attachments still being received.
+    */
+   private static final String PART_SUFFIX = ".part";
+
+   private final String localName;
+   private final EnvelopeListener listener;
+
+   private final Selector selector;
+   private final Thread selectorThread;
+   private final ExecutorService[] workers;
+   private final AtomicInteger nextWorker = new AtomicInteger();
+
+   /**
+    * Work to be done on the selector thread, i.e. registering channels.
+    */
+   private final Queue<Runnable> selectorTasks = new ConcurrentLinkedQueue<Runnable>();
+
+   /**
+    * Connections waiting for their batch delay to pass before being flushed,
+    * in deadline order. Selector thread only.
+    */
+   private final Queue<PeerConnection> delayedFlushes = new ArrayDeque<PeerConnection>();
+
+   private volatile long batchDelayNanos;
+
+   private Path attachmentDirectory;
+   private volatile long maxAttachmentSize = DEFAULT_MAX_ATTACHMENT_SIZE;
+
+   /**
+    * Connections which have said hello, keyed using the name of the peer.
+    */
+   private final ConcurrentHashMap<String, PeerConnection> peers = new ConcurrentHashMap<String, PeerConnection>();
+
+   private volatile boolean running = true;
+
+   /**
+    * Creates a transport with one worker thread per processor.
+    *
+    * @param localName
+    *           the name sent to peers when connecting
+    * @param listener
+    *           receives the envelopes sent by peers
+    * @throws IOException
+    */
+   public PeerTransport(String localName, EnvelopeListener listener) throws IOException
+   {
+      this(localName, listener, Runtime.getRuntime().availableProcessors());
+   }
+
+   /**
+    * Creates a transport.
+    *
+    * @param localName
+    *           the name sent to peers when connecting
+    * @param listener
+    *           receives the envelopes sent by peers
+    * @param workerThreads
+    *           number of threads delivering envelopes to the listener
+    * @throws IOException
+    */
+   public PeerTransport(String localName, EnvelopeListener listener, int workerThreads)
+         throws IOException
+   {
+      this.localName = localName;
+      this.listener = listener;
+      this.selector = Selector.open();
+
+      workers = new ExecutorService[Math.max(1, workerThreads)];
+      for (int i = 0; i < workers.length; i++) {
+         final String threadName = "transport-worker-" + localName + "-" + i;
+         workers[i] = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, threadName);
+            thread.setDaemon(true);
+            return thread;
+         });
+      }
+
+      selectorThread = new Thread(this::selectLoop, "transport-selector-" + localName);
+      selectorThread.setDaemon(true);
+      selectorThread.start();
+   }
+
+   /**
+    * Starts accepting connections from peers.
+    *
+    * @param address
+    *           the address to listen on; use port 0 to pick a free port
+    * @return the address actually bound
+    * @throws IOException
+    */
+   public InetSocketAddress listen(InetSocketAddress address) throws IOException
+   {
+      final ServerSocketChannel server = ServerSocketChannel.open();
+      server.configureBlocking(false);
+      server.bind(address, 1024);
+
+      runOnSelector(() -> {
+         try {
+            server.register(selector, SelectionKey.OP_ACCEPT);
+         } catch (ClosedChannelException e) {
+            // transport closed while registering
+         }
+      });
+      return (InetSocketAddress) server.getLocalAddress();
+   }
+
+   /**
+    * Connects to a peer. Envelopes can be sent to the peer as soon as this
+    * returns.
+    *
+    * @param peerName
+    *           the name under which the peer will be known
+    * @param address
+    *           the address the peer is listening on
+    * @throws IOException
+    *            if the connection could not be made
+    */
+   public void connect(String peerName, InetSocketAddress address) throws IOException
+   {
+      SocketChannel channel = SocketChannel.open(address);
+      PeerConnection connection = register(channel, peerName);
+
+      PeerConnection previous = peers.put(peerName, connection);
+      if (previous != null && previous != connection)
+         runOnSelector(() -> close(previous));
+   }
+
+   /**
+    * Sets how long frames may wait to be batched with others before they are
+    * written. Zero, the default, writes them as soon as possible; a
+    * connection's frames are still batched whenever several are queued by
+    * the time the selector thread gets to them.
+    *
+    * @param delay
+    * @param unit
+    */
+   public void setBatchDelay(long delay, TimeUnit unit)
+   {
+      if (delay < 0)
+         throw new IllegalArgumentException("Negative batch delay");
+      batchDelayNanos = unit.toNanos(delay);
+   }
+
+   /**
+    * Sets the directory received attachments are written to. By default a
+    * new temporary directory is used. Attachments left half received, or
+    * received but never referred to, by an earlier transport are deleted from
+    * it, so the directory should not be shared with a running transport.
+    *
+    * @param directory
+    * @throws IOException
+    *            if the directory could not be listed
+    */
+   public synchronized void setAttachmentDirectory(Path directory) throws IOException
+   {
+      attachmentDirectory = directory;
+      if (!Files.isDirectory(directory))
+         return;
+
+      try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+         for (Path file : files) {
+            String name = file.getFileName().toString();
+            if (name.endsWith(PART_SUFFIX) || isDigestName(name))
+               Files.deleteIfExists(file);
+         }
+      }
+   }
+
+   /**
+    * Returns true for the name of an attachment as spooled, i.e. its digest in
+    * hex, rather than of one decrypted beside it.
+    */
+   private static boolean isDigestName(String name)
+   {
+      if (name.length() != Frames.DIGEST_SIZE * 2)
+         return false;
+      for (int i = 0; i < name.length(); i++) {
+         if (Character.digit(name.charAt(i), 16) < 0)
+            return false;
+      }
+      return true;
+   }
+
+   /**
+    * Sets the size of the largest attachment accepted from a peer. A peer
+    * announcing a larger one is disconnected before anything is written.
+    *
+    * @param size
+    *           in bytes
+    */
+   public void setMaxAttachmentSize(long size)
+   {
+      if (size < 0)
+         throw new IllegalArgumentException("Negative attachment size");
+      maxAttachmentSize = size;
+   }
+
+   /**
+    * Returns the directory received attachments are written to, creating a
+    * temporary one if none has been set.
+    *
+    * @return
+    * @throws IOException
+    */
+   public synchronized Path getAttachmentDirectory() throws IOException
+   {
+      if (attachmentDirectory == null)
+         attachmentDirectory = Files.createTempDirectory("attachments-" + localName);
+      return attachmentDirectory;
+   }
+
+   /**
+    * Returns where an attachment received with the given digest is, or will
+    * be, written.
+    *
+    * @param digest
+    *           the SHA-256 digest of the attachment
+    * @return
+    * @throws IOException
+    */
+   public Path attachmentPath(byte[] digest) throws IOException
+   {
+      return getAttachmentDirectory().resolve(Fingerprint.hex(digest));
+   }
+
+   /**
+    * Returns true if there is an open connection to the named peer.
+    *
+    * @param peerName
+    * @return
+    */
+   public boolean isConnected(String peerName)
+   {
+      return peers.containsKey(peerName);
+   }
+
+   /**
+    * Queues an envelope to be sent to a peer. Safe to call from any thread.
+    * Returns at once; there is no need to wait for the acknowledgement before
+    * sending the next envelope.
+    *
+    * @param peerName
+    *           the peer to send to
+    * @param envelope
+    *           the encrypted message, which must not be changed afterwards
+    * @return completed with true when the peer acknowledges having processed
+    *         the envelope, false if it could not, or exceptionally if the
+    *         connection closes first; it is completed on the selector thread,
+    *         so anything chained to it should be quick
+    * @throws IOException
+    *            if there is no connection to the peer
+    */
+   public CompletableFuture<Boolean> send(String peerName, byte[] envelope) throws IOException
+   {
+      return send(peerName, Frames.MESSAGE, envelope);
+   }
+
+   /**
+    * Queues an envelope referring to an attachment to be sent to a peer, as
+    * {@link #send(String, byte[])} does. The peer hands it to
+    * {@link EnvelopeListener#attachmentMessageReceived(String, byte[])}, so
+    * it can never be taken for a message, nor a message for it.
+    *
+    * @param peerName
+    *           the peer to send to
+    * @param envelope
+    *           the encrypted reference, which must not be changed afterwards
+    * @return see {@link #send(String, byte[])}
+    * @throws IOException
+    *            if there is no connection to the peer
+    */
+   public CompletableFuture<Boolean> sendAttachmentMessage(String peerName, byte[] envelope)
+         throws IOException
+   {
+      return send(peerName, Frames.ATTACHMENT_MESSAGE, envelope);
+   }
+
+   private CompletableFuture<Boolean> send(String peerName, byte type, byte[] envelope)
+         throws IOException
+   {
+      PeerConnection connection = peers.get(peerName);
+      if (connection == null)
+         throw new IOException("Not connected to " + peerName);
+
+      CompletableFuture<Boolean> ack = new CompletableFuture<Boolean>();
+      synchronized (connection.pendingAcks) {
+         if (!connection.key.isValid())
+            throw new IOException("Connection to " + peerName + " closed");
+         connection.pendingAcks.add(ack);
+         queue(connection, Frames.frameBuffers(type, envelope));
+      }
+      return ack;
+   }
+
+   /**
+    * Queues a file to be sent to a peer as an attachment. Safe to call from
+    * any thread. The file is sent ahead of any envelope queued afterwards, so
+    * an envelope referring to the attachment can be sent straight after.
+    *
+    * @param peerName
+    *           the peer to send to
+    * @param file
+    *           the file, which must not be changed until it has been sent
+    * @param digest
+    *           the SHA-256 digest of the file, which names it at the peer
+    * @throws IOException
+    *            if there is no connection to the peer or the file could not be
+    *            opened
+    */
+   public void sendFile(String peerName, Path file, byte[] digest) throws IOException
+   {
+      if (digest.length != Frames.DIGEST_SIZE)
+         throw new IllegalArgumentException("Not a SHA-256 digest");
+
+      PeerConnection connection = peers.get(peerName);
+      if (connection == null)
+         throw new IOException("Not connected to " + peerName);
+
+      FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+      synchronized (connection.pendingAcks) {
+         if (!connection.key.isValid()) {
+            channel.close();
+            throw new IOException("Connection to " + peerName + " closed");
+         }
+         long size = channel.size();
+         queue(connection, new OutgoingFrame(Frames.attachmentFrameBuffers(digest, size),
+               channel, size));
+      }
+   }
+
+   /**
+    * Closes every connection and stops the transport threads.
+    */
+   @Override
+   public void close() throws IOException
+   {
+      running = false;
+      selector.wakeup();
+      try {
+         selectorThread.join(TimeUnit.SECONDS.toMillis(5));
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+
+      for (ExecutorService worker : workers) {
+         worker.shutdown();
+      }
+   }
+
+   /**
+    * Registers a connected channel with the selector and says hello.
+    *
+    * @param peerName
+    *           the name of the peer if known, or null to take it from the
+    *           peer's hello frame
+    */
+   private PeerConnection register(final SocketChannel channel, final String peerName)
+         throws IOException
+   {
+      if (!running) {
+         channel.close();
+         throw new IOException("Transport is closed");
+      }
+
+      channel.configureBlocking(false);
+      channel.socket().setTcpNoDelay(true);
+
+      final CountDownLatch registered = new CountDownLatch(1);
+      final PeerConnection[] connection = new PeerConnection[1];
+      final IOException[] failure = new IOException[1];
+
+      Runnable task = () -> {
+         try {
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            connection[0] = new PeerConnection(channel, key,
+                  workers[Math.floorMod(nextWorker.getAndIncrement(), workers.length)]);
+            connection[0].peerName = peerName;
+            key.attach(connection[0]);
+         } catch (IOException e) {
+            failure[0] = e;
+         }
+         registered.countDown();
+      };
+
+      if (Thread.currentThread() == selectorThread) {
+         task.run();
+      } else {
+         runOnSelector(task);
+         try {
+            registered.await();
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while connecting", e);
+         }
+      }
+
+      if (failure[0] != null)
+         throw failure[0];
+
+      queue(connection[0],
+            Frames.frameBuffers(Frames.HELLO, localName.getBytes(StandardCharsets.UTF_8)));
+      return connection[0];
+   }
+
+   private void queue(PeerConnection connection, ByteBuffer[] frame)
+   {
+      queue(connection, new OutgoingFrame(frame));
+   }
+
+   /**
+    * Adds a frame to a connection's write queue and, unless a flush is
+    * already pending, asks the selector thread to write it once the batch
+    * delay has passed. A connection with enough queued to fill a batch, or
+    * with a file to send, is flushed straight away.
+    */
+   private void queue(final PeerConnection connection, OutgoingFrame frame)
+   {
+      connection.writeQueue.add(frame);
+      int queued = connection.queuedBytes.addAndGet(frame.size);
+      boolean full = queued >= MAX_BATCH_BYTES || frame.file != null;
+
+      if (connection.flushScheduled.compareAndSet(false, true)) {
+         if (batchDelayNanos == 0 || full)
+            runOnSelector(() -> flush(connection));
+         else
+            runOnSelector(() -> delayFlush(connection));
+      } else if (full && connection.flushNow.compareAndSet(false, true)) {
+         runOnSelector(() -> flush(connection));
+      }
+   }
+
+   private void delayFlush(PeerConnection connection)
+   {
+      connection.flushDeadline = System.nanoTime() + batchDelayNanos;
+      delayedFlushes.add(connection);
+   }
+
+   /**
+    * Flushes the connections whose batch delay has passed and returns how
+    * long to wait for the next one, or 0 if there is none.
+    */
+   private long flushDelayed()
+   {
+      PeerConnection connection;
+      while ((connection = delayedFlushes.peek()) != null) {
+         long remaining = connection.flushDeadline - System.nanoTime();
+         if (remaining > 0)
+            return Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining));
+         delayedFlushes.poll();
+         try {
+            flush(connection);
+         } catch (RuntimeException e) {
+            e.printStackTrace();
+            close(connection);
+         }
+      }
+      return 0;
+   }
+
+   private void runOnSelector(Runnable task)
+   {
+      selectorTasks.add(task);
+      selector.wakeup();
+   }
+
+   private void selectLoop()
+   {
+      long timeout = 0;
+      while (running) {
+         try {
+            selector.select(timeout);
+
+            Runnable task;
+            while ((task = selectorTasks.poll()) != null) {
+               try {
+                  task.run();
+               } catch (RuntimeException e) {
+                  e.printStackTrace();
+               }
+            }
+
+            // A bug while serving one connection must not stop the others
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+               SelectionKey key = keys.next();
+               keys.remove();
+               try {
+                  handle(key);
+               } catch (RuntimeException e) {
+                  e.printStackTrace();
+                  if (key.attachment() instanceof PeerConnection)
+                     close((PeerConnection) key.attachment());
+               }
+            }
+
+            timeout = flushDelayed();
+         } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+         }
+      }
+
+      for (SelectionKey key : selector.keys()) {
+         if (key.attachment() instanceof PeerConnection) {
+            close((PeerConnection) key.attachment());
+         } else {
+            try {
+               key.channel().close();
+            } catch (IOException ignored) {
+            }
+         }
+      }
+      try {
+         selector.close();
+      } catch (IOException ignored) {
+      }
+   }
+
+   private void handle(SelectionKey key)
+   {
+      if (!key.isValid())
+         return;
+
+      if (key.isAcceptable()) {
+         accept((ServerSocketChannel) key.channel());
+         return;
+      }
+
+      PeerConnection connection = (PeerConnection) key.attachment();
+      try {
+         if (key.isReadable() && !connection.read(this::frameReceived)) {
+            close(connection);
+            return;
+         }
+         if (key.isValid() && key.isWritable())
+            flush(connection);
+      } catch (IOException e) {
+         close(connection);
+      }
+   }
+
+   private void accept(ServerSocketChannel server)
+   {
+      try {
+         SocketChannel channel;
+         while ((channel = server.accept()) != null) {
+            register(channel, null);
+         }
+      } catch (IOException e) {
+         e.printStackTrace();
+      }
+   }
+
+   private void frameReceived(final PeerConnection connection, byte type, final byte[] payload)
+         throws IOException
+   {
+      switch (type) {
+      case Frames.HELLO:
+         // Outgoing connections already know the name of the peer
+         if (connection.peerName == null) {
+            connection.peerName = new String(payload, StandardCharsets.UTF_8);
+            PeerConnection previous = peers.put(connection.peerName, connection);
+            if (previous != null && previous != connection)
+               close(previous);
+         }
+         break;
+
+      case Frames.MESSAGE:
+      case Frames.ATTACHMENT_MESSAGE:
+         final String sender = connection.peerName;
+         if (sender == null)
+            throw new IOException("Message received before hello");
+
+         final boolean attachment = type == Frames.ATTACHMENT_MESSAGE;
+         connection.worker.execute(() -> {
+            boolean processed;
+            try {
+               processed = attachment ? listener.attachmentMessageReceived(sender, payload)
+                     : listener.envelopeReceived(sender, payload);
+            } catch (RuntimeException e) {
+               e.printStackTrace();
+               processed = false;
+            }
+            queue(connection, Frames.frameBuffers(Frames.ACK,
+                  new byte[] { processed ? Frames.ACK_OK : Frames.ACK_FAILED }));
+         });
+         break;
+
+      case Frames.ATTACHMENT:
+         if (connection.peerName == null)
+            throw new IOException("Attachment received before hello");
+         if (payload.length != Frames.DIGEST_SIZE + 8)
+            throw new IOException("Bad attachment frame");
+
+         ByteBuffer header = ByteBuffer.wrap(payload);
+         byte[] digest = new byte[Frames.DIGEST_SIZE];
+         header.get(digest);
+         long size = header.getLong();
+         if (size < 0)
+            throw new IOException("Bad attachment size " + size);
+         if (size > maxAttachmentSize)
+            throw new IOException("Attachment of " + size + " bytes is over the limit of "
+                  + maxAttachmentSize);
+
+         Path path = attachmentPath(digest);
+         connection.receiveFile(Files.createTempFile(path.getParent(),
+               path.getFileName().toString(), PART_SUFFIX), path, size);
+         break;
+
+      case Frames.ACK:
+         CompletableFuture<Boolean> ack;
+         synchronized (connection.pendingAcks) {
+            ack = connection.pendingAcks.poll();
+         }
+         if (ack == null)
+            throw new IOException("Acknowledgement received for no message");
+         ack.complete(payload.length == 1 && payload[0] == Frames.ACK_OK);
+         break;
+
+      default:
+         throw new IOException("Unknown frame type " + type);
+      }
+   }
+
+   /**
+    * Writes what is queued for a connection, waiting for the socket to become
+    * writable again if its buffer fills up. Selector thread only.
+    */
+   private void flush(PeerConnection connection)
+   {
+      connection.flushNow.set(false);
+      if (!connection.key.isValid())
+         return;
+
+      try {
+         while (true) {
+            if (!connection.write()) {
+               // Socket buffer is full, carry on when it drains
+               connection.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+               return;
+            }
+
+            // A frame may have been queued after the last write, in which
+            // case whoever queued it either sees the flag cleared and
+            // schedules a flush, or we see the frame and write it here
+            connection.flushScheduled.set(false);
+            if (connection.writeQueue.isEmpty()
+                  || !connection.flushScheduled.compareAndSet(false, true)) {
+               connection.key.interestOps(SelectionKey.OP_READ);
+               return;
+            }
+         }
+      } catch (IOException e) {
+         close(connection);
+      }
+   }
+
+   private void close(PeerConnection connection)
+   {
+      // Once the key is cancelled nothing more is queued
+      synchronized (connection.pendingAcks) {
+         connection.key.cancel();
+      }
+      try {
+         connection.channel.close();
+      } catch (IOException ignored) {
+      }
+      connection.closeFiles();
+
+      // Once the messages already received have been handled, whatever they
+      // did not refer to never will be
+      try {
+         connection.worker.execute(() -> {
+            for (Path path : connection.spooled) {
+               try {
+                  Files.deleteIfExists(path);
+               } catch (IOException e) {
+                  e.printStackTrace();
+               }
+            }
+         });
+      } catch (RejectedExecutionException e) {
+         // workers already stopped; left for setAttachmentDirectory
+      }
+
+      if (connection.peerName != null)
+         peers.remove(connection.peerName, connection);
+      connection.failPendingAcks();
+   }
+}
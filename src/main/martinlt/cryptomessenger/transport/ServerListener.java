@@ -0,0 +1,20 @@
+package martinlt.cryptomessenger.transport;
+
+/**
+ * Receives the messages decrypted by a {@link MessageServer}.
+ */
+public interface ServerListener
+{
+   /**
+    * Called on the session thread of the sending client for each message
+    * received and decrypted.
+    *
+    * @param recipient
+    *           the hosted identity the message was for
+    * @param sender
+    *           the party who sent the message
+    * @param message
+    *           the plaintext message
+    */
+   void messageReceived(String recipient, String sender, String message);
+}
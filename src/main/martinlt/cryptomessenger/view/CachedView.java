@@ -0,0 +1,123 @@
+package martinlt.cryptomessenger.view;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URL;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+import javafx.fxml.FXMLLoader;
+import javafx.scene.Parent;
+
+/**
+ * An FXML view which is parsed once, when first needed or ahead of time on
+ * a background thread, and then reused.
+ * <p>
+ * Loading FXML means parsing the file, reflecting on the controller and
+ * building the scene graph, which is slow enough to be seen each time a
+ * dialog opens. Nodes that are not yet part of a showing scene may be built
+ * off the FX thread, so {@link #prefetch(Executor)} can do the work while
+ * the user is busy elsewhere; the view must not contain controls that
+ * create windows as they are built.
+ * </p>
+ *
+ * @param <T>
+ *           the type of the root node
+ * @param <C>
+ *           the type of the controller
+ */
+public class CachedView<T extends Parent, C>
+{
+   private final URL location;
+   private CompletableFuture<FXMLLoader> loaded;
+
+   /**
+    * Creates a view which is not loaded yet.
+    *
+    * @param location
+    *           the FXML file
+    */
+   public CachedView(URL location)
+   {
+      this.location = location;
+   }
+
+   /**
+    * Starts loading the view on another thread, unless it is already loaded
+    * or loading.
+    *
+    * @param executor
+    *           runs the load
+    */
+   public synchronized void prefetch(Executor executor)
+   {
+      if (loaded == null)
+         loaded = CompletableFuture.supplyAsync(this::load, executor);
+   }
+
+   /**
+    * Returns the root node, loading the view now if it has not been, or
+    * waiting for a prefetch to finish.
+    *
+    * @return
+    * @throws IOException
+    *            if the FXML could not be loaded
+    */
+   @SuppressWarnings("unchecked")
+   public T getRoot() throws IOException
+   {
+      return (T) loader().getRoot();
+   }
+
+   /**
+    * Returns the controller, loading the view now if it has not been.
+    *
+    * @return
+    * @throws IOException
+    *            if the FXML could not be loaded
+    */
+   public C getController() throws IOException
+   {
+      return loader().getController();
+   }
+
+   private FXMLLoader loader() throws IOException
+   {
+      CompletableFuture<FXMLLoader> future;
+      synchronized (this) {
+         if (loaded == null) {
+            try {
+               loaded = CompletableFuture.completedFuture(load());
+            } catch (UncheckedIOException e) {
+               throw e.getCause();
+            }
+         }
+         future = loaded;
+      }
+
+      try {
+         return future.join();
+      } catch (CompletionException e) {
+         // Let a later call try again
+         synchronized (this) {
+            if (loaded == future)
+               loaded = null;
+         }
+         if (e.getCause() instanceof UncheckedIOException)
+            throw ((UncheckedIOException) e.getCause()).getCause();
+         throw e;
+      }
+   }
+
+   private FXMLLoader load()
+   {
+      try {
+         FXMLLoader loader = new FXMLLoader(location);
+         loader.load();
+         return loader;
+      } catch (IOException e) {
+         throw new UncheckedIOException(e);
+      }
+   }
+}
@@ -0,0 +1,214 @@
+package martinlt.cryptomessenger.view;
+
+import java.io.File;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javafx.beans.property.ReadOnlyStringProperty;
+import javafx.beans.property.ReadOnlyStringWrapper;
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+import javafx.concurrent.Worker;
+import martinlt.cryptomessenger.concurrent.ThreadPools;
+import martinlt.cryptomessenger.crypto.KeyRing;
+
+/**
+ * Encrypts files for parties on a fixed number of worker threads, so that
+ * dropping a large number of files does not start a thread (and open two
+ * files) for each of them. Jobs wait in the executor's queue until a worker
+ * is free.
+ * <p>
+ * The list of jobs and the summary are only changed on the FX thread.
+ * </p>
+ */
+public class EncryptionQueue
+{
+   /**
+    * Extension given to encrypted files.
+    */
+   public static final String EXTENSION = ".enc";
+
+   private final KeyRing keyRing;
+   private final ExecutorService executor;
+   private final int workers;
+
+   private final ObservableList<FileEncryptionTask> jobs = FXCollections.observableArrayList();
+   private final ReadOnlyStringWrapper summary = new ReadOnlyStringWrapper("");
+
+   /**
+    * When the first of the jobs now in the list started, in nanoseconds.
+    */
+   private long started;
+
+   /**
+    * Bytes already encrypted by the jobs in the list when {@link #started}
+    * was set.
+    */
+   private double startedBytes;
+
+   /**
+    * Creates a queue with one worker per processor, up to four. Encryption is
+    * CPU bound, so more workers than processors only adds contention for the
+    * disk.
+    *
+    * @param keyRing
+    *           holds the keys of the recipients
+    */
+   public EncryptionQueue(KeyRing keyRing)
+   {
+      this(keyRing, Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors())));
+   }
+
+   /**
+    * Creates a queue.
+    *
+    * @param keyRing
+    *           holds the keys of the recipients
+    * @param workers
+    *           the number of files encrypted at once
+    */
+   public EncryptionQueue(KeyRing keyRing, int workers)
+   {
+      this.keyRing = keyRing;
+      this.workers = workers;
+      this.executor = Executors.newFixedThreadPool(workers,
+            ThreadPools.daemonThreadFactory("file-encryption"));
+   }
+
+   /**
+    * Returns the jobs, oldest first, including finished ones until they are
+    * cleared.
+    *
+    * @return
+    */
+   public ObservableList<FileEncryptionTask> getJobs()
+   {
+      return jobs;
+   }
+
+   /**
+    * Returns a one line summary of the jobs, i.e. "2 of 4 workers busy, 5
+    * queued, 3 done, 80.5 MB/s".
+    *
+    * @return
+    */
+   public ReadOnlyStringProperty summaryProperty()
+   {
+      return summary.getReadOnlyProperty();
+   }
+
+   /**
+    * Queues files to be encrypted for a party. Each file is encrypted to a
+    * file of the same name with {@link #EXTENSION} added, in the same
+    * directory. Directories are skipped.
+    *
+    * @param files
+    * @param recipient
+    *           the party the files are for
+    * @return the number of jobs queued
+    */
+   public int submit(List<File> files, String recipient)
+   {
+      if (!hasActiveJobs()) {
+         started = System.nanoTime();
+         startedBytes = bytesDone();
+      }
+
+      int queued = 0;
+      for (File file : files) {
+         if (!file.isFile())
+            continue;
+
+         FileEncryptionTask job = new FileEncryptionTask(keyRing, file,
+               new File(file.getPath() + EXTENSION), recipient);
+         job.stateProperty().addListener((observable, oldState, newState) -> updateSummary());
+         job.workDoneProperty().addListener((observable, oldValue, newValue) -> updateSummary());
+         jobs.add(job);
+         executor.execute(job);
+         queued++;
+      }
+      updateSummary();
+      return queued;
+   }
+
+   /**
+    * Cancels every job that has not finished.
+    */
+   public void cancelAll()
+   {
+      for (FileEncryptionTask job : jobs)
+         job.cancel();
+   }
+
+   /**
+    * Removes the jobs that have finished, failed or been cancelled.
+    */
+   public void clearFinished()
+   {
+      jobs.removeIf(job -> job.isDone());
+      updateSummary();
+   }
+
+   /**
+    * Cancels the jobs and stops the workers.
+    */
+   public void shutdown()
+   {
+      cancelAll();
+      executor.shutdownNow();
+   }
+
+   private boolean hasActiveJobs()
+   {
+      for (FileEncryptionTask job : jobs) {
+         if (!job.isDone())
+            return true;
+      }
+      return false;
+   }
+
+   private double bytesDone()
+   {
+      double bytes = 0;
+      for (FileEncryptionTask job : jobs) {
+         if (job.getWorkDone() > 0)
+            bytes += job.getWorkDone();
+      }
+      return bytes;
+   }
+
+   private void updateSummary()
+   {
+      int running = 0, queued = 0, done = 0, failed = 0;
+      for (FileEncryptionTask job : jobs) {
+         Worker.State state = job.getState();
+         if (state == Worker.State.RUNNING)
+            running++;
+         else if (state == Worker.State.SUCCEEDED)
+            done++;
+         else if (state == Worker.State.FAILED || state == Worker.State.CANCELLED)
+            failed++;
+         else
+            queued++;
+      }
+
+      if (jobs.isEmpty()) {
+         summary.set("");
+         return;
+      }
+
+      StringBuilder text = new StringBuilder();
+      text.append(running).append(" of ").append(workers).append(" workers busy, ")
+            .append(queued).append(" queued, ").append(done).append(" done");
+      if (failed > 0)
+         text.append(", ").append(failed).append(" failed or cancelled");
+
+      double seconds = (System.nanoTime() - started) / 1e9;
+      if (running > 0 && seconds > 0)
+         text.append(String.format(Locale.ROOT, ", %.1f MB/s",
+               (bytesDone() - startedBytes) / (1024 * 1024) / seconds));
+      summary.set(text.toString());
+   }
+}
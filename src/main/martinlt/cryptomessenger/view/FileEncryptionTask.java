@@ -0,0 +1,135 @@
+package martinlt.cryptomessenger.view;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+
+import javafx.concurrent.Task;
+import martinlt.cryptomessenger.crypto.KeyRing;
+
+/**
+ * Encrypts one file for a party, streaming it through
+ * {@link KeyRing#encrypt(java.io.InputStream, java.io.OutputStream, String)}
+ * so that files of any size are encrypted in chunks rather than read into
+ * memory. The ciphertext is written to a temporary file next to the target
+ * and only moved into place once it is complete, so a failed or cancelled
+ * job leaves nothing half written behind.
+ * <p>
+ * Progress is the number of bytes read from the file; the message shows the
+ * amount done and the throughput.
+ * </p>
+ */
+public class FileEncryptionTask extends Task<File>
+{
+   private static final int BUFFER_SIZE = 64 * 1024;
+
+   private final KeyRing keyRing;
+   private final File source;
+   private final File target;
+   private final String recipient;
+
+   /**
+    * @param keyRing
+    *           holds the recipient's keys
+    * @param source
+    *           the file to encrypt
+    * @param target
+    *           receives the ciphertext
+    * @param recipient
+    *           the party the file is for
+    */
+   public FileEncryptionTask(KeyRing keyRing, File source, File target, String recipient)
+   {
+      this.keyRing = keyRing;
+      this.source = source;
+      this.target = target;
+      this.recipient = recipient;
+      updateTitle(source.getName());
+      updateMessage("Queued");
+   }
+
+   public File getSource()
+   {
+      return source;
+   }
+
+   public File getTarget()
+   {
+      return target;
+   }
+
+   public String getRecipient()
+   {
+      return recipient;
+   }
+
+   @Override
+   protected File call() throws Exception
+   {
+      final long size = source.length();
+      final long started = System.nanoTime();
+      updateProgress(0, size);
+      updateMessage("Encrypting...");
+
+      Path temp = Files.createTempFile(target.getAbsoluteFile().getParentFile().toPath(),
+            target.getName() + "-", ".part");
+      try {
+         try (InputStream in = new ProgressInputStream(
+               Files.newInputStream(source.toPath()), done -> {
+                  updateProgress(done, size);
+                  updateMessage(describe(done, size, System.nanoTime() - started));
+               }, this::isCancelled);
+               OutputStream out = new BufferedOutputStream(Files.newOutputStream(temp),
+                     BUFFER_SIZE)) {
+            keyRing.encrypt(in, out, recipient);
+         }
+
+         try {
+            Files.move(temp, target.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                  StandardCopyOption.REPLACE_EXISTING);
+         } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+         }
+      } finally {
+         Files.deleteIfExists(temp);
+      }
+
+      updateProgress(size, size);
+      updateMessage(describe(size, size, System.nanoTime() - started) + ", saved to "
+            + target.getName());
+      return target;
+   }
+
+   @Override
+   protected void cancelled()
+   {
+      updateMessage("Cancelled");
+   }
+
+   @Override
+   protected void failed()
+   {
+      Throwable e = getException();
+      updateMessage("Failed: " + (e.getMessage() != null ? e.getMessage() : e.toString()));
+   }
+
+   /**
+    * Describes how far a job has got, i.e. "3.2 of 10.0 MB, 45.1 MB/s".
+    */
+   static String describe(long done, long size, long nanos)
+   {
+      double mb = 1024 * 1024;
+      double seconds = nanos / 1e9;
+      String progress = String.format(Locale.ROOT, "%.1f of %.1f MB", done / mb, size / mb);
+      if (seconds <= 0)
+         return progress;
+      return progress + String.format(Locale.ROOT, ", %.1f MB/s", done / mb / seconds);
+   }
+}
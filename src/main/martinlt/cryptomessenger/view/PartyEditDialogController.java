@@ -46,13 +46,15 @@ public class PartyEditDialogController
    }
 
    /**
-    * Sets the party to be edited in the dialog.
+    * Sets the party to be edited in the dialog, which starts over as not OK
+    * clicked since the dialog is reused.
     *
     * @param party
     */
    public void setParty(Party party)
    {
       this.party = party;
+      this.okClicked = false;
 
       identifierField.setText(party.getIdentifier());
       publicKeyField.setText(party.getPublicKey());
@@ -1,16 +1,44 @@
 package martinlt.cryptomessenger.view;
 
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Base64;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
 
+import javafx.application.Platform;
+import javafx.beans.binding.Bindings;
 import javafx.collections.ObservableList;
 import javafx.fxml.FXML;
+import javafx.geometry.Pos;
 import javafx.scene.control.Alert;
 import javafx.scene.control.Alert.AlertType;
+import javafx.scene.control.Button;
+import javafx.scene.control.CheckBox;
 import javafx.scene.control.ComboBox;
 import javafx.scene.control.Label;
+import javafx.scene.control.ListCell;
+import javafx.scene.control.ListView;
+import javafx.scene.control.ProgressBar;
 import javafx.scene.control.TextArea;
 import javafx.scene.input.Clipboard;
 import javafx.scene.input.ClipboardContent;
+import javafx.scene.input.DragEvent;
+import javafx.scene.input.Dragboard;
+import javafx.scene.input.TransferMode;
+import javafx.scene.layout.HBox;
+import javafx.scene.layout.Priority;
+import javafx.stage.FileChooser;
 import martinlt.cryptomessenger.MainApp;
 import martinlt.cryptomessenger.model.Party;
 
@@ -23,7 +51,10 @@ public class PartyOverviewController
    private Label publicKeyLabel;
 
    @FXML
-   private Label outputLabel;
+   private TextViewer outputView;
+
+   @FXML
+   private CheckBox saveLargeOutputCheckBox;
 
    @FXML
    private Label outputLabelPrompt;
@@ -31,11 +62,42 @@ public class PartyOverviewController
    @FXML
    private TextArea messageLabel;
 
+   @FXML
+   private ListView<FileEncryptionTask> jobView;
+
+   @FXML
+   private Label jobSummaryLabel;
+
    // Reference to the main application.
    private MainApp mainApp;
 
    private static final String NEWLINE = "\n";
 
+   /**
+    * Outputs longer than this (in characters) are offered to be saved to a
+    * file rather than shown, if the user has chosen so.
+    */
+   private static final int LARGE_OUTPUT = 1024 * 1024;
+
+   /**
+    * Outputs longer than this (in characters) are put on the clipboard as a
+    * file rather than as text.
+    */
+   private static final int LARGE_CLIPBOARD = 256 * 1024;
+
+   /**
+    * What the current output is, its length and how to write it, or null
+    * if there is none.
+    */
+   private String outputName;
+   private int outputLength;
+   private OutputWriter outputWriter;
+
+   /**
+    * The temporary file last put on the clipboard, or null.
+    */
+   private Path clipboardFile;
+
    /**
     * The constructor. The constructor is called before the initialize() method.
     */
@@ -72,6 +134,11 @@ public class PartyOverviewController
          // Add observable list data to the table
          partyComboBox.setItems(this.mainApp.getPartyData());
       }
+
+      EncryptionQueue queue = mainApp.getEncryptionQueue();
+      jobView.setItems(queue.getJobs());
+      jobView.setCellFactory(list -> new JobCell());
+      jobSummaryLabel.textProperty().bind(queue.summaryProperty());
    }
 
    /**
@@ -94,26 +161,238 @@ public class PartyOverviewController
       }
    }
 
+   /**
+    * Shows an output in the viewer or, if it is large and the user has asked
+    * for large outputs to go to a file, writes it to a file chosen by the
+    * user in the background.
+    *
+    * @param name
+    *           what the output is, i.e. "Ciphertext"
+    * @param text
+    */
+   private void showOutput(String name, final String text)
+   {
+      showOutput(name, text.length(), () -> text, out -> {
+         try (Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8)) {
+            writer.write(text);
+         }
+      });
+   }
+
+   /**
+    * Shows an output as {@link #showOutput(String, String)} does, with a way
+    * of writing it to a file that need not go through the text. The text is
+    * only built if it is to be shown.
+    *
+    * @param name
+    *           what the output is, i.e. "Ciphertext"
+    * @param length
+    *           the length of the text
+    * @param text
+    *           builds the text
+    * @param writer
+    *           writes the same text, as UTF-8, and closes the stream
+    */
+   private void showOutput(String name, int length, Supplier<String> text, OutputWriter writer)
+   {
+      outputName = name;
+      outputLength = length;
+      outputWriter = writer;
+
+      if (length > LARGE_OUTPUT && saveLargeOutputCheckBox.isSelected()) {
+         outputView.setText(null);
+         outputLabelPrompt.setText(name + " (" + length / 1024 + " KB, not shown):");
+         handleSaveOutput();
+         return;
+      }
+
+      outputView.setText(text.get());
+      outputLabelPrompt.setText(name + ":");
+   }
+
+   /**
+    * Called when the user clicks the save output button. Lets the user choose
+    * a file and writes the output to it in the background.
+    */
+   @FXML
+   private void handleSaveOutput()
+   {
+      if (outputWriter == null)
+         return;
+
+      FileChooser fileChooser = new FileChooser();
+      fileChooser.setTitle("Save " + outputName.toLowerCase(Locale.ROOT));
+      fileChooser.setInitialFileName(
+            outputName.toLowerCase(Locale.ROOT).replace(' ', '-') + ".txt");
+      final File file = fileChooser.showSaveDialog(mainApp.getPrimaryStage());
+      if (file == null)
+         return;
+
+      final String name = outputName;
+      final String prompt = outputLabelPrompt.getText();
+      outputLabelPrompt.setText(name + " saving to " + file.getName() + "...");
+      writeOutput(file.toPath()).whenComplete((result, e) -> Platform.runLater(() -> {
+         if (e == null) {
+            outputLabelPrompt.setText(name + " saved to " + file.getPath());
+         } else {
+            outputLabelPrompt.setText(prompt);
+            Alert alert = new Alert(AlertType.ERROR);
+            alert.initOwner(mainApp.getPrimaryStage());
+            alert.setTitle("Error");
+            alert.setHeaderText("Could not save output");
+            alert.setContentText("Could not save output to file:\n" + file.getPath());
+
+            alert.showAndWait();
+         }
+      }));
+   }
+
+   /**
+    * Writes the current output to a file on a background thread.
+    */
+   private CompletableFuture<Void> writeOutput(final Path file)
+   {
+      final OutputWriter writer = outputWriter;
+      return CompletableFuture.runAsync(() -> {
+         try {
+            writer.write(new BufferedOutputStream(Files.newOutputStream(file)));
+         } catch (IOException e) {
+            throw new UncheckedIOException(e);
+         }
+      });
+   }
+
    @FXML
    private void handleComboBoxAction()
    {
       showPartyDetails(partyComboBox.getSelectionModel().getSelectedItem());
    }
 
+   /**
+    * Accepts files dragged over the window.
+    *
+    * @param event
+    */
+   @FXML
+   private void handleDragOver(DragEvent event)
+   {
+      if (event.getDragboard().hasFiles())
+         event.acceptTransferModes(TransferMode.COPY);
+      event.consume();
+   }
+
+   /**
+    * Queues the files dropped on the window to be encrypted for the selected
+    * party. Each is written next to the original with
+    * {@link EncryptionQueue#EXTENSION} added.
+    *
+    * @param event
+    */
+   @FXML
+   private void handleDragDropped(DragEvent event)
+   {
+      Dragboard dragboard = event.getDragboard();
+      if (!dragboard.hasFiles()) {
+         event.setDropCompleted(false);
+         event.consume();
+         return;
+      }
+
+      Party selectedParty = partyComboBox.getSelectionModel().getSelectedItem();
+      if (selectedParty == null) {
+         event.setDropCompleted(false);
+         event.consume();
+
+         // Nothing selected.
+         Alert alert = new Alert(AlertType.WARNING);
+         alert.initOwner(mainApp.getPrimaryStage());
+         alert.setTitle("No Selection");
+         alert.setHeaderText("No Party Selected");
+         alert.setContentText("Please select the party to encrypt the files for.");
+
+         alert.showAndWait();
+         return;
+      }
+
+      int queued = mainApp.getEncryptionQueue().submit(dragboard.getFiles(),
+            selectedParty.getIdentifier());
+      event.setDropCompleted(queued > 0);
+      event.consume();
+   }
+
+   @FXML
+   private void handleCancelAllJobs()
+   {
+      mainApp.getEncryptionQueue().cancelAll();
+   }
+
+   @FXML
+   private void handleClearFinishedJobs()
+   {
+      mainApp.getEncryptionQueue().clearFinished();
+   }
+
+   /**
+    * Called when the user clicks the copy button. A small output is copied as
+    * text. A large one is written to a temporary file in the background and
+    * the file is put on the clipboard, so that the text is not copied again
+    * into the clipboard and the desktop does not have to take it all at
+    * once.
+    */
    @FXML
    private void handleCopyToClipboard()
    {
-      final Clipboard clipboard = Clipboard.getSystemClipboard();
-      final ClipboardContent content = new ClipboardContent();
-      content.putString(outputLabel.getText());
-      clipboard.setContent(content);
+      if (outputWriter == null)
+         return;
+
+      if (outputLength <= LARGE_CLIPBOARD && !outputView.getText().isEmpty()) {
+         final ClipboardContent content = new ClipboardContent();
+         content.putString(outputView.getText());
+         Clipboard.getSystemClipboard().setContent(content);
+         return;
+      }
+
+      final String name = outputName;
+      final String prompt = outputLabelPrompt.getText();
+      final Path file;
+      try {
+         file = Files.createTempFile(name.toLowerCase(Locale.ROOT).replace(' ', '-') + "-",
+               ".txt");
+         file.toFile().deleteOnExit();
+      } catch (IOException e) {
+         e.printStackTrace();
+         return;
+      }
+
+      outputLabelPrompt.setText(name + " copying...");
+      writeOutput(file).whenComplete((result, e) -> Platform.runLater(() -> {
+         outputLabelPrompt.setText(prompt);
+         if (e == null) {
+            ClipboardContent content = new ClipboardContent();
+            content.putFiles(Collections.singletonList(file.toFile()));
+            Clipboard.getSystemClipboard().setContent(content);
+
+            // The file the clipboard held before is no use now
+            if (clipboardFile != null)
+               clipboardFile.toFile().delete();
+            clipboardFile = file;
+         } else {
+            file.toFile().delete();
+            Alert alert = new Alert(AlertType.ERROR);
+            alert.initOwner(mainApp.getPrimaryStage());
+            alert.setTitle("Error");
+            alert.setHeaderText("Could not copy output");
+            alert.setContentText("Could not write the output to a temporary file.");
+
+            alert.showAndWait();
+         }
+      }));
    }
 
    @FXML
    private void handleShowMyPublicKey()
    {
-      outputLabel.setText(mainApp.getPublicKey());
-      outputLabelPrompt.setText("My Public Key:");
+      showOutput("My Public Key", mainApp.getPublicKey());
    }
 
    @FXML
@@ -126,8 +405,13 @@ public class PartyOverviewController
             try {
                mainApp.encryptMessage(message, party.getIdentifier());
 
-               outputLabel.setText(mainApp.getCipherText());
-               outputLabelPrompt.setText("Ciphertext:");
+               // Kept, so that what is copied or saved later is what is shown
+               // now, even if something else is encrypted meanwhile
+               final byte[] cipherText = mainApp.getCipherTextBytes();
+               showOutput("Ciphertext", (int) Math.min(Integer.MAX_VALUE,
+                     4L * ((cipherText.length + 2) / 3)),
+                     () -> Base64.getEncoder().encodeToString(cipherText),
+                     out -> MainApp.writeCipherText(cipherText, out));
             } catch (Exception e) {
                e.printStackTrace();
                Alert alert = new Alert(AlertType.ERROR);
@@ -175,8 +459,7 @@ public class PartyOverviewController
                else
                   mainApp.receiveAndDecryptMessage(Base64.getDecoder().decode(message), party.getIdentifier());
 
-               outputLabel.setText(mainApp.getPlainText());
-               outputLabelPrompt.setText("Plaintext:");
+               showOutput("Plaintext", mainApp.getPlainText());
             } catch (Exception ex) {
                Alert alert = new Alert(AlertType.ERROR);
                alert.initOwner(mainApp.getPrimaryStage());
@@ -293,4 +576,58 @@ public class PartyOverviewController
       }
    }
 
+
+   /**
+    * Writes an output to a stream, which it closes.
+    */
+   private interface OutputWriter
+   {
+      void write(OutputStream out) throws IOException;
+   }
+
+   /**
+    * Shows a file encryption job with its progress and a button to cancel
+    * it.
+    */
+   private static class JobCell extends ListCell<FileEncryptionTask>
+   {
+      private final Label title = new Label();
+      private final ProgressBar progress = new ProgressBar();
+      private final Label message = new Label();
+      private final Button cancel = new Button("Cancel");
+      private final HBox box = new HBox(8, title, progress, message, cancel);
+
+      JobCell()
+      {
+         box.setAlignment(Pos.CENTER_LEFT);
+         title.setPrefWidth(180);
+         progress.setPrefWidth(120);
+         message.setMaxWidth(Double.MAX_VALUE);
+         HBox.setHgrow(message, Priority.ALWAYS);
+      }
+
+      @Override
+      protected void updateItem(FileEncryptionTask job, boolean empty)
+      {
+         super.updateItem(job, empty);
+
+         title.textProperty().unbind();
+         progress.progressProperty().unbind();
+         message.textProperty().unbind();
+         cancel.disableProperty().unbind();
+
+         if (empty || job == null) {
+            setGraphic(null);
+            return;
+         }
+
+         title.textProperty().bind(job.titleProperty());
+         progress.progressProperty().bind(job.progressProperty());
+         message.textProperty().bind(job.messageProperty());
+         cancel.disableProperty().bind(Bindings.createBooleanBinding(job::isDone,
+               job.stateProperty()));
+         cancel.setOnAction(e -> job.cancel());
+         setGraphic(box);
+      }
+   }
 }
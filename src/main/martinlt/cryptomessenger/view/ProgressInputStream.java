@@ -0,0 +1,115 @@
+package martinlt.cryptomessenger.view;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongConsumer;
+
+/**
+ * An input stream that counts the bytes read through it, reports the count
+ * every so often and stops with an {@link InterruptedIOException} once it is
+ * cancelled. Reporting is throttled so that a job reading in small chunks
+ * does not flood the FX thread with progress updates.
+ */
+final class ProgressInputStream extends FilterInputStream
+{
+   /**
+    * Progress is reported after at least this many bytes have been read.
+    */
+   static final int REPORT_INTERVAL = 256 * 1024;
+
+   private final LongConsumer progress;
+   private final BooleanSupplier cancelled;
+   private long count;
+   private long reported;
+
+   /**
+    * @param in
+    *           the stream to read
+    * @param progress
+    *           given the number of bytes read so far
+    * @param cancelled
+    *           returns true once reading should stop
+    */
+   ProgressInputStream(InputStream in, LongConsumer progress, BooleanSupplier cancelled)
+   {
+      super(in);
+      this.progress = progress;
+      this.cancelled = cancelled;
+   }
+
+   /**
+    * Returns the number of bytes read so far.
+    *
+    * @return
+    */
+   long getCount()
+   {
+      return count;
+   }
+
+   @Override
+   public int read() throws IOException
+   {
+      checkCancelled();
+      int b = super.read();
+      if (b >= 0)
+         advance(1);
+      else
+         finish();
+      return b;
+   }
+
+   @Override
+   public int read(byte[] b, int off, int len) throws IOException
+   {
+      checkCancelled();
+      int n = super.read(b, off, len);
+      if (n > 0)
+         advance(n);
+      else if (n < 0)
+         finish();
+      return n;
+   }
+
+   @Override
+   public long skip(long n) throws IOException
+   {
+      checkCancelled();
+      long skipped = super.skip(n);
+      advance(skipped);
+      return skipped;
+   }
+
+   @Override
+   public boolean markSupported()
+   {
+      // Counting would go wrong on reset
+      return false;
+   }
+
+   private void checkCancelled() throws InterruptedIOException
+   {
+      if (cancelled.getAsBoolean())
+         throw new InterruptedIOException("Cancelled after " + count + " bytes");
+   }
+
+   private void advance(long n)
+   {
+      count += n;
+      if (count - reported >= REPORT_INTERVAL) {
+         reported = count;
+         progress.accept(count);
+      }
+   }
+
+   private void finish()
+   {
+      if (reported != count) {
+         reported = count;
+         progress.accept(count);
+      }
+   }
+}
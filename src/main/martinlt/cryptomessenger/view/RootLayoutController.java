@@ -2,6 +2,7 @@ package martinlt.cryptomessenger.view;
 
 import java.io.File;
 
+import javafx.application.Platform;
 import javafx.fxml.FXML;
 import javafx.scene.control.Alert;
 import javafx.scene.control.Alert.AlertType;
@@ -38,8 +39,9 @@ public class RootLayoutController
    @FXML
    private void handleNew()
    {
-      mainApp.getPartyData().clear();
+      // Forget the file first, so that clearing the list is not autosaved
       mainApp.setPartyFilePath(null);
+      mainApp.getPartyData().clear();
    }
 
    /**
@@ -63,6 +65,52 @@ public class RootLayoutController
       }
    }
 
+   /**
+    * Opens a FileChooser to let the user select an address book whose parties
+    * are merged into the current one.
+    */
+   @FXML
+   private void handleImport()
+   {
+      FileChooser fileChooser = new FileChooser();
+
+      // Set extension filter
+      FileChooser.ExtensionFilter extFilter = new FileChooser.ExtensionFilter("XML files (*.xml)",
+            "*.xml");
+      fileChooser.getExtensionFilters().add(extFilter);
+
+      // Show open file dialog
+      File file = fileChooser.showOpenDialog(mainApp.getPrimaryStage());
+
+      if (file != null) {
+         mainApp.importPartyDataFromFile(file);
+      }
+   }
+
+   /**
+    * Opens FileChoosers to let the user select a mailbox file to decrypt and
+    * a file to write the messages to. The mailbox is decrypted in the
+    * background.
+    */
+   @FXML
+   private void handleDecryptMailbox()
+   {
+      FileChooser fileChooser = new FileChooser();
+      fileChooser.setTitle("Mailbox to decrypt");
+      File mailbox = fileChooser.showOpenDialog(mainApp.getPrimaryStage());
+      if (mailbox == null)
+         return;
+
+      fileChooser.setTitle("Save decrypted messages");
+      fileChooser.setInitialDirectory(mailbox.getParentFile());
+      fileChooser.setInitialFileName(mailbox.getName() + ".txt");
+      File output = fileChooser.showSaveDialog(mainApp.getPrimaryStage());
+
+      if (output != null) {
+         mainApp.decryptMailbox(mailbox, output);
+      }
+   }
+
    /**
     * Saves the file to the party file that is currently open. If there is no
     * open file, the "save as" dialog is shown.
@@ -118,11 +166,12 @@ public class RootLayoutController
    }
 
    /**
-    * Closes the application.
+    * Closes the application. Exiting through the FX platform lets pending
+    * saves be flushed.
     */
    @FXML
    private void handleExit()
    {
-      System.exit(0);
+      Platform.exit();
    }
 }
@@ -0,0 +1,104 @@
+package martinlt.cryptomessenger.view;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+
+/**
+ * A text split into display lines, at each line break and wherever a line
+ * would be longer than a fixed width.
+ * <p>
+ * Only where each line starts is worked out up front, in one pass over the
+ * text; the lines themselves are cut from the text when asked for. So a view
+ * showing a few lines of a text of many megabytes only ever copies those
+ * few.
+ * </p>
+ */
+public class TextLines extends AbstractList<String> implements RandomAccess
+{
+   private final String text;
+
+   /**
+    * Where each line starts, followed by the end of the text.
+    */
+   private final int[] starts;
+   private final int size;
+
+   /**
+    * Splits a text into lines.
+    *
+    * @param text
+    * @param width
+    *           the most characters on a line
+    */
+   public TextLines(String text, int width)
+   {
+      if (width < 1)
+         throw new IllegalArgumentException("width must be at least 1");
+
+      this.text = text;
+
+      int[] found = new int[Math.max(16, text.length() / width + 2)];
+      int count = 0;
+      int start = 0;
+      int newline = -1;
+      while (true) {
+         if (count + 1 >= found.length)
+            found = Arrays.copyOf(found, found.length * 2);
+         found[count++] = start;
+
+         // Only search again once past the last line break found, so that a
+         // text without any is scanned once rather than once per line
+         if (newline != Integer.MAX_VALUE && newline < start) {
+            newline = text.indexOf('\n', start);
+            if (newline < 0)
+               newline = Integer.MAX_VALUE;
+         }
+
+         int limit = Math.min(text.length(), start + width);
+         if (newline <= limit) {
+            start = newline + 1;
+         } else if (limit < text.length()) {
+            start = limit;
+         } else {
+            break;
+         }
+      }
+      found[count] = text.length();
+      this.starts = found;
+      this.size = count;
+   }
+
+   /**
+    * Returns a line, without its line break.
+    */
+   @Override
+   public String get(int index)
+   {
+      if (index < 0 || index >= size)
+         throw new IndexOutOfBoundsException("Line " + index + " of " + size);
+
+      int end = starts[index + 1];
+      if (end > starts[index] && text.charAt(end - 1) == '\n')
+         end--;
+      if (end > starts[index] && text.charAt(end - 1) == '\r')
+         end--;
+      return text.substring(starts[index], end);
+   }
+
+   @Override
+   public int size()
+   {
+      return size;
+   }
+
+   /**
+    * Returns the whole text.
+    *
+    * @return
+    */
+   public String getText()
+   {
+      return text;
+   }
+}
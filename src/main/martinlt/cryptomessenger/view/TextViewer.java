@@ -0,0 +1,83 @@
+package martinlt.cryptomessenger.view;
+
+import javafx.collections.FXCollections;
+import javafx.scene.control.ListView;
+
+/**
+ * A read-only view of a text of any length, i.e. a multi-megabyte Base64
+ * ciphertext, that only lays out and renders the lines on screen.
+ * <p>
+ * The text is split into lines of at most {@link #getLineWidth()}
+ * characters (see {@link TextLines}) and shown in a virtualized list, which
+ * creates cells for the visible lines only and reuses them as it scrolls.
+ * Page Up, Page Down, Home and End move through the text a page at a time.
+ * </p>
+ */
+public class TextViewer extends ListView<String>
+{
+   /**
+    * Default characters per line, the width of MIME Base64 lines.
+    */
+   public static final int DEFAULT_LINE_WIDTH = 76;
+
+   private int lineWidth = DEFAULT_LINE_WIDTH;
+   private TextLines lines = new TextLines("", DEFAULT_LINE_WIDTH);
+
+   public TextViewer()
+   {
+      getStyleClass().add("text-viewer");
+      setEditable(false);
+      setFocusTraversable(true);
+   }
+
+   /**
+    * Shows a text, replacing the one shown before.
+    *
+    * @param text
+    *           the text, or null for none
+    */
+   public void setText(String text)
+   {
+      lines = new TextLines(text == null ? "" : text, lineWidth);
+
+      // The list reads lines from the index as cells need them
+      setItems(FXCollections.observableList(lines));
+      scrollTo(0);
+   }
+
+   /**
+    * Returns the text shown.
+    *
+    * @return
+    */
+   public String getText()
+   {
+      return lines.getText();
+   }
+
+   /**
+    * Returns the number of lines the text was split into.
+    *
+    * @return
+    */
+   public int getLineCount()
+   {
+      return lines.size();
+   }
+
+   public int getLineWidth()
+   {
+      return lineWidth;
+   }
+
+   /**
+    * Sets the most characters on a line, and splits the text shown again.
+    *
+    * @param lineWidth
+    */
+   public void setLineWidth(int lineWidth)
+   {
+      this.lineWidth = lineWidth;
+      setText(getText());
+   }
+}
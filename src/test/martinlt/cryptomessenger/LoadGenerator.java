@@ -0,0 +1,476 @@
+package martinlt.cryptomessenger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import martinlt.cryptomessenger.MainApp.AlgorithmMode;
+import martinlt.cryptomessenger.concurrent.ThreadPools;
+import martinlt.cryptomessenger.crypto.Signatures;
+import martinlt.cryptomessenger.metrics.CryptoMetrics;
+import martinlt.cryptomessenger.metrics.LatencyHistogram;
+import martinlt.cryptomessenger.metrics.Operation;
+import martinlt.cryptomessenger.metrics.OperationStatistics;
+
+/**
+ * Simulates many parties exchanging messages, to size hardware and to catch
+ * scaling regressions. Not run as part of the tests; run main with options:
+ *
+ * <pre>
+ * --parties N       identities to provision, split between the modes (1000)
+ * --mode M          RSA, DH_AES or BOTH (BOTH)
+ * --contacts K      parties each party sends to; keys are exchanged both
+ *                   ways, so each party knows 2K others (8)
+ * --messages M      messages to send after the warm-up (100000)
+ * --warmup W        messages sent first and not measured (10000)
+ * --threads T       sending threads (2 per processor)
+ * --size S          message size distribution in bytes: fixed:N,
+ *                   uniform:MIN:MAX or lognormal:MEDIAN:SIGMA
+ *                   (lognormal:100:1)
+ * --rate R          messages per second over all threads, 0 for as fast
+ *                   as possible (0)
+ * --arrivals A      poisson or constant spacing when a rate is given
+ *                   (poisson)
+ * --sign B          sign each message before encrypting it and check the
+ *                   signature after decrypting it (false)
+ * </pre>
+ * <p>
+ * Each message is encrypted by a random party for one of its contacts and
+ * decrypted by the contact. With a rate, latency is measured from when the
+ * message was due to be sent rather than when it was, so a stall counts
+ * against every message held up behind it.
+ * </p>
+ * <p>
+ * With signing on, the time spent signing and verifying is reported
+ * separately as well as being part of the encrypt and decrypt latencies.
+ * </p>
+ */
+public class LoadGenerator
+{
+   private int parties = 1000;
+   private List<AlgorithmMode> modes = new ArrayList<AlgorithmMode>();
+   private int contacts = 8;
+   private long messages = 100000;
+   private long warmup = 10000;
+   private int threads = 2 * Runtime.getRuntime().availableProcessors();
+   private SizeDistribution sizes = SizeDistribution.parse("lognormal:100:1");
+   private double rate;
+   private boolean poisson = true;
+   private boolean sign;
+
+   /**
+    * The parties of each mode, indexed like {@link #modes}.
+    */
+   private final List<MainApp[]> identities = new ArrayList<MainApp[]>();
+
+   /**
+    * Random text messages are cut from.
+    */
+   private String text;
+
+   public static void main(String[] args) throws Exception
+   {
+      LoadGenerator generator = new LoadGenerator();
+      generator.parse(args);
+      generator.run();
+   }
+
+   private void parse(String[] args)
+   {
+      String mode = "BOTH";
+      for (int i = 0; i + 1 < args.length; i += 2) {
+         String value = args[i + 1];
+         switch (args[i]) {
+         case "--parties":
+            parties = Integer.parseInt(value);
+            break;
+         case "--mode":
+            mode = value;
+            break;
+         case "--contacts":
+            contacts = Integer.parseInt(value);
+            break;
+         case "--messages":
+            messages = Long.parseLong(value);
+            break;
+         case "--warmup":
+            warmup = Long.parseLong(value);
+            break;
+         case "--threads":
+            threads = Integer.parseInt(value);
+            break;
+         case "--size":
+            sizes = SizeDistribution.parse(value);
+            break;
+         case "--rate":
+            rate = Double.parseDouble(value);
+            break;
+         case "--arrivals":
+            poisson = !value.equals("constant");
+            break;
+         case "--sign":
+            sign = Boolean.parseBoolean(value);
+            break;
+         default:
+            throw new IllegalArgumentException("Unknown option " + args[i]);
+         }
+      }
+
+      if (mode.equals("BOTH")) {
+         modes.add(AlgorithmMode.RSA);
+         modes.add(AlgorithmMode.DH_AES);
+      } else {
+         modes.add(AlgorithmMode.valueOf(mode));
+      }
+      contacts = Math.min(contacts, parties / modes.size() - 1);
+      if (contacts < 1)
+         throw new IllegalArgumentException("Need at least two parties per mode");
+   }
+
+   private void run() throws Exception
+   {
+      System.out.println(parties + " parties " + modes + ", " + contacts + " contacts each, "
+            + messages + " messages, " + threads + " threads, size " + sizes + ", rate "
+            + (rate > 0 ? rate + "/s " + (poisson ? "poisson" : "constant") : "unlimited")
+            + (sign ? ", signed with " + Signatures.ALGORITHM : "") + ", " + Runtime.getRuntime().availableProcessors() + " processors, Java "
+            + System.getProperty("java.version"));
+
+      ExecutorService pool = Executors.newFixedThreadPool(threads,
+            ThreadPools.daemonThreadFactory("load-generator"));
+      try {
+         long start = System.nanoTime();
+         provision(pool);
+         System.out.printf("Provisioned %d parties in %.1f s%n", parties,
+               (System.nanoTime() - start) / 1e9);
+
+         start = System.nanoTime();
+         exchangeKeys(pool);
+         System.out.printf("Exchanged %d public keys in %.1f s%n", 2L * contacts * parties,
+               (System.nanoTime() - start) / 1e9);
+
+         text = randomText(sizes.max());
+         send(pool, warmup, null);
+
+         Stats stats = new Stats(modes.size());
+         CryptoMetrics.get().reset();
+         start = System.nanoTime();
+         send(pool, messages, stats);
+         stats.report(modes, System.nanoTime() - start);
+         if (sign)
+            stats.reportSignatures(modes);
+      } finally {
+         pool.shutdown();
+         for (MainApp[] group : identities) {
+            for (MainApp party : group) {
+               if (party != null)
+                  party.removeKeys();
+            }
+         }
+      }
+   }
+
+   /**
+    * Creates the parties, generating their key pairs in parallel.
+    */
+   private void provision(ExecutorService pool) throws Exception
+   {
+      List<Future<?>> tasks = new ArrayList<Future<?>>();
+      for (int m = 0; m < modes.size(); m++) {
+         final AlgorithmMode mode = modes.get(m);
+         final MainApp[] group = new MainApp[parties / modes.size()];
+         identities.add(group);
+         for (int i = 0; i < group.length; i++) {
+            final int index = i;
+            tasks.add(pool.submit(() -> {
+               MainApp party = new MainApp("load-" + mode + "-" + index, mode);
+               if (sign) {
+                  party.getSigningKey();
+                  party.signMessages(true);
+               }
+               group[index] = party;
+               return null;
+            }));
+         }
+      }
+      waitFor(tasks);
+   }
+
+   /**
+    * Gives each party the keys of the {@link #contacts} parties after it and
+    * before it. Each task only changes one party, so the tasks can run in
+    * parallel.
+    */
+   private void exchangeKeys(ExecutorService pool) throws Exception
+   {
+      List<Future<?>> tasks = new ArrayList<Future<?>>();
+      for (final MainApp[] group : identities) {
+         for (int i = 0; i < group.length; i++) {
+            final int index = i;
+            tasks.add(pool.submit(() -> {
+               MainApp party = group[index];
+               for (int k = 1; k <= contacts; k++) {
+                  MainApp after = group[(index + k) % group.length];
+                  MainApp before = group[(index - k + group.length) % group.length];
+                  party.receivePublicKeyFrom(after.getName(), after.getPublicKey());
+                  if (before != after)
+                     party.receivePublicKeyFrom(before.getName(), before.getPublicKey());
+                  if (sign) {
+                     party.receiveSigningKeyFrom(after.getName(), after.getSigningKey());
+                     party.receiveSigningKeyFrom(before.getName(), before.getSigningKey());
+                  }
+               }
+               return null;
+            }));
+         }
+      }
+      waitFor(tasks);
+   }
+
+   /**
+    * Sends messages on every thread until the count is reached.
+    *
+    * @param stats
+    *           records the latencies, or null for the warm-up
+    */
+   private void send(ExecutorService pool, long count, final Stats stats) throws Exception
+   {
+      final AtomicLong remaining = new AtomicLong(count);
+      List<Future<?>> tasks = new ArrayList<Future<?>>();
+      for (int t = 0; t < threads; t++) {
+         final int thread = t;
+         tasks.add(pool.submit(() -> {
+            sendLoop(thread, remaining, stats);
+            return null;
+         }));
+      }
+      waitFor(tasks);
+   }
+
+   /**
+    * One thread's share of the load. With a rate each thread runs its own
+    * arrival process at the rate divided by the number of threads, which
+    * together make one process at the full rate.
+    */
+   private void sendLoop(int thread, AtomicLong remaining, Stats stats)
+   {
+      ThreadLocalRandom random = ThreadLocalRandom.current();
+      double interval = rate > 0 ? threads * 1e9 / rate : 0;
+      long due = System.nanoTime() + (long) (interval * thread / threads);
+
+      while (remaining.getAndDecrement() > 0) {
+         if (interval > 0) {
+            long wait = due - System.nanoTime();
+            if (wait > 0)
+               LockSupport.parkNanos(wait);
+         } else {
+            due = System.nanoTime();
+         }
+
+         int m = random.nextInt(modes.size());
+         MainApp[] group = identities.get(m);
+         int from = random.nextInt(group.length);
+         MainApp sender = group[from];
+         MainApp recipient = group[(from + 1 + random.nextInt(contacts)) % group.length];
+
+         int size = sizes.next(random);
+         int offset = random.nextInt(text.length() - size + 1);
+         String message = text.substring(offset, offset + size);
+
+         try {
+            byte[] cipherText = sender.encryptFor(message, recipient.getName());
+            long encrypted = System.nanoTime();
+            recipient.decryptFrom(cipherText, sender.getName());
+            long done = System.nanoTime();
+
+            if (stats != null)
+               stats.record(m, size, encrypted - due, done - encrypted, done - due);
+         } catch (Exception e) {
+            if (stats != null)
+               stats.errors.incrementAndGet();
+         }
+
+         if (interval > 0)
+            due += poisson ? (long) (-Math.log(1 - random.nextDouble()) * interval)
+                  : (long) interval;
+      }
+   }
+
+   private static void waitFor(List<Future<?>> tasks) throws Exception
+   {
+      for (Future<?> task : tasks) {
+         task.get();
+      }
+   }
+
+   private static String randomText(int length)
+   {
+      Random random = new Random();
+      char[] chars = new char[Math.max(length, 1) * 2];
+      for (int i = 0; i < chars.length; i++) {
+         chars[i] = (char) (' ' + random.nextInt(95));
+      }
+      return new String(chars);
+   }
+
+   /**
+    * The latencies of each mode, for encryption, decryption and the whole
+    * exchange.
+    */
+   private static class Stats
+   {
+      final LatencyHistogram[] encrypt;
+      final LatencyHistogram[] decrypt;
+      final LatencyHistogram[] total;
+      final AtomicLong bytes = new AtomicLong();
+      final AtomicLong errors = new AtomicLong();
+
+      Stats(int modes)
+      {
+         encrypt = new LatencyHistogram[modes];
+         decrypt = new LatencyHistogram[modes];
+         total = new LatencyHistogram[modes];
+         for (int m = 0; m < modes; m++) {
+            encrypt[m] = new LatencyHistogram();
+            decrypt[m] = new LatencyHistogram();
+            total[m] = new LatencyHistogram();
+         }
+      }
+
+      void record(int mode, int size, long encryptNanos, long decryptNanos, long totalNanos)
+      {
+         encrypt[mode].record(encryptNanos);
+         decrypt[mode].record(decryptNanos);
+         total[mode].record(totalNanos);
+         bytes.addAndGet(size);
+      }
+
+      void report(List<AlgorithmMode> modes, long elapsed)
+      {
+         long count = 0;
+         for (LatencyHistogram histogram : total) {
+            count += histogram.getCount();
+         }
+         double seconds = elapsed / 1e9;
+         System.out.printf("Sent %d messages in %.1f s: %.0f msg/s, %.2f MB/s, %d errors%n",
+               count, seconds, count / seconds, bytes.get() / seconds / 1e6, errors.get());
+
+         System.out.printf("%-7s %-8s %9s %10s %10s %10s %10s%n", "mode", "latency", "count",
+               "p50 ms", "p99 ms", "p999 ms", "max ms");
+         for (int m = 0; m < modes.size(); m++) {
+            print(modes.get(m), "encrypt", encrypt[m]);
+            print(modes.get(m), "decrypt", decrypt[m]);
+            print(modes.get(m), "total", total[m]);
+         }
+      }
+
+      /**
+       * Prints the time spent signing and verifying, as timed by
+       * {@link CryptoMetrics} since it was last reset.
+       */
+      void reportSignatures(List<AlgorithmMode> modes)
+      {
+         for (AlgorithmMode mode : modes) {
+            for (Operation operation : new Operation[] { Operation.SIGN, Operation.VERIFY }) {
+               OperationStatistics statistics = CryptoMetrics.get().getStatistics(operation, mode);
+               System.out.printf("%-7s %-8s %9d %10.3f %10.3f %10.3f %10.3f%n", mode,
+                     operation.getLabel(), statistics.getCount(),
+                     statistics.getP50Micros() / 1e3, statistics.getP99Micros() / 1e3,
+                     statistics.getP999Micros() / 1e3, statistics.getMaxMicros() / 1e3);
+            }
+         }
+      }
+
+      private static void print(AlgorithmMode mode, String name, LatencyHistogram histogram)
+      {
+         System.out.printf("%-7s %-8s %9d %10.3f %10.3f %10.3f %10.3f%n", mode, name,
+               histogram.getCount(), histogram.getValueAtPercentile(50) / 1e6,
+               histogram.getValueAtPercentile(99) / 1e6,
+               histogram.getValueAtPercentile(99.9) / 1e6, histogram.getMax() / 1e6);
+      }
+   }
+
+   /**
+    * A distribution of message sizes.
+    */
+   private static abstract class SizeDistribution
+   {
+      private final String description;
+
+      SizeDistribution(String description)
+      {
+         this.description = description;
+      }
+
+      abstract int next(Random random);
+
+      abstract int max();
+
+      @Override
+      public String toString()
+      {
+         return description;
+      }
+
+      static SizeDistribution parse(String text)
+      {
+         String[] parts = text.split(":");
+         switch (parts[0]) {
+         case "fixed": {
+            final int size = Integer.parseInt(parts[1]);
+            return new SizeDistribution(text) {
+               int next(Random random)
+               {
+                  return size;
+               }
+
+               int max()
+               {
+                  return size;
+               }
+            };
+         }
+         case "uniform": {
+            final int min = Integer.parseInt(parts[1]);
+            final int max = Integer.parseInt(parts[2]);
+            return new SizeDistribution(text) {
+               int next(Random random)
+               {
+                  return min + random.nextInt(max - min + 1);
+               }
+
+               int max()
+               {
+                  return max;
+               }
+            };
+         }
+         case "lognormal": {
+            // Capped so that a rare huge message does not need a huge text
+            final double median = Double.parseDouble(parts[1]);
+            final double sigma = Double.parseDouble(parts[2]);
+            final int cap = (int) Math.ceil(median * Math.exp(4 * sigma));
+            return new SizeDistribution(text) {
+               int next(Random random)
+               {
+                  return (int) Math.min(cap, Math.round(median
+                        * Math.exp(sigma * random.nextGaussian())));
+               }
+
+               int max()
+               {
+                  return cap;
+               }
+            };
+         }
+         default:
+            throw new IllegalArgumentException("Unknown size distribution " + text);
+         }
+      }
+   }
+}
@@ -1,11 +1,23 @@
 package martinlt.cryptomessenger;
 
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Base64;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Test;
 
 import junit.framework.TestCase;
 import martinlt.cryptomessenger.MainApp.AlgorithmMode;
+import martinlt.cryptomessenger.model.Party;
 
 public class MainAppTest extends TestCase
 {
@@ -90,4 +102,63 @@ public class MainAppTest extends TestCase
       }
    }
 
+
+   @Test
+   public void testConcurrentImports() throws Exception
+   {
+      bob = new MainApp("bob", AlgorithmMode.RSA);
+      alice = new MainApp("alice", AlgorithmMode.RSA);
+      final MainApp app = bob;
+      final String publicKey = alice.getPublicKey();
+
+      // Each thread imports its own parties, all at once
+      final int threads = 8;
+      final int parties = 400;
+      final CountDownLatch start = new CountDownLatch(1);
+      ExecutorService executor = Executors.newFixedThreadPool(threads);
+      try {
+         List<Future<?>> imports = new ArrayList<Future<?>>();
+         for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            imports.add(executor.submit(() -> {
+               start.await();
+               for (int i = 0; i < parties; i++) {
+                  app.receivePublicKeyFrom("party-" + thread + "-" + i, publicKey);
+               }
+               return null;
+            }));
+         }
+         start.countDown();
+         for (Future<?> done : imports) {
+            done.get(60, TimeUnit.SECONDS);
+         }
+      } finally {
+         executor.shutdown();
+      }
+
+      Set<String> listed = new HashSet<String>();
+      for (Party party : app.getPartyData()) {
+         assertTrue(listed.add(party.getIdentifier()));
+      }
+      assertEquals(threads * parties, listed.size());
+   }
+
+   @Test
+   public void testCipherTextWrittenAsShown() throws Exception
+   {
+      bob = new MainApp("bob", AlgorithmMode.RSA);
+      alice = new MainApp("alice", AlgorithmMode.RSA);
+      alice.receivePublicKeyFrom("bob", bob.getPublicKey());
+
+      alice.encryptMessage(CONFIDENTIAL_MESSAGE, "bob");
+      String shown = alice.getCipherText();
+      byte[] kept = alice.getCipherTextBytes();
+
+      // Encrypting again does not change what was kept
+      alice.encryptMessage("something else", "bob");
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      MainApp.writeCipherText(kept, out);
+      assertEquals(shown, new String(out.toByteArray(), StandardCharsets.US_ASCII));
+      assertFalse(shown.equals(alice.getCipherText()));
+   }
 }
@@ -0,0 +1,165 @@
+package martinlt.cryptomessenger.attachment;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+import martinlt.cryptomessenger.MainApp.AlgorithmMode;
+import martinlt.cryptomessenger.crypto.KeyRing;
+import martinlt.cryptomessenger.exception.SecurityException;
+
+public class AttachmentStoreTest extends TestCase
+{
+   private Path directory;
+
+   public AttachmentStoreTest(String testName)
+   {
+      super(testName);
+   }
+
+   protected void setUp() throws Exception
+   {
+      super.setUp();
+      directory = Files.createTempDirectory("attachments");
+   }
+
+   protected void tearDown() throws Exception
+   {
+      super.tearDown();
+      for (String name : new String[] { "attachment-alice", "attachment-bob",
+            "attachment-carol" }) {
+         if (KeyRing.keysPresent(name, AlgorithmMode.DH_AES))
+            new KeyRing(name, AlgorithmMode.DH_AES).removeKeys();
+      }
+      delete(directory.toFile());
+   }
+
+   private static void delete(File file)
+   {
+      File[] children = file.listFiles();
+      if (children != null) {
+         for (File child : children) {
+            delete(child);
+         }
+      }
+      file.delete();
+   }
+
+   private static byte[] read(AttachmentStore store, Manifest manifest) throws Exception
+   {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      store.read(manifest, out);
+      return out.toByteArray();
+   }
+
+   @Test
+   public void testRepeatedContentIsStoredOnce() throws Exception
+   {
+      byte[] attachment = new byte[1024 * 1024];
+      new Random(42).nextBytes(attachment);
+
+      AttachmentStore store = new AttachmentStore(directory);
+      Manifest manifest = store.store(new ByteArrayInputStream(attachment));
+      long chunks = manifest.getChunks().size();
+      assertEquals(chunks, store.getChunksWritten());
+      assertTrue(chunks > attachment.length / Chunker.MAX_SIZE);
+      assertTrue(Arrays.equals(attachment, read(store, manifest)));
+
+      // The same again costs nothing
+      long written = store.getBytesWritten();
+      store.store(new ByteArrayInputStream(attachment));
+      assertEquals(chunks, store.getChunksWritten());
+      assertEquals(written, store.getBytesWritten());
+      assertEquals(attachment.length, store.getBytesReused());
+
+      // Bytes inserted at the start only change the chunks around them
+      byte[] edited = new byte[attachment.length + 10];
+      System.arraycopy(attachment, 0, edited, 10, attachment.length);
+      Manifest editedManifest = store.store(new ByteArrayInputStream(edited));
+      assertTrue(store.getChunksWritten() - chunks <= 2);
+      assertTrue(Arrays.equals(edited, read(store, editedManifest)));
+
+      // A reopened store keeps its secret, and so its keys
+      AttachmentStore reopened = new AttachmentStore(directory);
+      reopened.store(new ByteArrayInputStream(attachment));
+      assertEquals(0, reopened.getChunksWritten());
+   }
+
+   @Test
+   public void testStoresOpenedTogetherShareTheSecret() throws Exception
+   {
+      final byte[] attachment = new byte[64 * 1024];
+      new Random(3).nextBytes(attachment);
+      final CountDownLatch start = new CountDownLatch(1);
+      ExecutorService executor = Executors.newFixedThreadPool(8);
+      try {
+         List<Future<Manifest>> manifests = new ArrayList<Future<Manifest>>();
+         for (int i = 0; i < 8; i++) {
+            manifests.add(executor.submit(() -> {
+               start.await();
+               return new AttachmentStore(directory).store(new ByteArrayInputStream(attachment));
+            }));
+         }
+         start.countDown();
+
+         // Each reads back what the others stored
+         AttachmentStore store = new AttachmentStore(directory);
+         for (Future<Manifest> manifest : manifests) {
+            assertTrue(Arrays.equals(attachment, read(store, manifest.get(10, TimeUnit.SECONDS))));
+         }
+      } finally {
+         executor.shutdown();
+      }
+   }
+
+   @Test
+   public void testManifestIsWrappedForEachRecipient() throws Exception
+   {
+      KeyRing alice = new KeyRing("attachment-alice", AlgorithmMode.DH_AES);
+      KeyRing bob = new KeyRing("attachment-bob", AlgorithmMode.DH_AES);
+      KeyRing carol = new KeyRing("attachment-carol", AlgorithmMode.DH_AES);
+      for (KeyRing recipient : new KeyRing[] { bob, carol }) {
+         alice.receivePublicKeyFrom(recipient.getName(), recipient.getPublicKey());
+         recipient.receivePublicKeyFrom(alice.getName(), alice.getPublicKey());
+      }
+
+      byte[] attachment = new byte[300 * 1024];
+      new Random(7).nextBytes(attachment);
+      AttachmentStore store = new AttachmentStore(directory);
+      Manifest manifest = store.store(new ByteArrayInputStream(attachment));
+
+      for (KeyRing recipient : new KeyRing[] { bob, carol }) {
+         byte[] envelope = store.wrap(manifest, alice, recipient.getName());
+         assertTrue(envelope.length < 100 + manifest.getChunks().size() * 20);
+
+         Manifest received = store.unwrap(envelope, recipient, alice.getName());
+         assertTrue(Arrays.equals(attachment, read(store, received)));
+      }
+
+      // A chunk changed on disk is caught
+      Path chunk = Files.walk(directory).filter(path -> Files.isRegularFile(path)
+            && !path.getFileName().toString().equals("store.secret")).findFirst().get();
+      byte[] bytes = Files.readAllBytes(chunk);
+      bytes[0] ^= 1;
+      Files.write(chunk, bytes);
+      try {
+         read(store, manifest);
+         fail("Expected the changed chunk to be rejected");
+      } catch (SecurityException e) {
+      }
+   }
+}
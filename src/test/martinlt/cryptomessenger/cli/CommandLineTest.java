@@ -0,0 +1,135 @@
+package martinlt.cryptomessenger.cli;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+import martinlt.cryptomessenger.MainApp.AlgorithmMode;
+import martinlt.cryptomessenger.crypto.KeyRing;
+import martinlt.cryptomessenger.persistence.PartyXml;
+
+public class CommandLineTest extends TestCase
+{
+   private File directory;
+
+   public CommandLineTest(String testName)
+   {
+      super(testName);
+   }
+
+   protected void setUp() throws Exception
+   {
+      super.setUp();
+      directory = Files.createTempDirectory("cli").toFile();
+   }
+
+   protected void tearDown() throws Exception
+   {
+      super.tearDown();
+      for (AlgorithmMode mode : AlgorithmMode.values()) {
+         for (String name : new String[] { "cli-bob", "cli-alice" }) {
+            if (KeyRing.keysPresent(name, mode))
+               new KeyRing(name, mode).removeKeys();
+         }
+      }
+      for (File file : directory.listFiles()) {
+         file.delete();
+      }
+      directory.delete();
+   }
+
+   private String run(String... args) throws Exception
+   {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      assertEquals(0, new CommandLine(new PrintStream(out, true, "UTF-8")).run(args));
+      return new String(out.toByteArray(), StandardCharsets.UTF_8);
+   }
+
+   private void encryptAndDecryptFile(AlgorithmMode mode) throws Exception
+   {
+      String bobParties = new File(directory, "bob.xml").getPath();
+      String aliceParties = new File(directory, "alice.xml").getPath();
+      String[] bob = { "-name", "cli-bob", "-mode", mode.name(), "-parties", bobParties };
+      String[] alice = { "-name", "cli-alice", "-mode", mode.name(), "-parties", aliceParties };
+
+      // Exchange public keys through PEM files
+      File bobKey = new File(directory, "bob.pem");
+      File aliceKey = new File(directory, "alice.pem");
+      Files.write(bobKey.toPath(), run(with(bob, "keygen")).getBytes(StandardCharsets.UTF_8));
+      Files.write(aliceKey.toPath(), run(with(alice, "keygen")).getBytes(StandardCharsets.UTF_8));
+      run(with(bob, "import", "cli-alice", aliceKey.getPath()));
+      run(with(alice, "import", "cli-bob", bobKey.getPath()));
+
+      assertTrue(run(with(bob, "parties")).startsWith("cli-alice\t"));
+      assertEquals(new String(Files.readAllBytes(aliceKey.toPath()), StandardCharsets.UTF_8),
+            run(with(bob, "export", "cli-alice")));
+
+      // Bigger than the cipher's stream buffer
+      byte[] plain = new byte[300 * 1024 + 7];
+      new Random(1).nextBytes(plain);
+      File plainFile = new File(directory, "plain.bin");
+      File encryptedFile = new File(directory, "plain.bin.enc");
+      File decryptedFile = new File(directory, "decrypted.bin");
+      Files.write(plainFile.toPath(), plain);
+
+      run(with(alice, "encrypt", "cli-bob", plainFile.getPath(), encryptedFile.getPath()));
+      run(with(bob, "decrypt", "cli-alice", encryptedFile.getPath(), decryptedFile.getPath()));
+
+      assertEquals(plain.length, Files.size(decryptedFile.toPath()));
+      assertTrue(Arrays.equals(plain, Files.readAllBytes(decryptedFile.toPath())));
+
+      // The file layout is the one used for messages
+      KeyRing bobKeys = new KeyRing("cli-bob", mode);
+      bobKeys.receivePublicKeyFrom("cli-alice",
+            PartyXml.read(new File(bobParties)).get("cli-alice"));
+      assertTrue(Arrays.equals(plain,
+            bobKeys.decrypt(Files.readAllBytes(encryptedFile.toPath()), "cli-alice")));
+   }
+
+   private static String[] with(String[] options, String... command)
+   {
+      String[] args = new String[options.length + command.length];
+      System.arraycopy(options, 0, args, 0, options.length);
+      System.arraycopy(command, 0, args, options.length, command.length);
+      return args;
+   }
+
+   @Test
+   public void testEncryptAndDecryptFileRSA() throws Exception
+   {
+      encryptAndDecryptFile(AlgorithmMode.RSA);
+   }
+
+   @Test
+   public void testEncryptAndDecryptFileDH() throws Exception
+   {
+      encryptAndDecryptFile(AlgorithmMode.DH_AES);
+   }
+
+   @Test
+   public void testImportAndExportParties() throws Exception
+   {
+      String pem = new KeyRing("cli-bob", AlgorithmMode.RSA).getPublicKey();
+      File other = new File(directory, "other.xml");
+      Map<String, String> parties = new LinkedHashMap<String, String>();
+      parties.put("carol", pem);
+      parties.put("dave", pem);
+      PartyXml.write(other, parties);
+
+      File mine = new File(directory, "mine.xml");
+      run("-parties", mine.getPath(), "import-parties", other.getPath());
+      File exported = new File(directory, "exported.xml");
+      run("-parties", mine.getPath(), "export-parties", exported.getPath());
+
+      assertEquals(parties, PartyXml.read(exported));
+   }
+}
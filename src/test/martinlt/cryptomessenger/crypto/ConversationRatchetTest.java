@@ -0,0 +1,245 @@
+package martinlt.cryptomessenger.crypto;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+import martinlt.cryptomessenger.MainApp;
+import martinlt.cryptomessenger.MainApp.AlgorithmMode;
+import martinlt.cryptomessenger.exception.SecurityException;
+
+public class ConversationRatchetTest extends TestCase
+{
+   private MainApp alice;
+   private MainApp bob;
+
+   public ConversationRatchetTest(String testName)
+   {
+      super(testName);
+   }
+
+   protected void tearDown() throws Exception
+   {
+      super.tearDown();
+      if (alice != null)
+         alice.removeKeys();
+      if (bob != null)
+         bob.removeKeys();
+   }
+
+   private void createParties(AlgorithmMode mode) throws Exception
+   {
+      alice = new MainApp("ratchet-alice", mode);
+      bob = new MainApp("ratchet-bob", mode);
+      alice.receivePublicKeyFrom(bob.getName(), bob.getPublicKey());
+      bob.receivePublicKeyFrom(alice.getName(), alice.getPublicKey());
+      alice.useRatchet(true);
+      bob.useRatchet(true);
+   }
+
+   private void conversation(AlgorithmMode mode) throws Exception
+   {
+      createParties(mode);
+
+      for (int i = 0; i < 5; i++) {
+         byte[] toBob = alice.encryptFor("hello " + i, bob.getName());
+         assertEquals("hello " + i, bob.decryptFrom(toBob, alice.getName()));
+         byte[] toAlice = bob.encryptFor("reply " + i, alice.getName());
+         assertEquals("reply " + i, alice.decryptFrom(toAlice, bob.getName()));
+      }
+   }
+
+   @Test
+   public void testConversationRSA() throws Exception
+   {
+      conversation(AlgorithmMode.RSA);
+   }
+
+   @Test
+   public void testConversationDH() throws Exception
+   {
+      conversation(AlgorithmMode.DH_AES);
+   }
+
+   @Test
+   public void testOutOfOrderAndReplay() throws Exception
+   {
+      createParties(AlgorithmMode.DH_AES);
+
+      byte[][] messages = new byte[5][];
+      for (int i = 0; i < messages.length; i++) {
+         messages[i] = alice.encryptFor("message " + i, bob.getName());
+      }
+
+      // Later messages first, then those stepped over
+      for (int i : new int[] { 3, 0, 4, 2, 1 }) {
+         assertEquals("message " + i, bob.decryptFrom(messages[i], alice.getName()));
+      }
+
+      // Each message key is used once
+      for (byte[] message : messages) {
+         try {
+            bob.decryptFrom(message, alice.getName());
+            fail("Replayed message was decrypted");
+         } catch (SecurityException e) {
+            // expected
+         }
+      }
+   }
+
+   @Test
+   public void testSkipBound() throws Exception
+   {
+      createParties(AlgorithmMode.DH_AES);
+
+      byte[] first = alice.encryptFor("first", bob.getName());
+      byte[] second = alice.encryptFor("second", bob.getName());
+      for (int i = 0; i < ConversationRatchet.MAX_SKIP; i++) {
+         alice.encryptFor("skipped", bob.getName());
+      }
+      byte[] tooFar = alice.encryptFor("too far", bob.getName());
+
+      // Only a chain seen for the first time may jump ahead
+      assertEquals("first", bob.decryptFrom(first, alice.getName()));
+      try {
+         bob.decryptFrom(tooFar, alice.getName());
+         fail("Message beyond the skip bound was decrypted");
+      } catch (SecurityException e) {
+         // expected
+      }
+
+      // The failed message left the chain as it was
+      assertEquals("second", bob.decryptFrom(second, alice.getName()));
+   }
+
+   @Test
+   public void testChainSeenPartWayThrough() throws Exception
+   {
+      createParties(AlgorithmMode.DH_AES);
+      ConversationRatchet sender = new ConversationRatchet(alice.getKeyRing());
+      ConversationRatchet receiver = new ConversationRatchet(bob.getKeyRing());
+
+      byte[][] messages = new byte[3 * ConversationRatchet.MAX_SKIP][];
+      for (int i = 0; i < messages.length; i++) {
+         messages[i] = sender.encrypt(("message " + i).getBytes(), bob.getName());
+      }
+
+      // As though the receiver restarted: the chain is picked up far into it
+      int last = messages.length - 1;
+      assertEquals("message " + last, new String(receiver.decrypt(messages[last], alice.getName())));
+      try {
+         receiver.decrypt(messages[last - 1], alice.getName());
+         fail("Message before the chain was picked up was decrypted");
+      } catch (SecurityException e) {
+         // expected
+      }
+   }
+
+   @Test
+   public void testReplayRejectedAfterChainIsDropped() throws Exception
+   {
+      createParties(AlgorithmMode.RSA);
+      ConversationRatchet receiver = new ConversationRatchet(bob.getKeyRing());
+
+      // More chains than are held, all from an unknown sender
+      int chains = ConversationRatchet.MAX_RECEIVING_CHAINS + 10;
+      byte[][] first = new byte[chains][];
+      byte[][] second = new byte[chains][];
+      for (int c = 0; c < chains; c++) {
+         ConversationRatchet sender = new ConversationRatchet(alice.getKeyRing());
+         first[c] = sender.encrypt(("first " + c).getBytes(), bob.getName());
+         second[c] = sender.encrypt(("second " + c).getBytes(), bob.getName());
+         assertEquals("first " + c, new String(receiver.decrypt(first[c], null)));
+      }
+
+      for (int c = 0; c < chains; c++) {
+         try {
+            receiver.decrypt(first[c], null);
+            fail("Replayed message was decrypted on chain " + c);
+         } catch (SecurityException e) {
+            // expected
+         }
+         assertEquals("second " + c, new String(receiver.decrypt(second[c], null)));
+      }
+   }
+
+   @Test
+   public void testChainIsBoundToSender() throws Exception
+   {
+      createParties(AlgorithmMode.DH_AES);
+      ConversationRatchet sender = new ConversationRatchet(alice.getKeyRing());
+      ConversationRatchet receiver = new ConversationRatchet(bob.getKeyRing());
+
+      byte[] first = sender.encrypt("first".getBytes(), bob.getName());
+      byte[] second = sender.encrypt("second".getBytes(), bob.getName());
+      assertEquals("first", new String(receiver.decrypt(first, alice.getName())));
+      try {
+         receiver.decrypt(second, "mallory");
+         fail("Message was decrypted as from another sender");
+      } catch (SecurityException e) {
+         // expected
+      }
+      assertEquals("second", new String(receiver.decrypt(second, alice.getName())));
+   }
+
+   @Test
+   public void testConcurrentSendsAcrossChainBoundary() throws Exception
+   {
+      createParties(AlgorithmMode.DH_AES);
+      final ConversationRatchet sender = new ConversationRatchet(alice.getKeyRing());
+      ConversationRatchet receiver = new ConversationRatchet(bob.getKeyRing());
+
+      // Enough to run past the end of several chains from every thread
+      final int threads = 8;
+      final int perThread = 4 * ConversationRatchet.MAX_CHAIN_LENGTH / threads + 250;
+      final CountDownLatch start = new CountDownLatch(1);
+      ExecutorService executor = Executors.newFixedThreadPool(threads);
+      List<byte[]> messages = new ArrayList<byte[]>();
+      try {
+         List<Future<List<byte[]>>> sent = new ArrayList<Future<List<byte[]>>>();
+         for (int t = 0; t < threads; t++) {
+            sent.add(executor.submit(() -> {
+               List<byte[]> encrypted = new ArrayList<byte[]>();
+               start.await();
+               for (int i = 0; i < perThread; i++) {
+                  encrypted.add(sender.encrypt("message".getBytes(), bob.getName()));
+               }
+               return encrypted;
+            }));
+         }
+         start.countDown();
+         for (Future<List<byte[]>> encrypted : sent) {
+            messages.addAll(encrypted.get(60, TimeUnit.SECONDS));
+         }
+      } finally {
+         executor.shutdown();
+      }
+
+      // Every message got a number in its chain, and decrypts in chain order
+      Collections.sort(messages, (a, b) -> {
+         ByteBuffer x = ByteBuffer.wrap(a);
+         ByteBuffer y = ByteBuffer.wrap(b);
+         for (int i = 0; i < ConversationRatchet.CHAIN_ID_SIZE; i++) {
+            int c = Byte.compare(x.get(), y.get());
+            if (c != 0)
+               return c;
+         }
+         return Integer.compare(x.getInt(), y.getInt());
+      });
+      for (byte[] message : messages) {
+         int number = ByteBuffer.wrap(message, ConversationRatchet.CHAIN_ID_SIZE, 4).getInt();
+         assertTrue(number < ConversationRatchet.MAX_CHAIN_LENGTH);
+         assertEquals("message", new String(receiver.decrypt(message, alice.getName())));
+      }
+      assertEquals(threads * perThread, messages.size());
+   }
+}
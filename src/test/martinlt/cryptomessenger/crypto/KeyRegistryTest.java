@@ -0,0 +1,140 @@
+package martinlt.cryptomessenger.crypto;
+
+import java.security.KeyPairGenerator;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+import martinlt.cryptomessenger.crypto.KeyRing.PartyKeys;
+
+public class KeyRegistryTest extends TestCase
+{
+   private static final int NAMES = 8;
+   private static final int KEYS_PER_NAME = 3;
+
+   public KeyRegistryTest(String testName)
+   {
+      super(testName);
+   }
+
+   /**
+    * Generates distinct keys for each name.
+    */
+   private static PartyKeys[][] keys() throws Exception
+   {
+      KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+      generator.initialize(512);
+      PartyKeys[][] keys = new PartyKeys[NAMES][KEYS_PER_NAME];
+      for (int n = 0; n < NAMES; n++) {
+         for (int k = 0; k < KEYS_PER_NAME; k++) {
+            keys[n][k] = new PartyKeys(generator.generateKeyPair().getPublic(), null);
+         }
+      }
+      return keys;
+   }
+
+   @Test
+   public void testPutReplaceRemove() throws Exception
+   {
+      PartyKeys[][] keys = keys();
+      KeyRegistry registry = new KeyRegistry();
+
+      registry.put("alice", keys[0][0]);
+      assertSame(keys[0][0], registry.get("alice"));
+      assertEquals("alice", registry.nameOf(keys[0][0].getFingerprint()));
+
+      // Replacing a key drops the old fingerprint
+      registry.put("alice", keys[0][1]);
+      assertSame(keys[0][1], registry.get("alice"));
+      assertNull(registry.nameOf(keys[0][0].getFingerprint()));
+      assertEquals("alice", registry.nameOf(keys[0][1].getFingerprint()));
+
+      Map<String, PartyKeys> snapshot = registry.snapshot();
+      assertSame(snapshot, registry.snapshot());
+      try {
+         snapshot.remove("alice");
+         fail("Snapshot is modifiable");
+      } catch (UnsupportedOperationException e) {
+         // expected
+      }
+
+      registry.put("bob", keys[1][0]);
+      assertTrue(registry.remove("alice"));
+      assertFalse(registry.remove("alice"));
+      assertNull(registry.nameOf(keys[0][1].getFingerprint()));
+
+      // The old snapshot is unchanged, a new one is taken
+      assertEquals(1, snapshot.size());
+      assertEquals(1, registry.snapshot().size());
+      assertSame(keys[1][0], registry.snapshot().get("bob"));
+   }
+
+   @Test
+   public void testConcurrentUpdatesStayConsistent() throws Exception
+   {
+      final PartyKeys[][] keys = keys();
+      final KeyRegistry registry = new KeyRegistry();
+      ExecutorService pool = Executors.newFixedThreadPool(4);
+      try {
+         List<Future<?>> tasks = new ArrayList<Future<?>>();
+         for (int t = 0; t < 4; t++) {
+            tasks.add(pool.submit(() -> {
+               ThreadLocalRandom random = ThreadLocalRandom.current();
+               for (int i = 0; i < 20000; i++) {
+                  int n = random.nextInt(NAMES);
+                  String name = "party" + n;
+                  int action = random.nextInt(10);
+                  if (action == 0) {
+                     registry.remove(name);
+                  } else if (action < 4) {
+                     registry.put(name, keys[n][random.nextInt(KEYS_PER_NAME)]);
+                  } else {
+                     // A reader sees a name's keys as one of the sets stored for it
+                     PartyKeys found = registry.get(name);
+                     if (found != null) {
+                        boolean known = false;
+                        for (PartyKeys candidate : keys[n]) {
+                           known |= candidate == found;
+                        }
+                        assertTrue(known);
+                     }
+                  }
+               }
+               return null;
+            }));
+         }
+         for (Future<?> task : tasks) {
+            task.get();
+         }
+      } finally {
+         pool.shutdown();
+      }
+
+      // The fingerprint index matches the keys exactly
+      for (int n = 0; n < NAMES; n++) {
+         PartyKeys current = registry.get("party" + n);
+         for (PartyKeys candidate : keys[n]) {
+            String expected = candidate == current ? "party" + n : null;
+            assertEquals(expected, registry.nameOf(candidate.getFingerprint()));
+         }
+      }
+      assertEquals(registry.snapshot().size(), countKnown(registry));
+   }
+
+   private static int countKnown(KeyRegistry registry)
+   {
+      int known = 0;
+      for (int n = 0; n < NAMES; n++) {
+         if (registry.get("party" + n) != null)
+            known++;
+      }
+      return known;
+   }
+}
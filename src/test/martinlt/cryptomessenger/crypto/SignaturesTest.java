@@ -0,0 +1,153 @@
+package martinlt.cryptomessenger.crypto;
+
+import java.io.File;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.spec.ECGenParameterSpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+import martinlt.cryptomessenger.MainApp;
+import martinlt.cryptomessenger.MainApp.AlgorithmMode;
+import martinlt.cryptomessenger.exception.SecurityException;
+
+public class SignaturesTest extends TestCase
+{
+   private MainApp alice;
+   private MainApp bob;
+   private MainApp carol;
+
+   public SignaturesTest(String testName)
+   {
+      super(testName);
+   }
+
+   protected void tearDown() throws Exception
+   {
+      super.tearDown();
+      for (MainApp party : new MainApp[] { alice, bob, carol }) {
+         if (party != null)
+            party.removeKeys();
+      }
+   }
+
+   private void createParties() throws Exception
+   {
+      alice = new MainApp("signing-alice", AlgorithmMode.DH_AES);
+      bob = new MainApp("signing-bob", AlgorithmMode.DH_AES);
+      carol = new MainApp("signing-carol", AlgorithmMode.DH_AES);
+      for (MainApp party : new MainApp[] { alice, bob, carol }) {
+         for (MainApp other : new MainApp[] { alice, bob, carol }) {
+            if (party != other) {
+               party.receivePublicKeyFrom(other.getName(), other.getPublicKey());
+               party.receiveSigningKeyFrom(other.getName(), other.getSigningKey());
+            }
+         }
+         party.signMessages(true);
+      }
+   }
+
+   @Test
+   public void testSignThenEncrypt() throws Exception
+   {
+      createParties();
+
+      byte[] toBob = alice.encryptFor("signed hello", bob.getName());
+      assertEquals("signed hello", bob.decryptFrom(toBob, alice.getName()));
+
+      // Bob cannot pass a message Alice signed for him on to Carol as hers
+      byte[] signedForBob = alice.getKeyRing().sign("for bob".getBytes(), bob.getName());
+      assertEquals("for bob", new String(bob.getKeyRing().verify(signedForBob, alice.getName())));
+      try {
+         carol.getKeyRing().verify(signedForBob, alice.getName());
+         fail("Expected the signature to be rejected");
+      } catch (SecurityException e) {
+      }
+
+      // Nor claim that someone else signed it
+      try {
+         bob.getKeyRing().verify(signedForBob, carol.getName());
+         fail("Expected the signature to be rejected");
+      } catch (SecurityException e) {
+      }
+   }
+
+   @Test
+   public void testVerifyAll() throws Exception
+   {
+      createParties();
+
+      List<byte[]> signed = new ArrayList<byte[]>();
+      List<String> senders = new ArrayList<String>();
+      for (int i = 0; i < 20; i++) {
+         MainApp sender = i % 2 == 0 ? alice : carol;
+         signed.add(sender.getKeyRing().sign(("message " + i).getBytes(), bob.getName()));
+         senders.add(sender.getName());
+      }
+      byte[] tampered = signed.get(7);
+      tampered[tampered.length - 1] ^= 1;
+      senders.set(12, "nobody");
+
+      List<byte[]> messages = bob.getKeyRing().verifyAll(signed, senders);
+      for (int i = 0; i < messages.size(); i++) {
+         if (i == 7 || i == 12)
+            assertNull(messages.get(i));
+         else
+            assertEquals("message " + i, new String(messages.get(i)));
+      }
+   }
+
+   @Test
+   public void testVerifiesEitherKind() throws Exception
+   {
+      KeyPairGenerator keyGen = KeyPairGenerator.getInstance("EC");
+      keyGen.initialize(new ECGenParameterSpec("secp256r1"));
+      KeyPair ec = keyGen.generateKeyPair();
+      KeyPair preferred = Signatures.generateKeyPair();
+
+      for (KeyPair keyPair : Arrays.asList(ec, preferred)) {
+         byte[] signature = Signatures.sign(keyPair.getPrivate(), "a".getBytes(), "b".getBytes());
+         assertTrue(Signatures.verify(
+               Signatures.parsePublicKey(keyPair.getPublic().getEncoded()), signature,
+               "ab".getBytes()));
+         assertFalse(Signatures.verify(keyPair.getPublic(), signature, "ba".getBytes()));
+      }
+   }
+
+   @Test
+   public void testSigningKeysOutliveClear() throws Exception
+   {
+      createParties();
+
+      // As when bob loads a party file: public keys are replaced, signing
+      // keys are not in the file
+      KeyRing keyRing = bob.getKeyRing();
+      keyRing.clear();
+      keyRing.receivePublicKeyFrom(alice.getName(), alice.getPublicKey());
+
+      byte[] toBob = alice.encryptFor("still signed", bob.getName());
+      assertEquals("still signed", bob.decryptFrom(toBob, alice.getName()));
+   }
+
+   @Test
+   public void testSigningKeyFilesFoundWhateverTheirName() throws Exception
+   {
+      alice = new MainApp("signing-alice", AlgorithmMode.DH_AES);
+      String signingKey = alice.getSigningKey();
+      assertTrue(new File("private_signing-alice_signing.key").exists());
+      assertEquals(signingKey, new KeyRing("signing-alice", AlgorithmMode.DH_AES)
+            .getSigningKey());
+
+      // Files named after the algorithm, as they were once
+      for (String kind : new String[] { "private", "public" }) {
+         assertTrue(new File(kind + "_signing-alice_signing.key").renameTo(
+               new File(kind + "_signing-alice_EC.key")));
+      }
+      assertEquals(signingKey, new KeyRing("signing-alice", AlgorithmMode.DH_AES)
+            .getSigningKey());
+   }
+}
@@ -0,0 +1,182 @@
+package martinlt.cryptomessenger.group;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+import martinlt.cryptomessenger.MainApp;
+import martinlt.cryptomessenger.MainApp.AlgorithmMode;
+import martinlt.cryptomessenger.exception.SecurityException;
+
+public class GroupTest extends TestCase
+{
+   private MainApp[] parties;
+
+   public GroupTest(String testName)
+   {
+      super(testName);
+   }
+
+   protected void tearDown() throws Exception
+   {
+      super.tearDown();
+      if (parties != null) {
+         for (MainApp party : parties) {
+            party.removeKeys();
+         }
+      }
+   }
+
+   /**
+    * Creates parties who all know each other.
+    */
+   private void createParties(AlgorithmMode mode, String... names) throws Exception
+   {
+      parties = new MainApp[names.length];
+      for (int i = 0; i < names.length; i++) {
+         parties[i] = new MainApp(names[i], mode);
+      }
+      for (MainApp party : parties) {
+         for (MainApp other : parties) {
+            if (party != other)
+               party.receivePublicKeyFrom(other.getName(), other.getPublicKey());
+         }
+      }
+   }
+
+   private MainApp party(String name)
+   {
+      for (MainApp party : parties) {
+         if (party.getName().equals(name))
+            return party;
+      }
+      throw new IllegalArgumentException(name);
+   }
+
+   /**
+    * Delivers a party's sender key envelopes to the members.
+    */
+   private void distribute(MainApp from, String group) throws Exception
+   {
+      Map<String, byte[]> envelopes = from.getGroups().get(group).distribute();
+      for (Map.Entry<String, byte[]> envelope : envelopes.entrySet()) {
+         party(envelope.getKey()).getGroups().receiveSenderKey(from.getName(), envelope.getValue());
+      }
+   }
+
+   private void groupMessages(AlgorithmMode mode) throws Exception
+   {
+      createParties(mode, "group-alice", "group-bob", "group-carol");
+      MainApp alice = parties[0], bob = parties[1], carol = parties[2];
+
+      alice.getGroups().create("friends", Arrays.asList("group-bob", "group-carol"));
+      distribute(alice, "friends");
+
+      // Bob and carol joined on receiving alice's key, and send theirs
+      assertEquals(Arrays.asList("group-alice", "group-carol"),
+            bob.getGroups().get("friends").getMembers());
+      distribute(bob, "friends");
+      distribute(carol, "friends");
+      assertTrue(alice.getGroups().get("friends").pendingDistribution().isEmpty());
+
+      // One ciphertext for every member
+      byte[] message = alice.encryptFor("hello friends", "friends");
+      assertEquals("hello friends", bob.decryptFrom(message, "friends"));
+      assertEquals("hello friends", carol.decryptFrom(message, "friends"));
+      assertEquals("group-alice", bob.getGroups().get("friends").senderOf(message));
+
+      byte[] reply = carol.encryptFor("hi alice", "friends");
+      assertEquals("hi alice", alice.decryptFrom(reply, "friends"));
+      assertEquals("group-carol", alice.getGroups().get("friends").senderOf(reply));
+
+      // Once carol is removed, alice's new key goes to bob only
+      alice.remove("group-carol");
+      assertEquals(Arrays.asList("group-bob"), alice.getGroups().get("friends").pendingDistribution());
+      distribute(alice, "friends");
+
+      byte[] secret = alice.encryptFor("carol has left", "friends");
+      assertEquals("carol has left", bob.decryptFrom(secret, "friends"));
+      try {
+         carol.decryptFrom(secret, "friends");
+         fail("Decrypted with a key from before the removal");
+      } catch (SecurityException e) {
+         // expected
+      }
+      try {
+         alice.decryptFrom(carol.encryptFor("still here", "friends"), "friends");
+         fail("Decrypted a message from a removed member");
+      } catch (SecurityException e) {
+         // expected
+      }
+   }
+
+   @Test
+   public void testGroupMessagesRSA() throws Exception
+   {
+      groupMessages(AlgorithmMode.RSA);
+   }
+
+   @Test
+   public void testGroupMessagesDH() throws Exception
+   {
+      groupMessages(AlgorithmMode.DH_AES);
+   }
+
+   @Test
+   public void testKeyIdCannotBeTaken() throws Exception
+   {
+      createParties(AlgorithmMode.DH_AES, "group-alice", "group-bob", "group-carol");
+      MainApp alice = parties[0], bob = parties[1];
+      alice.getGroups().create("friends", Arrays.asList("group-bob", "group-carol"));
+      distribute(alice, "friends");
+      distribute(bob, "friends");
+      distribute(parties[2], "friends");
+      Group group = alice.getGroups().get("friends");
+
+      // Carol sends a key under bob's id, then under alice's own
+      byte[] fromBob = bob.encryptFor("from bob", "friends");
+      byte[] fromAlice = alice.encryptFor("from alice", "friends");
+      byte[] forged = SenderKey.generate().key().getEncoded();
+      for (byte[] message : new byte[][] { fromBob, fromAlice }) {
+         SenderKey key = new SenderKey(Arrays.copyOf(message, SenderKey.ID_SIZE), forged);
+         try {
+            group.receiveSenderKey("group-carol", new Group.Distribution("friends",
+                  Arrays.asList(parties[2].getKeyRing().getFingerprint()), key));
+            fail("Took the key id of another member");
+         } catch (SecurityException e) {
+            // expected
+         }
+      }
+
+      // Bob's messages are still his, and stay his after carol leaves
+      assertEquals("from bob", alice.decryptFrom(fromBob, "friends"));
+      alice.remove("group-carol");
+      assertEquals("group-bob", group.senderOf(fromBob));
+      assertEquals("from bob", alice.decryptFrom(fromBob, "friends"));
+   }
+
+   @Test
+   public void testSizeDoesNotDependOnGroup() throws Exception
+   {
+      String[] names = new String[12];
+      for (int i = 0; i < names.length; i++) {
+         names[i] = "group-member" + i;
+      }
+      createParties(AlgorithmMode.DH_AES, names);
+
+      Group small = parties[0].getGroups().create("small", Arrays.asList(names[1]));
+      Group large = parties[0].getGroups().create("large",
+            Arrays.asList(names).subList(1, names.length));
+      assertEquals(small.encrypt(new byte[100]).length, large.encrypt(new byte[100]).length);
+
+      // A group cannot take the name of a party
+      try {
+         parties[0].getGroups().create(names[1], Arrays.asList(names[2]));
+         fail("Created a group with the name of a party");
+      } catch (IllegalArgumentException e) {
+         // expected
+      }
+   }
+}
@@ -0,0 +1,157 @@
+package martinlt.cryptomessenger.history;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+import martinlt.cryptomessenger.crypto.SymmetricCipher;
+import martinlt.cryptomessenger.history.HistoryRecord.Direction;
+
+public class MessageHistoryStoreTest extends TestCase
+{
+   private File directory;
+   private SecretKeySpec key;
+   private MessageHistoryStore store;
+
+   public MessageHistoryStoreTest(String testName)
+   {
+      super(testName);
+   }
+
+   protected void setUp() throws Exception
+   {
+      super.setUp();
+      directory = new File("history_test");
+      key = SymmetricCipher.deriveKey("secret".getBytes(), "history");
+      store = new MessageHistoryStore(directory, key);
+   }
+
+   protected void tearDown() throws Exception
+   {
+      super.tearDown();
+      store.close();
+      File[] files = directory.listFiles();
+      if (files != null) {
+         for (File file : files) {
+            file.delete();
+         }
+      }
+      directory.delete();
+   }
+
+   private void appendMessages(String party, int count) throws Exception
+   {
+      List<CompletableFuture<HistoryRecord>> results = new ArrayList<CompletableFuture<HistoryRecord>>();
+      for (int i = 0; i < count; i++) {
+         results.add(store.append(party, i % 2 == 0 ? Direction.SENT : Direction.RECEIVED,
+               "message " + i));
+      }
+      for (CompletableFuture<HistoryRecord> result : results) {
+         result.get();
+      }
+   }
+
+   @Test
+   public void testRandomAccessAndPaging() throws Exception
+   {
+      appendMessages("bob", 100);
+      appendMessages("alice", 3);
+
+      assertEquals(100, store.size("bob"));
+      assertEquals("message 77", store.get("bob", 77).getText());
+      assertEquals(Direction.RECEIVED, store.get("bob", 77).getDirection());
+      assertNull(store.get("bob", 100));
+
+      List<HistoryRecord> recent = store.recent("bob", 10);
+      assertEquals(10, recent.size());
+      assertEquals(90, recent.get(0).getId());
+      assertEquals("message 99", recent.get(9).getText());
+
+      List<HistoryRecord> page = store.page("alice", 1, 10);
+      assertEquals(2, page.size());
+      assertEquals("message 2", page.get(1).getText());
+   }
+
+   @Test
+   public void testReopenRecoversTornRecord() throws Exception
+   {
+      appendMessages("bob", 40);
+      store.close();
+
+      // Simulate a crash part way through writing another record
+      File log = directory.listFiles((dir, name) -> name.endsWith(".log"))[0];
+      try (RandomAccessFile file = new RandomAccessFile(log, "rw")) {
+         file.seek(file.length());
+         file.writeInt(1000);
+         file.writeLong(40);
+      }
+
+      store = new MessageHistoryStore(directory, key);
+      assertEquals(40, store.size("bob"));
+
+      appendMessages("bob", 1);
+      assertEquals("message 0", store.get("bob", 40).getText());
+      assertEquals("message 39", store.get("bob", 39).getText());
+   }
+
+   @Test
+   public void testLogFailsAfterMissingRecord() throws Exception
+   {
+      directory.mkdirs();
+      File logFile = new File(directory, "gap.log");
+      File indexFile = new File(directory, "gap.idx");
+      ConversationLog log = new ConversationLog(logFile, indexFile, key);
+      try {
+         for (int i = 0; i < 3; i++) {
+            log.write(log.reserveId(), i, Direction.SENT, log.seal("message " + i));
+         }
+         log.commit();
+
+         // A record whose write was lost must not let later IDs count it
+         long lost = log.reserveId();
+         try {
+            log.write(lost + 1, 0, Direction.SENT, log.seal("after the gap"));
+            fail("Expected the out of order write to fail the log");
+         } catch (IOException e) {
+         }
+         try {
+            log.reserveId();
+            fail("Expected the failed log to hand out no more IDs");
+         } catch (IOException e) {
+         }
+         assertEquals(3, log.size());
+         assertEquals("message 2", log.read(2, 1).get(0).getText());
+      } finally {
+         log.close();
+      }
+
+      // Reopening recovers the good records
+      log = new ConversationLog(logFile, indexFile, key);
+      try {
+         assertEquals(3, log.size());
+         assertEquals(3, log.reserveId());
+      } finally {
+         log.close();
+      }
+   }
+
+   @Test
+   public void testTextIsEncryptedAtRest() throws Exception
+   {
+      appendMessages("bob", 1);
+
+      for (File file : directory.listFiles()) {
+         byte[] contents = Files.readAllBytes(file.toPath());
+         assertFalse(new String(contents, "ISO-8859-1").contains("message 0"));
+      }
+   }
+}
@@ -0,0 +1,100 @@
+package martinlt.cryptomessenger.mailbox;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Base64;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+import martinlt.cryptomessenger.MainApp.AlgorithmMode;
+import martinlt.cryptomessenger.crypto.Fingerprint;
+import martinlt.cryptomessenger.crypto.KeyRing;
+
+public class MailboxDecryptorTest extends TestCase
+{
+   public MailboxDecryptorTest(String testName)
+   {
+      super(testName);
+   }
+
+   protected void tearDown() throws Exception
+   {
+      super.tearDown();
+      for (AlgorithmMode mode : AlgorithmMode.values()) {
+         for (String name : new String[] { "mailbox-bob", "mailbox-alice", "mailbox-carol" }) {
+            if (KeyRing.keysPresent(name, mode))
+               new KeyRing(name, mode).removeKeys();
+         }
+      }
+   }
+
+   private static String line(KeyRing from, String to, String message) throws Exception
+   {
+      return Fingerprint.of(from.getEncodedPublicKey()) + " "
+            + Base64.getEncoder().encodeToString(from.encrypt(message.getBytes(), to));
+   }
+
+   @Test
+   public void testDecryptInOrderWithFailures() throws Exception
+   {
+      AlgorithmMode mode = AlgorithmMode.DH_AES;
+      KeyRing bob = new KeyRing("mailbox-bob", mode);
+      KeyRing alice = new KeyRing("mailbox-alice", mode);
+      KeyRing carol = new KeyRing("mailbox-carol", mode);
+      bob.receivePublicKeyFrom("mailbox-alice", alice.getPublicKey());
+      bob.receivePublicKeyFrom("mailbox-carol", carol.getPublicKey());
+      alice.receivePublicKeyFrom("mailbox-bob", bob.getPublicKey());
+      carol.receivePublicKeyFrom("mailbox-bob", bob.getPublicKey());
+
+      StringBuilder mailbox = new StringBuilder();
+      StringBuilder expected = new StringBuilder();
+      for (int i = 1; i <= 100; i++) {
+         KeyRing from = i % 2 == 0 ? alice : carol;
+         String message = "message " + i + (i == 7 ? "\twith\ttabs\nand lines" : "");
+         mailbox.append(line(from, "mailbox-bob", message)).append('\n');
+         expected.append(i).append('\t').append(from.getName()).append('\t')
+               .append(message.replace("\t", "\\t").replace("\n", "\\n")).append('\n');
+      }
+      // Blank, undecodable and unknown sender lines
+      mailbox.append("\n");
+      mailbox.append(Fingerprint.of(alice.getEncodedPublicKey())).append(" not*base64\n");
+      mailbox.append("0123abcd ").append(Base64.getEncoder().encodeToString(new byte[32])).append('\n');
+
+      StringWriter out = new StringWriter();
+      StringWriter failed = new StringWriter();
+      MailboxWriter writer = new MailboxWriter(out, failed);
+      int failures = new MailboxDecryptor(bob, ForkJoinPool.commonPool(), 3)
+            .decrypt(new BufferedReader(new StringReader(mailbox.toString())), writer);
+
+      assertEquals(2, failures);
+      assertEquals(100, writer.getDecrypted());
+      assertEquals(2, writer.getFailed());
+      assertEquals(expected.toString(), out.toString());
+
+      String[] failedLines = failed.toString().split("\n");
+      assertEquals(2, failedLines.length);
+      assertTrue(failedLines[0].startsWith("102\tmailbox-alice\t"));
+      assertTrue(failedLines[1].startsWith("103\t-\t"));
+   }
+
+   @Test
+   public void testDecryptRSAWithoutFingerprint() throws Exception
+   {
+      AlgorithmMode mode = AlgorithmMode.RSA;
+      KeyRing bob = new KeyRing("mailbox-bob", mode);
+      KeyRing alice = new KeyRing("mailbox-alice", mode);
+      alice.receivePublicKeyFrom("mailbox-bob", bob.getPublicKey());
+
+      String mailbox = Base64.getEncoder().encodeToString(alice.encrypt("hello".getBytes(), "mailbox-bob"));
+      StringWriter out = new StringWriter();
+      StringWriter failed = new StringWriter();
+
+      assertEquals(0, new MailboxDecryptor(bob).decrypt(new BufferedReader(new StringReader(mailbox)),
+            new MailboxWriter(out, failed)));
+      assertEquals("1\t-\thello\n", out.toString());
+      assertEquals("", failed.toString());
+   }
+}
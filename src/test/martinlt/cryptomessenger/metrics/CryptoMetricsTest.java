@@ -0,0 +1,106 @@
+package martinlt.cryptomessenger.metrics;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+import martinlt.cryptomessenger.MainApp;
+import martinlt.cryptomessenger.MainApp.AlgorithmMode;
+import martinlt.cryptomessenger.exception.SecurityException;
+
+public class CryptoMetricsTest extends TestCase
+{
+   private MainApp alice;
+   private MainApp bob;
+
+   public CryptoMetricsTest(String testName)
+   {
+      super(testName);
+   }
+
+   protected void tearDown() throws Exception
+   {
+      super.tearDown();
+      if (alice != null)
+         alice.removeKeys();
+      if (bob != null)
+         bob.removeKeys();
+   }
+
+   @Test
+   public void testHistogramPercentiles()
+   {
+      LatencyHistogram histogram = new LatencyHistogram();
+      for (long i = 1; i <= 1000; i++) {
+         histogram.record(i * 1000);
+      }
+
+      assertEquals(1000, histogram.getCount());
+      assertEquals(1000000, histogram.getMax());
+      assertEquals(500500.0, histogram.getMean(), 0.001);
+
+      // Within the precision of the buckets
+      assertEquals(500000, histogram.getValueAtPercentile(50), 500000 / LatencyHistogram.SUB_BUCKETS);
+      assertEquals(990000, histogram.getValueAtPercentile(99), 990000 / LatencyHistogram.SUB_BUCKETS);
+      assertEquals(1000000, histogram.getValueAtPercentile(100));
+
+      histogram.reset();
+      assertEquals(0, histogram.getCount());
+      assertEquals(0, histogram.getValueAtPercentile(99));
+   }
+
+   @Test
+   public void testBucketsCoverEveryValue()
+   {
+      long previous = -1;
+      for (int index = 0; index <= LatencyHistogram.indexOf(Long.MAX_VALUE); index++) {
+         long highest = LatencyHistogram.highestInBucket(index);
+         assertEquals(index, LatencyHistogram.indexOf(previous + 1));
+         assertEquals(index, LatencyHistogram.indexOf(highest));
+         previous = highest;
+      }
+      assertEquals(Long.MAX_VALUE, previous);
+   }
+
+   @Test
+   public void testOperationsShownThroughJmx() throws Exception
+   {
+      CryptoMetrics metrics = CryptoMetrics.get();
+      metrics.reset();
+
+      alice = new MainApp("metrics-alice", AlgorithmMode.RSA);
+      bob = new MainApp("metrics-bob", AlgorithmMode.RSA);
+      alice.receivePublicKeyFrom(bob.getName(), bob.getPublicKey());
+
+      byte[] cipherText = alice.encryptFor("hello", bob.getName());
+      assertEquals("hello", bob.decryptFrom(cipherText, null));
+      try {
+         bob.decryptFrom(new byte[] { 1, 2, 3 }, null);
+         fail("Decrypted garbage");
+      } catch (SecurityException e) {
+         // expected
+      }
+
+      assertEquals(1, metrics.getStatistics(Operation.ENCRYPT, AlgorithmMode.RSA).getCount());
+      assertEquals(2, metrics.getStatistics(Operation.DECRYPT, AlgorithmMode.RSA).getCount());
+      assertEquals(1, metrics.getStatistics(Operation.DECRYPT, AlgorithmMode.RSA).getErrors());
+      assertEquals(1,
+            metrics.getStatistics(Operation.RECEIVE_PUBLIC_KEY, AlgorithmMode.RSA).getCount());
+
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(CryptoMetrics.OBJECT_NAME);
+      assertEquals(1L, server.getAttribute(name, "Errors"));
+
+      TabularData operations = (TabularData) server.getAttribute(name, "Operations");
+      CompositeData encrypt = (CompositeData) operations.get(new Object[] { "encrypt.RSA" })
+            .get("value");
+      assertEquals(1L, encrypt.get("count"));
+      assertTrue((Double) encrypt.get("p99Micros") > 0);
+   }
+}
@@ -0,0 +1,101 @@
+package martinlt.cryptomessenger.metrics;
+
+import java.io.File;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+import martinlt.cryptomessenger.MainApp;
+import martinlt.cryptomessenger.MainApp.AlgorithmMode;
+
+/**
+ * Uses the JFR API by reflection, as the main code does, and passes without
+ * checking anything on a JDK without it.
+ */
+public class FlightEventTest extends TestCase
+{
+   private MainApp alice;
+   private MainApp bob;
+
+   public FlightEventTest(String testName)
+   {
+      super(testName);
+   }
+
+   protected void tearDown() throws Exception
+   {
+      super.tearDown();
+      if (alice != null)
+         alice.removeKeys();
+      if (bob != null)
+         bob.removeKeys();
+   }
+
+   @Test
+   public void testDisabledByDefault()
+   {
+      assertFalse(FlightEvent.ENCRYPT.isEnabled());
+      assertNull(FlightEvent.ENCRYPT.begin());
+   }
+
+   @Test
+   public void testEventsRecorded() throws Exception
+   {
+      Class<?> recordingClass;
+      try {
+         recordingClass = Class.forName("jdk.jfr.Recording");
+      } catch (ClassNotFoundException e) {
+         return;
+      }
+
+      Object recording = recordingClass.getConstructor().newInstance();
+      recordingClass.getMethod("enable", String.class).invoke(recording,
+            FlightEvent.ENCRYPT.getName());
+      recordingClass.getMethod("enable", String.class).invoke(recording,
+            FlightEvent.DECRYPT.getName());
+      recordingClass.getMethod("start").invoke(recording);
+
+      Path dump = Files.createTempFile("flight-event-test", ".jfr");
+      try {
+         assertTrue(FlightEvent.ENCRYPT.isEnabled());
+         assertFalse(FlightEvent.KEY_AGREEMENT.isEnabled());
+
+         alice = new MainApp("flight-alice", AlgorithmMode.RSA);
+         bob = new MainApp("flight-bob", AlgorithmMode.RSA);
+         alice.receivePublicKeyFrom(bob.getName(), bob.getPublicKey());
+         for (int i = 0; i < 3; i++) {
+            bob.decryptFrom(alice.encryptFor("hello", bob.getName()), null);
+         }
+
+         recordingClass.getMethod("stop").invoke(recording);
+         recordingClass.getMethod("dump", Path.class).invoke(recording, dump);
+         assertFalse(FlightEvent.ENCRYPT.isEnabled());
+
+         List<?> events = (List<?>) Class.forName("jdk.jfr.consumer.RecordingFile")
+               .getMethod("readAllEvents", Path.class).invoke(null, dump);
+         int encrypts = 0, decrypts = 0;
+         for (Object event : events) {
+            Object type = event.getClass().getMethod("getEventType").invoke(event);
+            String name = (String) type.getClass().getMethod("getName").invoke(type);
+            Method getValue = event.getClass().getMethod("getValue", String.class);
+            if (name.equals(FlightEvent.ENCRYPT.getName())) {
+               encrypts++;
+               assertEquals("flight-bob", getValue.invoke(event, "party"));
+               assertEquals("RSA", getValue.invoke(event, "mode"));
+               assertEquals(5L, getValue.invoke(event, "size"));
+            } else if (name.equals(FlightEvent.DECRYPT.getName())) {
+               decrypts++;
+            }
+         }
+         assertEquals(3, encrypts);
+         assertEquals(3, decrypts);
+      } finally {
+         recordingClass.getMethod("close").invoke(recording);
+         new File(dump.toString()).delete();
+      }
+   }
+}
@@ -0,0 +1,67 @@
+package martinlt.cryptomessenger.model;
+
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+import martinlt.cryptomessenger.crypto.Pem;
+
+public class PartyTest extends TestCase
+{
+   private PublicKey key;
+
+   public PartyTest(String testName)
+   {
+      super(testName);
+   }
+
+   protected void setUp() throws Exception
+   {
+      super.setUp();
+      KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+      keyGen.initialize(1024);
+      key = keyGen.generateKeyPair().getPublic();
+   }
+
+   @Test
+   public void testKeyIsKeptInBinaryForm() throws Exception
+   {
+      String pem = Pem.encodePublicKey(key.getEncoded());
+      Party party = new Party("bob", pem.replace("\n", "\r\n"));
+
+      assertEquals("bob", party.getIdentifier());
+      assertEquals(pem, party.getPublicKey());
+      assertEquals(key, party.getParsedPublicKey("RSA"));
+      assertSame(party.getParsedPublicKey("RSA"), party.getParsedPublicKey("RSA"));
+      assertEquals(64, party.getFingerprint().length());
+   }
+
+   @Test
+   public void testInvalidKeyIsKeptAsTyped()
+   {
+      Party party = new Party("bob", "not a key!");
+
+      assertEquals("not a key!", party.getPublicKey());
+      assertNull(party.getEncodedPublicKey());
+      assertNull(party.getFingerprint());
+      try {
+         party.getParsedPublicKey("RSA");
+         fail("parsed an invalid key");
+      } catch (Exception expected) {
+      }
+   }
+
+   @Test
+   public void testPropertiesStayInStep()
+   {
+      Party party = new Party("bob", null);
+
+      party.identifierProperty().set("alice");
+      assertEquals("alice", party.getIdentifier());
+
+      party.setIdentifier("carol");
+      assertEquals("carol", party.identifierProperty().get());
+   }
+}
@@ -0,0 +1,110 @@
+package martinlt.cryptomessenger.persistence;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+import martinlt.cryptomessenger.model.Party;
+
+public class PartyFileWriterTest extends TestCase
+{
+   private Path directory;
+   private File file;
+   private final List<Exception> failures = new CopyOnWriteArrayList<Exception>();
+
+   public PartyFileWriterTest(String testName)
+   {
+      super(testName);
+   }
+
+   protected void setUp() throws Exception
+   {
+      super.setUp();
+      directory = Files.createTempDirectory("parties");
+      file = directory.resolve("parties.xml").toFile();
+   }
+
+   protected void tearDown() throws Exception
+   {
+      super.tearDown();
+      for (File child : directory.toFile().listFiles()) {
+         child.delete();
+      }
+      Files.delete(directory);
+   }
+
+   /**
+    * A party which cannot be marshalled, failing part way through a write.
+    */
+   private static class BrokenParty extends Party
+   {
+      BrokenParty()
+      {
+         super("broken", null);
+      }
+
+      @Override
+      public String getIdentifier()
+      {
+         throw new IllegalStateException("cannot be written");
+      }
+   }
+
+   @Test
+   public void testSteadyChangesAreStillWritten() throws Exception
+   {
+      PartyFileWriter writer = new PartyFileWriter((f, e) -> failures.add(e), 200, 1000);
+      List<Party> parties = Collections.singletonList(new Party("alice", null));
+      try {
+         // A change every 50 ms never settles down for 200 ms
+         long start = System.nanoTime();
+         while (!file.exists() && System.nanoTime() - start < 3000000000L) {
+            writer.schedule(file, parties);
+            Thread.sleep(50);
+         }
+         assertTrue(file.exists());
+         assertTrue(System.nanoTime() - start >= 900000000L);
+      } finally {
+         writer.shutdown();
+      }
+      assertTrue(failures.isEmpty());
+   }
+
+   @Test
+   public void testShutdownWritesWhatIsScheduled() throws Exception
+   {
+      PartyFileWriter writer = new PartyFileWriter((f, e) -> failures.add(e));
+      writer.schedule(file, Collections.singletonList(new Party("alice", null)));
+
+      // Well within the debounce delay
+      writer.shutdown();
+      assertTrue(new String(Files.readAllBytes(file.toPath()), "UTF-8").contains("alice"));
+      assertTrue(failures.isEmpty());
+   }
+
+   @Test
+   public void testFileIsReplacedWhole() throws Exception
+   {
+      PartyFileWriter writer = new PartyFileWriter((f, e) -> failures.add(e));
+      try {
+         writer.save(file, Collections.singletonList(new Party("alice", null))).get();
+         byte[] saved = Files.readAllBytes(file.toPath());
+         assertTrue(new String(saved, "UTF-8").contains("alice"));
+
+         // A write failing part way leaves the file as it was, and nothing else
+         writer.save(file, Arrays.asList(new Party("bob", null), new BrokenParty())).get();
+         assertEquals(1, failures.size());
+         assertTrue(Arrays.equals(saved, Files.readAllBytes(file.toPath())));
+         assertEquals(Arrays.asList(file.getName()), Arrays.asList(directory.toFile().list()));
+      } finally {
+         writer.shutdown();
+      }
+   }
+}
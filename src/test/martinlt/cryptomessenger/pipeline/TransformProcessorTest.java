@@ -0,0 +1,189 @@
+package martinlt.cryptomessenger.pipeline;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+import martinlt.cryptomessenger.MainApp.AlgorithmMode;
+import martinlt.cryptomessenger.crypto.KeyRing;
+
+public class TransformProcessorTest extends TestCase
+{
+   public TransformProcessorTest(String testName)
+   {
+      super(testName);
+   }
+
+   protected void tearDown() throws Exception
+   {
+      super.tearDown();
+      for (String name : new String[] { "pipeline-bob", "pipeline-alice" }) {
+         if (KeyRing.keysPresent(name, AlgorithmMode.DH_AES))
+            new KeyRing(name, AlgorithmMode.DH_AES).removeKeys();
+      }
+   }
+
+   /**
+    * Collects what it receives, asking for a given number of items at a
+    * time.
+    */
+   private static class Collector<T> implements Flow.Subscriber<T>
+   {
+      final List<T> items = new ArrayList<T>();
+      final CountDownLatch done = new CountDownLatch(1);
+      final long batch;
+      Flow.Subscription subscription;
+      Throwable error;
+      long received;
+
+      Collector(long batch)
+      {
+         this.batch = batch;
+      }
+
+      @Override
+      public void onSubscribe(Flow.Subscription subscription)
+      {
+         this.subscription = subscription;
+         if (batch > 0)
+            subscription.request(batch);
+      }
+
+      @Override
+      public void onNext(T item)
+      {
+         items.add(item);
+         if (batch > 0 && ++received % batch == 0)
+            subscription.request(batch);
+      }
+
+      @Override
+      public void onError(Throwable throwable)
+      {
+         error = throwable;
+         done.countDown();
+      }
+
+      @Override
+      public void onComplete()
+      {
+         done.countDown();
+      }
+   }
+
+   @Test
+   public void testEncryptAndDecryptPipeline() throws Exception
+   {
+      KeyRing bob = new KeyRing("pipeline-bob", AlgorithmMode.DH_AES);
+      KeyRing alice = new KeyRing("pipeline-alice", AlgorithmMode.DH_AES);
+      alice.receivePublicKeyFrom("pipeline-bob", bob.getPublicKey());
+      bob.receivePublicKeyFrom("pipeline-alice", alice.getPublicKey());
+
+      final BufferedPublisher<byte[]> messages = new BufferedPublisher<byte[]>(16);
+      TransformProcessor<byte[], String> send = new TransformProcessor<byte[], String>(
+            Stages.compress().andThen(Stages.encrypt(alice, "pipeline-bob"))
+                  .andThen(Stages.base64Encode()), 4);
+      TransformProcessor<String, byte[]> receive = new TransformProcessor<String, byte[]>(
+            Stages.base64Decode().andThen(Stages.decrypt(bob, "pipeline-alice"))
+                  .andThen(Stages.decompress()), 3);
+      Collector<byte[]> received = new Collector<byte[]>(7);
+
+      messages.subscribe(send);
+      send.subscribe(receive);
+      receive.subscribe(received);
+
+      final int count = 2000;
+      Thread producer = new Thread(() -> {
+         try {
+            for (int i = 0; i < count; i++) {
+               messages.submit(("message " + i).getBytes());
+            }
+            messages.close();
+         } catch (InterruptedException e) {
+            messages.closeExceptionally(e);
+         }
+      });
+      producer.start();
+
+      assertTrue(received.done.await(30, TimeUnit.SECONDS));
+      assertNull(received.error);
+      assertEquals(count, received.items.size());
+      for (int i = 0; i < count; i++) {
+         assertEquals("message " + i, new String(received.items.get(i)));
+      }
+   }
+
+   @Test
+   public void testSlowSubscriberHoldsBackProducer() throws Exception
+   {
+      final BufferedPublisher<Integer> numbers = new BufferedPublisher<Integer>(8);
+      TransformProcessor<Integer, Integer> square = new TransformProcessor<Integer, Integer>(
+            n -> n * n, 2);
+      Collector<Integer> squares = new Collector<Integer>(0);
+      numbers.subscribe(square);
+      square.subscribe(squares);
+
+      final AtomicInteger submitted = new AtomicInteger();
+      Thread producer = new Thread(() -> {
+         try {
+            for (int i = 0; i < 10000; i++) {
+               numbers.submit(i);
+               submitted.incrementAndGet();
+            }
+            numbers.close();
+         } catch (InterruptedException e) {
+            numbers.closeExceptionally(e);
+         }
+      });
+      producer.start();
+
+      // Nothing has been asked for, so only the publisher's buffer fills
+      Thread.sleep(200);
+      assertEquals(8, submitted.get());
+
+      // A few items are asked for, which the processor buffers more than
+      squares.subscription.request(10);
+      Thread.sleep(200);
+      assertTrue(submitted.get() <= 8 + TransformProcessor.DEFAULT_BUFFER_SIZE);
+      assertEquals(10, squares.items.size());
+
+      squares.subscription.request(Long.MAX_VALUE);
+      assertTrue(squares.done.await(30, TimeUnit.SECONDS));
+      assertNull(squares.error);
+      assertEquals(10000, squares.items.size());
+      assertEquals(Integer.valueOf(9999 * 9999), squares.items.get(9999));
+   }
+
+   @Test
+   public void testFailedTransformCancelsUpstream() throws Exception
+   {
+      final BufferedPublisher<Integer> numbers = new BufferedPublisher<Integer>(4);
+      TransformProcessor<Integer, Integer> divide = new TransformProcessor<Integer, Integer>(
+            n -> 100 / (n - 50), 4);
+      Collector<Integer> results = new Collector<Integer>(Long.MAX_VALUE);
+      numbers.subscribe(divide);
+      divide.subscribe(results);
+
+      Thread producer = new Thread(() -> {
+         try {
+            for (int i = 0; i < 1000 && !numbers.isCancelled(); i++) {
+               numbers.submit(i);
+            }
+         } catch (InterruptedException | IllegalStateException e) {
+            // cancelled while waiting
+         }
+      });
+      producer.start();
+
+      assertTrue(results.done.await(10, TimeUnit.SECONDS));
+      assertTrue(results.error instanceof ArithmeticException);
+      assertEquals(50, results.items.size());
+      producer.join(10000);
+      assertTrue(numbers.isCancelled());
+   }
+}
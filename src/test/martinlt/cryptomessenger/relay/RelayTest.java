@@ -0,0 +1,341 @@
+package martinlt.cryptomessenger.relay;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+import martinlt.cryptomessenger.MainApp.AlgorithmMode;
+import martinlt.cryptomessenger.crypto.KeyChallenge;
+import martinlt.cryptomessenger.crypto.KeyRing;
+import martinlt.cryptomessenger.exception.SecurityException;
+import martinlt.cryptomessenger.transport.Frames;
+import martinlt.cryptomessenger.transport.MessageListener;
+
+public class RelayTest extends TestCase
+{
+   private static final InetSocketAddress LOCALHOST = new InetSocketAddress(
+         InetAddress.getLoopbackAddress(), 0);
+
+   private Path directory;
+
+   public RelayTest(String testName)
+   {
+      super(testName);
+   }
+
+   protected void setUp() throws Exception
+   {
+      super.setUp();
+      directory = Files.createTempDirectory("relay");
+   }
+
+   protected void tearDown() throws Exception
+   {
+      super.tearDown();
+      for (String name : new String[] { "relay-bob", "relay-alice", "relay-carol" }) {
+         if (KeyRing.keysPresent(name, AlgorithmMode.DH_AES))
+            new KeyRing(name, AlgorithmMode.DH_AES).removeKeys();
+      }
+      delete(directory.toFile());
+   }
+
+   private static void delete(File file)
+   {
+      File[] children = file.listFiles();
+      if (children != null) {
+         for (File child : children) {
+            delete(child);
+         }
+      }
+      file.delete();
+   }
+
+   private static byte[] record(int i, int size)
+   {
+      byte[] record = new byte[size];
+      record[0] = (byte) i;
+      record[1] = (byte) (i >> 8);
+      return record;
+   }
+
+   private static int number(byte[] record)
+   {
+      return (record[0] & 0xFF) | (record[1] & 0xFF) << 8;
+   }
+
+   @Test
+   public void testQueueSpillsInOrderAndSurvivesRestart() throws Exception
+   {
+      // Room for ten records in memory
+      RelayStore store = new RelayStore(directory, 10 * 1000);
+      SpillingQueue queue = store.queue("abc");
+      for (int i = 0; i < 5000; i++) {
+         queue.add(record(i, 1000));
+      }
+      assertEquals(5000, queue.size());
+      assertEquals(4990, queue.spilled());
+      assertEquals(0, store.memoryAvailable());
+
+      long collector = queue.takeOver();
+      List<byte[]> first = queue.peek(100, 0, collector);
+      assertEquals(100, first.size());
+      for (int i = 0; i < 100; i++) {
+         assertEquals(i, number(first.get(i)));
+      }
+      assertTrue(queue.remove(100, collector));
+      assertEquals(10 * 1000, store.memoryAvailable());
+
+      // Still spilling, as there are spilled records to deliver first
+      queue.add(record(5000, 1000));
+      assertEquals(4901, queue.spilled());
+
+      // Only the spilled records come back after a restart
+      store = new RelayStore(directory, 10 * 1000);
+      queue = store.queue("abc");
+      assertEquals(4901, queue.size());
+      collector = queue.takeOver();
+      List<byte[]> rest = queue.peek(10000, 0, collector);
+      assertEquals(4901, rest.size());
+      for (int i = 0; i < rest.size(); i++) {
+         assertEquals(100 + i, number(rest.get(i)));
+      }
+
+      // A collector that has been taken over from cannot remove anything
+      long newer = queue.takeOver();
+      assertFalse(queue.remove(10, collector));
+      assertTrue(queue.remove(rest.size(), newer));
+      assertEquals(0, queue.size());
+      assertEquals(0, directory.resolve("abc").toFile().list().length);
+   }
+
+   @Test
+   public void testStoreAndForward() throws Exception
+   {
+      KeyRing bob = new KeyRing("relay-bob", AlgorithmMode.DH_AES);
+      KeyRing alice = new KeyRing("relay-alice", AlgorithmMode.DH_AES);
+      KeyRing carol = new KeyRing("relay-carol", AlgorithmMode.DH_AES);
+      for (KeyRing sender : new KeyRing[] { alice, carol }) {
+         sender.receivePublicKeyFrom("relay-bob", bob.getPublicKey());
+         bob.receivePublicKeyFrom(sender.getName(), sender.getPublicKey());
+      }
+
+      // A small budget, so most of it goes to disk
+      RelayStore store = new RelayStore(directory, 64 * 1024);
+      Relay relay = new Relay(store);
+      InetSocketAddress address = relay.start(LOCALHOST);
+      final int count = 1000;
+      try {
+         // Two senders at once while bob is offline
+         List<Thread> senders = new ArrayList<Thread>();
+         for (final KeyRing sender : new KeyRing[] { alice, carol }) {
+            Thread thread = new Thread(() -> {
+               try (RelayClient client = new RelayClient(sender, address)) {
+                  for (int i = 0; i < count; i++) {
+                     client.send("relay-bob", sender.getName() + " " + i);
+                  }
+                  assertEquals(0, client.flush());
+               } catch (Exception e) {
+                  throw new RuntimeException(e);
+               }
+            });
+            thread.start();
+            senders.add(thread);
+         }
+         for (Thread thread : senders) {
+            thread.join(30000);
+         }
+         assertEquals(2 * count, store.waiting(bob.getFingerprint()));
+         assertTrue(store.spilled(bob.getFingerprint()) > 0);
+
+         final BlockingQueue<String> inbox = new LinkedBlockingQueue<String>();
+         final RelayClient collector = new RelayClient(bob, address);
+         Thread collecting = new Thread(() -> {
+            try {
+               collector.collect(new MessageListener() {
+                  @Override
+                  public void messageReceived(String sender, String message)
+                  {
+                     inbox.add(sender + ": " + message);
+                  }
+
+                  @Override
+                  public void messageFailed(String sender, Exception cause)
+                  {
+                     inbox.add(sender + " failed");
+                  }
+               });
+            } catch (Exception e) {
+               inbox.add(e.toString());
+            }
+         });
+         collecting.start();
+
+         // Each sender's messages arrive in order
+         int alices = 0, carols = 0;
+         for (int i = 0; i < 2 * count; i++) {
+            String message = inbox.poll(10, TimeUnit.SECONDS);
+            if (message.startsWith("relay-alice"))
+               assertEquals("relay-alice: relay-alice " + alices++, message);
+            else
+               assertEquals("relay-carol: relay-carol " + carols++, message);
+         }
+
+         // Delivered as soon as bob is online
+         try (RelayClient client = new RelayClient(alice, address)) {
+            client.send("relay-bob", "live");
+         }
+         assertEquals("relay-alice: live", inbox.poll(10, TimeUnit.SECONDS));
+
+         // Removed once the acknowledgement reaches the relay
+         for (int i = 0; i < 100 && store.waiting(bob.getFingerprint()) > 0; i++) {
+            Thread.sleep(100);
+         }
+         assertEquals(0, store.waiting(bob.getFingerprint()));
+         collector.close();
+         collecting.join(10000);
+      } finally {
+         relay.close();
+      }
+   }
+
+   @Test
+   public void testDiskQuota() throws Exception
+   {
+      // No memory, and room on disk for two segments
+      RelayStore store = new RelayStore(directory, 0, 2L * SpillingQueue.SEGMENT_SIZE);
+      byte[] record = new byte[SpillingQueue.SEGMENT_SIZE / 4];
+      int added = 0;
+      try {
+         while (added < 100) {
+            store.deposit("abc", record);
+            added++;
+         }
+         fail("Deposits went over the disk quota");
+      } catch (IOException e) {
+         // expected
+      }
+      assertEquals(6, added);
+      assertEquals(2L * SpillingQueue.SEGMENT_SIZE, store.queue("abc").diskUsed());
+
+      // Another recipient has a quota of its own
+      store.deposit("def", record);
+
+      // Room again once the first segment is delivered
+      SpillingQueue queue = store.queue("abc");
+      long collector = queue.takeOver();
+      assertTrue(queue.remove(4, collector));
+      assertEquals((long) SpillingQueue.SEGMENT_SIZE, queue.diskUsed());
+      store.deposit("abc", record);
+   }
+
+   @Test
+   public void testDiskBudget() throws Exception
+   {
+      // No memory, and room on disk for three segments across all recipients
+      RelayStore store = new RelayStore(directory, 0, 2L * SpillingQueue.SEGMENT_SIZE,
+            3L * SpillingQueue.SEGMENT_SIZE);
+      byte[] record = new byte[SpillingQueue.SEGMENT_SIZE / 4];
+      int recipients = 0;
+      try {
+         while (recipients < 100) {
+            store.deposit("recipient" + recipients, record);
+            recipients++;
+         }
+         fail("Deposits for made up recipients went over the disk budget");
+      } catch (IOException e) {
+         // expected
+      }
+      assertEquals(3, recipients);
+      assertEquals(0, store.diskAvailable());
+
+      // Room again once a recipient collects
+      SpillingQueue queue = store.queue("recipient0");
+      assertTrue(queue.remove(1, queue.takeOver()));
+      assertEquals((long) SpillingQueue.SEGMENT_SIZE, store.diskAvailable());
+      store.deposit("recipient3", record);
+
+      // Reopened, the store counts what is already on disk
+      store = new RelayStore(directory, 0, 2L * SpillingQueue.SEGMENT_SIZE,
+            3L * SpillingQueue.SEGMENT_SIZE);
+      assertEquals(0, store.diskAvailable());
+   }
+
+   @Test
+   public void testChallengeAnsweredOnlyWithPrivateKey() throws Exception
+   {
+      for (AlgorithmMode mode : AlgorithmMode.values()) {
+         KeyRing bob = new KeyRing("relay-bob", mode);
+         KeyRing carol = new KeyRing("relay-carol", mode);
+         try {
+            KeyChallenge challenge = KeyChallenge.issue(bob.getEncodedPublicKey(),
+                  Relay.COLLECT_PURPOSE);
+            byte[] bytes = challenge.getBytes();
+            assertTrue(challenge.verify(bob.answerChallenge(bytes, Relay.COLLECT_PURPOSE)));
+            assertFalse(challenge.verify(bob.answerChallenge(bytes, "something else")));
+            try {
+               assertFalse(challenge.verify(carol.answerChallenge(bytes,
+                     Relay.COLLECT_PURPOSE)));
+            } catch (SecurityException e) {
+               // also fine: a DH key in another group cannot answer at all
+            }
+         } finally {
+            bob.removeKeys();
+            carol.removeKeys();
+         }
+      }
+   }
+
+   @Test
+   public void testCollectorMustProveItsKey() throws Exception
+   {
+      KeyRing bob = new KeyRing("relay-bob", AlgorithmMode.DH_AES);
+      KeyRing alice = new KeyRing("relay-alice", AlgorithmMode.DH_AES);
+      alice.receivePublicKeyFrom("relay-bob", bob.getPublicKey());
+
+      RelayStore store = new RelayStore(directory, 64 * 1024);
+      Relay relay = new Relay(store);
+      InetSocketAddress address = relay.start(LOCALHOST);
+      try {
+         try (RelayClient client = new RelayClient(alice, address)) {
+            client.send("relay-bob", "for bob only");
+            assertEquals(0, client.flush());
+         }
+
+         // Someone who only knows bob's public key
+         try (Socket socket = new Socket(address.getAddress(), address.getPort())) {
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            byte[] publicKey = bob.getEncodedPublicKey();
+            out.writeInt(1 + publicKey.length);
+            out.writeByte(Frames.COLLECT);
+            out.write(publicKey);
+
+            int length = in.readInt();
+            assertEquals(Frames.CHALLENGE, in.readByte());
+            in.readFully(new byte[length - 1]);
+            out.writeInt(1 + 32);
+            out.writeByte(Frames.CHALLENGE);
+            out.write(new byte[32]);
+
+            assertEquals(-1, in.read());
+         }
+         assertEquals(1, store.waiting(bob.getFingerprint()));
+      } finally {
+         relay.close();
+      }
+   }
+}
@@ -0,0 +1,161 @@
+package martinlt.cryptomessenger.search;
+
+import java.io.File;
+import java.util.List;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+import martinlt.cryptomessenger.crypto.SymmetricCipher;
+import martinlt.cryptomessenger.history.HistoryRecord;
+import martinlt.cryptomessenger.history.HistoryRecord.Direction;
+import martinlt.cryptomessenger.history.MessageHistoryStore;
+
+public class MessageIndexTest extends TestCase
+{
+   private MessageIndex index;
+
+   public MessageIndexTest(String testName)
+   {
+      super(testName);
+   }
+
+   protected void setUp() throws Exception
+   {
+      super.setUp();
+      index = new MessageIndex();
+      index.add("bob", 0, "Meet me at the harbour at noon");
+      index.add("alice", 0, "The harbourmaster knows");
+      index.add("bob", 1, "Noon is too early, meet at one");
+      for (int i = 0; i < 1000; i++) {
+         index.add("carol", i, "filler message number " + i);
+      }
+   }
+
+   @Test
+   public void testTermQueryAcrossParties()
+   {
+      List<SearchHit> hits = index.search("MEET", 10);
+
+      assertEquals(2, hits.size());
+      assertEquals(new SearchHit("bob", 1), hits.get(0));
+      assertEquals(new SearchHit("bob", 0), hits.get(1));
+   }
+
+   @Test
+   public void testPrefixAndConjunction()
+   {
+      assertEquals(2, index.search("harbour*", 10).size());
+      assertEquals(1, index.search("harbour* noon", 10).size());
+      assertEquals(0, index.search("harbour* filler", 10).size());
+      assertEquals(5, index.search("filler number", 5).size());
+   }
+
+   @Test
+   public void testHitsAcrossBlocks()
+   {
+      // Every third filler message also mentions the harbour
+      MessageIndex large = new MessageIndex();
+      for (int i = 0; i < 10 * PostingsList.BLOCK_SIZE * 3; i++) {
+         large.add("dave", i, i % 3 == 0 ? "harbour filler " + i : "filler " + i);
+      }
+
+      List<SearchHit> hits = large.search("filler harbour*", 500);
+      assertEquals(500, hits.size());
+      for (int i = 0; i < hits.size(); i++) {
+         assertEquals(new SearchHit("dave", (10 * PostingsList.BLOCK_SIZE - 1 - i) * 3),
+               hits.get(i));
+      }
+      assertEquals(new SearchHit("dave", 600), large.search("600 filler", 10).get(0));
+      assertEquals(0, large.search("601 harbour", 10).size());
+   }
+
+   @Test
+   public void testLongTermsAreCut()
+   {
+      StringBuilder key = new StringBuilder();
+      for (int i = 0; i < 1000; i++) {
+         key.append((char) ('a' + i % 26));
+      }
+      index.add("bob", 2, "my key is " + key);
+
+      assertEquals(MessageIndex.MAX_TERM_LENGTH, MessageIndex.tokenize(key.toString())
+            .get(0).length());
+      assertEquals(new SearchHit("bob", 2), index.search(key.toString(), 10).get(0));
+      assertEquals(new SearchHit("bob", 2), index.search(key.substring(0, 80) + "*", 10).get(0));
+   }
+
+   @Test
+   public void testMessagesAreIndexedOnce()
+   {
+      int size = index.size();
+      index.add("bob", 1, "Noon is too early, meet at one");
+      index.add("bob", 0, "Meet me at the harbour at noon");
+
+      assertEquals(size, index.size());
+      assertEquals(2, index.search("meet", 10).size());
+      assertEquals(2, index.indexedUpTo("bob"));
+      assertEquals(0, index.indexedUpTo("dave"));
+   }
+
+   @Test
+   public void testCatchUpFromHistory() throws Exception
+   {
+      File directory = new File("search_history_test");
+      File file = new File(directory, "search.idx");
+      SecretKeySpec key = SymmetricCipher.deriveKey("secret".getBytes(), "history");
+      MessageHistoryStore history = new MessageHistoryStore(directory, key);
+      try {
+         for (int i = 0; i < 300; i++) {
+            history.append(i % 2 == 0 ? "bob" : "alice", Direction.SENT, "message " + i);
+         }
+         history.append("bob", Direction.RECEIVED, "the last one").get();
+
+         // An index rebuilt from nothing
+         MessageIndex rebuilt = new MessageIndex();
+         assertEquals(301, rebuilt.catchUp(history));
+         assertEquals(new SearchHit("bob", 150), rebuilt.search("last", 1).get(0));
+
+         // An index saved part way, as though before a crash, is caught up
+         MessageIndex saved = new MessageIndex();
+         for (HistoryRecord record : history.page("alice", 0, 100)) {
+            saved.add("alice", record.getId(), record.getText());
+         }
+         saved.save(file, key);
+         MessageIndex loaded = MessageIndex.load(file, key);
+         assertEquals(100, loaded.indexedUpTo("alice"));
+         assertEquals(201, loaded.catchUp(history));
+         assertEquals(rebuilt.size(), loaded.size());
+         assertEquals(rebuilt.search("message", 1000), loaded.search("message", 1000));
+         assertEquals(0, loaded.catchUp(history));
+      } finally {
+         history.close();
+         File[] files = directory.listFiles();
+         if (files != null) {
+            for (File child : files) {
+               child.delete();
+            }
+         }
+         directory.delete();
+      }
+   }
+
+   @Test
+   public void testSaveAndLoad() throws Exception
+   {
+      File file = new File("search_test.idx");
+      SecretKeySpec key = SymmetricCipher.deriveKey("secret".getBytes(), "history");
+      try {
+         index.save(file, key);
+         MessageIndex loaded = MessageIndex.load(file, key);
+
+         assertEquals(index.size(), loaded.size());
+         assertEquals(index.search("noon", 10), loaded.search("noon", 10));
+         assertEquals(new SearchHit("carol", 999), loaded.search("999", 1).get(0));
+      } finally {
+         file.delete();
+      }
+   }
+}
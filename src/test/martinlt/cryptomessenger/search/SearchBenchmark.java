@@ -0,0 +1,68 @@
+package martinlt.cryptomessenger.search;
+
+import java.util.Random;
+
+import martinlt.cryptomessenger.metrics.LatencyHistogram;
+
+/**
+ * Measures query latency on a large index: a term, a prefix and a
+ * conjunction of the two, each asking for the most recent 20 hits. Not run
+ * as part of the tests; run main with
+ *
+ * <pre>
+ * SearchBenchmark [messages] [queries]
+ * </pre>
+ */
+public class SearchBenchmark
+{
+   private static final String[] WORDS = { "meet", "harbour", "noon", "tomorrow", "key",
+         "send", "file", "call", "later", "lunch", "train", "late", "sorry", "thanks", "see",
+         "you", "there", "when", "where", "what" };
+
+   public static void main(String[] args)
+   {
+      int messages = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+      int queries = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+
+      // Common words drawn with a skew, plus a rare numbered word
+      Random random = new Random(1);
+      MessageIndex index = new MessageIndex();
+      long start = System.nanoTime();
+      StringBuilder text = new StringBuilder();
+      for (int i = 0; i < messages; i++) {
+         text.setLength(0);
+         for (int w = 0; w < 8; w++) {
+            int word = (int) (WORDS.length * Math.pow(random.nextDouble(), 2));
+            text.append(WORDS[word]).append(' ');
+         }
+         text.append("ref").append(random.nextInt(10000));
+         index.add("party" + (i % 50), i / 50, text.toString());
+      }
+      System.out.printf("Indexed %d messages in %.1f s, Java %s%n", messages,
+            (System.nanoTime() - start) / 1e9, System.getProperty("java.version"));
+
+      run(index, "term", "harbour", queries);
+      run(index, "rare term", "ref1234", queries);
+      run(index, "prefix", "ref12*", queries);
+      run(index, "term AND prefix", "lunch ref12*", queries);
+      run(index, "rare AND", "what ref1234", queries);
+   }
+
+   private static void run(MessageIndex index, String name, String query, int queries)
+   {
+      // Warm up, then measure
+      for (int i = 0; i < queries; i++) {
+         index.search(query, 20);
+      }
+
+      LatencyHistogram latencies = new LatencyHistogram();
+      int hits = 0;
+      for (int i = 0; i < queries; i++) {
+         long start = System.nanoTime();
+         hits = index.search(query, 20).size();
+         latencies.record(System.nanoTime() - start);
+      }
+      System.out.printf("%-16s %-14s %2d hits  p50 %8.1f us  p99 %8.1f us%n", name, query, hits,
+            latencies.getValueAtPercentile(50) / 1e3, latencies.getValueAtPercentile(99) / 1e3);
+   }
+}
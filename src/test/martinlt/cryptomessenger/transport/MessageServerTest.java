@@ -0,0 +1,94 @@
+package martinlt.cryptomessenger.transport;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+import martinlt.cryptomessenger.MainApp;
+import martinlt.cryptomessenger.MainApp.AlgorithmMode;
+
+public class MessageServerTest extends TestCase
+{
+   private static final int IDENTITIES = 20;
+
+   private final List<MainApp> apps = new ArrayList<MainApp>();
+   private MessageServer server;
+
+   public MessageServerTest(String testName)
+   {
+      super(testName);
+   }
+
+   protected void tearDown() throws Exception
+   {
+      super.tearDown();
+      if (server != null)
+         server.close();
+      for (MainApp app : apps) {
+         app.removeKeys();
+      }
+   }
+
+   private static void writeFrame(DataOutputStream out, byte type, byte[] payload)
+         throws Exception
+   {
+      ByteBuffer frame = Frames.frame(type, payload);
+      out.write(frame.array(), 0, frame.limit());
+   }
+
+   @Test
+   public void testPipelinedMessagesToManyIdentities() throws Exception
+   {
+      final ConcurrentHashMap<String, String> received = new ConcurrentHashMap<String, String>();
+      server = new MessageServer((recipient, sender, message) -> received.put(recipient,
+            sender + ": " + message));
+
+      MainApp client = new MainApp("client", AlgorithmMode.DH_AES);
+      apps.add(client);
+      for (int i = 0; i < IDENTITIES; i++) {
+         MainApp identity = new MainApp("identity" + i, AlgorithmMode.DH_AES);
+         apps.add(identity);
+         identity.receivePublicKeyFrom("client", client.getPublicKey());
+         client.receivePublicKeyFrom(identity.getName(), identity.getPublicKey());
+         server.host(identity.getKeyRing());
+      }
+
+      InetSocketAddress address = server.start(
+            new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+      try (Socket socket = new Socket(address.getAddress(), address.getPort())) {
+         DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+         DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+         // Send everything before reading any acknowledgement
+         writeFrame(out, Frames.HELLO, "client".getBytes(StandardCharsets.UTF_8));
+         for (int i = 0; i < IDENTITIES; i++) {
+            String name = "identity" + i;
+            writeFrame(out, Frames.ROUTE, name.getBytes(StandardCharsets.UTF_8));
+            writeFrame(out, Frames.MESSAGE, client.encryptFor("hello " + name, name));
+         }
+         writeFrame(out, Frames.MESSAGE, new byte[10]);
+         out.flush();
+
+         for (int i = 0; i <= IDENTITIES; i++) {
+            assertEquals(2, in.readInt());
+            assertEquals(Frames.ACK, in.readByte());
+            assertEquals(i < IDENTITIES ? Frames.ACK_OK : Frames.ACK_FAILED, in.readByte());
+         }
+      }
+
+      assertEquals(IDENTITIES, received.size());
+      assertEquals("client: hello identity7", received.get("identity7"));
+   }
+}
@@ -0,0 +1,356 @@
+package martinlt.cryptomessenger.transport;
+
+import java.io.DataOutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+import martinlt.cryptomessenger.MainApp;
+import martinlt.cryptomessenger.MainApp.AlgorithmMode;
+
+public class PeerMessengerTest extends TestCase
+{
+   private static final InetSocketAddress LOCALHOST = new InetSocketAddress(
+         InetAddress.getLoopbackAddress(), 0);
+
+   private MainApp bob, alice;
+   private PeerMessenger bobMessenger, aliceMessenger;
+
+   private final BlockingQueue<String> bobInbox = new LinkedBlockingQueue<String>();
+   private final BlockingQueue<String> aliceInbox = new LinkedBlockingQueue<String>();
+   private final BlockingQueue<Path> attachments = new LinkedBlockingQueue<Path>();
+
+   public PeerMessengerTest(String testName)
+   {
+      super(testName);
+   }
+
+   protected void tearDown() throws Exception
+   {
+      super.tearDown();
+      if (bobMessenger != null)
+         bobMessenger.close();
+      if (aliceMessenger != null)
+         aliceMessenger.close();
+      if (bob != null)
+         bob.removeKeys();
+      if (alice != null)
+         alice.removeKeys();
+   }
+
+   private MessageListener inbox(final BlockingQueue<String> messages)
+   {
+      return new MessageListener() {
+         @Override
+         public void messageReceived(String sender, String message)
+         {
+            messages.add(sender + ": " + message);
+         }
+
+         @Override
+         public void messageFailed(String sender, Exception cause)
+         {
+            messages.add(sender + " failed");
+         }
+
+         @Override
+         public void attachmentReceived(String sender, Attachment attachment, Path file)
+         {
+            messages.add(sender + ": " + attachment.getName() + " " + attachment.getSize());
+            attachments.add(file);
+         }
+      };
+   }
+
+   private void exchangeMessages(AlgorithmMode mode) throws Exception
+   {
+      bob = new MainApp("bob", mode);
+      alice = new MainApp("alice", mode);
+      alice.receivePublicKeyFrom("bob", bob.getPublicKey());
+      bob.receivePublicKeyFrom("alice", alice.getPublicKey());
+
+      bobMessenger = new PeerMessenger(bob, inbox(bobInbox));
+      aliceMessenger = new PeerMessenger(alice, inbox(aliceInbox));
+
+      InetSocketAddress bobAddress = bobMessenger.listen(LOCALHOST);
+      aliceMessenger.connect("bob", bobAddress);
+
+      for (int i = 0; i < 100; i++) {
+         aliceMessenger.send("bob", "message " + i);
+      }
+      for (int i = 0; i < 100; i++) {
+         assertEquals("alice: message " + i, bobInbox.poll(10, TimeUnit.SECONDS));
+      }
+
+      // bob replies over the connection alice opened
+      bobMessenger.send("alice", "reply");
+      assertEquals("bob: reply", aliceInbox.poll(10, TimeUnit.SECONDS));
+   }
+
+   @Test
+   public void testExchangeMessagesRSA() throws Exception
+   {
+      exchangeMessages(AlgorithmMode.RSA);
+   }
+
+   @Test
+   public void testExchangeMessagesDH() throws Exception
+   {
+      exchangeMessages(AlgorithmMode.DH_AES);
+   }
+
+   private void sendAttachment(AlgorithmMode mode) throws Exception
+   {
+      bob = new MainApp("bob", mode);
+      alice = new MainApp("alice", mode);
+      alice.receivePublicKeyFrom("bob", bob.getPublicKey());
+      bob.receivePublicKeyFrom("alice", alice.getPublicKey());
+
+      bobMessenger = new PeerMessenger(bob, inbox(bobInbox));
+      aliceMessenger = new PeerMessenger(alice, inbox(aliceInbox));
+      Path directory = Files.createTempDirectory("attachments");
+      bobMessenger.getTransport().setAttachmentDirectory(directory);
+      aliceMessenger.connect("bob", bobMessenger.listen(LOCALHOST));
+
+      // Bigger than the socket buffers, so it goes over in pieces
+      byte[] contents = new byte[3 * 1024 * 1024 + 5];
+      new Random(2).nextBytes(contents);
+      Path file = Files.createTempFile("attachment", ".bin");
+      Path received = null;
+      try {
+         Files.write(file, contents);
+
+         aliceMessenger.send("bob", "before");
+         CompletableFuture<Boolean> ack = aliceMessenger.sendAttachment("bob", file);
+         aliceMessenger.send("bob", "after");
+
+         assertTrue(ack.get(20, TimeUnit.SECONDS));
+         assertEquals("alice: before", bobInbox.poll(10, TimeUnit.SECONDS));
+         assertEquals("alice: " + file.getFileName() + " " + contents.length,
+               bobInbox.poll(10, TimeUnit.SECONDS));
+         assertEquals("alice: after", bobInbox.poll(10, TimeUnit.SECONDS));
+
+         received = attachments.poll(10, TimeUnit.SECONDS);
+         assertTrue(Arrays.equals(contents, Files.readAllBytes(received)));
+
+         // Only the decrypted file is left behind
+         assertEquals(1, directory.toFile().list().length);
+      } finally {
+         Files.delete(file);
+         if (received != null)
+            Files.delete(received);
+         Files.delete(directory);
+      }
+   }
+
+   @Test
+   public void testSendAttachmentRSA() throws Exception
+   {
+      sendAttachment(AlgorithmMode.RSA);
+   }
+
+   @Test
+   public void testSendAttachmentDH() throws Exception
+   {
+      sendAttachment(AlgorithmMode.DH_AES);
+   }
+
+   private Path connectForAttachments() throws Exception
+   {
+      bob = new MainApp("bob", AlgorithmMode.DH_AES);
+      alice = new MainApp("alice", AlgorithmMode.DH_AES);
+      alice.receivePublicKeyFrom("bob", bob.getPublicKey());
+      bob.receivePublicKeyFrom("alice", alice.getPublicKey());
+
+      bobMessenger = new PeerMessenger(bob, inbox(bobInbox));
+      aliceMessenger = new PeerMessenger(alice, inbox(aliceInbox));
+      Path directory = Files.createTempDirectory("attachments");
+      bobMessenger.getTransport().setAttachmentDirectory(directory);
+      aliceMessenger.connect("bob", bobMessenger.listen(LOCALHOST));
+      return directory;
+   }
+
+   @Test
+   public void testReferenceTextIsJustAMessage() throws Exception
+   {
+      Path directory = connectForAttachments();
+      try {
+         String text = new Attachment("notes.txt", 10, new byte[Frames.DIGEST_SIZE]).toMessage();
+         assertTrue(aliceMessenger.send("bob", text).get(10, TimeUnit.SECONDS));
+         assertEquals("alice: " + text, bobInbox.poll(10, TimeUnit.SECONDS));
+         assertTrue(attachments.isEmpty());
+      } finally {
+         Files.delete(directory);
+      }
+   }
+
+   @Test
+   public void testOversizeAttachmentRefused() throws Exception
+   {
+      Path directory = connectForAttachments();
+      bobMessenger.getTransport().setMaxAttachmentSize(1024);
+      Path file = Files.createTempFile("attachment", ".bin");
+      try {
+         Files.write(file, new byte[4096]);
+         CompletableFuture<Boolean> ack = aliceMessenger.sendAttachment("bob", file);
+         try {
+            ack.get(10, TimeUnit.SECONDS);
+            fail("Expected the connection to be closed");
+         } catch (ExecutionException e) {
+         }
+         assertEquals(0, directory.toFile().list().length);
+      } finally {
+         Files.delete(file);
+         Files.delete(directory);
+      }
+   }
+
+   @Test
+   public void testOrphanedAttachmentsDeleted() throws Exception
+   {
+      Path directory = connectForAttachments();
+      Path file = Files.createTempFile("attachment", ".bin");
+      try {
+         // Sent without the message referring to it, then disconnected
+         Files.write(file, new byte[4096]);
+         byte[] digest = new byte[Frames.DIGEST_SIZE];
+         digest[0] = 1;
+         aliceMessenger.getTransport().sendFile("bob", file, digest);
+         Path spooled = bobMessenger.getTransport().attachmentPath(digest);
+         for (int i = 0; i < 100 && !Files.exists(spooled); i++) {
+            Thread.sleep(100);
+         }
+         assertTrue(Files.exists(spooled));
+
+         aliceMessenger.close();
+         aliceMessenger = null;
+         for (int i = 0; i < 100 && Files.exists(spooled); i++) {
+            Thread.sleep(100);
+         }
+         assertFalse(Files.exists(spooled));
+
+         // What an earlier run left behind goes when the directory is set,
+         // but decrypted attachments stay
+         Files.write(directory.resolve(spooled.getFileName()), new byte[1]);
+         Files.write(directory.resolve(spooled.getFileName() + "1234.part"), new byte[1]);
+         Path decrypted = directory.resolve(spooled.getFileName() + "-notes.txt");
+         Files.write(decrypted, new byte[1]);
+         bobMessenger.getTransport().setAttachmentDirectory(directory);
+         assertEquals(Arrays.asList(decrypted.getFileName().toString()),
+               Arrays.asList(directory.toFile().list()));
+         Files.delete(decrypted);
+      } finally {
+         Files.delete(file);
+         Files.delete(directory);
+      }
+   }
+
+   @Test
+   public void testPipelinedBatches() throws Exception
+   {
+      final int messages = 2000;
+      PeerTransport receiver = new PeerTransport("receiver",
+            (sender, envelope) -> envelope[0] % 2 == 0);
+      PeerTransport sender = new PeerTransport("sender", (peer, envelope) -> true);
+      try {
+         receiver.setBatchDelay(2, TimeUnit.MILLISECONDS);
+         sender.setBatchDelay(2, TimeUnit.MILLISECONDS);
+         sender.connect("receiver", receiver.listen(LOCALHOST));
+
+         // Everything is sent before any acknowledgement is waited for
+         List<CompletableFuture<Boolean>> acks = new ArrayList<CompletableFuture<Boolean>>();
+         for (int i = 0; i < messages; i++) {
+            byte[] envelope = new byte[100 + i % 50];
+            envelope[0] = (byte) i;
+            acks.add(sender.send("receiver", envelope));
+         }
+
+         for (int i = 0; i < messages; i++) {
+            assertEquals(Boolean.valueOf(i % 2 == 0), acks.get(i).get(10, TimeUnit.SECONDS));
+         }
+      } finally {
+         sender.close();
+         receiver.close();
+      }
+   }
+
+   @Test
+   public void testListenerFailureIsContained() throws Exception
+   {
+      PeerTransport receiver = new PeerTransport("receiver", (sender, envelope) -> {
+         if (envelope[0] == 1)
+            throw new IllegalStateException("listener bug");
+         return true;
+      });
+      PeerTransport sender = new PeerTransport("sender", (peer, envelope) -> true);
+      try {
+         sender.connect("receiver", receiver.listen(LOCALHOST));
+
+         List<CompletableFuture<Boolean>> acks = new ArrayList<CompletableFuture<Boolean>>();
+         for (int i = 0; i < 3; i++) {
+            acks.add(sender.send("receiver", new byte[] { (byte) i }));
+         }
+         assertEquals(Boolean.TRUE, acks.get(0).get(10, TimeUnit.SECONDS));
+         assertEquals(Boolean.FALSE, acks.get(1).get(10, TimeUnit.SECONDS));
+         assertEquals(Boolean.TRUE, acks.get(2).get(10, TimeUnit.SECONDS));
+         assertTrue(sender.isConnected("receiver"));
+      } finally {
+         sender.close();
+         receiver.close();
+      }
+   }
+
+   @Test
+   public void testManyConnections() throws Exception
+   {
+      final int clients = 500;
+      final CountDownLatch received = new CountDownLatch(clients);
+      PeerTransport server = new PeerTransport("server", (sender, envelope) -> {
+         if (envelope.length == 1000)
+            received.countDown();
+         return true;
+      }, 2);
+
+      List<Socket> sockets = new ArrayList<Socket>();
+      try {
+         InetSocketAddress address = server.listen(LOCALHOST);
+         for (int i = 0; i < clients; i++) {
+            Socket socket = new Socket(address.getAddress(), address.getPort());
+            sockets.add(socket);
+
+            byte[] name = ("client" + i).getBytes("UTF-8");
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeInt(1 + name.length);
+            out.writeByte(Frames.HELLO);
+            out.write(name);
+            out.writeInt(1 + 1000);
+            out.writeByte(Frames.MESSAGE);
+            out.write(new byte[1000]);
+            out.flush();
+         }
+
+         assertTrue(received.await(20, TimeUnit.SECONDS));
+         assertTrue(server.isConnected("client" + (clients - 1)));
+      } finally {
+         for (Socket socket : sockets) {
+            socket.close();
+         }
+         server.close();
+      }
+   }
+}
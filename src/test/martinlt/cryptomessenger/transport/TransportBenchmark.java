@@ -0,0 +1,162 @@
+package martinlt.cryptomessenger.transport;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import martinlt.cryptomessenger.MainApp;
+import martinlt.cryptomessenger.MainApp.AlgorithmMode;
+import martinlt.cryptomessenger.concurrent.ThreadPools;
+import martinlt.cryptomessenger.exception.SecurityException;
+
+/**
+ * Compares the selector based {@link PeerTransport} with the thread per
+ * session {@link MessageServer} under the same load: a number of clients each
+ * sending messages and waiting for each acknowledgement. Not run as part of
+ * the tests; run main with
+ *
+ * <pre>
+ * TransportBenchmark [clients] [messages per client] [DH_AES|RSA]
+ * </pre>
+ */
+public class TransportBenchmark
+{
+   private static final InetSocketAddress LOCALHOST = new InetSocketAddress(
+         InetAddress.getLoopbackAddress(), 0);
+
+   public static void main(String[] args) throws Exception
+   {
+      int clients = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+      int messages = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+      AlgorithmMode mode = args.length > 2 ? AlgorithmMode.valueOf(args[2]) : AlgorithmMode.DH_AES;
+
+      final MainApp server = new MainApp("benchmark-server", mode);
+      MainApp client = new MainApp("benchmark-client", mode);
+      try {
+         // A transport keeps one connection per peer name, so every client
+         // session uses its own name for the same key
+         for (int c = 0; c < clients; c++) {
+            server.receivePublicKeyFrom(client.getName() + c, client.getPublicKey());
+         }
+         client.receivePublicKeyFrom(server.getName(), server.getPublicKey());
+         byte[] envelope = client.encryptFor("benchmark message of a typical length, about "
+               + "one hundred characters long, give or take.", server.getName());
+
+         System.out.println(clients + " clients x " + messages + " messages, " + mode + ", "
+               + Runtime.getRuntime().availableProcessors() + " processors, Java "
+               + System.getProperty("java.version"));
+
+         PeerTransport transport = new PeerTransport(server.getName(), (sender, bytes) -> {
+            try {
+               server.decryptFrom(bytes, sender);
+               return true;
+            } catch (SecurityException e) {
+               return false;
+            }
+         });
+         run("NIO selector", transport, transport.listen(LOCALHOST), client.getName(), null,
+               envelope, clients, messages);
+
+         MessageServer messageServer = new MessageServer((recipient, sender, message) -> {
+         });
+         messageServer.host(server.getKeyRing());
+         run(ThreadPools.hasVirtualThreads() ? "Virtual threads" : "Platform threads",
+               messageServer, messageServer.start(LOCALHOST), client.getName(), server.getName(),
+               envelope, clients, messages);
+      } finally {
+         server.removeKeys();
+         client.removeKeys();
+      }
+   }
+
+   private static void run(String name, Closeable target, final InetSocketAddress address,
+         final String sender, final String route, final byte[] envelope, int clients,
+         final int messages) throws Exception
+   {
+      ExecutorService pool = Executors.newFixedThreadPool(clients,
+            ThreadPools.daemonThreadFactory("benchmark-client"));
+      List<Future<long[]>> results = new ArrayList<Future<long[]>>();
+
+      long start = System.nanoTime();
+      for (int c = 0; c < clients; c++) {
+         final String session = sender + c;
+         results.add(pool.submit(() -> session(address, session, route, envelope, messages)));
+      }
+
+      long[] latencies = new long[clients * messages];
+      int count = 0;
+      try {
+         for (Future<long[]> result : results) {
+            long[] session = result.get();
+            System.arraycopy(session, 0, latencies, count, session.length);
+            count += session.length;
+         }
+      } finally {
+         pool.shutdown();
+         target.close();
+      }
+      long elapsed = System.nanoTime() - start;
+
+      Arrays.sort(latencies);
+      System.out.printf("%-16s %8.0f msg/s  p50 %6.2f ms  p99 %6.2f ms  p999 %6.2f ms%n", name,
+            count / (elapsed / 1e9), percentile(latencies, 0.50), percentile(latencies, 0.99),
+            percentile(latencies, 0.999));
+   }
+
+   private static double percentile(long[] sorted, double fraction)
+   {
+      return sorted[(int) Math.min(sorted.length - 1, sorted.length * fraction)] / 1e6;
+   }
+
+   private static long[] session(InetSocketAddress address, String sender, String route,
+         byte[] envelope, int messages) throws Exception
+   {
+      long[] latencies = new long[messages];
+      try (Socket socket = new Socket(address.getAddress(), address.getPort())) {
+         socket.setTcpNoDelay(true);
+         DataOutputStream out = new DataOutputStream(
+               new BufferedOutputStream(socket.getOutputStream()));
+         DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+         write(out, Frames.HELLO, sender.getBytes(StandardCharsets.UTF_8));
+         if (route != null)
+            write(out, Frames.ROUTE, route.getBytes(StandardCharsets.UTF_8));
+
+         for (int i = 0; i < messages; i++) {
+            long sent = System.nanoTime();
+            write(out, Frames.MESSAGE, envelope);
+            out.flush();
+
+            // Skip anything that is not the acknowledgement, i.e. a hello
+            while (true) {
+               int length = in.readInt();
+               byte type = in.readByte();
+               in.skipBytes(length - 1);
+               if (type == Frames.ACK)
+                  break;
+            }
+            latencies[i] = System.nanoTime() - sent;
+         }
+      }
+      return latencies;
+   }
+
+   private static void write(DataOutputStream out, byte type, byte[] payload) throws Exception
+   {
+      ByteBuffer frame = Frames.frame(type, payload);
+      out.write(frame.array(), 0, frame.limit());
+   }
+}
@@ -0,0 +1,58 @@
+package martinlt.cryptomessenger.view;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+public class ProgressInputStreamTest extends TestCase
+{
+   public ProgressInputStreamTest(String testName)
+   {
+      super(testName);
+   }
+
+   @Test
+   public void testReportsThrottledProgressAndTheEnd() throws IOException
+   {
+      int size = ProgressInputStream.REPORT_INTERVAL * 3 + 100;
+      List<Long> reports = new ArrayList<Long>();
+      try (InputStream in = new ProgressInputStream(new ByteArrayInputStream(new byte[size]),
+            reports::add, () -> false)) {
+         byte[] buffer = new byte[4096];
+         while (in.read(buffer) >= 0) {
+         }
+      }
+
+      assertEquals(4, reports.size());
+      assertEquals(Long.valueOf(size), reports.get(reports.size() - 1));
+      for (int i = 1; i < reports.size(); i++)
+         assertTrue(reports.get(i) - reports.get(i - 1) > 0);
+   }
+
+   @Test
+   public void testStopsOnceCancelled() throws IOException
+   {
+      final AtomicBoolean cancelled = new AtomicBoolean();
+      ProgressInputStream in = new ProgressInputStream(new ByteArrayInputStream(new byte[4096]),
+            count -> {
+            }, cancelled::get);
+
+      byte[] buffer = new byte[1024];
+      assertEquals(1024, in.read(buffer));
+      cancelled.set(true);
+      try {
+         in.read(buffer);
+         fail("Expected the read to be interrupted");
+      } catch (InterruptedIOException e) {
+         assertEquals(1024, in.getCount());
+      }
+   }
+}
@@ -0,0 +1,42 @@
+package martinlt.cryptomessenger.view;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+public class TextLinesTest extends TestCase
+{
+   public TextLinesTest(String testName)
+   {
+      super(testName);
+   }
+
+   @Test
+   public void testSplitsAtWidthAndLineBreaks()
+   {
+      assertEquals(Arrays.asList("abcd", "ef", "gh", "ijkl", "m", ""),
+            new TextLines("abcdef\ngh\r\nijklm\n", 4));
+      assertEquals(Arrays.asList(""), new TextLines("", 4));
+
+      // A break right at the width ends that line, not the next one
+      assertEquals(Arrays.asList("abcd", "ef"), new TextLines("abcd\nef", 4));
+   }
+
+   @Test
+   public void testLargeTextIsIndexedNotCopied()
+   {
+      char[] chars = new char[8 * 1024 * 1024];
+      Arrays.fill(chars, 'A');
+      String text = new String(chars);
+
+      TextLines lines = new TextLines(text, TextViewer.DEFAULT_LINE_WIDTH);
+      assertEquals((chars.length + TextViewer.DEFAULT_LINE_WIDTH - 1)
+            / TextViewer.DEFAULT_LINE_WIDTH, lines.size());
+      assertEquals(TextViewer.DEFAULT_LINE_WIDTH, lines.get(0).length());
+      assertEquals(chars.length % TextViewer.DEFAULT_LINE_WIDTH,
+            lines.get(lines.size() - 1).length());
+      assertSame(text, lines.getText());
+   }
+}